@@ -0,0 +1,262 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs encoders on the same reference frames and reports, for each, the encode time, the output
+ * size and the peak memory, so that the encoder of a capture profile can be picked for a storage
+ * and CPU budget.
+ * <p>
+ * The output is counted and dropped, only the encoding is timed. The memory is read from a
+ * {@link MemoryGauge} before every encoder, then polled on a thread of its own while it runs: the
+ * peak is the highest reading above the one before.
+ */
+public class EncoderBenchmark {
+
+    /**
+     * How often the gauge is read while an encoder runs.
+     */
+    private static final long POLL_MILLIS = 1;
+
+    /**
+     * Tells the memory in use, in bytes.
+     */
+    public interface MemoryGauge {
+        long getUsedBytes();
+    }
+
+    /**
+     * The Java heap. The pixels of a Bitmap are outside of it from Android 8.0.
+     */
+    public static final MemoryGauge JAVA_HEAP = new MemoryGauge() {
+        @Override
+        public long getUsedBytes() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    };
+
+    /**
+     * What one encoder did with the frames.
+     */
+    public static class Result {
+        private final String mName;
+        private final int mEncodes;
+        private final long mInputBytes;
+        private final long mOutputBytes;
+        private final long mMedianNanos;
+        private final long mP95Nanos;
+        private final long mPeakMemoryBytes;
+
+        Result(String name, int encodes, long inputBytes, long outputBytes, long medianNanos,
+               long p95Nanos, long peakMemoryBytes) {
+            mName = name;
+            mEncodes = encodes;
+            mInputBytes = inputBytes;
+            mOutputBytes = outputBytes;
+            mMedianNanos = medianNanos;
+            mP95Nanos = p95Nanos;
+            mPeakMemoryBytes = peakMemoryBytes;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return Encodes timed, warm up ones excluded.
+         */
+        public int getEncodes() {
+            return mEncodes;
+        }
+
+        /**
+         * @return Mean size of a frame's output.
+         */
+        public long getOutputBytes() {
+            return mOutputBytes;
+        }
+
+        /**
+         * @return Output size over the camera's JPEG size.
+         */
+        public double getSizeRatio() {
+            return mInputBytes == 0 ? 0 : (double) mOutputBytes / mInputBytes;
+        }
+
+        public long getMedianNanos() {
+            return mMedianNanos;
+        }
+
+        public long getP95Nanos() {
+            return mP95Nanos;
+        }
+
+        /**
+         * @return Memory used above what was used before the encoder ran.
+         */
+        public long getPeakMemoryBytes() {
+            return mPeakMemoryBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-14s p50 %7.1f ms  p95 %7.1f ms  %8d KB (x%.2f)  peak +%6.1f MB",
+                    mName, mMedianNanos / 1e6, mP95Nanos / 1e6, mOutputBytes / 1024,
+                    getSizeRatio(), mPeakMemoryBytes / 1e6);
+        }
+    }
+
+    private final int mWarmUps;
+    private final int mRuns;
+    private final MemoryGauge mGauge;
+
+    /**
+     * @param warmUps Untimed passes over the frames before the timed ones.
+     * @param runs    Timed passes over the frames.
+     */
+    public EncoderBenchmark(int warmUps, int runs, MemoryGauge gauge) {
+        if (warmUps < 0 || runs < 1) {
+            throw new IllegalArgumentException("At least one timed run");
+        }
+        mWarmUps = warmUps;
+        mRuns = runs;
+        mGauge = gauge;
+    }
+
+    /**
+     * @param frames The camera's JPEGs, read from their position to their limit.
+     */
+    public List<Result> run(List<ImageEncoder> encoders, List<ByteBuffer> frames)
+            throws IOException {
+        List<Result> results = new ArrayList<>(encoders.size());
+        for (ImageEncoder encoder : encoders) {
+            results.add(run(encoder, frames));
+        }
+        return results;
+    }
+
+    public Result run(ImageEncoder encoder, List<ByteBuffer> frames) throws IOException {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No frames");
+        }
+        CountingOutputStream out = new CountingOutputStream();
+        for (int i = 0; i < mWarmUps; i++) {
+            for (ByteBuffer frame : frames) {
+                encoder.encode(frame, 0, out);
+            }
+        }
+        // What the warm up left behind doesn't count.
+        System.gc();
+        LatencyHistogram times = new LatencyHistogram();
+        long inputBytes = 0;
+        out.mCount = 0;
+        MemoryPoller poller = new MemoryPoller(mGauge);
+        poller.start();
+        try {
+            for (int i = 0; i < mRuns; i++) {
+                for (ByteBuffer frame : frames) {
+                    long start = System.nanoTime();
+                    encoder.encode(frame, 0, out);
+                    times.record(System.nanoTime() - start);
+                    poller.poll();
+                    inputBytes += frame.remaining();
+                }
+            }
+        } finally {
+            poller.stop();
+        }
+        int encodes = mRuns * frames.size();
+        return new Result(encoder.getName(), encodes, inputBytes / encodes, out.mCount / encodes,
+                times.getValueAtPercentile(50), times.getValueAtPercentile(95),
+                poller.getPeakBytes());
+    }
+
+    /**
+     * @return One line per result.
+     */
+    public static String format(List<Result> results) {
+        StringBuilder builder = new StringBuilder();
+        for (Result result : results) {
+            builder.append(result).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads the gauge until stopped, keeping the highest reading.
+     */
+    private static class MemoryPoller implements Runnable {
+
+        private final MemoryGauge mGauge;
+        private final long mBaseline;
+        private final Thread mThread = new Thread(this, "MemoryPoller");
+        private volatile boolean mStopped;
+        private volatile long mPeak;
+
+        MemoryPoller(MemoryGauge gauge) {
+            mGauge = gauge;
+            mBaseline = gauge.getUsedBytes();
+            mPeak = mBaseline;
+            mThread.setDaemon(true);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                poll();
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        synchronized void poll() {
+            mPeak = Math.max(mPeak, mGauge.getUsedBytes());
+        }
+
+        void stop() {
+            mStopped = true;
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long getPeakBytes() {
+            return Math.max(0, mPeak - mBaseline);
+        }
+    }
+
+    /**
+     * Counts the bytes and drops them.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            mCount += length;
+        }
+    }
+}
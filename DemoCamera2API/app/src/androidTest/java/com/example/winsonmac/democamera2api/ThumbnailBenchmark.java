@@ -0,0 +1,188 @@
+package com.example.winsonmac.democamera2api;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Makes the thumbnail of the same picture the three ways it can be, and reports the decode time
+ * and the memory of each: from the thumbnail embedded in the EXIF data, by decoding the JPEG with
+ * an inSampleSize, and by decoding it at full size as the preview used to be made.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailBenchmark {
+
+    private static final String TAG = "ThumbnailBenchmark";
+    private static final int WIDTH = 3264;
+    private static final int HEIGHT = 2448;
+    private static final int EXIF_THUMBNAIL_WIDTH = 320;
+    private static final int EXIF_THUMBNAIL_HEIGHT = 240;
+    private static final int QUALITY = 95;
+    private static final int TARGET_SIZE = 200;
+    private static final int RUNS = 9;
+
+    private interface Mode {
+        Bitmap decode();
+    }
+
+    @Test
+    public void exifThumbnailAgainstSampledAndFullDecode() {
+        final byte[] jpeg = referenceFrame();
+        final byte[] withThumbnail = withExifThumbnail(jpeg);
+        String[] names = {"exif-thumb", "sampled", "full"};
+        Mode[] modes = {
+                new Mode() {
+                    @Override
+                    public Bitmap decode() {
+                        return JpegThumbnails.decode(ByteBuffer.wrap(withThumbnail), TARGET_SIZE, 0);
+                    }
+                },
+                new Mode() {
+                    @Override
+                    public Bitmap decode() {
+                        return JpegThumbnails.decode(ByteBuffer.wrap(jpeg), TARGET_SIZE, 0);
+                    }
+                },
+                new Mode() {
+                    @Override
+                    public Bitmap decode() {
+                        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+                    }
+                }
+        };
+        int[] expectedWidths = {EXIF_THUMBNAIL_WIDTH,
+                WIDTH / JpegThumbnails.getSampleSize(WIDTH, HEIGHT, TARGET_SIZE), WIDTH};
+
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%dx%d JPEG of %d KB, median of %d thumbnails of %d px\n", WIDTH, HEIGHT,
+                jpeg.length / 1024, RUNS, TARGET_SIZE));
+        for (int m = 0; m < modes.length; m++) {
+            long[] micros = new long[RUNS];
+            long[] allocated = new long[RUNS];
+            long pixels = 0;
+            // The first run warms the decoder up and is not counted.
+            for (int run = -1; run < RUNS; run++) {
+                Runtime.getRuntime().gc();
+                startAllocCounting();
+                long start = System.nanoTime();
+                Bitmap bitmap = modes[m].decode();
+                long nanos = System.nanoTime() - start;
+                long bytes = stopAllocCounting();
+                assertNotNull(names[m], bitmap);
+                assertEquals(names[m], expectedWidths[m], bitmap.getWidth());
+                pixels = bitmap.getAllocationByteCount();
+                bitmap.recycle();
+                if (run >= 0) {
+                    micros[run] = nanos / 1000;
+                    allocated[run] = bytes;
+                }
+            }
+            Arrays.sort(micros);
+            Arrays.sort(allocated);
+            report.append(String.format(Locale.US,
+                    "%-10s %8.2f ms %9d B allocated %10d B of pixels\n",
+                    names[m], micros[RUNS / 2] / 1000.0, allocated[RUNS / 2], pixels));
+        }
+        Log.i(TAG, report.toString());
+    }
+
+    /**
+     * The Java objects the decode allocates on this thread. The pixels of a Bitmap are native
+     * from Android 8.0, they are reported on their own.
+     */
+    @SuppressWarnings("deprecation")
+    private static void startAllocCounting() {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long stopAllocCounting() {
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocSize();
+    }
+
+    /**
+     * @return The JPEG with an EXIF APP1 right after its SOI, holding only an IFD1 thumbnail.
+     */
+    private static byte[] withExifThumbnail(byte[] jpeg) {
+        Bitmap full = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        Bitmap small = Bitmap.createScaledBitmap(full, EXIF_THUMBNAIL_WIDTH,
+                EXIF_THUMBNAIL_HEIGHT, true);
+        full.recycle();
+        ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+        assertTrue(small.compress(Bitmap.CompressFormat.JPEG, QUALITY, thumbnail));
+        small.recycle();
+        int length = thumbnail.size();
+
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        write(tiff, 'M', 'M', 0, 42, 0, 0, 0, 8);
+        // IFD0: no entries, IFD1 at 14
+        write(tiff, 0, 0, 0, 0, 0, 14);
+        // IFD1: two entries, thumbnail at 14 + 2 + 24 + 4 = 44
+        write(tiff, 0, 2);
+        write(tiff, 0x02, 0x01, 0, 4, 0, 0, 0, 1, 0, 0, 0, 44);
+        write(tiff, 0x02, 0x02, 0, 4, 0, 0, 0, 1,
+                length >>> 24, (length >> 16) & 0xFF, (length >> 8) & 0xFF, length & 0xFF);
+        write(tiff, 0, 0, 0, 0);
+        byte[] thumbnailBytes = thumbnail.toByteArray();
+        tiff.write(thumbnailBytes, 0, length);
+
+        int segmentLength = 2 + 6 + tiff.size();
+        assertTrue("The thumbnail doesn't fit in the APP1", segmentLength <= 0xFFFF);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length + segmentLength + 2);
+        out.write(jpeg, 0, 2);
+        write(out, 0xFF, 0xE1, segmentLength >> 8, segmentLength & 0xFF, 'E', 'x', 'i', 'f', 0, 0);
+        byte[] tiffBytes = tiff.toByteArray();
+        out.write(tiffBytes, 0, tiffBytes.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+
+    /**
+     * Gradients, sharp edges and sensor-like noise, as the camera would save them.
+     */
+    private static byte[] referenceFrame() {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(WIDTH);
+        int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = 255 * y / HEIGHT;
+                int g = (x / 256 + y / 256) % 2 == 0 ? 200 : 60;
+                int b = 255 - 255 * (x + y) / (WIDTH + HEIGHT);
+                int noise = random.nextInt(9) - 4;
+                row[x] = 0xFF000000 | clamp(r + noise) << 16 | clamp(g + noise) << 8
+                        | clamp(b + noise);
+            }
+            bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, jpeg));
+        bitmap.recycle();
+        return jpeg.toByteArray();
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.winsonmac.democamera2api;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An encoder of the pixels: the camera's JPEG is decoded, turned upright, and handed to
+ * {@link #encode(Bitmap, OutputStream)}. The decoded picture is the biggest cost in time and
+ * memory, about 4 bytes a pixel, twice that while it is being rotated.
+ */
+public abstract class BitmapEncoder implements ImageEncoder {
+
+    @Override
+    public boolean isPassthrough() {
+        return false;
+    }
+
+    @Override
+    public long encode(ByteBuffer jpeg, int degrees, OutputStream out) throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeStream(
+                new JpegThumbnails.ByteBufferInputStream(jpeg.slice()));
+        if (null == bitmap) {
+            throw new IOException("The JPEG could not be decoded");
+        }
+        try {
+            if (degrees % 360 != 0) {
+                Matrix matrix = new Matrix();
+                matrix.postRotate(degrees);
+                Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                        bitmap.getHeight(), matrix, true);
+                if (rotated != bitmap) {
+                    bitmap.recycle();
+                    bitmap = rotated;
+                }
+            }
+            CountingOutputStream counting = new CountingOutputStream(out);
+            encode(bitmap, counting);
+            return counting.mCount;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @param out Where the output goes, left open.
+     */
+    protected abstract void encode(Bitmap bitmap, OutputStream out) throws IOException;
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            mCount += length;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.winsonmac.democamera2api;
+
+import java.util.Locale;
+
+/**
+ * Measures one burst: when it was submitted and when each of its frames was written, so that the
+ * burst throughput can be compared with the single shot path.
+ */
+public class BurstStats {
+
+    private final int mFrames;
+    private final long mSubmitNanos;
+
+    /**
+     * Time each frame was written, in the order they were written.
+     */
+    private final long[] mDoneNanos;
+    private int mClaimed;
+    private int mDone;
+    private int mFailed;
+
+    /**
+     * @param frames      Number of requests in the burst.
+     * @param submitNanos {@link System#nanoTime()} when the burst was submitted.
+     */
+    public BurstStats(int frames, long submitNanos) {
+        mFrames = frames;
+        mSubmitNanos = submitNanos;
+        mDoneNanos = new long[frames];
+    }
+
+    /**
+     * Called for every image coming out of the reader while the burst is running.
+     *
+     * @return true if the image belongs to this burst.
+     */
+    public synchronized boolean claimFrame() {
+        if (mClaimed < mFrames) {
+            mClaimed++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A frame has been written or has failed.
+     *
+     * @return true if this was the last frame of the burst.
+     */
+    public synchronized boolean onFrameDone(long nanos, boolean success) {
+        if (mDone + mFailed >= mFrames) {
+            return false;
+        }
+        if (success) {
+            mDoneNanos[mDone++] = nanos;
+        } else {
+            mFailed++;
+        }
+        return mDone + mFailed == mFrames;
+    }
+
+    public synchronized int getFramesDone() {
+        return mDone;
+    }
+
+    public synchronized int getFramesFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return Written frames per second, from the submission to the last written frame.
+     */
+    public synchronized double getFramesPerSecond() {
+        if (mDone == 0) {
+            return 0;
+        }
+        long elapsed = mDoneNanos[mDone - 1] - mSubmitNanos;
+        return elapsed <= 0 ? 0 : mDone * 1e9 / elapsed;
+    }
+
+    /**
+     * @return Time from the submission to the write of the given frame, in milliseconds.
+     */
+    public synchronized double getLatencyMillis(int frame) {
+        return (mDoneNanos[frame] - mSubmitNanos) / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "Burst %d/%d frames (%d failed), %.1f fps, latency ms:",
+                mDone, mFrames, mFailed, getFramesPerSecond()));
+        for (int i = 0; i < mDone; i++) {
+            builder.append(String.format(Locale.US, " %.0f", getLatencyMillis(i)));
+        }
+        return builder.toString();
+    }
+}
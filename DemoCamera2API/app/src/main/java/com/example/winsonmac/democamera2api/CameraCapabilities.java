@@ -0,0 +1,247 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The part of a camera's characteristics the fragment needs, small enough to be stored and read
+ * back at the next start instead of asking the camera service again.
+ * <p>
+ * Sizes are kept as width and height pairs: {w0, h0, w1, h1, ...}.
+ */
+public class CameraCapabilities {
+
+    /**
+     * Changed whenever the stored format changes, older entries are then ignored.
+     */
+    static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_ID = "id";
+    private static final String KEY_FACING = "facing";
+    private static final String KEY_SENSOR_ORIENTATION = "sensorOrientation";
+    private static final String KEY_MAX_ZOOM = "maxZoom";
+    private static final String KEY_FLASH = "flash";
+    private static final String KEY_AF_MODES = "afModes";
+    private static final String KEY_ACTIVE_ARRAY = "activeArray";
+    private static final String KEY_JPEG_SIZES = "jpegSizes";
+    private static final String KEY_PREVIEW_SIZES = "previewSizes";
+    private static final String KEY_YUV_SIZES = "yuvSizes";
+    private static final String PREFIX_CHOICE = "choice.";
+
+    private final String mCameraId;
+    private final int mFacing;
+    private final int mSensorOrientation;
+    private final float mMaxZoom;
+    private final boolean mFlashSupported;
+    private final int[] mAfModes;
+    private final int[] mActiveArray;
+    private final int[] mJpegSizes;
+    private final int[] mPreviewSizes;
+    private final int[] mYuvSizes;
+
+    /**
+     * Sizes already picked for a given request, see {@link #getChoice}.
+     */
+    private final Map<String, int[]> mChoices = new HashMap<>();
+
+    /**
+     * @param activeArray Left, top, right and bottom of the active pixel array.
+     */
+    public CameraCapabilities(String cameraId, int facing, int sensorOrientation, float maxZoom,
+                              boolean flashSupported, int[] afModes, int[] activeArray,
+                              int[] jpegSizes, int[] previewSizes, int[] yuvSizes) {
+        mCameraId = cameraId;
+        mFacing = facing;
+        mSensorOrientation = sensorOrientation;
+        mMaxZoom = maxZoom;
+        mFlashSupported = flashSupported;
+        mAfModes = afModes;
+        mActiveArray = activeArray;
+        mJpegSizes = jpegSizes;
+        mPreviewSizes = previewSizes;
+        mYuvSizes = yuvSizes;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public int getFacing() {
+        return mFacing;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    public float getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    public boolean isFlashSupported() {
+        return mFlashSupported;
+    }
+
+    public int[] getAfModes() {
+        return mAfModes;
+    }
+
+    public boolean isAfModeSupported(int mode) {
+        for (int supported : mAfModes) {
+            if (supported == mode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int[] getActiveArray() {
+        return mActiveArray;
+    }
+
+    public int[] getJpegSizes() {
+        return mJpegSizes;
+    }
+
+    public int[] getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    public int[] getYuvSizes() {
+        return mYuvSizes;
+    }
+
+    /**
+     * @return The biggest JPEG size by area, as {width, height}.
+     */
+    public int[] getLargestJpegSize() {
+        int best = 0;
+        for (int i = 2; i < mJpegSizes.length; i += 2) {
+            if ((long) mJpegSizes[i] * mJpegSizes[i + 1]
+                    > (long) mJpegSizes[best] * mJpegSizes[best + 1]) {
+                best = i;
+            }
+        }
+        return new int[]{mJpegSizes[best], mJpegSizes[best + 1]};
+    }
+
+    /**
+     * A size picked earlier for the same request, so that the selection doesn't run again.
+     *
+     * @param key Everything the selection depends on, e.g. the view size and the display rotation.
+     * @return {width, height}, or null if none has been stored yet.
+     */
+    public synchronized int[] getChoice(String key) {
+        return mChoices.get(key);
+    }
+
+    public synchronized void putChoice(String key, int width, int height) {
+        mChoices.put(key, new int[]{width, height});
+    }
+
+    /**
+     * @return A text form of the capabilities, read back by {@link #decode}.
+     */
+    public synchronized String encode() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_VERSION, String.valueOf(VERSION));
+        properties.setProperty(KEY_ID, mCameraId);
+        properties.setProperty(KEY_FACING, String.valueOf(mFacing));
+        properties.setProperty(KEY_SENSOR_ORIENTATION, String.valueOf(mSensorOrientation));
+        properties.setProperty(KEY_MAX_ZOOM, String.valueOf(mMaxZoom));
+        properties.setProperty(KEY_FLASH, String.valueOf(mFlashSupported));
+        properties.setProperty(KEY_AF_MODES, join(mAfModes));
+        properties.setProperty(KEY_ACTIVE_ARRAY, join(mActiveArray));
+        properties.setProperty(KEY_JPEG_SIZES, join(mJpegSizes));
+        properties.setProperty(KEY_PREVIEW_SIZES, join(mPreviewSizes));
+        properties.setProperty(KEY_YUV_SIZES, join(mYuvSizes));
+        for (Map.Entry<String, int[]> choice : mChoices.entrySet()) {
+            properties.setProperty(PREFIX_CHOICE + choice.getKey(), join(choice.getValue()));
+        }
+        StringWriter writer = new StringWriter();
+        try {
+            properties.store(writer, null);
+        } catch (IOException e) {
+            // Not with a StringWriter.
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return The capabilities, or null if the text is not understood or comes from another
+     * version.
+     */
+    public static CameraCapabilities decode(String text) {
+        if (null == text) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(text));
+            if (!String.valueOf(VERSION).equals(properties.getProperty(KEY_VERSION))) {
+                return null;
+            }
+            String id = properties.getProperty(KEY_ID);
+            int[] activeArray = split(properties.getProperty(KEY_ACTIVE_ARRAY));
+            int[] jpegSizes = split(properties.getProperty(KEY_JPEG_SIZES));
+            int[] previewSizes = split(properties.getProperty(KEY_PREVIEW_SIZES));
+            int[] yuvSizes = split(properties.getProperty(KEY_YUV_SIZES));
+            if (null == id || activeArray.length != 4 || jpegSizes.length < 2
+                    || previewSizes.length < 2 || jpegSizes.length % 2 != 0
+                    || previewSizes.length % 2 != 0 || yuvSizes.length % 2 != 0) {
+                return null;
+            }
+            CameraCapabilities capabilities = new CameraCapabilities(id,
+                    Integer.parseInt(properties.getProperty(KEY_FACING)),
+                    Integer.parseInt(properties.getProperty(KEY_SENSOR_ORIENTATION)),
+                    Float.parseFloat(properties.getProperty(KEY_MAX_ZOOM)),
+                    Boolean.parseBoolean(properties.getProperty(KEY_FLASH)),
+                    split(properties.getProperty(KEY_AF_MODES)), activeArray,
+                    jpegSizes, previewSizes, yuvSizes);
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(PREFIX_CHOICE)) {
+                    int[] size = split(properties.getProperty(key));
+                    if (size.length == 2) {
+                        capabilities.putChoice(key.substring(PREFIX_CHOICE.length()), size[0], size[1]);
+                    }
+                }
+            }
+            return capabilities;
+        } catch (IOException | RuntimeException e) {
+            // NumberFormatException, NullPointerException: a damaged entry is a missing one.
+            return null;
+        }
+    }
+
+    private static String join(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static int[] split(String text) {
+        if (null == text) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        if (text.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = text.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
@@ -21,15 +22,18 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
@@ -44,22 +48,30 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.Toast;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 @TargetApi(21)
-public class CameraFragment extends Fragment implements View.OnClickListener, View.OnTouchListener {
+public class CameraFragment extends Fragment
+        implements View.OnClickListener, View.OnLongClickListener, View.OnTouchListener {
 
     private static final String TAG = "CameraFragment";
     private static final int REQUEST_CAMERA_PERMISSION = 200;
@@ -78,13 +90,27 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     }
 
     /**
-     * Camera state tracking
+     * Saved pictures registered in the media store together, and the longest a picture waits
+     * for its batch.
      */
-    private static final int STATE_PREVIEW = 0;
-    private static final int STATE_WAITING_LOCK = 1;            // Waiting for the focus to be locked.
-    private static final int STATE_WAITING_PRECAPTURE = 2;      // Waiting for the exposure to be precapture state.
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;  // Waiting for the exposure state to be something other than precapture.
-    private static final int STATE_ALREADY_TAKEN = 4;           // Picture was taken
+    private static final int GALLERY_BATCH_SIZE = 16;
+    private static final long GALLERY_FLUSH_MILLIS = 2000;
+
+    /**
+     * Preview frames whose metadata is kept, about 10 seconds at 30 fps.
+     */
+    private static final int FRAME_METADATA_FRAMES = 300;
+
+    /**
+     * Capture stages measured by {@link #mTracer}.
+     */
+    private static final int TRACE_PRESS_TO_REQUEST = 0;    // Shutter press to the still request.
+    private static final int TRACE_FOCUS_LOCK = 1;          // AF trigger to focus locked.
+    private static final int TRACE_PRECAPTURE = 2;          // AE trigger to metering done.
+    private static final int TRACE_REQUEST_TO_IMAGE = 3;    // Still request to JPEG available.
+    private static final int TRACE_ENCODE = 4;              // Thumbnail and rotation.
+    private static final int TRACE_WRITE = 5;               // File write.
+    private static final int TRACE_PRESS_TO_SAVED = 6;      // Shutter press to file written.
 
     /**
      * The guaranteed by Camera2 API
@@ -93,6 +119,84 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     private static final int MAX_PREVIEW_WIDTH = 1920;
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    /**
+     * Number of JPEG images the ImageReader can hold at once, i.e. how many shots can be between
+     * the capture and the end of their file write.
+     */
+    private static final int MAX_IMAGES = 8;
+
+    /**
+     * Shutter presses kept while every ImageReader slot is in use.
+     */
+    private static final int CAPTURE_QUEUE_CAPACITY = 8;
+
+    /**
+     * Number of frames taken by a long press on the capture button.
+     */
+    private static final int BURST_SIZE = 6;
+
+    /**
+     * Number of threads preparing the images (thumbnails, rotation), so a burst is drained in
+     * parallel. Their queue can hold every image of the reader.
+     */
+    private static final int ENCODE_THREADS = 2;
+
+    /**
+     * The flash storage is written one file at a time, parallel writes only compete for it.
+     */
+    private static final int IO_THREADS = 1;
+
+    /**
+     * Rotate the pixels of the JPEGs ourselves, losslessly on the DCT blocks, instead of asking the
+     * camera for the orientation (which many devices only record in EXIF). Only for viewers
+     * ignoring EXIF.
+     */
+    private static final boolean ROTATE_PIXELS = false;
+
+    /**
+     * Size in pixels of the shorter side of the preview shown after a shot.
+     */
+    private static final int THUMBNAIL_SIZE = 200;
+
+    /**
+     * Size in pixels of the shorter side of the thumbnails kept for browsing the pictures, and
+     * the room they take in memory and in their pack file.
+     */
+    private static final int CACHED_THUMBNAIL_SIZE = 96;
+    private static final long THUMBNAIL_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final int THUMBNAIL_PACK_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Shots per second the storage has to keep up with, and the JPEG qualities the still
+     * captures may use for that.
+     */
+    private static final double TARGET_SHOTS_PER_SECOND = 2;
+    private static final int MIN_JPEG_QUALITY = 70;
+    private static final int MAX_JPEG_QUALITY = 100;
+    private static final int JPEG_QUALITY_STEP = 5;
+
+    /**
+     * What the still pictures are saved as. The ZSL pictures are always JPEG.
+     */
+    private static final ImageEncoders.Profile CAPTURE_PROFILE = ImageEncoders.Profile.STANDARD;
+
+    /**
+     * Open the camera device as soon as the fragment resumes, while the preview surface is being
+     * created, instead of waiting for the surface.
+     */
+    private static final boolean OPEN_EARLY = true;
+
+    /**
+     * Widest frame given to the {@link FrameAnalyzer}s, small enough to keep up with the preview.
+     */
+    private static final int ANALYSIS_MAX_WIDTH = 640;
+
+    /**
+     * Default memory for the zero shutter lag frames, about three full resolution frames of a
+     * 12 MP sensor plus the images the camera and the encoder hold.
+     */
+    private static final long ZSL_MEMORY_BUDGET = 96L * 1024 * 1024;
+
     /**
      * For handling the camera lifecycle
      */
@@ -108,30 +212,112 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
      */
     private String mCameraId;                       // ID of the current device.
     private AutoFitTextureView mTextureView;        // For previewing.
+    private ImageView mThumbnailView;               // Last picture taken.
     private CameraCaptureSession mCaptureSession;   // A session for camera preview.
     private CameraDevice mCameraDevice;             // Easy to know
     private Size mPreviewSize;                      // The size of the camera preview
-    private CameraCharacteristics cameraCharacteristics;
+    private CameraCapabilities mCameraCapabilities; // What the current device supports.
+    private CapabilityCache mCapabilityCache;       // Capabilities of every device, from earlier starts.
+    private final StartupTimer mStartupTimer = new StartupTimer();
+    private volatile boolean mPreviewSurfaceReady;  // Sized and transformed, see createSessionWhenReady().
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI
+     * Threads running tasks that shouldn't block the UI. The camera thread only receives the
+     * camera callbacks and submits requests, the images are prepared by the encode stage and
+     * written by the I/O stage, so a slow write never delays a capture result.
      */
-    private HandlerThread mBackgroundThread;        // Background thread.
-    private Handler mBackgroundHandler;             // Handler in background thread.
-    private File mFile;                             // Read/write processing.
+    private HandlerThread mBackgroundThread;        // Camera thread, every camera callback.
+    private Handler mBackgroundHandler;             // Handler in camera thread.
+    private StageExecutor mEncodeExecutor;          // Threads preparing the images.
+    private StageExecutor mIoExecutor;              // Threads writing the images.
+    private CaptureQueue mCaptureQueue;             // Gives each shot its own file and a reader slot.
     private ImageReader mImageReader;               // Image's data (bytes).
     private ImageReader.OnImageAvailableListener mOnImageAvailableListener; // Listen when image is available to save
+    private ImageSaver.Callback mImageSaverCallback;                        // Listen when image was written
+
+    /**
+     * Live frame analysis, only part of the session when analyzers have been added.
+     */
+    private final List<FrameAnalyzer> mFrameAnalyzers = new ArrayList<>();
+    private final List<String> mFrameAnalyzerNames = new ArrayList<>();
+    private FrameAnalysisStage.DropPolicy mFrameDropPolicy = FrameAnalysisStage.DropPolicy.KEEP_LATEST;
+    private FrameAnalysisStage mFrameAnalysisStage;
 
     /**
-     * Add on some extra features having in camera hardware.
+     * Zero shutter lag, only part of the session when enabled and within the memory budget.
+     */
+    private boolean mZslEnabled;
+    private long mZslMemoryBudget = ZSL_MEMORY_BUDGET;
+    private volatile ZslStage mZslStage;
+    // The newest result of the repeating request, for the EXIF of the ZSL frames.
+    private volatile TotalCaptureResult mLastPreviewResult;
+    private ZslStage.Callback mZslCallback;
+
+    /**
+     * Add on some extra features having in camera hardware. Only used on the camera thread. The
+     * builder never keeps a trigger, the repeating requests are built from it.
      */
     private CaptureRequest mPreviewRequest;
     private CaptureRequest.Builder mPreviewRequestBuilder;
 
     /**
-     * For current tracking purpose.
+     * Where the running still capture is, from the shutter press to the capture request.
+     */
+    private final CaptureStateMachine mCaptureStateMachine = new CaptureStateMachine();
+
+    /**
+     * Where the shutter time goes. The stamps belong to the running capture sequence, 0 when the
+     * stage has not started.
+     */
+    private final LatencyTracer mTracer = new LatencyTracer("press to request", "focus lock",
+            "precapture", "request to image", "encode", "write", "press to saved");
+    private volatile long mPressNanos;
+
+    /**
+     * EXIF tags of the still captures whose JPEG is not written yet, by sensor timestamp.
+     */
+    private final Map<Long, ExifBuilder> mStillExif = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the saved pictures to the gallery.
+     */
+    private GalleryRegistrar mGalleryRegistrar;
+
+    /**
+     * Names the pictures and records them, null if its log could not be opened.
+     */
+    private CaptureCatalog mCatalog;
+
+    /**
+     * Thumbnails of the pictures in the catalog, null if its pack could not be opened.
+     */
+    private ThumbnailCache mThumbnails;
+
+    /**
+     * Lowers the JPEG quality when the storage can't keep up with the shots.
+     */
+    private final QualityGovernor mQualityGovernor = new QualityGovernor(TARGET_SHOTS_PER_SECOND,
+            MIN_JPEG_QUALITY, MAX_JPEG_QUALITY, JPEG_QUALITY_STEP, 1);
+
+    /**
+     * Timestamps, exposure and 3A states of the last frames, to tell preview stutter apart.
      */
-    private int mState = STATE_PREVIEW;
+    private final FrameMetadataRing mFrameMetadata = new FrameMetadataRing(FRAME_METADATA_FRAMES);
+    private volatile long mFocusLockNanos;
+    private volatile long mPrecaptureNanos;
+    private volatile long mRequestNanos;
+
+    /**
+     * Whether the running capture sequence is a burst, only used on the camera thread, and how
+     * it performs.
+     */
+    private boolean mBurstRequested;
+    private volatile BurstStats mBurstStats;
+
+    /**
+     * Clockwise rotation the saver has to apply to the pictures, when {@link #ROTATE_PIXELS}.
+     */
+    private volatile int mPixelRotation;
 
     /**
      * A signal to prevent the app from exiting before closing the camera.
@@ -156,10 +342,12 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     /**
      * For zooming purpose
      */
-    protected float fingerSpacing = 0;
-    protected float zoomLevel = 1f;
+    protected float fingerSpacing = 0;              // At the start of the pinch, 0 when there is none.
+    protected float zoomLevel = 1f;                 // At the start of the pinch.
     protected float maximumZoomLevel;
-    protected Rect zoom;
+    protected volatile Rect zoom;                   // Crop of the current preview request.
+    private volatile ZoomController mZoomController; // Coalesces the pinch into one crop per frame.
+    private Rect[] mZoomCrops;                      // The controller's crops, made once.
 
     private Size chooseOptimalSize(Size[] choices,
                                    int textureViewWidth, int textureViewHeight,
@@ -204,7 +392,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
         mSurfaceTextureListener = new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-                openCamera(width, height);
+                onPreviewSurfaceReady(width, height);
             }
 
             @Override
@@ -219,7 +407,10 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
 
             @Override
             public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-
+                String startup = mStartupTimer.finish("first frame");
+                if (null != startup) {
+                    Log.i(TAG, startup);
+                }
             }
         };
 
@@ -230,9 +421,10 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
                 // We start camera preview here.
                 mCameraOpenCloseLock.release();
                 mCameraDevice = cameraDevice;
+                mStartupTimer.mark("opened");
 
-                // Start new session
-                createCameraPreviewSession();
+                // Start new session, unless the surface isn't there yet
+                createSessionWhenReady();
             }
 
             @Override
@@ -261,13 +453,122 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
             public void onImageAvailable(ImageReader reader) {
                 // When image was created
                 // start background thread to save the image data into a file.
-                mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+                Image image = reader.acquireNextImage();
+                if (null == image) {
+                    return;
+                }
+                // From now on the saver gives the slot back, even if the camera closes.
+                mCaptureQueue.onImageReceived();
+                ImageSaver.Callback callback = mImageSaverCallback;
+                int thumbnailSize = THUMBNAIL_SIZE;
+                final BurstStats stats = mBurstStats;
+                if (null != stats && stats.claimFrame()) {
+                    // No thumbnails in the middle of a burst, they would only slow it down.
+                    thumbnailSize = 0;
+                    callback = new ImageSaver.Callback() {
+                        @Override
+                        public void onThumbnailReady(File file, Bitmap thumbnail) {
+                            mImageSaverCallback.onThumbnailReady(file, thumbnail);
+                        }
+
+                        @Override
+                        public void onImageSaved(File file, boolean success) {
+                            if (stats.onFrameDone(System.nanoTime(), success)) {
+                                finishBurst(stats);
+                            }
+                            mImageSaverCallback.onImageSaved(file, success);
+                        }
+                    };
+                }
+                mTracer.record(TRACE_REQUEST_TO_IMAGE, mRequestNanos);
+                ImageEncoder encoder = ImageEncoders.forProfile(CAPTURE_PROFILE,
+                        mQualityGovernor.getQuality());
+                ImageSaver saver = new ImageSaver(image, newPictureFile(encoder.getExtension()),
+                        ROTATE_PIXELS ? mPixelRotation : 0, thumbnailSize, mIoExecutor, callback,
+                        mTracer, mPressNanos, mStillExif, mGalleryRegistrar, mCatalog,
+                        mThumbnails, mQualityGovernor, encoder);
+                try {
+                    mEncodeExecutor.execute(saver);
+                } catch (RejectedExecutionException e) {
+                    // The camera is closing.
+                    saver.cancel();
+                }
+            }
+        };
+
+        mImageSaverCallback = new ImageSaver.Callback() {
+            @Override
+            public void onThumbnailReady(File file, final Bitmap thumbnail) {
+                final Activity activity = getActivity();
+                if (null != activity) {
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (null != mThumbnailView) {
+                                mThumbnailView.setImageBitmap(thumbnail);
+                            }
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onImageSaved(File file, boolean success) {
+                if (!success && null != mCatalog) {
+                    mCatalog.discard(file);
+                }
+                if (success && null == mBurstStats) {
+                    showToast("Saved: " + file);
+                }
+                Log.d(TAG, file + " " + mCaptureQueue);
+                // The reader slot is free again, a queued shot may go now.
+                if (mCaptureQueue.onImageSaved(success)) {
+                    startQueuedCapture();
+                }
+            }
+        };
+
+        // The ZSL pictures end like the others.
+        mZslCallback = new ZslStage.Callback() {
+            @Override
+            public void onThumbnailReady(File file, Bitmap thumbnail) {
+                mImageSaverCallback.onThumbnailReady(file, thumbnail);
+            }
+
+            @Override
+            public void onImageSaved(File file, int degrees, boolean success) {
+                if (success) {
+                    // The stage records the rotation in the EXIF orientation.
+                    long size = file.length();
+                    long dateTaken = System.currentTimeMillis();
+                    mGalleryRegistrar.add(new GalleryRegistrar.Entry(file, "image/jpeg",
+                            size, 0, 0, degrees, dateTaken));
+                    if (null != mCatalog) {
+                        try {
+                            mCatalog.append(file, size, 0, 0, degrees, CaptureCatalog.UNKNOWN,
+                                    dateTaken, CaptureCatalog.UNKNOWN);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Could not record " + file, e);
+                        }
+                    }
+                }
+                mImageSaverCallback.onImageSaved(file, success);
             }
         };
 
         // Camera session callback
         mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 
+            @Override
+            public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                         @NonNull CaptureRequest request,
+                                         long timestamp, long frameNumber) {
+                ZslStage stage = mZslStage;
+                if (null != stage) {
+                    stage.onCaptureStarted(timestamp, System.nanoTime());
+                }
+            }
+
             @Override
             public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                             @NonNull CaptureRequest request,
@@ -279,50 +580,45 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
             public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                            @NonNull CaptureRequest request,
                                            @NonNull TotalCaptureResult result) {
+                record(result);
+                mLastPreviewResult = result;
                 process(result);
+                updateZoom(request);
+            }
+
+            private void record(TotalCaptureResult result) {
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (null == timestamp) {
+                    return;
+                }
+                mFrameMetadata.record(result.getFrameNumber(), timestamp,
+                        valueOf(result.get(CaptureResult.SENSOR_FRAME_DURATION)),
+                        valueOf(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)),
+                        valueOf(result.get(CaptureResult.SENSOR_SENSITIVITY)),
+                        valueOf(result.get(CaptureResult.CONTROL_AF_STATE)),
+                        valueOf(result.get(CaptureResult.CONTROL_AE_STATE)));
+            }
+
+            private long valueOf(Long value) {
+                return null != value ? value : FrameMetadataRing.UNKNOWN;
+            }
+
+            private int valueOf(Integer value) {
+                return null != value ? value : FrameMetadataRing.UNKNOWN;
             }
 
             private void process(CaptureResult result) {
-                switch (mState) {
-                    case STATE_PREVIEW: {
-                        // We have nothing to do when the camera preview is working normally.
-                        break;
-                    }
-                    case STATE_WAITING_LOCK: {
-                        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                        if (afState == null) {
-                            captureStillPicture();
-                        } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                                CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                            // CONTROL_AE_STATE can be null on some devices
-                            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                            if (aeState == null ||
-                                    aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                                mState = STATE_ALREADY_TAKEN;
-                                captureStillPicture();
-                            } else {
-                                runPrecaptureSequence();
-                            }
-                        }
-                        break;
-                    }
-                    case STATE_WAITING_PRECAPTURE: {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                                aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                            mState = STATE_WAITING_NON_PRECAPTURE;
-                        }
+                // CONTROL_AE_STATE can be null on some devices
+                CaptureStateMachine.Action action = mCaptureStateMachine.onResult(
+                        result.get(CaptureResult.CONTROL_AF_STATE),
+                        result.get(CaptureResult.CONTROL_AE_STATE), System.nanoTime());
+                switch (action) {
+                    case RUN_PRECAPTURE: {
+                        runPrecaptureSequence();
                         break;
                     }
-                    case STATE_WAITING_NON_PRECAPTURE: {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                            mState = STATE_ALREADY_TAKEN;
-                            captureStillPicture();
-                        }
+                    case CAPTURE: {
+                        captureStillPictureOrBurst();
                         break;
                     }
                 }
@@ -343,27 +639,139 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     @Override
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         view.findViewById(R.id.picture).setOnClickListener(this);
+        view.findViewById(R.id.picture).setOnLongClickListener(this);
         mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
         mTextureView.setOnTouchListener(this);
+        mThumbnailView = (ImageView) view.findViewById(R.id.thumbnail);
+    }
+
+    /**
+     * Adds an analyzer of the preview frames. It is used from the next time the camera is opened.
+     *
+     * @param name Used in the logged statistics.
+     */
+    public void addFrameAnalyzer(String name, FrameAnalyzer analyzer) {
+        mFrameAnalyzerNames.add(name);
+        mFrameAnalyzers.add(analyzer);
+    }
+
+    /**
+     * What to do with the preview frames arriving while the analyzers are busy.
+     */
+    public void setFrameDropPolicy(FrameAnalysisStage.DropPolicy policy) {
+        mFrameDropPolicy = policy;
+    }
+
+    /**
+     * Zero shutter lag: the last full resolution frames are kept, a press saves the one closest to
+     * it instead of starting a capture. Used from the next time the camera is opened.
+     */
+    public void setZslEnabled(boolean enabled) {
+        mZslEnabled = enabled;
+    }
+
+    /**
+     * @param bytes Memory the zero shutter lag frames may use. ZSL is left out when not even one
+     *              frame fits.
+     */
+    public void setZslMemoryBudget(long bytes) {
+        mZslMemoryBudget = bytes;
     }
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
-        mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
+        mCaptureQueue = new CaptureQueue(getActivity().getExternalFilesDir(null),
+                MAX_IMAGES, CAPTURE_QUEUE_CAPACITY, CaptureQueue.Policy.QUEUE);
+        mCapabilityCache = new CapabilityCache(getActivity());
+        mGalleryRegistrar = new GalleryRegistrar(
+                GalleryRegistrar.mediaStore(getActivity().getContentResolver()),
+                GALLERY_BATCH_SIZE, GALLERY_FLUSH_MILLIS);
+        File dir = getActivity().getExternalFilesDir(null);
+        try {
+            mCatalog = CaptureCatalog.open(new File(dir, "captures.log"), dir);
+            Log.d(TAG, mCatalog.toString());
+        } catch (IOException e) {
+            Log.w(TAG, "Capture catalog not available", e);
+        }
+        try {
+            File pack = new File(getActivity().getCacheDir(), "thumbnails.pack");
+            mThumbnails = ThumbnailCache.open(pack, THUMBNAIL_PACK_BYTES, THUMBNAIL_MEMORY_BYTES);
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail cache not available", e);
+        }
+        showLastThumbnail();
+        mQualityGovernor.setListener(new QualityGovernor.Listener() {
+            @Override
+            public void onAdjusted(QualityGovernor.Decision decision) {
+                Log.i(TAG, "JPEG " + decision);
+            }
+        });
+    }
+
+    /**
+     * Shows the thumbnail of the last picture taken, from the cache.
+     */
+    private void showLastThumbnail() {
+        if (null == mCatalog || null == mThumbnails || null == mThumbnailView) {
+            return;
+        }
+        List<CaptureCatalog.Entry> entries = mCatalog.list();
+        if (entries.isEmpty()) {
+            return;
+        }
+        CaptureCatalog.Entry last = entries.get(entries.size() - 1);
+        ThumbnailCache.Thumbnail thumbnail = mThumbnails.get(last.getId(),
+                last.getThumbnailOffset());
+        if (null != thumbnail) {
+            mThumbnailView.setImageBitmap(Bitmap.createBitmap(thumbnail.getPixels(),
+                    thumbnail.getWidth(), thumbnail.getHeight(), Bitmap.Config.ARGB_8888));
+        }
+    }
+
+    /**
+     * @return The pixels of the bitmap, scaled down to the size of the cached thumbnails.
+     */
+    private static ThumbnailCache.Thumbnail toCachedThumbnail(Bitmap bitmap) {
+        float scale = Math.min(1f, (float) CACHED_THUMBNAIL_SIZE
+                / Math.min(bitmap.getWidth(), bitmap.getHeight()));
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+        return new ThumbnailCache.Thumbnail(width, height, pixels);
+    }
+
+    /**
+     * @param extension With its dot.
+     * @return The file of the next picture.
+     */
+    private File newPictureFile(String extension) {
+        return null != mCatalog ? mCatalog.newFile(extension) : mCaptureQueue.nextFile(extension);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         startBackgroundThread();
+        mStartupTimer.start(getOpenMode());
+        mPreviewSurfaceReady = false;
+
+        // The device takes a while to open, this is done while the view is being laid out.
+        if (OPEN_EARLY) {
+            openCamera();
+        }
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
         // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
         // a camera and start preview from here (otherwise, we wait until the surface is ready in
         // the SurfaceTextureListener).
         if (mTextureView.isAvailable()) {
-            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+            onPreviewSurfaceReady(mTextureView.getWidth(), mTextureView.getHeight());
         } else {
             mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
         }
@@ -373,9 +781,87 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     public void onPause() {
         closeCamera();
         stopBackgroundThread();
+        File dir = getActivity().getExternalFilesDir(null);
+        dumpLatency(new File(dir, "latency.txt"));
+        exportFrameMetadata(new File(dir, "frames.csv"));
+        // Every picture is saved by now, they don't have to wait for a full batch.
+        mGalleryRegistrar.flush();
+        Log.d(TAG, mGalleryRegistrar.toString());
+        if (null != mCatalog) {
+            Log.d(TAG, mCatalog.toString());
+        }
+        if (null != mThumbnails) {
+            mThumbnails.flush();
+            Log.d(TAG, mThumbnails.toString());
+        }
+        Log.d(TAG, mQualityGovernor.toString());
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        try {
+            if (!mGalleryRegistrar.close(1, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Gallery registration did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (null != mCatalog) {
+            try {
+                mCatalog.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the capture catalog", e);
+            }
+        }
+        if (null != mThumbnails) {
+            try {
+                mThumbnails.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the thumbnail cache", e);
+            }
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (null != mThumbnails) {
+            // The pack still has them.
+            mThumbnails.trimMemory();
+        }
+    }
+
+    /**
+     * Writes the p50/p95/p99 of every capture stage, since the fragment was created.
+     */
+    public void dumpLatency(File file) {
+        Log.d(TAG, "Capture latency\n" + mTracer.dump());
+        try {
+            mTracer.dump(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Latency not written to " + file, e);
+        }
+    }
+
+    /**
+     * Writes the metadata of the last preview frames as CSV.
+     */
+    public void exportFrameMetadata(File file) {
+        Log.d(TAG, mFrameMetadata.toString());
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                mFrameMetadata.writeCsv(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Frame metadata not written to " + file, e);
+        }
+    }
+
     @TargetApi(23)
     private void requestCameraPermission() {
         if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
@@ -408,148 +894,132 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
         }
     }
 
+    @Override
+    public boolean onLongClick(View view) {
+        switch (view.getId()) {
+            case R.id.picture: {
+                takeBurst();
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean onTouch(View v, MotionEvent event) {
-        try {
-            Rect rect = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-            if (rect == null) return false;
-            float currentFingerSpacing;
-
-            if (event.getPointerCount() == 2) { //Multi touch.
-                currentFingerSpacing = getFingerSpacing(event);
-                float delta = 0.05f; //Control this value to control the zooming sensibility
-                if (fingerSpacing != 0) {
-                    if (currentFingerSpacing > fingerSpacing) { //Don't over zoom-in
-                        if ((maximumZoomLevel - zoomLevel) <= delta) {
-                            delta = maximumZoomLevel - zoomLevel;
-                        }
-                        zoomLevel = zoomLevel + delta;
-                    } else if (currentFingerSpacing < fingerSpacing) { //Don't over zoom-out
-                        if ((zoomLevel - delta) < 1f) {
-                            delta = zoomLevel - 1f;
-                        }
-                        zoomLevel = zoomLevel - delta;
-                    }
-                    float ratio = (float) 1 / zoomLevel; //This ratio is the ratio of cropped Rect to Camera's original(Maximum) Rect
-                    //croppedWidth and croppedHeight are the pixels cropped away, not pixels after cropped
-                    int croppedWidth = rect.width() - Math.round((float) rect.width() * ratio);
-                    int croppedHeight = rect.height() - Math.round((float) rect.height() * ratio);
-                    //Finally, zoom represents the zoomed visible area
-                    zoom = new Rect(croppedWidth / 2, croppedHeight / 2,
-                            rect.width() - croppedWidth / 2, rect.height() - croppedHeight / 2);
-                    mPreviewRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION, zoom);
-                }
+        ZoomController controller = mZoomController;
+        if (null == controller) {
+            return false;
+        }
+        if (event.getPointerCount() == 2 && event.getActionMasked() != MotionEvent.ACTION_POINTER_UP) {
+            float currentFingerSpacing = getFingerSpacing(event);
+            if (fingerSpacing == 0) {
+                // The pinch starts
                 fingerSpacing = currentFingerSpacing;
-            } else { //Single touch point, needs to return true in order to detect one more touch point
-                return true;
+                zoomLevel = controller.getTarget();
+            } else if (currentFingerSpacing > 0) {
+                // Zoom in proportion to the pinch. Only the target moves here, the crop follows
+                // at the next frames on the background thread.
+                controller.setTarget(zoomLevel * currentFingerSpacing / fingerSpacing,
+                        System.nanoTime());
             }
-            mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), mCaptureCallback, null);
-            return true;
-        } catch (final Exception e) {
-            //Error handling up to you
-            return true;
+        } else if (fingerSpacing != 0) {
+            fingerSpacing = 0;
+            Log.d(TAG, controller.toString());
+        }
+        // Needs to return true in order to detect one more touch point
+        return true;
+    }
+
+    /**
+     * Moves the zoom toward the pinch, called for every preview frame on the background thread.
+     * At most one repeating request is submitted per frame, however many touch events came in.
+     */
+    private void updateZoom(CaptureRequest request) {
+        ZoomController controller = mZoomController;
+        if (null == controller || null == mCaptureSession
+                || mCaptureStateMachine.getState() != CaptureStateMachine.State.PREVIEW) {
+            return;
+        }
+        long now = System.nanoTime();
+        // The requests are tagged with their crop step, to see when the frames show the zoom.
+        Object tag = request.getTag();
+        if (tag instanceof Integer) {
+            controller.onCropShown((Integer) tag, now);
+        }
+        if (!controller.onFrame(now)) {
+            return;
+        }
+        int index = controller.getCropIndex();
+        zoom = mZoomCrops[index];
+        mPreviewRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION, zoom);
+        mPreviewRequestBuilder.setTag(index);
+        mPreviewRequest = mPreviewRequestBuilder.build();
+        try {
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            // The session is being closed.
+            Log.w(TAG, "Zoom not applied", e);
         }
     }
 
     /**
      * Logic methods for a new camera preview session
      */
-    private void setUpCameraOutputs(int width, int height) {
+    private void setUpCameraOutputs() {
         Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        mCameraId = null;
 
         try {
-            // Retrieve the current camera device id
-            for (String cameraId : manager.getCameraIdList()) {
-                cameraCharacteristics = manager.getCameraCharacteristics(cameraId);
-
-                maximumZoomLevel = cameraCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
-
-                Integer facing = cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+            // Stored at an earlier start on this system build, otherwise asked to the camera
+            // service and stored for the next start.
+            List<CameraCapabilities> cameras = mCapabilityCache.load();
+            mStartupTimer.setMode(getOpenMode()
+                    + (null == cameras ? ", capabilities queried" : ", capabilities cached"));
+            if (null == cameras) {
+                cameras = queryCapabilities(manager);
+                mCapabilityCache.saveAll(cameras);
+            }
+            mStartupTimer.mark("capabilities");
 
-                    StreamConfigurationMap map = cameraCharacteristics.get(
-                            CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                    if (map == null) {
-                        continue;
-                    }
+            // Retrieve the current camera device id
+            for (CameraCapabilities camera : cameras) {
+                if (camera.getFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
+                    mCameraCapabilities = camera;
+                    maximumZoomLevel = camera.getMaxZoom();
+                    setUpZoom(camera);
 
                     // For still image captures, we use the largest available size.
-                    Size largest = Collections.max(
-                            Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                            new CompareSizesByArea());
+                    int[] largestJpeg = camera.getLargestJpegSize();
+                    Size largest = new Size(largestJpeg[0], largestJpeg[1]);
                     mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                            ImageFormat.JPEG, /*maxImages*/2);
+                            ImageFormat.JPEG, MAX_IMAGES);
                     mImageReader.setOnImageAvailableListener(
                             mOnImageAvailableListener, mBackgroundHandler);
 
-                    // Find out if we need to swap dimension to get the preview size relative to sensor
-                    // coordinate.
-                    int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                    //noinspection ConstantConditions
-                    mSensorOrientation = cameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                    boolean swappedDimensions = false;
-                    switch (displayRotation) {
-                        case Surface.ROTATION_0:
-                        case Surface.ROTATION_180:
-                            if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                                swappedDimensions = true;
-                            }
-                            break;
-                        case Surface.ROTATION_90:
-                        case Surface.ROTATION_270:
-                            if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                                swappedDimensions = true;
-                            }
-                            break;
-                        default:
-                            Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                    }
-
-                    Point displaySize = new Point();
-                    activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-                    int rotatedPreviewWidth = width;
-                    int rotatedPreviewHeight = height;
-                    int maxPreviewWidth = displaySize.x;
-                    int maxPreviewHeight = displaySize.y;
-
-                    if (swappedDimensions) {
-                        rotatedPreviewWidth = height;
-                        rotatedPreviewHeight = width;
-                        maxPreviewWidth = displaySize.y;
-                        maxPreviewHeight = displaySize.x;
-                    }
-
-                    if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                        maxPreviewWidth = MAX_PREVIEW_WIDTH;
+                    if (!mFrameAnalyzers.isEmpty()) {
+                        Size analysisSize = FrameAnalysisStage.chooseSize(
+                                toSizes(camera.getYuvSizes()), ANALYSIS_MAX_WIDTH, largest);
+                        mFrameAnalysisStage = new FrameAnalysisStage(analysisSize, mFrameDropPolicy,
+                                mBackgroundHandler);
+                        for (int i = 0; i < mFrameAnalyzers.size(); i++) {
+                            mFrameAnalysisStage.addAnalyzer(mFrameAnalyzerNames.get(i),
+                                    mFrameAnalyzers.get(i));
+                        }
                     }
 
-                    if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                        maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+                    if (mZslEnabled) {
+                        setUpZsl(camera);
                     }
 
-                    // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-                    // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                    // garbage capture data.
-                    mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                            rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                            maxPreviewHeight, largest);
-
-                    // We fit the aspect ratio of TextureView to the size of preview we picked.
-                    int orientation = getResources().getConfiguration().orientation;
-                    if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                        mTextureView.setAspectRatio(
-                                mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                    } else {
-                        mTextureView.setAspectRatio(
-                                mPreviewSize.getHeight(), mPreviewSize.getWidth());
-                    }
+                    mSensorOrientation = camera.getSensorOrientation();
 
                     // Check if the flash is supported.
-                    Boolean available = cameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-                    mFlashSupported = available == null ? false : available;
+                    mFlashSupported = camera.isFlashSupported();
 
-                    mCameraId = cameraId;
+                    mCameraId = camera.getCameraId();
                     return;
                 }
             }
@@ -563,7 +1033,227 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
         }
     }
 
-    private void openCamera(int width, int height) {
+    /**
+     * Creates the zero shutter lag ring at the largest YUV size, if it fits in the budget.
+     */
+    private void setUpZsl(CameraCapabilities camera) {
+        Size[] sizes = toSizes(camera.getYuvSizes());
+        if (sizes.length == 0) {
+            return;
+        }
+        Size largest = Collections.max(Arrays.asList(sizes), new CompareSizesByArea());
+        int capacity = ZslStage.getCapacity(largest, mZslMemoryBudget);
+        if (capacity < 1) {
+            Log.w(TAG, "No zero shutter lag, " + largest + " frames don't fit in "
+                    + mZslMemoryBudget + " bytes");
+            return;
+        }
+        mZslStage = new ZslStage(largest, capacity, THUMBNAIL_SIZE, mBackgroundHandler,
+                mIoExecutor, mQualityGovernor);
+    }
+
+    /**
+     * Computes every crop the zoom can use, once per camera.
+     */
+    private void setUpZoom(CameraCapabilities camera) {
+        int[] activeArray = camera.getActiveArray();
+        int width = activeArray[2] - activeArray[0];
+        int height = activeArray[3] - activeArray[1];
+        zoom = null;
+        zoomLevel = 1f;
+        fingerSpacing = 0;
+        if (width <= 0 || height <= 0) {
+            mZoomController = null;
+            mZoomCrops = null;
+            return;
+        }
+        ZoomController controller = new ZoomController(width, height, camera.getMaxZoom());
+        Rect[] crops = new Rect[controller.getCropCount()];
+        for (int i = 0; i < crops.length; i++) {
+            int[] crop = controller.getCrop(i);
+            crops[i] = new Rect(crop[0], crop[1], crop[2], crop[3]);
+        }
+        mZoomCrops = crops;
+        mZoomController = controller;
+    }
+
+    /**
+     * Picks the preview size for the view and fits the view to it. The camera must have been
+     * chosen by {@link #setUpCameraOutputs()}.
+     */
+    private void setUpPreviewSize(int width, int height) {
+        Activity activity = getActivity();
+        CameraCapabilities camera = mCameraCapabilities;
+        int[] largestJpeg = camera.getLargestJpegSize();
+        Size largest = new Size(largestJpeg[0], largestJpeg[1]);
+
+        // Find out if we need to swap dimension to get the preview size relative to sensor
+        // coordinate.
+        int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        boolean swappedDimensions = false;
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+            case Surface.ROTATION_180:
+                if (mSensorOrientation == 90 || mSensorOrientation == 270) {
+                    swappedDimensions = true;
+                }
+                break;
+            case Surface.ROTATION_90:
+            case Surface.ROTATION_270:
+                if (mSensorOrientation == 0 || mSensorOrientation == 180) {
+                    swappedDimensions = true;
+                }
+                break;
+            default:
+                Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+        }
+
+        Point displaySize = new Point();
+        activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+        int rotatedPreviewWidth = width;
+        int rotatedPreviewHeight = height;
+        int maxPreviewWidth = displaySize.x;
+        int maxPreviewHeight = displaySize.y;
+
+        if (swappedDimensions) {
+            rotatedPreviewWidth = height;
+            rotatedPreviewHeight = width;
+            maxPreviewWidth = displaySize.y;
+            maxPreviewHeight = displaySize.x;
+        }
+
+        if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
+            maxPreviewWidth = MAX_PREVIEW_WIDTH;
+        }
+
+        if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
+            maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+        }
+
+        // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+        // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+        // garbage capture data.
+        // The choice only depends on these sizes, it is stored with the capabilities.
+        String choiceKey = rotatedPreviewWidth + "x" + rotatedPreviewHeight + "-"
+                + maxPreviewWidth + "x" + maxPreviewHeight;
+        int[] choice = camera.getChoice(choiceKey);
+        if (null != choice) {
+            mPreviewSize = new Size(choice[0], choice[1]);
+        } else {
+            mPreviewSize = chooseOptimalSize(toSizes(camera.getPreviewSizes()),
+                    rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
+                    maxPreviewHeight, largest);
+            camera.putChoice(choiceKey, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            mCapabilityCache.save(camera);
+        }
+
+        // We fit the aspect ratio of TextureView to the size of preview we picked.
+        int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        }
+    }
+
+    /**
+     * Asks the camera service for the capabilities of every camera with stream configurations.
+     */
+    private static List<CameraCapabilities> queryCapabilities(CameraManager manager)
+            throws CameraAccessException {
+        List<CameraCapabilities> cameras = new ArrayList<>();
+        for (String cameraId : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap map = characteristics.get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null) {
+                continue;
+            }
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+            Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+            Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+            cameras.add(new CameraCapabilities(cameraId,
+                    facing == null ? -1 : facing,
+                    sensorOrientation == null ? 0 : sensorOrientation,
+                    maxZoom == null ? 1f : maxZoom,
+                    flash == null ? false : flash,
+                    afModes == null ? new int[0] : afModes,
+                    activeArray == null ? new int[4] : new int[]{activeArray.left,
+                            activeArray.top, activeArray.right, activeArray.bottom},
+                    toPairs(map.getOutputSizes(ImageFormat.JPEG)),
+                    toPairs(map.getOutputSizes(SurfaceTexture.class)),
+                    toPairs(map.getOutputSizes(ImageFormat.YUV_420_888))));
+        }
+        return cameras;
+    }
+
+    private static int[] toPairs(Size[] sizes) {
+        if (null == sizes) {
+            return new int[0];
+        }
+        int[] pairs = new int[sizes.length * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            pairs[2 * i] = sizes[i].getWidth();
+            pairs[2 * i + 1] = sizes[i].getHeight();
+        }
+        return pairs;
+    }
+
+    private static Size[] toSizes(int[] pairs) {
+        Size[] sizes = new Size[pairs.length / 2];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(pairs[2 * i], pairs[2 * i + 1]);
+        }
+        return sizes;
+    }
+
+    /**
+     * The preview surface exists and has its size, on the UI thread.
+     */
+    private void onPreviewSurfaceReady(int width, int height) {
+        mStartupTimer.mark("surface");
+        if (!OPEN_EARLY) {
+            openCamera();
+        }
+        if (null == mCameraId || null == mBackgroundHandler) {
+            // No camera or no permission.
+            return;
+        }
+        setUpPreviewSize(width, height);
+        configureTransform(width, height);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPreviewSurfaceReady = true;
+                createSessionWhenReady();
+            }
+        });
+    }
+
+    /**
+     * Joins the device opening and the surface creation, on the background thread: the session
+     * is created by whichever of the two finishes last.
+     */
+    private void createSessionWhenReady() {
+        if (mPreviewSurfaceReady && null != mCameraDevice && null == mCaptureSession) {
+            createCameraPreviewSession();
+        }
+    }
+
+    private String getOpenMode() {
+        return OPEN_EARLY ? "early open" : "open on surface";
+    }
+
+    /**
+     * Starts opening the camera device, the preview session is created once the device and the
+     * preview surface are both ready.
+     */
+    private void openCamera() {
         // Require user's permissions
         if (ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -571,8 +1261,10 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
             return;
         }
 
-        setUpCameraOutputs(width, height);
-        configureTransform(width, height);
+        setUpCameraOutputs();
+        if (null == mCameraId) {
+            return;
+        }
         Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
 
@@ -603,6 +1295,21 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mFrameAnalysisStage) {
+                mFrameAnalysisStage.close();
+                Log.d(TAG, mFrameAnalysisStage.toString());
+                mFrameAnalysisStage = null;
+            }
+            if (null != mZslStage) {
+                mZslStage.close();
+                Log.d(TAG, mZslStage.toString());
+                mZslStage = null;
+            }
+            mCaptureStateMachine.reset();
+            Log.d(TAG, mCaptureStateMachine.toString());
+            mCaptureQueue.clear();
+            mStillExif.clear();
+            mLastPreviewResult = null;
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -637,6 +1344,8 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     }
 
     private void createCameraPreviewSession() {
+        // The gap since the last session is not a drop.
+        mFrameMetadata.reset();
         try {
             SurfaceTexture texture = mTextureView.getSurfaceTexture();
             assert texture != null;
@@ -650,9 +1359,23 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, mImageReader.getSurface()));
+
+            // The analyzers get every preview frame, at their own resolution.
+            if (null != mFrameAnalysisStage) {
+                mPreviewRequestBuilder.addTarget(mFrameAnalysisStage.getSurface());
+                outputs.add(mFrameAnalysisStage.getSurface());
+            }
+
+            // The ZSL ring gets every preview frame at full resolution.
+            final ZslStage zslStage = mZslStage;
+            if (null != zslStage) {
+                mPreviewRequestBuilder.addTarget(zslStage.getSurface());
+                outputs.add(zslStage.getSurface());
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
                         @Override
                         public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
@@ -663,6 +1386,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
 
                             // When the session is ready, we start displaying the preview.
                             mCaptureSession = cameraCaptureSession;
+                            mStartupTimer.mark("configured");
                             try {
                                 // Auto focus should be continuous for camera preview.
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
@@ -681,9 +1405,18 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                            if (null != zslStage && null != mCameraDevice) {
+                                // The device can't stream the full resolution frames alongside
+                                // the others, go on without ZSL.
+                                Log.w(TAG, "Session with zero shutter lag refused");
+                                mZslStage = null;
+                                zslStage.close();
+                                createCameraPreviewSession();
+                                return;
+                            }
                             showToast("Failed");
                         }
-                    }, null);
+                    }, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -700,6 +1433,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
         try {
             final Activity activity = getActivity();
             if (null == activity || null == mCameraDevice) {
+                mCaptureQueue.onCaptureFailed();
                 return;
             }
             // This is the CaptureRequest.Builder that we use to take a picture.
@@ -714,7 +1448,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
 
             // Orientation
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+            setJpegOrientation(captureBuilder, rotation);
 
             //Zoom
             if (zoom != null) {
@@ -728,36 +1462,306 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
+                    rememberExif(result);
+                    unlockFocus();
+                    // The image is saved on its own, the next queued shot can be taken now.
+                    if (mCaptureQueue.onCaptureFinished()) {
+                        lockFocus();
+                    }
+                }
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    unlockFocus();
+                    // The image may still come, in which case the saver gives the slot back.
+                    boolean startNext = failure.wasImageCaptured()
+                            ? mCaptureQueue.onCaptureFinished()
+                            : mCaptureQueue.onCaptureFailed();
+                    if (startNext) {
+                        lockFocus();
+                    }
+                }
+            };
+
+            mCaptureSession.stopRepeating();
+            mCaptureSession.abortCaptures();
+            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            mCaptureQueue.onCaptureFailed();
+        }
+    }
+
+    /**
+     * Keeps the EXIF tags of a still capture for its JPEG, which is matched by timestamp.
+     */
+    private void rememberExif(TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null == timestamp) {
+            return;
+        }
+        mStillExif.put(timestamp, newExif(result));
+    }
+
+    /**
+     * @param result The capture result of the picture, or of a frame close to it. May be null,
+     *               only what is known without it is set then.
+     */
+    private static ExifBuilder newExif(CaptureResult result) {
+        ExifBuilder exif = new ExifBuilder()
+                .setDateTime(System.currentTimeMillis())
+                .setMake(Build.MANUFACTURER)
+                .setModel(Build.MODEL);
+        if (null == result) {
+            return exif;
+        }
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (null != exposure) {
+            exif.setExposureTime(exposure);
+        }
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (null != iso) {
+            exif.setIso(iso);
+        }
+        Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+        if (null != focalLength) {
+            exif.setFocalLength(focalLength);
+        }
+        return exif;
+    }
+
+    private void captureStillPictureOrBurst() {
+        if (0 != mPrecaptureNanos) {
+            mTracer.record(TRACE_PRECAPTURE, mPrecaptureNanos);
+        } else {
+            mTracer.record(TRACE_FOCUS_LOCK, mFocusLockNanos);
+        }
+        mFocusLockNanos = 0;
+        mPrecaptureNanos = 0;
+        mTracer.record(TRACE_PRESS_TO_REQUEST, mPressNanos);
+        mRequestNanos = System.nanoTime();
+        if (mBurstRequested) {
+            mBurstRequested = false;
+            captureBurst();
+        } else {
+            captureStillPicture();
+        }
+    }
+
+    /**
+     * Submit {@link #BURST_SIZE} still requests at once. AF/AE were locked a single time by
+     * {@link #lockFocus()} for the whole burst.
+     */
+    private void captureBurst() {
+        try {
+            final Activity activity = getActivity();
+            if (null == activity || null == mCameraDevice) {
+                mBurstStats = null;
+                mCaptureQueue.onCaptureFailed();
+                return;
+            }
+            final CaptureRequest.Builder captureBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            captureBuilder.addTarget(mImageReader.getSurface());
+            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            setAutoFlash(captureBuilder);
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            setJpegOrientation(captureBuilder, rotation);
+            if (zoom != null) {
+                captureBuilder.set(CaptureRequest.SCALER_CROP_REGION, zoom);
+            }
+
+            List<CaptureRequest> requests = new ArrayList<>(BURST_SIZE);
+            for (int i = 0; i < BURST_SIZE; i++) {
+                requests.add(captureBuilder.build());
+            }
+
+            CameraCaptureSession.CaptureCallback burstCallback
+                    = new CameraCaptureSession.CaptureCallback() {
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    if (!failure.wasImageCaptured()) {
+                        // No image will come for this frame, give its slot back.
+                        BurstStats stats = mBurstStats;
+                        if (null != stats && stats.claimFrame()
+                                && stats.onFrameDone(System.nanoTime(), false)) {
+                            finishBurst(stats);
+                        }
+                        if (mCaptureQueue.onImageLost()) {
+                            startQueuedCapture();
+                        }
+                    }
+                }
+
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    rememberExif(result);
+                }
+
+                @Override
+                public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                                       int sequenceId, long frameNumber) {
+                    unlockFocus();
+                    if (mCaptureQueue.onCaptureFinished()) {
+                        lockFocus();
+                    }
+                }
+
+                @Override
+                public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                                     int sequenceId) {
                     unlockFocus();
+                    if (mCaptureQueue.onCaptureFinished()) {
+                        lockFocus();
+                    }
                 }
             };
 
             mCaptureSession.stopRepeating();
             mCaptureSession.abortCaptures();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            mBurstStats = new BurstStats(BURST_SIZE, System.nanoTime());
+            mCaptureSession.captureBurst(requests, burstCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            mBurstStats = null;
+            mCaptureQueue.onCaptureFailed();
+        }
+    }
+
+    /**
+     * Report how the burst performed, once all of its frames are written.
+     */
+    private void finishBurst(BurstStats stats) {
+        Log.d(TAG, stats.toString());
+        showToast(String.format(Locale.US, "Burst: %d frames, %.1f fps",
+                stats.getFramesDone(), stats.getFramesPerSecond()));
+        if (mBurstStats == stats) {
+            mBurstStats = null;
         }
     }
 
     private void runPrecaptureSequence() {
+        mTracer.record(TRACE_FOCUS_LOCK, mFocusLockNanos);
+        mFocusLockNanos = 0;
+        mPrecaptureNanos = System.nanoTime();
         try {
             // This is how to tell the camera to trigger.
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+            // #mCaptureStateMachine waits for the precapture sequence to be set.
+            captureTrigger(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START,
+                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Start a burst on the camera thread, called on the UI thread.
+     */
+    private void takeBurst() {
+        final long pressNanos = System.nanoTime();
+        Handler handler = mBackgroundHandler;
+        if (null == handler) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A burst needs a free reader slot for each of its frames.
+                if (mCaptureQueue.offerBurst(BURST_SIZE)) {
+                    mPressNanos = pressNanos;
+                    mBurstRequested = true;
+                    lockFocus();
+                } else {
+                    Log.d(TAG, "Burst rejected: " + mCaptureQueue);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a shot that was waiting for a free slot, on the camera thread.
+     */
+    private void startQueuedCapture() {
+        Handler handler = mBackgroundHandler;
+        if (null == handler) {
+            mCaptureQueue.onCaptureFailed();
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPressNanos = System.nanoTime();
+                if (!takeZslPicture(mPressNanos)) {
+                    lockFocus();
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a shot on the camera thread, called on the UI thread. The press time is taken here,
+     * the ZSL frame is chosen by it.
+     */
     private void takePicture() {
-        lockFocus();
+        final long pressNanos = System.nanoTime();
+        Handler handler = mBackgroundHandler;
+        if (null == handler) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Only start when a reader slot is free, otherwise the queue decides what to do.
+                if (mCaptureQueue.offer()) {
+                    mPressNanos = pressNanos;
+                    if (!takeZslPicture(pressNanos)) {
+                        lockFocus();
+                    }
+                } else {
+                    Log.d(TAG, "Shutter press deferred: " + mCaptureQueue);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the ring frame closest to the press, while the repeating request goes on.
+     *
+     * @return false if there is no ZSL frame, the capture sequence has to run instead.
+     */
+    private boolean takeZslPicture(long pressNanos) {
+        ZslStage stage = mZslStage;
+        Activity activity = getActivity();
+        if (null == stage || null == activity) {
+            return false;
+        }
+        // Nothing tells the camera about the orientation of these frames, the EXIF does.
+        int rotation = getOrientation(activity.getWindowManager().getDefaultDisplay().getRotation());
+        File file = newPictureFile(".jpg");
+        // The ring frame is at most a few frames older, exposed with about the same settings.
+        ExifBuilder exif = newExif(mLastPreviewResult);
+        if (!stage.take(pressNanos, file, rotation, exif, mZslCallback)) {
+            if (null != mCatalog) {
+                mCatalog.discard(file);
+            }
+            return false;
+        }
+        mTracer.record(TRACE_PRESS_TO_REQUEST, pressNanos);
+        // No capture to wait for, the shot only holds its slot until the file is written.
+        mCaptureQueue.onImageReceived();
+        if (mCaptureQueue.onCaptureFinished()) {
+            startQueuedCapture();
+        }
+        return true;
     }
 
     /**
@@ -775,19 +1779,59 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     }
 
     /**
-     * Lock the focus as the first step for a still image capture.
+     * Set the JPEG orientation of a still request, or leave it to the saver when the pixels are
+     * rotated by us, and the quality the storage keeps up with.
+     */
+    private void setJpegOrientation(CaptureRequest.Builder captureBuilder, int rotation) {
+        captureBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) mQualityGovernor.getQuality());
+        if (ROTATE_PIXELS) {
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, 0);
+            mPixelRotation = getOrientation(rotation);
+        } else {
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+        }
+    }
+
+    /**
+     * Lock the focus as the first step for a still image capture, or capture at once when the
+     * preview is already focused and exposed.
      */
     private void lockFocus() {
+        if (null == mCaptureSession) {
+            mCaptureQueue.onCaptureFailed();
+            return;
+        }
+        if (mCaptureStateMachine.start(System.nanoTime()) == CaptureStateMachine.Action.CAPTURE) {
+            captureStillPictureOrBurst();
+            return;
+        }
         try {
             // This is how to tell the camera to lock focus.
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the lock.
-            mState = STATE_WAITING_LOCK;
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+            mFocusLockNanos = System.nanoTime();
+            // #mCaptureStateMachine waits for the lock.
+            captureTrigger(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CameraMetadata.CONTROL_AF_TRIGGER_START,
+                    CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            mCaptureStateMachine.reset();
+            mCaptureQueue.onCaptureFailed();
+        }
+    }
+
+    /**
+     * Send a trigger once with the preview settings. It is set back to idle in the builder right
+     * after, or every repeating request built from it, for the zoom or the end of a capture,
+     * would fire it again at each frame.
+     */
+    private void captureTrigger(CaptureRequest.Key<Integer> key, int trigger, int idle)
+            throws CameraAccessException {
+        mPreviewRequestBuilder.set(key, trigger);
+        try {
+            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
+                    mBackgroundHandler);
+        } finally {
+            mPreviewRequestBuilder.set(key, idle);
         }
     }
 
@@ -798,13 +1842,13 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     private void unlockFocus() {
         try {
             // Reset the auto-focus trigger
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
             setAutoFlash(mPreviewRequestBuilder);
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+            captureTrigger(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CameraMetadata.CONTROL_AF_TRIGGER_CANCEL,
+                    CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
+            mCaptureStateMachine.reset();
+            mPreviewRequest = mPreviewRequestBuilder.build();
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -813,26 +1857,40 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * Starts the camera thread and its {@link Handler}, and the encode and I/O stages.
      */
     private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
+        mBackgroundThread = new HandlerThread("CameraBackground", Process.THREAD_PRIORITY_DISPLAY);
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mEncodeExecutor = new StageExecutor("Encode", ENCODE_THREADS, MAX_IMAGES,
+                Thread.NORM_PRIORITY - 1);
+        mIoExecutor = new StageExecutor("ImageIO", IO_THREADS, MAX_IMAGES, Thread.NORM_PRIORITY);
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Stops the camera thread and its {@link Handler}, then the stages once their queued images
+     * are written.
      */
     private void stopBackgroundThread() {
         mBackgroundThread.quitSafely();
+        // Let the pending writes finish, their images are still open. The encode stage feeds the
+        // I/O stage, so it is drained first.
+        mEncodeExecutor.shutdown();
         try {
             mBackgroundThread.join();
             mBackgroundThread = null;
             mBackgroundHandler = null;
+            mEncodeExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            mIoExecutor.shutdown();
+            mIoExecutor.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        Log.d(TAG, mEncodeExecutor.toString());
+        Log.d(TAG, mIoExecutor.toString());
+        mEncodeExecutor = null;
+        mIoExecutor = null;
     }
 
     /**
@@ -859,10 +1917,26 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Saves a JPEG {@link Image} into the specified {@link File}. Runs on the encode stage, which
+     * makes the thumbnail and rotates the pixels, then hands the bytes to the I/O stage.
      */
     private static class ImageSaver implements Runnable {
 
+        /**
+         * Notified on the saving threads.
+         */
+        interface Callback {
+            /**
+             * The thumbnail is ready, the file write has not started yet.
+             */
+            void onThumbnailReady(File file, Bitmap thumbnail);
+
+            /**
+             * The image is closed.
+             */
+            void onImageSaved(File file, boolean success);
+        }
+
         /**
          * The JPEG image
          */
@@ -871,32 +1945,280 @@ public class CameraFragment extends Fragment implements View.OnClickListener, Vi
          * The file we save the image into.
          */
         private final File mFile;
-
-        ImageSaver(Image image, File file) {
+        /**
+         * Clockwise rotation to apply to the pixels, 0 to write the JPEG as it is.
+         */
+        private final int mRotation;
+        /**
+         * Size of the thumbnail to make before writing, 0 for none.
+         */
+        private final int mThumbnailSize;
+        /**
+         * Where the file is written.
+         */
+        private final StageExecutor mIoExecutor;
+        /**
+         * Who wants to know when we are done.
+         */
+        private final Callback mCallback;
+        /**
+         * Measures the encode and write stages, and the whole shot from its shutter press.
+         */
+        private final LatencyTracer mTracer;
+        private final long mPressNanos;
+        /**
+         * The EXIF tags of the capture results, the ones of this image are taken out of it.
+         */
+        private final Map<Long, ExifBuilder> mExif;
+        private final long mTimestamp;
+        /**
+         * Where the picture is registered once written.
+         */
+        private final GalleryRegistrar mRegistrar;
+        /**
+         * Where the picture is recorded once written, may be null.
+         */
+        private final CaptureCatalog mCatalog;
+        /**
+         * Where the thumbnail is kept, may be null. Its place in the pack is recorded with the
+         * picture.
+         */
+        private final ThumbnailCache mThumbnails;
+        private long mThumbnailOffset = ThumbnailCache.NO_OFFSET;
+        /**
+         * Told how long the write took, and the quality in use when the image came.
+         */
+        private final QualityGovernor mGovernor;
+        private final int mQuality;
+        /**
+         * What the file is written as.
+         */
+        private final ImageEncoder mEncoder;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mDateTaken = System.currentTimeMillis();
+
+        ImageSaver(Image image, File file, int rotation, int thumbnailSize,
+                   StageExecutor ioExecutor, Callback callback, LatencyTracer tracer,
+                   long pressNanos, Map<Long, ExifBuilder> exif, GalleryRegistrar registrar,
+                   CaptureCatalog catalog, ThumbnailCache thumbnails, QualityGovernor governor,
+                   ImageEncoder encoder) {
             mImage = image;
+            mTimestamp = image.getTimestamp();
+            mWidth = image.getWidth();
+            mHeight = image.getHeight();
+            mRegistrar = registrar;
+            mCatalog = catalog;
+            mThumbnails = thumbnails;
+            mGovernor = governor;
+            mQuality = governor.getQuality();
+            mEncoder = encoder;
             mFile = file;
+            mRotation = rotation;
+            mThumbnailSize = thumbnailSize;
+            mIoExecutor = ioExecutor;
+            mCallback = callback;
+            mTracer = tracer;
+            mPressNanos = pressNanos;
+            mExif = exif;
         }
 
         @Override
         public void run() {
+            long start = mTracer.begin(TRACE_ENCODE);
+            try {
+                encode();
+            } finally {
+                mTracer.end(TRACE_ENCODE, start);
+            }
+        }
+
+        private void encode() {
             ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
+            if (mThumbnailSize > 0 && null != mCallback) {
+                // Decoded from the bytes in memory, so it can be shown before the write is done.
+                Bitmap thumbnail = JpegThumbnails.decode(buffer, mThumbnailSize, mRotation);
+                if (null != thumbnail) {
+                    mCallback.onThumbnailReady(mFile, thumbnail);
+                    cacheThumbnail(thumbnail);
+                }
+            }
+            if (!mEncoder.isPassthrough()) {
+                transcode(buffer);
+                return;
+            }
+            int orientation;
+            ByteBuffer rotated = mRotation != 0 ? rotate(buffer) : null;
+            if (null != rotated) {
+                // The rotated copy is all we need, give the slot back to the ImageReader.
+                mImage.close();
+                buffer = rotated;
+                orientation = ExifBuilder.ORIENTATION_NORMAL;
+            } else if (mRotation != 0) {
+                // Left to the viewers.
+                orientation = ExifBuilder.orientationForDegrees(mRotation);
+            } else {
+                // The camera either rotated the pixels or tagged the JPEG.
+                orientation = ExifBuilder.readOrientation(buffer);
+            }
+            final ByteBuffer jpeg = buffer;
+            final int exifOrientation = orientation != 0
+                    ? orientation : ExifBuilder.ORIENTATION_NORMAL;
+            // The stored pixels turned a quarter.
+            final boolean swapped = null != rotated && mRotation % 180 != 0;
+            try {
+                mIoExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(jpeg, exifOrientation, swapped ? mHeight : mWidth,
+                                swapped ? mWidth : mHeight);
+                    }
+                }, jpeg.remaining());
+            } catch (RejectedExecutionException e) {
+                cancel();
+            }
+        }
+
+        /**
+         * Encodes the picture upright with the encoder of the profile, and hands the output to
+         * the I/O stage.
+         */
+        private void transcode(ByteBuffer jpeg) {
+            int degrees = mRotation != 0 ? mRotation
+                    : ExifBuilder.degreesForOrientation(ExifBuilder.readOrientation(jpeg));
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(jpeg.remaining());
             try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
+                mEncoder.encode(jpeg, degrees, stream);
+            } catch (IOException e) {
+                Log.e(TAG, mEncoder.getName() + " encoding failed", e);
+                cancel();
+                return;
+            }
+            // The output is all we need, give the slot back to the ImageReader.
+            mImage.close();
+            final ByteBuffer output = ByteBuffer.wrap(stream.toByteArray());
+            final boolean swapped = degrees % 180 != 0;
+            try {
+                mIoExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(output, ExifBuilder.ORIENTATION_NORMAL, swapped ? mHeight : mWidth,
+                                swapped ? mWidth : mHeight);
+                    }
+                }, output.remaining());
+            } catch (RejectedExecutionException e) {
+                cancel();
+            }
+        }
+
+        /**
+         * Keeps the thumbnail made while the bytes are in memory, so browsing the pictures never
+         * decodes their JPEG again.
+         */
+        private void cacheThumbnail(Bitmap thumbnail) {
+            if (null == mThumbnails || null == mCatalog) {
+                return;
+            }
+            long id = mCatalog.idOf(mFile);
+            if (CaptureCatalog.UNKNOWN != id) {
+                mThumbnailOffset = mThumbnails.put(id, toCachedThumbnail(thumbnail));
+            }
+        }
+
+        /**
+         * Gives the image back without writing it, when no stage takes it anymore.
+         */
+        void cancel() {
+            mExif.remove(mTimestamp);
+            mImage.close();
+            if (null != mCallback) {
+                mCallback.onImageSaved(mFile, false);
+            }
+        }
+
+        /**
+         * Runs on the I/O stage.
+         *
+         * @param jpeg The camera's JPEG, or the output of the encoder when it is not a
+         *             passthrough.
+         */
+        private void write(ByteBuffer jpeg, int orientation, int width, int height) {
+            long start = mTracer.begin(TRACE_WRITE);
+            // Counted by the I/O stage until this task is done.
+            long submitted = jpeg.remaining();
+            ExifBuilder exif = mExif.remove(mTimestamp);
+            if (null == exif) {
+                // The capture result did not come, only what is known without it.
+                exif = new ExifBuilder().setDateTime(System.currentTimeMillis())
+                        .setMake(Build.MANUFACTURER).setModel(Build.MODEL);
+            }
+            exif.setOrientation(orientation);
+            PictureFile output = null;
+            boolean success = false;
+            long size = 0;
+            long writeNanos = 0;
+            try {
+                output = new PictureFile(mFile);
+                // The JPEG plane goes to the file without a copy, the EXIF segment in the same
+                // pass. The output of another encoder is upright already, and not a JPEG to put
+                // the segment in.
+                size = output.write(jpeg, mEncoder.isPassthrough() ? exif : null);
+                // The bytes are on their way to disk, give the slot back to the ImageReader.
+                mImage.close();
+                writeNanos = output.sync();
+                success = true;
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
+                // Closing an already closed image has no effect
                 mImage.close();
                 if (null != output) {
                     try {
                         output.close();
                     } catch (IOException e) {
                         e.printStackTrace();
+                        success = false;
                     }
                 }
+                mTracer.end(TRACE_WRITE, start);
+            }
+            if (success) {
+                mTracer.record(TRACE_PRESS_TO_SAVED, mPressNanos);
+                mGovernor.onSaved(mQuality, 0, size, writeNanos,
+                        Math.max(0, mIoExecutor.getQueuedBytes() - submitted));
+                // Everything the media store wants is known, it needs no scan.
+                int degrees = ExifBuilder.degreesForOrientation(orientation);
+                String mimeType = mEncoder.getMimeType();
+                if (null != mimeType) {
+                    mRegistrar.add(new GalleryRegistrar.Entry(mFile, mimeType, size, width,
+                            height, degrees, mDateTaken));
+                }
+                if (null != mCatalog) {
+                    try {
+                        mCatalog.append(mFile, size, width, height, degrees, mTimestamp,
+                                mDateTaken, mThumbnailOffset);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not record " + mFile, e);
+                    }
+                }
+            }
+            if (null != mCallback) {
+                mCallback.onImageSaved(mFile, success);
+            }
+        }
+
+        /**
+         * @return The rotated JPEG, or null if the JPEG is not supported and has to be written as
+         * it is.
+         */
+        private ByteBuffer rotate(ByteBuffer buffer) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(buffer.remaining());
+            try {
+                JpegRotator.rotate(buffer.duplicate(), mRotation, stream);
+                return ByteBuffer.wrap(stream.toByteArray());
+            } catch (IOException e) {
+                Log.w(TAG, "Lossless rotation failed, saving the JPEG as it is", e);
+                return null;
             }
         }
     }
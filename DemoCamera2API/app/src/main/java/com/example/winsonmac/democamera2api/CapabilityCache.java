@@ -0,0 +1,81 @@
+package com.example.winsonmac.democamera2api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the {@link CameraCapabilities} of every camera in the app's preferences. The entries
+ * belong to one build of the system: after an update they are dropped and queried again.
+ */
+public class CapabilityCache {
+
+    private static final String PREFERENCES = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAMERA_IDS = "cameraIds";
+    private static final String PREFIX_CAMERA = "camera.";
+
+    private final SharedPreferences mPreferences;
+
+    public CapabilityCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_FINGERPRINT, null))) {
+            mPreferences.edit()
+                    .clear()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+    }
+
+    /**
+     * @return Every camera, in the order of the camera service, or null if they have not been
+     * stored yet or an entry can't be read.
+     */
+    public List<CameraCapabilities> load() {
+        String ids = mPreferences.getString(KEY_CAMERA_IDS, null);
+        if (null == ids) {
+            return null;
+        }
+        List<CameraCapabilities> cameras = new ArrayList<>();
+        for (String id : ids.split(",")) {
+            if (id.isEmpty()) {
+                continue;
+            }
+            CameraCapabilities camera = CameraCapabilities.decode(
+                    mPreferences.getString(PREFIX_CAMERA + id, null));
+            if (null == camera) {
+                return null;
+            }
+            cameras.add(camera);
+        }
+        return cameras;
+    }
+
+    /**
+     * Stores every camera, replacing what was there. The write happens in the background.
+     */
+    public void saveAll(List<CameraCapabilities> cameras) {
+        StringBuilder ids = new StringBuilder();
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (CameraCapabilities camera : cameras) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(camera.getCameraId());
+            editor.putString(PREFIX_CAMERA + camera.getCameraId(), camera.encode());
+        }
+        editor.putString(KEY_CAMERA_IDS, ids.toString()).apply();
+    }
+
+    /**
+     * Stores one camera again, after a size choice has been added to it.
+     */
+    public void save(CameraCapabilities camera) {
+        mPreferences.edit()
+                .putString(PREFIX_CAMERA + camera.getCameraId(), camera.encode())
+                .apply();
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Keeps track of the shots between the shutter press and the file write, so that quick repeated
+ * presses never ask the {@link android.media.ImageReader} for more images than it can hold.
+ * <p>
+ * A shot holds one reader slot from the moment its capture starts until its image is closed by
+ * the saver. When every slot is taken, new presses are handled by the configured {@link Policy}.
+ * <p>
+ * The shots waiting for their image and the ones being saved are counted apart: when the camera
+ * closes, the former will never get their image, while the latter still give their slot back once
+ * written.
+ */
+public class CaptureQueue {
+
+    /**
+     * What to do with a shutter press when no reader slot is free.
+     */
+    public enum Policy {
+        QUEUE,      // Keep the press and start it once a slot is free, up to the queue capacity.
+        COALESCE,   // Keep at most one pending press, merge the others into it.
+        REJECT      // Drop the press.
+    }
+
+    private final File mDirectory;
+    private final int mMaxInFlight;
+    private final int mCapacity;
+    private final Policy mPolicy;
+
+    /**
+     * Shots that hold a reader slot: capturing or waiting for their image, and being written.
+     */
+    private int mAwaitingImage;
+    private int mSaving;
+    /**
+     * Presses waiting for a free slot.
+     */
+    private int mPending;
+    /**
+     * Whether a lock/precapture/capture sequence is running. Only one can run at a time.
+     */
+    private boolean mCapturing;
+
+    /**
+     * Used to give every shot its own file even when several are taken in the same second.
+     */
+    private int mSequence;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+
+    /**
+     * Counters to size the queue for a sustained shot rate.
+     */
+    private long mQueuedCount;
+    private long mCoalescedCount;
+    private long mRejectedCount;
+    private long mWrittenCount;
+    private long mFailedCount;
+
+    /**
+     * @param directory   Where the pictures are written.
+     * @param maxInFlight Number of images the {@link android.media.ImageReader} can hold.
+     * @param capacity    Maximum pending presses when the policy is {@link Policy#QUEUE}.
+     * @param policy      What to do with a press when all slots are taken.
+     */
+    public CaptureQueue(File directory, int maxInFlight, int capacity, Policy policy) {
+        if (maxInFlight < 1 || capacity < 0) {
+            throw new IllegalArgumentException("Invalid queue size");
+        }
+        mDirectory = directory;
+        mMaxInFlight = maxInFlight;
+        mCapacity = capacity;
+        mPolicy = policy;
+    }
+
+    /**
+     * Called on every shutter press.
+     *
+     * @return true if the capture sequence should be started right now.
+     */
+    public synchronized boolean offer() {
+        if (canStart()) {
+            mCapturing = true;
+            mAwaitingImage++;
+            return true;
+        }
+        switch (mPolicy) {
+            case QUEUE:
+                if (mPending < mCapacity) {
+                    mPending++;
+                    mQueuedCount++;
+                } else {
+                    mRejectedCount++;
+                }
+                break;
+            case COALESCE:
+                if (mPending == 0) {
+                    mPending = 1;
+                    mQueuedCount++;
+                } else {
+                    mCoalescedCount++;
+                }
+                break;
+            case REJECT:
+            default:
+                mRejectedCount++;
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Called when a burst is requested. A burst is never queued: it needs one free slot per frame
+     * right now, otherwise it is rejected.
+     *
+     * @return true if the burst should be started right now.
+     */
+    public synchronized boolean offerBurst(int frames) {
+        if (!mCapturing && getInFlightLocked() + frames <= mMaxInFlight) {
+            mCapturing = true;
+            mAwaitingImage += frames;
+            return true;
+        }
+        mRejectedCount++;
+        return false;
+    }
+
+    /**
+     * Called when the capture sequence is finished, the image itself may still be on its way.
+     *
+     * @return true if a pending shot should be started right now.
+     */
+    public synchronized boolean onCaptureFinished() {
+        mCapturing = false;
+        return startPending();
+    }
+
+    /**
+     * Called when a capture could not be submitted, the slot it was holding is given back.
+     *
+     * @return true if a pending shot should be started right now.
+     */
+    public synchronized boolean onCaptureFailed() {
+        mCapturing = false;
+        mAwaitingImage = Math.max(0, mAwaitingImage - 1);
+        mFailedCount++;
+        return startPending();
+    }
+
+    /**
+     * Called when the image of a shot is out of the reader and handed to a saver.
+     */
+    public synchronized void onImageReceived() {
+        if (mAwaitingImage > 0) {
+            mAwaitingImage--;
+            mSaving++;
+        }
+    }
+
+    /**
+     * Called when the capture of a burst frame failed without an image, its slot is given back.
+     *
+     * @return true if a pending shot should be started right now.
+     */
+    public synchronized boolean onImageLost() {
+        mAwaitingImage = Math.max(0, mAwaitingImage - 1);
+        mFailedCount++;
+        return startPending();
+    }
+
+    /**
+     * @return A JPEG file nobody else has been given yet.
+     */
+    public File nextFile() {
+        return nextFile(".jpg");
+    }
+
+    /**
+     * @param extension With its dot.
+     * @return A file nobody else has been given yet.
+     */
+    public synchronized File nextFile(String extension) {
+        String name = "IMG_" + mDateFormat.format(new Date()) + "_" + (mSequence++) + extension;
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * Called when the image of a shot has been closed and written (or failed to be written).
+     *
+     * @return true if a pending shot should be started right now.
+     */
+    public synchronized boolean onImageSaved(boolean success) {
+        if (mSaving > 0) {
+            mSaving--;
+        } else {
+            // Its image was not reported as received.
+            mAwaitingImage = Math.max(0, mAwaitingImage - 1);
+        }
+        if (success) {
+            mWrittenCount++;
+        } else {
+            mFailedCount++;
+        }
+        return startPending();
+    }
+
+    /**
+     * Forget the pending presses and the shots whose image the closed reader will never deliver,
+     * when the camera is closed. The images being saved keep their slot until written.
+     */
+    public synchronized void clear() {
+        mPending = 0;
+        mAwaitingImage = 0;
+        mCapturing = false;
+    }
+
+    private int getInFlightLocked() {
+        return mAwaitingImage + mSaving;
+    }
+
+    private boolean canStart() {
+        return !mCapturing && getInFlightLocked() < mMaxInFlight;
+    }
+
+    private boolean startPending() {
+        if (mPending > 0 && canStart()) {
+            mPending--;
+            mCapturing = true;
+            mAwaitingImage++;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized int getInFlight() {
+        return getInFlightLocked();
+    }
+
+    /**
+     * @return Shots whose image is being saved.
+     */
+    public synchronized int getSaving() {
+        return mSaving;
+    }
+
+    public synchronized int getPending() {
+        return mPending;
+    }
+
+    public synchronized long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CaptureQueue{inFlight=" + getInFlightLocked() + ", saving=" + mSaving
+                + ", pending=" + mPending
+                + ", queued=" + mQueuedCount + ", coalesced=" + mCoalescedCount
+                + ", rejected=" + mRejectedCount + ", written=" + mWrittenCount
+                + ", failed=" + mFailedCount + "}";
+    }
+}
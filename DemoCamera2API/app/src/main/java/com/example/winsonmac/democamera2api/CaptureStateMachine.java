@@ -0,0 +1,246 @@
+package com.example.winsonmac.democamera2api;
+
+import java.util.Locale;
+
+/**
+ * Decides when a still capture is sent, from the AF and AE states of the capture results.
+ * <p>
+ * The usual sequence locks the focus, runs the precapture metering if the exposure has not
+ * converged, then captures. Two things keep the shutter latency bounded here:
+ * <ul>
+ * <li>Every waiting state has a timeout. A device which never reports the expected state gets a
+ * picture anyway, with whatever focus and exposure it has.</li>
+ * <li>When the last preview result already shows a stable focus and exposure, the press captures
+ * at once, without the lock and precapture round trips.</li>
+ * </ul>
+ * The states are the CaptureResult values, so that this class runs on the JVM without the
+ * framework. Null means the device doesn't report the state.
+ */
+public class CaptureStateMachine {
+
+    /**
+     * CaptureResult.CONTROL_AF_STATE values.
+     */
+    static final int AF_STATE_INACTIVE = 0;
+    static final int AF_STATE_PASSIVE_SCAN = 1;
+    static final int AF_STATE_PASSIVE_FOCUSED = 2;
+    static final int AF_STATE_ACTIVE_SCAN = 3;
+    static final int AF_STATE_FOCUSED_LOCKED = 4;
+    static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    static final int AF_STATE_PASSIVE_UNFOCUSED = 6;
+
+    /**
+     * CaptureResult.CONTROL_AE_STATE values.
+     */
+    static final int AE_STATE_INACTIVE = 0;
+    static final int AE_STATE_SEARCHING = 1;
+    static final int AE_STATE_CONVERGED = 2;
+    static final int AE_STATE_LOCKED = 3;
+    static final int AE_STATE_FLASH_REQUIRED = 4;
+    static final int AE_STATE_PRECAPTURE = 5;
+
+    public enum State {
+        PREVIEW,                // Nothing to wait for.
+        WAITING_LOCK,           // Waiting for the focus to be locked.
+        WAITING_PRECAPTURE,     // Waiting for the exposure to be precapture state.
+        WAITING_NON_PRECAPTURE, // Waiting for the exposure state to be something other than precapture.
+        TAKEN                   // The still capture has been sent.
+    }
+
+    /**
+     * What the caller has to send to the camera.
+     */
+    public enum Action {
+        NONE,
+        LOCK_FOCUS,
+        RUN_PRECAPTURE,
+        CAPTURE
+    }
+
+    private static final long MILLIS = 1000000L;
+
+    private final long[] mTimeoutNanos = new long[State.values().length];
+    private long mMaxPreviewAgeNanos = 200 * MILLIS;
+    private boolean mFastPathEnabled = true;
+
+    private State mState = State.PREVIEW;
+    private long mStateNanos;
+    private long mPressNanos;
+
+    // Last preview result, for the fast path.
+    private Integer mPreviewAfState;
+    private Integer mPreviewAeState;
+    private long mPreviewNanos = -1;
+
+    // Metrics
+    private long mCaptures;
+    private long mFastPaths;
+    private long mTimeouts;
+    private long mLatencyTotalNanos;
+    private long mLatencyMaxNanos;
+
+    public CaptureStateMachine() {
+        setTimeout(State.WAITING_LOCK, 1000);
+        setTimeout(State.WAITING_PRECAPTURE, 500);
+        setTimeout(State.WAITING_NON_PRECAPTURE, 1000);
+    }
+
+    /**
+     * @param millis How long to wait in the state before capturing anyway.
+     */
+    public synchronized void setTimeout(State state, long millis) {
+        mTimeoutNanos[state.ordinal()] = millis * MILLIS;
+    }
+
+    public synchronized long getTimeoutMillis(State state) {
+        return mTimeoutNanos[state.ordinal()] / MILLIS;
+    }
+
+    /**
+     * @param millis How recent the preview result must be for the fast path to trust it.
+     */
+    public synchronized void setMaxPreviewAge(long millis) {
+        mMaxPreviewAgeNanos = millis * MILLIS;
+    }
+
+    public synchronized void setFastPathEnabled(boolean enabled) {
+        mFastPathEnabled = enabled;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * The shutter was pressed.
+     *
+     * @return {@link Action#CAPTURE} when the preview is already focused and exposed, otherwise
+     * {@link Action#LOCK_FOCUS}.
+     */
+    public synchronized Action start(long nowNanos) {
+        mPressNanos = nowNanos;
+        if (mFastPathEnabled && mPreviewNanos >= 0 && nowNanos - mPreviewNanos <= mMaxPreviewAgeNanos
+                && isFocusStable(mPreviewAfState) && isExposureStable(mPreviewAeState)) {
+            mFastPaths++;
+            return capture(nowNanos);
+        }
+        setState(State.WAITING_LOCK, nowNanos);
+        return Action.LOCK_FOCUS;
+    }
+
+    /**
+     * A capture result, partial or complete, has arrived.
+     *
+     * @return What to send next, {@link Action#NONE} to keep waiting.
+     */
+    public synchronized Action onResult(Integer afState, Integer aeState, long nowNanos) {
+        switch (mState) {
+            case PREVIEW: {
+                // Remembered for the next press. Partial results may lack a state, the previous
+                // one still holds then.
+                if (null != afState) {
+                    mPreviewAfState = afState;
+                }
+                if (null != aeState) {
+                    mPreviewAeState = aeState;
+                }
+                mPreviewNanos = nowNanos;
+                return Action.NONE;
+            }
+            case WAITING_LOCK: {
+                if (afState == null) {
+                    return capture(nowNanos);
+                } else if (AF_STATE_FOCUSED_LOCKED == afState
+                        || AF_STATE_NOT_FOCUSED_LOCKED == afState) {
+                    // CONTROL_AE_STATE can be null on some devices
+                    if (aeState == null || aeState == AE_STATE_CONVERGED) {
+                        return capture(nowNanos);
+                    }
+                    setState(State.WAITING_PRECAPTURE, nowNanos);
+                    return Action.RUN_PRECAPTURE;
+                }
+                break;
+            }
+            case WAITING_PRECAPTURE: {
+                if (aeState == null || aeState == AE_STATE_PRECAPTURE
+                        || aeState == AE_STATE_FLASH_REQUIRED) {
+                    setState(State.WAITING_NON_PRECAPTURE, nowNanos);
+                    return Action.NONE;
+                }
+                break;
+            }
+            case WAITING_NON_PRECAPTURE: {
+                if (aeState == null || aeState != AE_STATE_PRECAPTURE) {
+                    return capture(nowNanos);
+                }
+                break;
+            }
+            case TAKEN: {
+                return Action.NONE;
+            }
+        }
+        if (nowNanos - mStateNanos >= mTimeoutNanos[mState.ordinal()]) {
+            mTimeouts++;
+            return capture(nowNanos);
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * The capture sequence is over, or was given up: back to the preview.
+     */
+    public synchronized void reset() {
+        mState = State.PREVIEW;
+        // The states seen during the sequence were those of the triggers, not of the preview.
+        mPreviewNanos = -1;
+    }
+
+    private Action capture(long nowNanos) {
+        setState(State.TAKEN, nowNanos);
+        long latency = nowNanos - mPressNanos;
+        mCaptures++;
+        mLatencyTotalNanos += latency;
+        mLatencyMaxNanos = Math.max(mLatencyMaxNanos, latency);
+        return Action.CAPTURE;
+    }
+
+    private void setState(State state, long nowNanos) {
+        mState = state;
+        mStateNanos = nowNanos;
+    }
+
+    private static boolean isFocusStable(Integer afState) {
+        return afState == null || afState == AF_STATE_PASSIVE_FOCUSED
+                || afState == AF_STATE_FOCUSED_LOCKED;
+    }
+
+    private static boolean isExposureStable(Integer aeState) {
+        return aeState == null || aeState == AE_STATE_CONVERGED || aeState == AE_STATE_LOCKED;
+    }
+
+    /**
+     * @return Longest time from a press to its capture being sent, in milliseconds.
+     */
+    public synchronized double getMaxLatencyMillis() {
+        return mLatencyMaxNanos / 1e6;
+    }
+
+    public synchronized double getMeanLatencyMillis() {
+        return mCaptures == 0 ? 0 : mLatencyTotalNanos / 1e6 / mCaptures;
+    }
+
+    public synchronized long getFastPaths() {
+        return mFastPaths;
+    }
+
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Shutter: %d captures, %d fast, %d timed out, latency mean %.0f ms, max %.0f ms",
+                mCaptures, mFastPaths, mTimeouts, getMeanLatencyMillis(), getMaxLatencyMillis());
+    }
+}
@@ -0,0 +1,664 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds an EXIF APP1 segment with the few tags a camera knows when it takes a picture, and
+ * writes a JPEG with it in a single pass: SOI, the JFIF APP0 if there is one, the segment, then
+ * the JPEG's other segments.
+ * <p>
+ * When the JPEG already has EXIF, as the camera HAL writes it, the tags are merged into it rather
+ * than replacing it, so that the aperture, white balance, flash, GPS, thumbnail and the others
+ * are kept. Only the orientation is ours over the camera's, since the saver may turn the pixels;
+ * the other tags are added when the camera left them out.
+ * <p>
+ * Rewriting the tags afterwards with ExifInterface reads and writes the whole file a second
+ * time, here the metadata goes into the stream the picture is written with.
+ */
+public class ExifBuilder {
+
+    /**
+     * Values of the Orientation tag.
+     */
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_UNDEFINED = 7;
+
+    // IFD0
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    // Exif IFD
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+
+    /**
+     * "Exif" followed by two zero bytes, at the start of an EXIF APP1 segment.
+     */
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private int mOrientation;
+    private String mDateTime;
+    private String mMake;
+    private String mModel;
+    private long mExposureNanos;
+    private int mIso;
+    private float mFocalLength;
+
+    /**
+     * @param orientation One of the ORIENTATION_* values, 0 leaves the tag out.
+     */
+    public ExifBuilder setOrientation(int orientation) {
+        mOrientation = orientation;
+        return this;
+    }
+
+    /**
+     * @param millis Wall clock time the picture was taken, in the device's time zone as EXIF
+     *               wants it.
+     */
+    public ExifBuilder setDateTime(long millis) {
+        mDateTime = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(new Date(millis));
+        return this;
+    }
+
+    public ExifBuilder setMake(String make) {
+        mMake = make;
+        return this;
+    }
+
+    public ExifBuilder setModel(String model) {
+        mModel = model;
+        return this;
+    }
+
+    /**
+     * @param nanos 0 leaves the tag out.
+     */
+    public ExifBuilder setExposureTime(long nanos) {
+        mExposureNanos = nanos;
+        return this;
+    }
+
+    /**
+     * @param iso 0 leaves the tag out.
+     */
+    public ExifBuilder setIso(int iso) {
+        mIso = iso;
+        return this;
+    }
+
+    /**
+     * @param millimeters 0 leaves the tag out.
+     */
+    public ExifBuilder setFocalLength(float millimeters) {
+        mFocalLength = millimeters;
+        return this;
+    }
+
+    /**
+     * @param degrees Clockwise rotation making the picture upright.
+     * @return The Orientation value telling a viewer to apply that rotation.
+     */
+    public static int orientationForDegrees(int degrees) {
+        switch ((degrees % 360 + 360) % 360) {
+            case 90:
+                return ORIENTATION_ROTATE_90;
+            case 180:
+                return ORIENTATION_ROTATE_180;
+            case 270:
+                return ORIENTATION_ROTATE_270;
+            default:
+                return ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * @param orientation One of the ORIENTATION_* values.
+     * @return Clockwise rotation a viewer applies for it, in degrees.
+     */
+    public static int degreesForOrientation(int orientation) {
+        switch (orientation) {
+            case ORIENTATION_ROTATE_90:
+                return 90;
+            case ORIENTATION_ROTATE_180:
+                return 180;
+            case ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return A whole APP1 segment, marker included, holding the tags that were set.
+     */
+    public byte[] build() {
+        List<Entry> exif = getExifEntries();
+        List<Entry> ifd0 = getIfd0Entries();
+        // Filled in below, once IFD0's size is known.
+        Entry pointer = new Entry(TAG_EXIF_IFD, TYPE_LONG, 1, new byte[4]);
+        ifd0.add(pointer);
+
+        // Big endian TIFF header, IFD0 right behind it.
+        int exifOffset = 8 + sizeOf(ifd0);
+        int tiffLength = exifOffset + sizeOf(exif);
+        ByteBuffer segment = ByteBuffer.allocate(4 + EXIF_HEADER.length + tiffLength);
+        int length = segment.capacity() - 2;
+        if (length > 0xFFFF) {
+            throw new IllegalStateException("EXIF segment too long: " + length);
+        }
+        segment.put((byte) 0xFF).put((byte) MARKER_APP1).putShort((short) length).put(EXIF_HEADER);
+        int tiff = segment.position();
+        segment.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        pointer.mValue = ByteBuffer.allocate(4).putInt(exifOffset).array();
+        putIfd(segment, tiff, ifd0, 0);
+        putIfd(segment, tiff, exif, 0);
+        return segment.array();
+    }
+
+    /**
+     * @param jpeg From its position to its limit, left unchanged.
+     * @param exif The JPEG's EXIF segment, as {@link #findExifSegment} gives it.
+     * @return The segment with the tags merged in, or null if its IFDs can't be understood or
+     * it would grow beyond the 64 KB a segment can hold.
+     */
+    private byte[] merge(ByteBuffer jpeg, int[] exif) {
+        int tiff = exif[0] + 4 + EXIF_HEADER.length;
+        int end = exif[1];
+        ByteOrder order;
+        if (jpeg.get(tiff) == 'I' && jpeg.get(tiff + 1) == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (jpeg.get(tiff) == 'M' && jpeg.get(tiff + 1) == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            return null;
+        }
+        boolean littleEndian = order == ByteOrder.LITTLE_ENDIAN;
+        long ifd0Offset = readInt(jpeg, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+        List<Entry> ifd0 = readIfd(jpeg, tiff, end, ifd0Offset, littleEndian);
+        if (null == ifd0) {
+            return null;
+        }
+        // IFD1, the thumbnail, stays linked to IFD0.
+        int next = readInt(jpeg, (int) (tiff + ifd0Offset + 2 + 12 * ifd0.size()), littleEndian);
+        List<Entry> exifIfd = null;
+        for (int i = 0; i < ifd0.size(); i++) {
+            Entry entry = ifd0.get(i);
+            if (entry.mTag == TAG_EXIF_IFD) {
+                long offset = ByteBuffer.wrap(entry.mRaw).order(order).getInt(8) & 0xFFFFFFFFL;
+                exifIfd = readIfd(jpeg, tiff, end, offset, littleEndian);
+                ifd0.remove(i);
+                break;
+            }
+        }
+        ifd0 = mergeEntries(ifd0, getIfd0Entries());
+        Entry pointer = new Entry(TAG_EXIF_IFD, TYPE_LONG, 1, new byte[4]);
+        ifd0 = mergeEntries(ifd0, Collections.singletonList(pointer));
+        List<Entry> exifEntries = mergeEntries(null == exifIfd ? new ArrayList<Entry>() : exifIfd,
+                getExifEntries());
+
+        // The segment is kept as it is, every offset in it stays right. The new IFDs come after
+        // it, on a word boundary, and the header points to them: the old ones are left unused.
+        int newIfd0 = (end - tiff + 1) & ~1;
+        int exifOffset = newIfd0 + sizeOf(ifd0);
+        int tiffLength = exifOffset + sizeOf(exifEntries);
+        ByteBuffer segment = ByteBuffer.allocate(4 + EXIF_HEADER.length + tiffLength);
+        int length = segment.capacity() - 2;
+        if (length > 0xFFFF) {
+            return null;
+        }
+        segment.put(slice(jpeg, exif[0], end));
+        segment.putShort(2, (short) length);
+        segment.order(order);
+        int header = 4 + EXIF_HEADER.length;
+        segment.putInt(header + 4, newIfd0);
+        segment.position(header + newIfd0);
+        pointer.mValue = ByteBuffer.allocate(4).putInt(exifOffset).array();
+        putIfd(segment, header, ifd0, next);
+        putIfd(segment, header, exifEntries, 0);
+        return segment.array();
+    }
+
+    /**
+     * @return The camera's entries with ours added, sorted by tag. Our orientation replaces the
+     * camera's, for the other tags the camera's value is kept.
+     */
+    private static List<Entry> mergeEntries(List<Entry> theirs, List<Entry> ours) {
+        List<Entry> merged = new ArrayList<>(theirs);
+        for (Entry entry : ours) {
+            int index = indexOf(merged, entry.mTag);
+            if (index < 0) {
+                merged.add(entry);
+            } else if (entry.mTag == TAG_ORIENTATION) {
+                merged.set(index, entry);
+            }
+        }
+        Collections.sort(merged, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.mTag - b.mTag;
+            }
+        });
+        return merged;
+    }
+
+    private static int indexOf(List<Entry> ifd, int tag) {
+        for (int i = 0; i < ifd.size(); i++) {
+            if (ifd.get(i).mTag == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param offset From the TIFF header.
+     * @return The entries of the IFD, copied as they are, or null if it doesn't fit in the
+     * segment.
+     */
+    private static List<Entry> readIfd(ByteBuffer jpeg, int tiff, int end, long offset,
+                                       boolean littleEndian) {
+        if (offset < 8 || tiff + offset + 2 > end) {
+            return null;
+        }
+        int ifd = (int) (tiff + offset);
+        int count = readShort(jpeg, ifd, littleEndian);
+        if (ifd + 2 + 12 * count + 4 > end) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + 12 * i;
+            byte[] raw = new byte[12];
+            for (int j = 0; j < raw.length; j++) {
+                raw[j] = jpeg.get(entry + j);
+            }
+            entries.add(new Entry(readShort(jpeg, entry, littleEndian), raw));
+        }
+        return entries;
+    }
+
+    private List<Entry> getExifEntries() {
+        List<Entry> exif = new ArrayList<>();
+        if (mExposureNanos > 0) {
+            // Microseconds are as fine as any camera goes.
+            exif.add(rational(TAG_EXPOSURE_TIME, Math.max(1, mExposureNanos / 1000), 1000000));
+        }
+        if (mIso > 0) {
+            exif.add(new Entry(TAG_ISO, TYPE_SHORT, 1, shortValue(Math.min(0xFFFF, mIso))));
+        }
+        exif.add(new Entry(TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, new byte[]{'0', '2', '2', '0'}));
+        if (null != mDateTime) {
+            exif.add(ascii(TAG_DATE_TIME_ORIGINAL, mDateTime));
+        }
+        if (mFocalLength > 0) {
+            exif.add(rational(TAG_FOCAL_LENGTH, Math.round(mFocalLength * 1000), 1000));
+        }
+        return exif;
+    }
+
+    private List<Entry> getIfd0Entries() {
+        List<Entry> ifd0 = new ArrayList<>();
+        if (null != mMake) {
+            ifd0.add(ascii(TAG_MAKE, mMake));
+        }
+        if (null != mModel) {
+            ifd0.add(ascii(TAG_MODEL, mModel));
+        }
+        if (mOrientation > 0) {
+            ifd0.add(new Entry(TAG_ORIENTATION, TYPE_SHORT, 1, shortValue(mOrientation)));
+        }
+        if (null != mDateTime) {
+            ifd0.add(ascii(TAG_DATE_TIME, mDateTime));
+        }
+        return ifd0;
+    }
+
+    /**
+     * @return The segment to write in place of the JPEG's own: the JPEG's with the tags merged
+     * in, or {@link #build()} if there is none or it can't be merged.
+     */
+    private byte[] buildFor(ByteBuffer jpeg, int[] exif) {
+        byte[] merged = null == exif ? null : merge(jpeg, exif);
+        return null != merged ? merged : build();
+    }
+
+    /**
+     * Writes the JPEG with the tags, merged into its EXIF segment if it has one.
+     *
+     * @param jpeg From its position to its limit, left unchanged.
+     * @return The number of bytes written.
+     */
+    public long write(ByteBuffer jpeg, WritableByteChannel out) throws IOException {
+        ByteBuffer source = jpeg.duplicate();
+        int start = source.position();
+        int end = source.limit();
+        if (!isJpeg(source)) {
+            // Not ours to understand, written as it is.
+            return writeFully(source, out);
+        }
+        int[] exif = findExifSegment(source);
+        int insert = findSegmentPosition(source);
+        long written = writeFully(slice(source, start, insert), out);
+        written += writeFully(ByteBuffer.wrap(buildFor(source, exif)), out);
+        if (null == exif) {
+            written += writeFully(slice(source, insert, end), out);
+        } else {
+            written += writeFully(slice(source, insert, exif[0]), out);
+            written += writeFully(slice(source, exif[1], end), out);
+        }
+        return written;
+    }
+
+    /**
+     * Writes the JPEG with the tags, merged into its EXIF segment if it has one.
+     *
+     * @return The number of bytes written.
+     */
+    public long write(byte[] jpeg, OutputStream out) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(jpeg);
+        if (!isJpeg(source)) {
+            out.write(jpeg);
+            return jpeg.length;
+        }
+        int[] exif = findExifSegment(source);
+        byte[] segment = buildFor(source, exif);
+        int insert = findSegmentPosition(source);
+        out.write(jpeg, 0, insert);
+        out.write(segment);
+        if (null == exif) {
+            out.write(jpeg, insert, jpeg.length - insert);
+            return jpeg.length + segment.length;
+        }
+        out.write(jpeg, insert, exif[0] - insert);
+        out.write(jpeg, exif[1], jpeg.length - exif[1]);
+        return jpeg.length - (exif[1] - exif[0]) + segment.length;
+    }
+
+    /**
+     * @param jpeg From its position to its limit, left unchanged.
+     * @return The Orientation value in the JPEG's EXIF segment, 0 if there is none.
+     */
+    public static int readOrientation(ByteBuffer jpeg) {
+        int[] exif = findExifSegment(jpeg);
+        if (null == exif) {
+            return 0;
+        }
+        int tiff = exif[0] + 4 + EXIF_HEADER.length;
+        boolean littleEndian;
+        if (jpeg.get(tiff) == 'I' && jpeg.get(tiff + 1) == 'I') {
+            littleEndian = true;
+        } else if (jpeg.get(tiff) == 'M' && jpeg.get(tiff + 1) == 'M') {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+        long ifd = tiff + (readInt(jpeg, tiff + 4, littleEndian) & 0xFFFFFFFFL);
+        if (ifd + 2 > exif[1]) {
+            return 0;
+        }
+        int count = readShort(jpeg, (int) ifd, littleEndian);
+        int entry = (int) ifd + 2;
+        for (int i = 0; i < count && entry + 12 <= exif[1]; i++, entry += 12) {
+            if (readShort(jpeg, entry, littleEndian) == TAG_ORIENTATION
+                    && readShort(jpeg, entry + 2, littleEndian) == TYPE_SHORT) {
+                return readShort(jpeg, entry + 8, littleEndian);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param jpeg From its position to its limit.
+     * @return The start and end of the EXIF APP1 segment, marker included, as absolute indices, or
+     * null if there is none before the image data.
+     */
+    static int[] findExifSegment(ByteBuffer jpeg) {
+        if (!isJpeg(jpeg)) {
+            return null;
+        }
+        int pos = jpeg.position() + 2;
+        int limit = jpeg.limit();
+        while (pos + 4 <= limit) {
+            if ((jpeg.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = jpeg.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS) {
+                return null;
+            }
+            int length = readShort(jpeg, pos + 2, false);
+            if (length < 2 || pos + 2 + length > limit) {
+                return null;
+            }
+            if (marker == MARKER_APP1 && length >= 2 + EXIF_HEADER.length + 8
+                    && startsWith(jpeg, pos + 4, EXIF_HEADER)) {
+                return new int[]{pos, pos + 2 + length};
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    /**
+     * JFIF wants its APP0 right after SOI, the EXIF segment goes after it then.
+     *
+     * @param jpeg From its position to its limit, which is SOI.
+     * @return Where the EXIF segment is to be written.
+     */
+    private static int findSegmentPosition(ByteBuffer jpeg) {
+        int pos = jpeg.position() + 2;
+        if (pos + 4 <= jpeg.limit() && (jpeg.get(pos) & 0xFF) == 0xFF
+                && (jpeg.get(pos + 1) & 0xFF) == MARKER_APP0) {
+            int length = readShort(jpeg, pos + 2, false);
+            if (length >= 2 && pos + 2 + length <= jpeg.limit()) {
+                return pos + 2 + length;
+            }
+        }
+        return pos;
+    }
+
+    private static boolean isJpeg(ByteBuffer jpeg) {
+        int pos = jpeg.position();
+        return jpeg.limit() - pos >= 4 && (jpeg.get(pos) & 0xFF) == 0xFF
+                && (jpeg.get(pos + 1) & 0xFF) == MARKER_SOI;
+    }
+
+    /**
+     * An IFD entry, its value in big endian. Or an entry of the JPEG's own EXIF, its 12 bytes
+     * copied as they are, the value they point to left where it is.
+     */
+    private static class Entry {
+        final int mTag;
+        final int mType;
+        final int mCount;
+        byte[] mValue;
+        final byte[] mRaw;
+
+        Entry(int tag, int type, int count, byte[] value) {
+            mTag = tag;
+            mType = type;
+            mCount = count;
+            mValue = value;
+            mRaw = null;
+        }
+
+        Entry(int tag, byte[] raw) {
+            mTag = tag;
+            mType = 0;
+            mCount = 0;
+            mRaw = raw;
+        }
+
+        /**
+         * @return The value with each number in the given byte order.
+         */
+        byte[] getValue(ByteOrder order) {
+            int size = mType == TYPE_SHORT ? 2
+                    : mType == TYPE_LONG || mType == TYPE_RATIONAL ? 4 : 1;
+            if (order == ByteOrder.BIG_ENDIAN || size == 1) {
+                return mValue;
+            }
+            byte[] value = new byte[mValue.length];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = mValue[i - i % size + size - 1 - i % size];
+            }
+            return value;
+        }
+    }
+
+    private static Entry ascii(int tag, String value) {
+        byte[] chars = value.getBytes(ASCII);
+        byte[] terminated = new byte[chars.length + 1];
+        System.arraycopy(chars, 0, terminated, 0, chars.length);
+        return new Entry(tag, TYPE_ASCII, terminated.length, terminated);
+    }
+
+    private static Entry rational(int tag, long numerator, long denominator) {
+        long gcd = gcd(numerator, denominator);
+        return new Entry(tag, TYPE_RATIONAL, 1, ByteBuffer.allocate(8)
+                .putInt((int) (numerator / gcd)).putInt((int) (denominator / gcd)).array());
+    }
+
+    private static byte[] shortValue(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return Math.max(1, a);
+    }
+
+    /**
+     * @return Bytes taken by the IFD and the values which don't fit in its entries.
+     */
+    private static int sizeOf(List<Entry> ifd) {
+        int size = 2 + 12 * ifd.size() + 4;
+        for (Entry entry : ifd) {
+            if (null == entry.mRaw && entry.mValue.length > 4) {
+                size += (entry.mValue.length + 1) & ~1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the IFD then its values, in the byte order of the buffer. The entries have to be
+     * sorted by tag, as TIFF wants them.
+     *
+     * @param next Offset of the next IFD, 0 for none.
+     */
+    private static void putIfd(ByteBuffer out, int tiff, List<Entry> ifd, int next) {
+        int dataOffset = out.position() - tiff + 2 + 12 * ifd.size() + 4;
+        out.putShort((short) ifd.size());
+        List<byte[]> data = new ArrayList<>();
+        for (Entry entry : ifd) {
+            if (null != entry.mRaw) {
+                out.put(entry.mRaw);
+                continue;
+            }
+            byte[] value = entry.getValue(out.order());
+            out.putShort((short) entry.mTag).putShort((short) entry.mType).putInt(entry.mCount);
+            if (value.length <= 4) {
+                out.put(value);
+                for (int i = value.length; i < 4; i++) {
+                    out.put((byte) 0);
+                }
+            } else {
+                out.putInt(dataOffset);
+                dataOffset += (value.length + 1) & ~1;
+                data.add(value);
+            }
+        }
+        out.putInt(next);
+        for (byte[] value : data) {
+            out.put(value);
+            if ((value.length & 1) != 0) {
+                out.put((byte) 0);
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return slice;
+    }
+
+    private static long writeFully(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer);
+        }
+        return written;
+    }
+
+    private static boolean startsWith(ByteBuffer data, int offset, byte[] prefix) {
+        if (offset + prefix.length > data.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(ByteBuffer data, int offset, boolean littleEndian) {
+        int a = data.get(offset) & 0xFF;
+        int b = data.get(offset + 1) & 0xFF;
+        return littleEndian ? (b << 8) | a : (a << 8) | b;
+    }
+
+    private static int readInt(ByteBuffer data, int offset, boolean littleEndian) {
+        if (offset + 4 > data.limit()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data.get(offset + (littleEndian ? 3 - i : i)) & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,379 @@
+package com.example.winsonmac.democamera2api;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A low resolution YUV_420_888 output of the capture session, feeding the preview frames to
+ * {@link FrameAnalyzer}s.
+ * <p>
+ * The camera thread only acquires the images, the analyzers run one frame at a time on the
+ * stage's own thread, so a slow analyzer can never hold up the camera callbacks.
+ */
+public class FrameAnalysisStage implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "FrameAnalysisStage";
+
+    /**
+     * What to do with the frames arriving while the analyzers are still busy.
+     */
+    public enum DropPolicy {
+        /**
+         * Keep only the newest waiting frame and close the older one. The preview never slows
+         * down, the analyzers see fewer frames.
+         */
+        KEEP_LATEST,
+        /**
+         * Leave the frames in the reader until the analyzers are ready. Once every buffer is
+         * held the camera has to wait, so the whole repeating request slows down to the pace of
+         * the analyzers.
+         */
+        BLOCK
+    }
+
+    /**
+     * One frame being analyzed, one waiting, one being filled by the camera.
+     */
+    private static final int MAX_IMAGES = 3;
+
+    private final ImageReader mReader;
+    private final DropPolicy mPolicy;
+    private final ExecutorService mExecutor;
+    private final List<Entry> mAnalyzers = new CopyOnWriteArrayList<>();
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private boolean mBusy;          // A frame is on the analysis thread.
+    private boolean mClosed;
+    private Image mPending;         // KEEP_LATEST: the frame analyzed next.
+    private int mWaiting;           // BLOCK: frames left in the reader.
+    private long mProcessed;
+    private long mDropped;
+    private long mDelayed;          // BLOCK: frames that had to wait in the reader.
+    private long mFirstTimestamp;
+    private long mLastTimestamp;
+    private long mFrames;
+
+    /**
+     * @param size    Size of the analyzed frames, see {@link #chooseSize}.
+     * @param policy  What to do with the frames arriving while the analyzers are busy.
+     * @param handler Thread receiving the reader callbacks, usually the camera thread.
+     */
+    public FrameAnalysisStage(Size size, DropPolicy policy, Handler handler) {
+        mPolicy = policy;
+        mReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, MAX_IMAGES);
+        mReader.setOnImageAvailableListener(this, handler);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FrameAnalysis");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param choices     Supported YUV_420_888 sizes.
+     * @param maxWidth    Widest size wanted.
+     * @param aspectRatio Aspect ratio of the preview.
+     * @return The biggest size with the preview's aspect ratio not wider than maxWidth, or the
+     * smallest size if there is none.
+     */
+    public static Size chooseSize(Size[] choices, int maxWidth, Size aspectRatio) {
+        Size best = null;
+        Size smallest = null;
+        for (Size option : choices) {
+            if (smallest == null || (long) option.getWidth() * option.getHeight()
+                    < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = option;
+            }
+            if (option.getWidth() <= maxWidth
+                    && (long) option.getWidth() * aspectRatio.getHeight()
+                    == (long) option.getHeight() * aspectRatio.getWidth()
+                    && (best == null || option.getWidth() > best.getWidth())) {
+                best = option;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    public Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    public DropPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Analyzers run in the order they were added, on every frame that is not dropped.
+     *
+     * @param name Used in the statistics.
+     */
+    public void addAnalyzer(String name, FrameAnalyzer analyzer) {
+        mAnalyzers.add(new Entry(name, analyzer));
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            if (mPolicy == DropPolicy.BLOCK && mBusy) {
+                mWaiting++;
+                mDelayed++;
+                return;
+            }
+            image = reader.acquireNextImage();
+            if (null == image) {
+                return;
+            }
+            onFrame(image);
+            if (mBusy) {
+                if (null != mPending) {
+                    mPending.close();
+                    mDropped++;
+                }
+                mPending = image;
+                return;
+            }
+            mBusy = true;
+        }
+        final Image first = image;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                analyzeFrom(first);
+            }
+        });
+    }
+
+    /**
+     * Runs on the analysis thread until no frame is waiting.
+     */
+    private void analyzeFrom(Image image) {
+        while (null != image) {
+            for (Entry entry : mAnalyzers) {
+                long start = System.nanoTime();
+                try {
+                    entry.mAnalyzer.analyze(image);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Analyzer " + entry.mName + " failed", e);
+                }
+                entry.record(System.nanoTime() - start);
+            }
+            synchronized (mLock) {
+                image.close();
+                mProcessed++;
+                image = nextFrame();
+                if (null == image) {
+                    mBusy = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private Image nextFrame() {
+        if (mClosed) {
+            return null;
+        }
+        if (mPolicy == DropPolicy.KEEP_LATEST) {
+            Image image = mPending;
+            mPending = null;
+            return image;
+        }
+        while (mWaiting > 0) {
+            mWaiting--;
+            Image image = mReader.acquireNextImage();
+            if (null != image) {
+                onFrame(image);
+                return image;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private void onFrame(Image image) {
+        if (mFrames == 0) {
+            mFirstTimestamp = image.getTimestamp();
+        }
+        mLastTimestamp = image.getTimestamp();
+        mFrames++;
+    }
+
+    /**
+     * Stops the analysis and releases the reader. The frame on the analysis thread, if any, is
+     * finished first.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            if (null != mPending) {
+                mPending.close();
+                mPending = null;
+            }
+        }
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Analyzers did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mReader.close();
+    }
+
+    public long getFramesProcessed() {
+        synchronized (mLock) {
+            return mProcessed;
+        }
+    }
+
+    /**
+     * @return Frames closed without being analyzed, KEEP_LATEST only.
+     */
+    public long getFramesDropped() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * @return Frames which had to wait in the reader for the analyzers, BLOCK only.
+     */
+    public long getFramesDelayed() {
+        synchronized (mLock) {
+            return mDelayed;
+        }
+    }
+
+    /**
+     * @return Rate at which the frames reached the stage, from their sensor timestamps.
+     */
+    public double getFramesPerSecond() {
+        synchronized (mLock) {
+            long elapsed = mLastTimestamp - mFirstTimestamp;
+            return mFrames < 2 || elapsed <= 0 ? 0 : (mFrames - 1) * 1e9 / elapsed;
+        }
+    }
+
+    /**
+     * @return A copy of the statistics of every analyzer, in the order they were added.
+     */
+    public List<AnalyzerStats> getAnalyzerStats() {
+        List<AnalyzerStats> stats = new ArrayList<>();
+        for (Entry entry : mAnalyzers) {
+            stats.add(entry.snapshot());
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US,
+                "Analysis %dx%d %s: %.1f fps in, %d processed, %d dropped, %d delayed",
+                mReader.getWidth(), mReader.getHeight(), mPolicy, getFramesPerSecond(),
+                getFramesProcessed(), getFramesDropped(), getFramesDelayed()));
+        for (AnalyzerStats stats : getAnalyzerStats()) {
+            builder.append("; ").append(stats);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Time spent by one analyzer.
+     */
+    public static class AnalyzerStats {
+
+        private final String mName;
+        private final long mFrames;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+
+        AnalyzerStats(String name, long frames, long totalNanos, long maxNanos) {
+            mName = name;
+            mFrames = frames;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        public double getMeanMillis() {
+            return mFrames == 0 ? 0 : mTotalNanos / 1e6 / mFrames;
+        }
+
+        public double getMaxMillis() {
+            return mMaxNanos / 1e6;
+        }
+
+        /**
+         * @return Whether the mean latency fits in the interval between two frames.
+         */
+        public boolean keepsUp(double framesPerSecond) {
+            return framesPerSecond <= 0 || getMeanMillis() <= 1000 / framesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d frames, mean %.1f ms, max %.1f ms",
+                    mName, mFrames, getMeanMillis(), getMaxMillis());
+        }
+    }
+
+    private static class Entry {
+
+        final String mName;
+        final FrameAnalyzer mAnalyzer;
+        private long mFrames;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        Entry(String name, FrameAnalyzer analyzer) {
+            mName = name;
+            mAnalyzer = analyzer;
+        }
+
+        synchronized void record(long nanos) {
+            mFrames++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        synchronized AnalyzerStats snapshot() {
+            return new AnalyzerStats(mName, mFrames, mTotalNanos, mMaxNanos);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.winsonmac.democamera2api;
+
+import android.media.Image;
+
+/**
+ * Processes the live preview frames of a {@link FrameAnalysisStage}.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * Called on the analysis thread for every frame that is not dropped.
+     *
+     * @param image A YUV_420_888 frame. It is closed by the stage when every analyzer has
+     *              returned, so it must not be kept.
+     */
+    void analyze(Image image);
+}
@@ -0,0 +1,209 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * The metadata of the last frames of a repeating request: sensor timestamp, frame duration,
+ * exposure time, ISO and AF/AE states, kept in primitive arrays so that recording a frame
+ * allocates nothing.
+ * <p>
+ * Every frame is checked against the one before it. An interval longer than 1.5 frame durations
+ * means frames were dropped, a shorter one counts as jitter: how far the interval is from the
+ * frame duration the sensor reported. The ring can be written as CSV to line stutter up with
+ * exposure changes.
+ * <p>
+ * Frames are recorded on the camera thread and read from any thread.
+ */
+public class FrameMetadataRing {
+
+    /**
+     * Value of a field the result didn't have.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Newest frames the FPS is computed on, about a second of preview.
+     */
+    private static final int FPS_FRAMES = 30;
+
+    private final long[] mFrameNumbers;
+    private final long[] mTimestamps;
+    private final long[] mFrameDurations;
+    private final long[] mExposureTimes;
+    private final int[] mIsos;
+    private final int[] mAfStates;
+    private final int[] mAeStates;
+    private final int[] mDropped;          // Frames missing before each one.
+    private int mNext;                     // Index the next frame goes to.
+    private int mSize;
+
+    // Metrics, since the last reset.
+    private long mFrames;
+    private long mDroppedFrames;
+    private long mDropEvents;
+    private long mIntervals;               // Intervals counted in the jitter.
+    private long mJitterTotalNanos;
+    private long mJitterMaxNanos;
+    private long mLastTimestamp;
+    private long mLastInterval;
+
+    public FrameMetadataRing(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        mFrameNumbers = new long[capacity];
+        mTimestamps = new long[capacity];
+        mFrameDurations = new long[capacity];
+        mExposureTimes = new long[capacity];
+        mIsos = new int[capacity];
+        mAfStates = new int[capacity];
+        mAeStates = new int[capacity];
+        mDropped = new int[capacity];
+    }
+
+    /**
+     * Records a completed frame, frames have to come in sensor timestamp order.
+     *
+     * @param frameDurationNanos {@link #UNKNOWN} if not reported, the previous interval is then
+     *                           what the frame is expected to last.
+     */
+    public synchronized void record(long frameNumber, long timestampNanos, long frameDurationNanos,
+                                    long exposureNanos, int iso, int afState, int aeState) {
+        int dropped = 0;
+        if (mFrames > 0) {
+            long interval = timestampNanos - mLastTimestamp;
+            long expected = frameDurationNanos > 0 ? frameDurationNanos : mLastInterval;
+            if (interval <= 0) {
+                // Out of order or a duplicate, it says nothing about the pace.
+            } else if (expected > 0 && interval * 2 > expected * 3) {
+                dropped = (int) Math.max(1, (interval + expected / 2) / expected - 1);
+                mDroppedFrames += dropped;
+                mDropEvents++;
+            } else {
+                if (expected > 0) {
+                    long jitter = Math.abs(interval - expected);
+                    mJitterTotalNanos += jitter;
+                    mJitterMaxNanos = Math.max(mJitterMaxNanos, jitter);
+                    mIntervals++;
+                }
+                mLastInterval = interval;
+            }
+        }
+        mFrames++;
+        mLastTimestamp = timestampNanos;
+
+        int index = mNext;
+        mFrameNumbers[index] = frameNumber;
+        mTimestamps[index] = timestampNanos;
+        mFrameDurations[index] = frameDurationNanos;
+        mExposureTimes[index] = exposureNanos;
+        mIsos[index] = iso;
+        mAfStates[index] = afState;
+        mAeStates[index] = aeState;
+        mDropped[index] = dropped;
+        mNext = (index + 1) % mTimestamps.length;
+        mSize = Math.min(mSize + 1, mTimestamps.length);
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Frames per second over the newest frames, 0 with less than two frames.
+     */
+    public synchronized double getFps() {
+        int frames = Math.min(mSize, FPS_FRAMES);
+        if (frames < 2) {
+            return 0;
+        }
+        long newest = mTimestamps[indexOf(mSize - 1)];
+        long oldest = mTimestamps[indexOf(mSize - frames)];
+        return newest > oldest ? (frames - 1) * 1e9 / (newest - oldest) : 0;
+    }
+
+    public synchronized long getFrames() {
+        return mFrames;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public synchronized long getDropEvents() {
+        return mDropEvents;
+    }
+
+    public synchronized double getMeanJitterMillis() {
+        return mIntervals == 0 ? 0 : mJitterTotalNanos / 1e6 / mIntervals;
+    }
+
+    public synchronized double getMaxJitterMillis() {
+        return mJitterMaxNanos / 1e6;
+    }
+
+    /**
+     * Forgets the frames and the metrics, e.g. when a new session starts.
+     */
+    public synchronized void reset() {
+        mNext = 0;
+        mSize = 0;
+        mFrames = 0;
+        mDroppedFrames = 0;
+        mDropEvents = 0;
+        mIntervals = 0;
+        mJitterTotalNanos = 0;
+        mJitterMaxNanos = 0;
+        mLastTimestamp = 0;
+        mLastInterval = 0;
+    }
+
+    /**
+     * Writes the frames in the ring, oldest first, one per line with a header. The rows are
+     * formatted under the lock and written after it, so a slow writer doesn't hold the camera
+     * thread.
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder(
+                "frame,timestamp_ns,interval_ns,frame_duration_ns,exposure_ns,iso,af_state,"
+                        + "ae_state,dropped\n");
+        synchronized (this) {
+            for (int i = 0; i < mSize; i++) {
+                int index = indexOf(i);
+                long interval = i == 0 ? 0 : mTimestamps[index] - mTimestamps[indexOf(i - 1)];
+                builder.append(mFrameNumbers[index]).append(',')
+                        .append(mTimestamps[index]).append(',')
+                        .append(interval).append(',')
+                        .append(mFrameDurations[index]).append(',')
+                        .append(mExposureTimes[index]).append(',')
+                        .append(mIsos[index]).append(',')
+                        .append(mAfStates[index]).append(',')
+                        .append(mAeStates[index]).append(',')
+                        .append(mDropped[index]).append('\n');
+            }
+        }
+        writer.write(builder.toString());
+    }
+
+    /**
+     * @param position 0 for the oldest frame in the ring.
+     */
+    private int indexOf(int position) {
+        int length = mTimestamps.length;
+        return (mNext - mSize + position + length) % length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "FrameMetadataRing{frames=%d, fps=%.1f, dropped=%d in %d drops, jitter mean=%.2f ms max=%.2f ms}",
+                mFrames, getFps(), mDroppedFrames, mDropEvents, getMeanJitterMillis(),
+                getMaxJitterMillis());
+    }
+}
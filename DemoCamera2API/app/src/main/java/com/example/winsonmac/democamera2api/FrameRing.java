@@ -0,0 +1,191 @@
+package com.example.winsonmac.democamera2api;
+
+import java.util.Locale;
+
+/**
+ * The last few frames of a stream, each with its sensor timestamp. A new frame pushes the oldest
+ * one out, which is then released.
+ * <p>
+ * {@link #take} hands out the frame closest to a given time and records how far from it the
+ * frame was, which is the press-to-frame delta of a zero shutter lag capture.
+ * <p>
+ * Not thread safe.
+ *
+ * @param <T> The frame type, e.g. an {@link android.media.Image}.
+ */
+public class FrameRing<T> {
+
+    /**
+     * Gives back what a frame holds once it leaves the ring without being taken.
+     */
+    public interface Releaser<T> {
+        void release(T frame);
+    }
+
+    private final Object[] mFrames;
+    private final long[] mTimestamps;
+    private final Releaser<T> mReleaser;
+    private int mHead;                  // Index of the oldest frame.
+    private int mSize;
+
+    // Metrics
+    private long mAdded;
+    private long mEvicted;
+    private long mTaken;
+    private long mMissed;               // Takes with no frame in the ring.
+    private long mDeltaTotalNanos;      // Absolute values.
+    private long mDeltaMaxNanos;
+    private long mLastDeltaNanos;
+
+    public FrameRing(int capacity, Releaser<T> releaser) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        mFrames = new Object[capacity];
+        mTimestamps = new long[capacity];
+        mReleaser = releaser;
+    }
+
+    /**
+     * @param budgetBytes Memory the frames may use.
+     * @param frameBytes  Size of one frame.
+     * @param reserved    Frames held outside of the ring, e.g. one being filled by the camera.
+     * @return Frames the ring can keep within the budget, 0 if not even one fits.
+     */
+    public static int capacityFor(long budgetBytes, long frameBytes, int reserved) {
+        if (frameBytes <= 0) {
+            throw new IllegalArgumentException("Frame size must be positive");
+        }
+        long frames = budgetBytes / frameBytes - reserved;
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, frames));
+    }
+
+    public int getCapacity() {
+        return mFrames.length;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds the newest frame, releasing the oldest one when the ring is full.
+     */
+    public void add(T frame, long timestampNanos) {
+        if (mSize == mFrames.length) {
+            removeOldest();
+            mEvicted++;
+        }
+        int index = (mHead + mSize) % mFrames.length;
+        mFrames[index] = frame;
+        mTimestamps[index] = timestampNanos;
+        mSize++;
+        mAdded++;
+    }
+
+    /**
+     * Releases the oldest frame, e.g. when its buffer is needed for a new one.
+     *
+     * @return false if the ring was empty.
+     */
+    public boolean releaseOldest() {
+        if (mSize == 0) {
+            return false;
+        }
+        removeOldest();
+        mEvicted++;
+        return true;
+    }
+
+    /**
+     * Removes the frame whose timestamp is closest to the given time. The caller now owns it.
+     *
+     * @return The frame, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T take(long timestampNanos) {
+        if (mSize == 0) {
+            mMissed++;
+            return null;
+        }
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            long distance = Math.abs(mTimestamps[(mHead + i) % mFrames.length] - timestampNanos);
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        int index = (mHead + best) % mFrames.length;
+        T frame = (T) mFrames[index];
+        mLastDeltaNanos = mTimestamps[index] - timestampNanos;
+        // Close the gap, the older frames move up by one.
+        for (int i = best; i > 0; i--) {
+            int to = (mHead + i) % mFrames.length;
+            int from = (mHead + i - 1) % mFrames.length;
+            mFrames[to] = mFrames[from];
+            mTimestamps[to] = mTimestamps[from];
+        }
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mSize--;
+        mTaken++;
+        mDeltaTotalNanos += bestDistance;
+        mDeltaMaxNanos = Math.max(mDeltaMaxNanos, bestDistance);
+        return frame;
+    }
+
+    /**
+     * Releases every frame.
+     */
+    public void clear() {
+        while (mSize > 0) {
+            removeOldest();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void removeOldest() {
+        T frame = (T) mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mSize--;
+        mReleaser.release(frame);
+    }
+
+    public long getTaken() {
+        return mTaken;
+    }
+
+    public long getMissed() {
+        return mMissed;
+    }
+
+    /**
+     * @return Timestamp of the last frame taken minus the time asked for: negative when the
+     * frame was older.
+     */
+    public long getLastDeltaNanos() {
+        return mLastDeltaNanos;
+    }
+
+    /**
+     * @return Mean distance between the time asked for and the frame taken, in milliseconds.
+     */
+    public double getMeanDeltaMillis() {
+        return mTaken == 0 ? 0 : mDeltaTotalNanos / 1e6 / mTaken;
+    }
+
+    public double getMaxDeltaMillis() {
+        return mDeltaMaxNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Ring %d/%d: %d added, %d evicted, %d taken, %d missed, press to frame mean %.1f ms, max %.1f ms",
+                mSize, mFrames.length, mAdded, mEvicted, mTaken, mMissed, getMeanDeltaMillis(),
+                getMaxDeltaMillis());
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.winsonmac.democamera2api;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers the saved pictures in the media store in batches, with what is known about them when
+ * they are saved.
+ * <p>
+ * A scanner broadcast per file makes the media scanner open and parse every JPEG we have just
+ * written, one at a time. Here the pictures are collected and inserted together once a batch is
+ * full, or once the flush interval has passed since the first picture of the batch, on a
+ * background thread.
+ */
+public class GalleryRegistrar {
+
+    private static final String THREAD_NAME = "GalleryRegistrar";
+
+    /**
+     * A saved picture.
+     */
+    public static class Entry {
+        private final File mFile;
+        private final String mMimeType;
+        private final long mSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mOrientation;
+        private final long mDateTaken;
+
+        /**
+         * @param size        Bytes written.
+         * @param width       Width of the stored pixels, 0 if unknown.
+         * @param height      Height of the stored pixels, 0 if unknown.
+         * @param orientation Clockwise rotation a viewer has to apply, in degrees.
+         * @param dateTaken   Wall clock time of the shot, in milliseconds.
+         */
+        public Entry(File file, String mimeType, long size, int width, int height,
+                     int orientation, long dateTaken) {
+            mFile = file;
+            mMimeType = mimeType;
+            mSize = size;
+            mWidth = width;
+            mHeight = height;
+            mOrientation = orientation;
+            mDateTaken = dateTaken;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        public long getDateTaken() {
+            return mDateTaken;
+        }
+    }
+
+    /**
+     * Stores a batch, on the registrar's thread.
+     */
+    public interface Inserter {
+        /**
+         * @return The number of pictures registered.
+         */
+        int insert(List<Entry> batch) throws Exception;
+    }
+
+    private final Inserter mInserter;
+    private final int mBatchSize;
+    private final long mFlushIntervalMillis;
+    private final ScheduledExecutorService mExecutor;
+
+    // Guarded by this
+    private List<Entry> mPending = new ArrayList<>();
+    private boolean mFlushScheduled;
+    private boolean mClosed;
+    private long mBatches;
+    private long mInserted;
+    private long mFailed;
+    private long mRegisterNanos;
+    private long mMaxRegisterNanos;
+    private Exception mLastFailure;
+
+    /**
+     * @param batchSize           Pictures inserted together at most, a full batch is inserted at
+     *                            once.
+     * @param flushIntervalMillis Longest time a picture waits for its batch to fill.
+     */
+    public GalleryRegistrar(Inserter inserter, int batchSize, long flushIntervalMillis) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        mInserter = inserter;
+        mBatchSize = batchSize;
+        mFlushIntervalMillis = flushIntervalMillis;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, THREAD_NAME);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+    }
+
+    /**
+     * @return Inserts the batches into {@link MediaStore.Images.Media#EXTERNAL_CONTENT_URI} with a
+     * single {@link ContentResolver#bulkInsert} each.
+     */
+    public static Inserter mediaStore(final ContentResolver resolver) {
+        return new Inserter() {
+            @Override
+            public int insert(List<Entry> batch) {
+                ContentValues[] values = new ContentValues[batch.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = toValues(batch.get(i));
+                }
+                return resolver.bulkInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            }
+        };
+    }
+
+    private static ContentValues toValues(Entry entry) {
+        ContentValues values = new ContentValues();
+        String name = entry.getFile().getName();
+        int dot = name.lastIndexOf('.');
+        values.put(MediaStore.Images.Media.DATA, entry.getFile().getAbsolutePath());
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, name);
+        values.put(MediaStore.Images.Media.TITLE, dot > 0 ? name.substring(0, dot) : name);
+        values.put(MediaStore.Images.Media.MIME_TYPE, entry.getMimeType());
+        values.put(MediaStore.Images.Media.SIZE, entry.getSize());
+        if (entry.getWidth() > 0 && entry.getHeight() > 0) {
+            values.put(MediaStore.Images.Media.WIDTH, entry.getWidth());
+            values.put(MediaStore.Images.Media.HEIGHT, entry.getHeight());
+        }
+        values.put(MediaStore.Images.Media.ORIENTATION, entry.getOrientation());
+        values.put(MediaStore.Images.Media.DATE_TAKEN, entry.getDateTaken());
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(entry.getDateTaken());
+        values.put(MediaStore.Images.Media.DATE_ADDED, seconds);
+        values.put(MediaStore.Images.Media.DATE_MODIFIED, seconds);
+        return values;
+    }
+
+    /**
+     * Queues a saved picture, from any thread.
+     *
+     * @return false once closed, the picture is not registered then.
+     */
+    public synchronized boolean add(Entry entry) {
+        if (mClosed) {
+            return false;
+        }
+        mPending.add(entry);
+        if (mPending.size() >= mBatchSize) {
+            submitFlush(0);
+        } else if (!mFlushScheduled) {
+            submitFlush(mFlushIntervalMillis);
+        }
+        return true;
+    }
+
+    /**
+     * Inserts what is queued without waiting for the batch to fill, e.g. when the app goes to
+     * the background.
+     */
+    public synchronized void flush() {
+        if (!mClosed && !mPending.isEmpty()) {
+            submitFlush(0);
+        }
+    }
+
+    /**
+     * Inserts what is queued and stops the thread.
+     *
+     * @return false if the last batch was not inserted in time.
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            if (mClosed) {
+                return true;
+            }
+            mClosed = true;
+            final List<Entry> batch = takePending();
+            if (!batch.isEmpty()) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        insert(batch);
+                    }
+                });
+            }
+        }
+        mExecutor.shutdown();
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void submitFlush(long delayMillis) {
+        mFlushScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> batch;
+                synchronized (GalleryRegistrar.this) {
+                    batch = takePending();
+                }
+                if (!batch.isEmpty()) {
+                    insert(batch);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Must hold this.
+     */
+    private List<Entry> takePending() {
+        List<Entry> batch = mPending;
+        mPending = new ArrayList<>();
+        mFlushScheduled = false;
+        return batch;
+    }
+
+    /**
+     * Runs on the registrar's thread, in batches of at most the batch size.
+     */
+    private void insert(List<Entry> entries) {
+        for (int from = 0; from < entries.size(); from += mBatchSize) {
+            List<Entry> batch = entries.subList(from, Math.min(entries.size(), from + mBatchSize));
+            long start = System.nanoTime();
+            int inserted = 0;
+            Exception failure = null;
+            try {
+                inserted = mInserter.insert(batch);
+            } catch (Exception e) {
+                failure = e;
+            }
+            long nanos = System.nanoTime() - start;
+            synchronized (this) {
+                if (null != failure) {
+                    mLastFailure = failure;
+                }
+                mBatches++;
+                mInserted += inserted;
+                mFailed += batch.size() - inserted;
+                mRegisterNanos += nanos;
+                mMaxRegisterNanos = Math.max(mMaxRegisterNanos, nanos);
+            }
+        }
+    }
+
+    public synchronized long getBatches() {
+        return mBatches;
+    }
+
+    public synchronized long getInserted() {
+        return mInserted;
+    }
+
+    public synchronized long getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return Why the last batch which could not be inserted failed, null if none did.
+     */
+    public synchronized Exception getLastFailure() {
+        return mLastFailure;
+    }
+
+    public synchronized double getInsertsPerBatch() {
+        return mBatches == 0 ? 0 : (double) mInserted / mBatches;
+    }
+
+    public synchronized long getRegisterMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mRegisterNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "GalleryRegistrar{batches=%d, inserted=%d, failed=%d, per batch=%.1f, "
+                        + "registering=%d ms, max batch=%.1f ms, pending=%d, last failure=%s}",
+                mBatches, mInserted, mFailed, getInsertsPerBatch(),
+                TimeUnit.NANOSECONDS.toMillis(mRegisterNanos), mMaxRegisterNanos / 1e6,
+                mPending.size(), mLastFailure);
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the JPEG the camera made into the bytes of the saved file. The save paths take the
+ * encoder of the capture profile in use, see {@link ImageEncoders}.
+ * <p>
+ * The encoders keep nothing between pictures, one may encode on several threads at once.
+ */
+public interface ImageEncoder {
+
+    /**
+     * @return Short name, for the logs and the benchmark.
+     */
+    String getName();
+
+    /**
+     * @return The MIME type of the output, or null if no viewer opens it. Such a file is not
+     * registered in the media store.
+     */
+    String getMimeType();
+
+    /**
+     * @return Extension of the files, with its dot.
+     */
+    String getExtension();
+
+    /**
+     * @return true if the output is the camera's JPEG itself. The save paths then write it on
+     * their own, with its EXIF and without any copy, and never call {@link #encode}.
+     */
+    boolean isPassthrough();
+
+    /**
+     * @param jpeg    The camera's JPEG, read from its position to its limit. The buffer is not
+     *                modified.
+     * @param degrees Clockwise rotation to apply to the pixels, the output has no tag for it.
+     * @param out     Where the output goes, left open.
+     * @return Bytes written.
+     * @throws IOException If the JPEG can't be decoded or the output can't be written.
+     */
+    long encode(ByteBuffer jpeg, int degrees, OutputStream out) throws IOException;
+}
@@ -0,0 +1,73 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A picture file being written by the I/O stage: the bytes go to the file's channel, then are
+ * synced to the storage.
+ * <p>
+ * Only the writes and the sync are timed. That is the speed of the storage the
+ * {@link QualityGovernor} has to keep the pictures under; the encoding is done before, on its own
+ * stage, and the page cache would take the bytes far faster than the card without the sync.
+ */
+public class PictureFile implements Closeable {
+
+    private final FileOutputStream mOutput;
+    private final long mStartNanos;
+    private long mBytes;
+
+    public PictureFile(File file) throws IOException {
+        mOutput = new FileOutputStream(file);
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * A direct buffer, such as a JPEG plane, is handed to the kernel without being copied into a
+     * heap array first.
+     *
+     * @param data From its position to its limit, left unchanged.
+     * @param exif Merged into the JPEG's EXIF in the same pass, null to write the bytes as they
+     *             are.
+     * @return The number of bytes written.
+     */
+    public long write(ByteBuffer data, ExifBuilder exif) throws IOException {
+        FileChannel channel = mOutput.getChannel();
+        long written;
+        if (null != exif) {
+            written = exif.write(data, channel);
+        } else {
+            ByteBuffer source = data.duplicate();
+            written = source.remaining();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+        mBytes += written;
+        return written;
+    }
+
+    /**
+     * @return How long the writes and the sync took since the file was opened.
+     */
+    public long sync() throws IOException {
+        mOutput.getFD().sync();
+        return System.nanoTime() - mStartNanos;
+    }
+
+    /**
+     * @return Bytes written so far.
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.winsonmac.democamera2api;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed pool of named threads with a bounded queue, for one stage of the picture pipeline,
+ * which measures how long the tasks wait in the queue and how long they run.
+ * <p>
+ * When the queue is full the submitting thread runs the task itself, which slows the producer
+ * down instead of dropping a picture. Those runs are counted, a stage showing them needs a
+ * bigger queue or more threads.
+ */
+public class StageExecutor implements Executor {
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private int mQueued;
+    private int mMaxQueued;
+    private long mQueuedBytes;          // Bytes of the tasks submitted and not finished.
+    private long mCompleted;
+    private long mCallerRuns;
+    private long mWaitTotalNanos;
+    private long mWaitMaxNanos;
+    private long mRunTotalNanos;
+    private long mRunMaxNanos;
+
+    /**
+     * @param name     Name of the stage and of its threads.
+     * @param threads  Number of threads.
+     * @param capacity Tasks that may wait for a thread.
+     * @param priority {@link Thread} priority of the threads.
+     */
+    public StageExecutor(final String name, int threads, int capacity, final int priority) {
+        mName = name;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + mCount++);
+                thread.setPriority(priority);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException(mName + " is shut down");
+                }
+                synchronized (mLock) {
+                    mCallerRuns++;
+                }
+                runnable.run();
+            }
+        });
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @throws RejectedExecutionException once {@link #shutdown()} has been called.
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(task, 0);
+    }
+
+    /**
+     * @param bytes What the task carries, counted in {@link #getQueuedBytes()} until it is done.
+     * @throws RejectedExecutionException once {@link #shutdown()} has been called.
+     */
+    public void execute(final Runnable task, final long bytes) {
+        final long queuedNanos = System.nanoTime();
+        synchronized (mLock) {
+            mQueuedBytes += bytes;
+            mQueued++;
+            mMaxQueued = Math.max(mMaxQueued, mQueued);
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    synchronized (mLock) {
+                        mQueued--;
+                        long wait = start - queuedNanos;
+                        mWaitTotalNanos += wait;
+                        mWaitMaxNanos = Math.max(mWaitMaxNanos, wait);
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        long run = System.nanoTime() - start;
+                        synchronized (mLock) {
+                            mQueuedBytes -= bytes;
+                            mCompleted++;
+                            mRunTotalNanos += run;
+                            mRunMaxNanos = Math.max(mRunMaxNanos, run);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (mLock) {
+                mQueuedBytes -= bytes;
+                mQueued--;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Takes no new task, the queued ones still run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return false if some tasks were still running after the timeout.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return Tasks submitted and not started yet.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueued;
+        }
+    }
+
+    /**
+     * @return Bytes of the tasks submitted and not finished, the running ones included.
+     */
+    public long getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueued;
+        }
+    }
+
+    public long getCompleted() {
+        synchronized (mLock) {
+            return mCompleted;
+        }
+    }
+
+    /**
+     * @return Tasks run by the submitting thread because the queue was full.
+     */
+    public long getCallerRuns() {
+        synchronized (mLock) {
+            return mCallerRuns;
+        }
+    }
+
+    /**
+     * @return Mean time from the submission to the start of a task, in milliseconds.
+     */
+    public double getMeanWaitMillis() {
+        synchronized (mLock) {
+            return mCompleted == 0 ? 0 : mWaitTotalNanos / 1e6 / mCompleted;
+        }
+    }
+
+    public double getMaxWaitMillis() {
+        synchronized (mLock) {
+            return mWaitMaxNanos / 1e6;
+        }
+    }
+
+    public double getMeanRunMillis() {
+        synchronized (mLock) {
+            return mCompleted == 0 ? 0 : mRunTotalNanos / 1e6 / mCompleted;
+        }
+    }
+
+    public double getMaxRunMillis() {
+        synchronized (mLock) {
+            return mRunMaxNanos / 1e6;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return String.format(Locale.US,
+                    "%s: %d done, queue %d (max %d), %d run by caller, wait mean %.1f ms max %.1f ms, "
+                            + "run mean %.1f ms max %.1f ms",
+                    mName, mCompleted, mQueued, mMaxQueued, mCallerRuns, getMeanWaitMillis(),
+                    getMaxWaitMillis(), getMeanRunMillis(), getMaxRunMillis());
+        }
+    }
+}
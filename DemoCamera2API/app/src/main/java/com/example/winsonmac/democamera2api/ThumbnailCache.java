@@ -0,0 +1,345 @@
+package com.example.winsonmac.democamera2api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The thumbnails of the pictures, in two tiers: the most recently used ones in memory, and every
+ * one that fits in a single pack file mapped in memory, so none needs decoding the JPEG again or
+ * a file of its own.
+ * <p>
+ * The thumbnails are put while the picture is still in memory, on the save path. The memory tier
+ * evicts the least recently used ones beyond its size. The pack is written as a ring: once full,
+ * writing starts over from the beginning and the oldest thumbnails are overwritten. Every record
+ * carries the lap it was written in, which tells the ones overwritten by the current lap apart
+ * without scanning the pack.
+ * <p>
+ * The pixels are ARGB, as {@code Bitmap.createBitmap(int[], int, int, Bitmap.Config.ARGB_8888)}
+ * takes them.
+ */
+public class ThumbnailCache {
+
+    public static final long NO_OFFSET = -1;
+
+    private static final int MAGIC = 0x54484D42;            // "THMB"
+    private static final int RECORD_MAGIC = 0x54484D52;     // "THMR"
+    private static final int VERSION = 1;
+    /**
+     * Magic, version, lap and write position.
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * Magic, lap, id, width and height.
+     */
+    private static final int RECORD_HEADER_SIZE = 24;
+
+    /**
+     * The pixels of a thumbnail.
+     */
+    public static class Thumbnail {
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mPixels;
+
+        public Thumbnail(int width, int height, int[] pixels) {
+            if (width <= 0 || height <= 0 || pixels.length < width * height) {
+                throw new IllegalArgumentException("Invalid thumbnail size");
+            }
+            mWidth = width;
+            mHeight = height;
+            mPixels = pixels;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int[] getPixels() {
+            return mPixels;
+        }
+
+        public int getByteCount() {
+            return mWidth * mHeight * 4;
+        }
+    }
+
+    private final long mMaxMemoryBytes;
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mPack;
+    private final int mCapacity;
+
+    // Guarded by this
+    private final LinkedHashMap<Long, Thumbnail> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Integer> mOffsets = new HashMap<>();
+    private long mMemoryBytes;
+    private int mLap;
+    private int mWritePosition;
+
+    // Metrics, guarded by this
+    private long mMemoryHits;
+    private long mPackHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mPrefetched;
+    private long mWraps;
+
+    /**
+     * Maps the pack, or creates it.
+     *
+     * @param pack        The pack file.
+     * @param packBytes   Size of the pack.
+     * @param memoryBytes Size of the thumbnails kept in memory.
+     */
+    public static ThumbnailCache open(File pack, int packBytes, long memoryBytes)
+            throws IOException {
+        if (packBytes < HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Pack too small");
+        }
+        RandomAccessFile file = new RandomAccessFile(pack, "rw");
+        try {
+            return new ThumbnailCache(file, packBytes, memoryBytes);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private ThumbnailCache(RandomAccessFile file, int packBytes, long memoryBytes)
+            throws IOException {
+        mFile = file;
+        mCapacity = packBytes;
+        mMaxMemoryBytes = memoryBytes;
+        boolean fresh = file.length() != packBytes;
+        if (fresh) {
+            file.setLength(packBytes);
+        }
+        mPack = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, packBytes);
+        mLap = mPack.getInt(8);
+        mWritePosition = mPack.getInt(12);
+        if (fresh || mPack.getInt(0) != MAGIC || mPack.getInt(4) != VERSION
+                || mWritePosition < HEADER_SIZE || mWritePosition > mCapacity) {
+            // The records of an earlier lap 0 don't exist, nothing is valid.
+            mLap = 1;
+            mWritePosition = HEADER_SIZE;
+            mPack.putInt(0, MAGIC).putInt(4, VERSION);
+            writeCursor();
+        }
+    }
+
+    /**
+     * Keeps a thumbnail in memory and writes it to the pack.
+     *
+     * @return Where it is in the pack, to find it after a restart, or {@link #NO_OFFSET} if it is
+     * bigger than the pack.
+     */
+    public synchronized long put(long id, Thumbnail thumbnail) {
+        keep(id, thumbnail);
+        int size = RECORD_HEADER_SIZE + thumbnail.getByteCount();
+        if (size > mCapacity - HEADER_SIZE) {
+            return NO_OFFSET;
+        }
+        if (mWritePosition + size > mCapacity) {
+            // Starts over, the records of the lap before the last one are gone.
+            mLap++;
+            mWritePosition = HEADER_SIZE;
+            mWraps++;
+        }
+        int offset = mWritePosition;
+        ByteBuffer pixels = mPack.duplicate();
+        pixels.position(offset + RECORD_HEADER_SIZE);
+        pixels.asIntBuffer().put(thumbnail.getPixels(), 0,
+                thumbnail.getWidth() * thumbnail.getHeight());
+        mPack.putInt(offset + 4, mLap)
+                .putLong(offset + 8, id)
+                .putInt(offset + 16, thumbnail.getWidth())
+                .putInt(offset + 20, thumbnail.getHeight())
+                .putInt(offset, RECORD_MAGIC);
+        mWritePosition += size;
+        writeCursor();
+        mOffsets.put(id, offset);
+        return offset;
+    }
+
+    /**
+     * @param offset Where it was put in the pack, {@link #NO_OFFSET} if unknown. Only needed for
+     *               thumbnails put before the cache was opened.
+     * @return The thumbnail, or null if it is in neither tier.
+     */
+    public synchronized Thumbnail get(long id, long offset) {
+        Thumbnail thumbnail = mMemory.get(id);
+        if (null != thumbnail) {
+            mMemoryHits++;
+            return thumbnail;
+        }
+        thumbnail = load(id, offset);
+        if (null != thumbnail) {
+            mPackHits++;
+            keep(id, thumbnail);
+        } else {
+            mMisses++;
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Brings the thumbnails around a position of a list into memory, nearest first, e.g. the
+     * ones about to be scrolled to.
+     *
+     * @return How many were read from the pack.
+     */
+    public synchronized int prefetch(List<CaptureCatalog.Entry> entries, int position,
+                                     int radius) {
+        int loaded = prefetch(entries, position);
+        for (int distance = 1; distance <= radius; distance++) {
+            loaded += prefetch(entries, position + distance);
+            loaded += prefetch(entries, position - distance);
+        }
+        mPrefetched += loaded;
+        return loaded;
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return 1 if the thumbnail was read from the pack.
+     */
+    private int prefetch(List<CaptureCatalog.Entry> entries, int index) {
+        if (index < 0 || index >= entries.size()) {
+            return 0;
+        }
+        CaptureCatalog.Entry entry = entries.get(index);
+        if (mMemory.containsKey(entry.getId())) {
+            return 0;
+        }
+        Thumbnail thumbnail = load(entry.getId(), entry.getThumbnailOffset());
+        if (null == thumbnail) {
+            return 0;
+        }
+        keep(entry.getId(), thumbnail);
+        return 1;
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void keep(long id, Thumbnail thumbnail) {
+        Thumbnail previous = mMemory.put(id, thumbnail);
+        if (null != previous) {
+            mMemoryBytes -= previous.getByteCount();
+        }
+        mMemoryBytes += thumbnail.getByteCount();
+        Iterator<Thumbnail> eldest = mMemory.values().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && eldest.hasNext()) {
+            mMemoryBytes -= eldest.next().getByteCount();
+            eldest.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return The thumbnail read from the pack, or null if it is not there anymore.
+     */
+    private Thumbnail load(long id, long hint) {
+        Integer known = mOffsets.get(id);
+        long offset = null != known ? known : hint;
+        if (offset < HEADER_SIZE || offset > mCapacity - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int position = (int) offset;
+        int lap = mPack.getInt(position + 4);
+        // Written in this lap behind the cursor, or in the last lap ahead of it.
+        boolean current = lap == mLap && position < mWritePosition;
+        boolean previous = lap == mLap - 1 && position >= mWritePosition;
+        if (mPack.getInt(position) != RECORD_MAGIC || !(current || previous)
+                || mPack.getLong(position + 8) != id) {
+            mOffsets.remove(id);
+            return null;
+        }
+        int width = mPack.getInt(position + 16);
+        int height = mPack.getInt(position + 20);
+        if (width <= 0 || height <= 0
+                || (long) width * height * 4 > mCapacity - position - RECORD_HEADER_SIZE) {
+            mOffsets.remove(id);
+            return null;
+        }
+        int[] pixels = new int[width * height];
+        ByteBuffer buffer = mPack.duplicate();
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.asIntBuffer().get(pixels);
+        mOffsets.put(id, position);
+        return new Thumbnail(width, height, pixels);
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void writeCursor() {
+        mPack.putInt(8, mLap).putInt(12, mWritePosition);
+    }
+
+    /**
+     * Drops the memory tier, e.g. when the system runs low on memory.
+     */
+    public synchronized void trimMemory() {
+        mEvictions += mMemory.size();
+        mMemory.clear();
+        mMemoryBytes = 0;
+    }
+
+    /**
+     * Writes the pack to disk, the system does it on its own otherwise.
+     */
+    public synchronized void flush() {
+        mPack.force();
+    }
+
+    public synchronized void close() throws IOException {
+        mPack.force();
+        mFile.close();
+    }
+
+    public synchronized long getMemoryHits() {
+        return mMemoryHits;
+    }
+
+    public synchronized long getPackHits() {
+        return mPackHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "ThumbnailCache{memory=%d (%d KB), hits=%d memory + %d pack, misses=%d, "
+                        + "evictions=%d, prefetched=%d, pack lap=%d at %d KB of %d KB, wraps=%d}",
+                mMemory.size(), mMemoryBytes / 1024, mMemoryHits, mPackHits, mMisses,
+                mEvictions, mPrefetched, mLap, mWritePosition / 1024, mCapacity / 1024, mWraps);
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.winsonmac.democamera2api;
+
+import java.util.Locale;
+
+/**
+ * Turns pinch input into crop region updates, at most one per preview frame.
+ * <p>
+ * The UI thread only moves the target with {@link #setTarget}. For every frame the camera
+ * delivers, {@link #onFrame} moves the current zoom part of the way to the target and tells
+ * whether the crop changed, in which case the caller submits one new repeating request. Touch
+ * events arriving between two frames are folded into a single update that way.
+ * <p>
+ * The crop rectangles, in active array coordinates, are computed once for every zoom step.
+ */
+public class ZoomController {
+
+    /**
+     * Zoom difference between two precomputed crops.
+     */
+    static final float STEP = 0.01f;
+
+    /**
+     * Part of the remaining distance to the target covered at each frame.
+     */
+    private static final float SMOOTHING = 0.35f;
+
+    private final float mMaxZoom;
+    private final int[][] mCrops;
+
+    private float mTarget = 1f;
+    private float mCurrent = 1f;
+    private int mIndex;
+
+    // Metrics
+    private long mTargetUpdates;
+    private long mRequests;
+    private long mFirstRequestNanos;
+    private long mLastRequestNanos;
+    private long mTargetNanos;          // When the target was last changed, 0 once it was shown.
+    private long mLatencySamples;
+    private long mLatencyTotalNanos;
+    private long mLatencyMaxNanos;
+
+    /**
+     * @param activeWidth  Width of SENSOR_INFO_ACTIVE_ARRAY_SIZE.
+     * @param activeHeight Height of SENSOR_INFO_ACTIVE_ARRAY_SIZE.
+     * @param maxZoom      SCALER_AVAILABLE_MAX_DIGITAL_ZOOM.
+     */
+    public ZoomController(int activeWidth, int activeHeight, float maxZoom) {
+        mMaxZoom = Math.max(1f, maxZoom);
+        int count = Math.round((mMaxZoom - 1f) / STEP) + 1;
+        mCrops = new int[count][];
+        for (int i = 0; i < count; i++) {
+            float ratio = 1f / (1f + i * STEP);
+            // The pixels cropped away on each axis
+            int croppedWidth = activeWidth - Math.round(activeWidth * ratio);
+            int croppedHeight = activeHeight - Math.round(activeHeight * ratio);
+            mCrops[i] = new int[]{croppedWidth / 2, croppedHeight / 2,
+                    activeWidth - croppedWidth / 2, activeHeight - croppedHeight / 2};
+        }
+    }
+
+    public float getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    public int getCropCount() {
+        return mCrops.length;
+    }
+
+    /**
+     * @return Left, top, right and bottom of the crop of the given step.
+     */
+    public int[] getCrop(int index) {
+        return mCrops[index];
+    }
+
+    /**
+     * @return The step of the crop last returned by {@link #onFrame}.
+     */
+    public synchronized int getCropIndex() {
+        return mIndex;
+    }
+
+    public synchronized float getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Moves the target, clamped to the supported range. Called for every touch event.
+     */
+    public synchronized void setTarget(float zoom, long nowNanos) {
+        zoom = Math.max(1f, Math.min(mMaxZoom, zoom));
+        mTargetUpdates++;
+        if (zoom != mTarget) {
+            mTarget = zoom;
+            if (mTargetNanos == 0) {
+                mTargetNanos = nowNanos;
+            }
+        }
+    }
+
+    /**
+     * A preview frame has been delivered: moves the current zoom toward the target.
+     *
+     * @return true if the crop has changed and one request has to be submitted with it.
+     */
+    public synchronized boolean onFrame(long nowNanos) {
+        if (mCurrent == mTarget) {
+            return false;
+        }
+        float distance = mTarget - mCurrent;
+        if (Math.abs(distance) * SMOOTHING < STEP / 2) {
+            mCurrent = mTarget;
+        } else {
+            mCurrent += distance * SMOOTHING;
+        }
+        int index = Math.round((mCurrent - 1f) / STEP);
+        index = Math.max(0, Math.min(mCrops.length - 1, index));
+        if (index == mIndex) {
+            return false;
+        }
+        mIndex = index;
+        if (mRequests == 0) {
+            mFirstRequestNanos = nowNanos;
+        }
+        mRequests++;
+        mLastRequestNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * A frame has come back from a request made with the given crop step.
+     */
+    public synchronized void onCropShown(int index, long nowNanos) {
+        if (mTargetNanos != 0 && mCurrent == mTarget && index == mIndex) {
+            long latency = nowNanos - mTargetNanos;
+            mLatencySamples++;
+            mLatencyTotalNanos += latency;
+            mLatencyMaxNanos = Math.max(mLatencyMaxNanos, latency);
+            mTargetNanos = 0;
+        }
+    }
+
+    public synchronized long getTargetUpdates() {
+        return mTargetUpdates;
+    }
+
+    public synchronized long getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return Crop updates submitted per second, from the first to the last one.
+     */
+    public synchronized double getRequestsPerSecond() {
+        long elapsed = mLastRequestNanos - mFirstRequestNanos;
+        return mRequests < 2 || elapsed <= 0 ? 0 : (mRequests - 1) * 1e9 / elapsed;
+    }
+
+    /**
+     * @return Mean time from a target change to the frame showing it, in milliseconds.
+     */
+    public synchronized double getMeanLatencyMillis() {
+        return mLatencySamples == 0 ? 0 : mLatencyTotalNanos / 1e6 / mLatencySamples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Zoom %.2fx: %d touch updates, %d requests (%.1f/s), zoom to frame mean %.0f ms, max %.0f ms",
+                mCurrent, mTargetUpdates, mRequests, getRequestsPerSecond(), getMeanLatencyMillis(),
+                mLatencyMaxNanos / 1e6);
+    }
+}
@@ -0,0 +1,329 @@
+package com.example.winsonmac.democamera2api;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zero shutter lag: a full resolution YUV_420_888 output of the repeating request, whose last
+ * frames are kept in a {@link FrameRing}. A shutter press takes the frame exposed closest to the
+ * press and encodes it to JPEG on the stage's own thread, the repeating request is never stopped.
+ * The file is written by the given I/O executor, with the EXIF tags of the picture.
+ * <p>
+ * The JPEG is taken at the {@link QualityGovernor}'s quality, and its write is reported to it as
+ * the other pictures' are. The rotation is only recorded in the EXIF orientation: turning the
+ * pixels would take a second encode of every shot.
+ * <p>
+ * The reader holds the ring plus {@link #RESERVED_IMAGES} images, all of them counted in the
+ * memory budget.
+ */
+public class ZslStage implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "ZslStage";
+
+    /**
+     * Images outside of the ring: one being filled by the camera, one being encoded.
+     */
+    static final int RESERVED_IMAGES = 2;
+
+    /**
+     * Notified on the encoding and I/O threads.
+     */
+    public interface Callback {
+        /**
+         * The thumbnail is ready, the file write has not started yet.
+         */
+        void onThumbnailReady(File file, Bitmap thumbnail);
+
+        /**
+         * The file is written, or failed to be.
+         *
+         * @param degrees Clockwise rotation the viewers have to apply, as in the EXIF.
+         */
+        void onImageSaved(File file, int degrees, boolean success);
+    }
+
+    private final ImageReader mReader;
+    private final int mMaxImages;
+    private final int mThumbnailSize;
+    private final ExecutorService mExecutor;
+    private final StageExecutor mIoExecutor;
+    private final QualityGovernor mGovernor;
+    private final YuvConverter mConverter = new YuvConverter(1);
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private final FrameRing<Image> mRing;
+    private int mEncoding;              // Images taken and not closed yet.
+    private int mWaiting;               // Frames left in the reader while every image was held.
+    private boolean mClosed;
+    private long mTimestampOffset = Long.MIN_VALUE;
+
+    private long mEncodeTotalNanos;
+    private long mEncodes;
+
+    // Encoding thread only
+    private byte[] mNv21;
+
+    /**
+     * @param size          Size of the frames, usually the largest YUV_420_888 size.
+     * @param capacity      Frames kept in the ring, see {@link #getCapacity}.
+     * @param thumbnailSize Size of the thumbnails made for the callback, 0 for none.
+     * @param handler       Thread receiving the reader callbacks, usually the camera thread.
+     * @param ioExecutor    Where the files are written.
+     * @param governor      Gives the JPEG quality, and is told how long the writes take.
+     */
+    public ZslStage(Size size, int capacity, int thumbnailSize, Handler handler,
+                    StageExecutor ioExecutor, QualityGovernor governor) {
+        mIoExecutor = ioExecutor;
+        mGovernor = governor;
+        mMaxImages = capacity + RESERVED_IMAGES;
+        mThumbnailSize = thumbnailSize;
+        mRing = new FrameRing<>(capacity, new FrameRing.Releaser<Image>() {
+            @Override
+            public void release(Image frame) {
+                frame.close();
+            }
+        });
+        mReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, mMaxImages);
+        mReader.setOnImageAvailableListener(this, handler);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "ZslEncode");
+            }
+        });
+    }
+
+    /**
+     * @param budgetBytes Memory the reader's buffers may use.
+     * @return Frames the ring can keep for frames of the given size, 0 if ZSL doesn't fit.
+     */
+    public static int getCapacity(Size size, long budgetBytes) {
+        long frameBytes = (long) YuvConverter.getNv21Size(size.getWidth(), size.getHeight());
+        return FrameRing.capacityFor(budgetBytes, frameBytes, RESERVED_IMAGES);
+    }
+
+    public Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    /**
+     * Tells when the exposure of a frame started, in both clocks, from
+     * CameraCaptureSession.CaptureCallback#onCaptureStarted. Needed to find the frame of a press,
+     * as the sensor clock may not be {@link System#nanoTime()}.
+     */
+    public void onCaptureStarted(long sensorTimestamp, long nowNanos) {
+        synchronized (mLock) {
+            // The callback comes a little after the exposure started, the smallest delay is the
+            // most accurate offset.
+            mTimestampOffset = Math.max(mTimestampOffset, sensorTimestamp - nowNanos);
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        synchronized (mLock) {
+            mWaiting++;
+            acquireWaiting();
+        }
+    }
+
+    /**
+     * Moves the frames waiting in the reader to the ring, keeping one image free for the camera.
+     * Must hold mLock.
+     */
+    private void acquireWaiting() {
+        while (mWaiting > 0 && !mClosed) {
+            // Make room in the reader, the frames being encoded can't be given back.
+            if (mRing.size() + mEncoding >= mMaxImages - 1) {
+                mRing.releaseOldest();
+            }
+            if (mRing.size() + mEncoding >= mMaxImages) {
+                // Every image is being encoded, the frame waits for one of them.
+                return;
+            }
+            mWaiting--;
+            Image image = mReader.acquireNextImage();
+            if (null != image) {
+                mRing.add(image, image.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Encodes the frame closest to a shutter press into a JPEG file.
+     *
+     * @param pressNanos {@link System#nanoTime()} of the press.
+     * @param rotation   Clockwise rotation of the picture, recorded in the EXIF orientation.
+     * @param exif       The tags written with the picture, its orientation is set here.
+     * @return false if there is no frame, the picture has to be captured the usual way then.
+     */
+    public boolean take(long pressNanos, final File file, final int rotation,
+                        final ExifBuilder exif, final Callback callback) {
+        final Image image;
+        synchronized (mLock) {
+            if (mClosed || mTimestampOffset == Long.MIN_VALUE) {
+                return false;
+            }
+            image = mRing.take(pressNanos + mTimestampOffset);
+            if (null == image) {
+                return false;
+            }
+            mEncoding++;
+            Log.d(TAG, String.format(Locale.US, "Press to frame %+.1f ms",
+                    mRing.getLastDeltaNanos() / 1e6));
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                encode(image, file, rotation, exif, callback);
+            }
+        });
+        return true;
+    }
+
+    private void encode(Image image, final File file, final int rotation, final ExifBuilder exif,
+                        final Callback callback) {
+        long start = System.nanoTime();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        try {
+            Image.Plane[] planes = image.getPlanes();
+            int length = YuvConverter.getNv21Size(width, height);
+            if (null == mNv21 || mNv21.length != length) {
+                mNv21 = new byte[length];
+            }
+            mConverter.toNv21(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[0].getRowStride(), planes[1].getRowStride(),
+                    planes[1].getPixelStride(), width, height, mNv21);
+        } catch (RuntimeException e) {
+            // IllegalStateException once the reader is gone.
+            Log.e(TAG, "Frame could not be read", e);
+            if (null != callback) {
+                callback.onImageSaved(file, rotation, false);
+            }
+            return;
+        } finally {
+            // The frame is copied, the camera can have the buffer back.
+            synchronized (mLock) {
+                image.close();
+                mEncoding--;
+                acquireWaiting();
+            }
+        }
+        final int quality = mGovernor.getQuality();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(mNv21.length / 4);
+        new YuvImage(mNv21, ImageFormat.NV21, width, height, new int[]{width, width})
+                .compressToJpeg(new Rect(0, 0, width, height), quality, stream);
+        final ByteBuffer jpeg = ByteBuffer.wrap(stream.toByteArray());
+
+        if (mThumbnailSize > 0 && null != callback) {
+            Bitmap thumbnail = JpegThumbnails.decode(jpeg, mThumbnailSize, rotation);
+            if (null != thumbnail) {
+                callback.onThumbnailReady(file, thumbnail);
+            }
+        }
+        exif.setOrientation(ExifBuilder.orientationForDegrees(rotation));
+        synchronized (mLock) {
+            mEncodeTotalNanos += System.nanoTime() - start;
+            mEncodes++;
+        }
+        try {
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean success = write(jpeg, file, exif, quality);
+                    if (null != callback) {
+                        callback.onImageSaved(file, rotation, success);
+                    }
+                }
+            }, jpeg.remaining());
+        } catch (RejectedExecutionException e) {
+            if (null != callback) {
+                callback.onImageSaved(file, rotation, false);
+            }
+        }
+    }
+
+    /**
+     * Runs on the I/O stage, timed and synced as the ImageSaver's writes.
+     */
+    private boolean write(ByteBuffer jpeg, File file, ExifBuilder exif, int quality) {
+        PictureFile output = null;
+        boolean success = false;
+        long size = 0;
+        long writeNanos = 0;
+        try {
+            output = new PictureFile(file);
+            size = output.write(jpeg, exif);
+            writeNanos = output.sync();
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+            }
+        }
+        if (success) {
+            // Counted by the I/O stage until this task is done.
+            mGovernor.onSaved(quality, 0, size, writeNanos,
+                    Math.max(0, mIoExecutor.getQueuedBytes() - jpeg.remaining()));
+        }
+        return success;
+    }
+
+    /**
+     * Releases the ring and the reader. The frames already taken are encoded first.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mRing.clear();
+        }
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Encoding did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mConverter.close();
+        mReader.close();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return String.format(Locale.US, "ZSL %dx%d: %s, encode mean %.0f ms",
+                    mReader.getWidth(), mReader.getHeight(), mRing,
+                    mEncodes == 0 ? 0 : mEncodeTotalNanos / 1e6 / mEncodes);
+        }
+    }
+}
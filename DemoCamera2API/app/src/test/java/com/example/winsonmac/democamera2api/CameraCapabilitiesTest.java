@@ -0,0 +1,54 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CameraCapabilities}.
+ */
+public class CameraCapabilitiesTest {
+
+    private static CameraCapabilities camera() {
+        return new CameraCapabilities("1", 0, 270, 4f, true, new int[]{0, 1, 4},
+                new int[]{0, 0, 4032, 3024}, new int[]{1920, 1080, 4032, 3024, 640, 480},
+                new int[]{1920, 1080, 1280, 720}, new int[0]);
+    }
+
+    @Test
+    public void survivesEncoding() {
+        CameraCapabilities original = camera();
+        original.putChoice("1080x1920-1080x1920", 1920, 1080);
+        CameraCapabilities decoded = CameraCapabilities.decode(original.encode());
+        assertNotNull(decoded);
+        assertEquals("1", decoded.getCameraId());
+        assertEquals(0, decoded.getFacing());
+        assertEquals(270, decoded.getSensorOrientation());
+        assertEquals(4f, decoded.getMaxZoom(), 0f);
+        assertTrue(decoded.isFlashSupported());
+        assertTrue(decoded.isAfModeSupported(4));
+        assertFalse(decoded.isAfModeSupported(3));
+        assertArrayEquals(original.getActiveArray(), decoded.getActiveArray());
+        assertArrayEquals(original.getJpegSizes(), decoded.getJpegSizes());
+        assertArrayEquals(original.getPreviewSizes(), decoded.getPreviewSizes());
+        assertEquals(0, decoded.getYuvSizes().length);
+        assertArrayEquals(new int[]{1920, 1080}, decoded.getChoice("1080x1920-1080x1920"));
+        assertNull(decoded.getChoice("other"));
+    }
+
+    @Test
+    public void findsLargestJpegSize() {
+        assertArrayEquals(new int[]{4032, 3024}, camera().getLargestJpegSize());
+    }
+
+    @Test
+    public void ignoresDamagedOrOldEntries() {
+        assertNull(CameraCapabilities.decode(null));
+        assertNull(CameraCapabilities.decode("garbage"));
+        String encoded = camera().encode();
+        assertNull(CameraCapabilities.decode(encoded.replace("version=" + CameraCapabilities.VERSION,
+                "version=0")));
+        assertNull(CameraCapabilities.decode(encoded.replace("sensorOrientation=270",
+                "sensorOrientation=x")));
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CaptureQueue}.
+ */
+public class CaptureQueueTest {
+
+    private static final File DIR = new File("build");
+
+    @Test
+    public void queuedShotStartsWhenCaptureFinishes() {
+        CaptureQueue queue = new CaptureQueue(DIR, 2, 4, CaptureQueue.Policy.QUEUE);
+        assertTrue(queue.offer());
+        // A capture sequence is running, the next press has to wait.
+        assertFalse(queue.offer());
+        assertEquals(1, queue.getPending());
+        assertTrue(queue.onCaptureFinished());
+        assertEquals(2, queue.getInFlight());
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void neverHoldsMoreShotsThanReaderSlots() {
+        CaptureQueue queue = new CaptureQueue(DIR, 2, 4, CaptureQueue.Policy.QUEUE);
+        assertTrue(queue.offer());
+        assertFalse(queue.onCaptureFinished());
+        assertTrue(queue.offer());
+        // Both slots are waiting for their file writes.
+        assertFalse(queue.onCaptureFinished());
+        assertFalse(queue.offer());
+        assertEquals(2, queue.getInFlight());
+        assertEquals(1, queue.getPending());
+        // One write is done, the queued press takes the slot.
+        assertTrue(queue.onImageSaved(true));
+        assertEquals(2, queue.getInFlight());
+        assertEquals(1, queue.getWrittenCount());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        CaptureQueue queue = new CaptureQueue(DIR, 1, 1, CaptureQueue.Policy.QUEUE);
+        assertTrue(queue.offer());
+        assertFalse(queue.offer());
+        assertFalse(queue.offer());
+        assertEquals(1, queue.getQueuedCount());
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void coalescesPresses() {
+        CaptureQueue queue = new CaptureQueue(DIR, 1, 8, CaptureQueue.Policy.COALESCE);
+        assertTrue(queue.offer());
+        assertFalse(queue.offer());
+        assertFalse(queue.offer());
+        assertFalse(queue.offer());
+        assertEquals(1, queue.getPending());
+        assertEquals(2, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void rejectPolicyDropsPresses() {
+        CaptureQueue queue = new CaptureQueue(DIR, 1, 8, CaptureQueue.Policy.REJECT);
+        assertTrue(queue.offer());
+        assertFalse(queue.offer());
+        assertEquals(0, queue.getPending());
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void failedCaptureGivesSlotBack() {
+        CaptureQueue queue = new CaptureQueue(DIR, 1, 8, CaptureQueue.Policy.QUEUE);
+        assertTrue(queue.offer());
+        assertFalse(queue.offer());
+        assertTrue(queue.onCaptureFailed());
+        assertEquals(1, queue.getInFlight());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void burstNeedsOneSlotPerFrame() {
+        CaptureQueue queue = new CaptureQueue(DIR, 4, 8, CaptureQueue.Policy.QUEUE);
+        assertFalse(queue.offerBurst(5));
+        assertTrue(queue.offerBurst(4));
+        assertEquals(4, queue.getInFlight());
+        assertFalse(queue.offer());
+        assertFalse(queue.onCaptureFinished());
+        // The queued press starts once the first burst frame is written.
+        assertTrue(queue.onImageSaved(true));
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void clearLetsTheSavesDrain() {
+        CaptureQueue queue = new CaptureQueue(DIR, 3, 8, CaptureQueue.Policy.QUEUE);
+        assertTrue(queue.offer());
+        queue.onImageReceived();
+        assertFalse(queue.onCaptureFinished());
+        assertTrue(queue.offer());
+        assertFalse(queue.offer());
+        // Closed with one image being saved, one shot without its image and one press waiting.
+        queue.clear();
+        assertEquals(1, queue.getInFlight());
+        assertEquals(0, queue.getPending());
+        // The new session counts its own shots, the old save still gives its slot back.
+        assertTrue(queue.offer());
+        queue.onImageReceived();
+        assertEquals(2, queue.getInFlight());
+        assertFalse(queue.onImageSaved(true));
+        assertEquals(1, queue.getInFlight());
+        assertEquals(1, queue.getSaving());
+        assertFalse(queue.onImageSaved(true));
+        assertEquals(0, queue.getInFlight());
+        // Nothing left to give back.
+        queue.onImageSaved(false);
+        assertEquals(0, queue.getInFlight());
+    }
+
+    @Test
+    public void lostBurstFrameGivesSlotBack() {
+        CaptureQueue queue = new CaptureQueue(DIR, 2, 8, CaptureQueue.Policy.QUEUE);
+        assertTrue(queue.offerBurst(2));
+        queue.onImageReceived();
+        assertFalse(queue.onCaptureFinished());
+        assertFalse(queue.onImageLost());
+        assertEquals(1, queue.getInFlight());
+        assertEquals(1, queue.getSaving());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void filesAreUnique() {
+        CaptureQueue queue = new CaptureQueue(DIR, 1, 1, CaptureQueue.Policy.QUEUE);
+        Set<File> files = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(files.add(queue.nextFile()));
+        }
+    }
+}
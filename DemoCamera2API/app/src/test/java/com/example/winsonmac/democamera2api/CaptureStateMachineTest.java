@@ -0,0 +1,164 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import static com.example.winsonmac.democamera2api.CaptureStateMachine.*;
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CaptureStateMachine}, replaying recorded AF/AE traces.
+ */
+public class CaptureStateMachineTest {
+
+    private static final long MS = 1000000L;
+    private static final long FRAME = 33 * MS;
+    private static final int NONE = -1;
+
+    /**
+     * One result per row: milliseconds after the press, AF state, AE state, NONE when missing.
+     */
+    private static final int[][] LOCK_THEN_CONVERGED = {
+            {33, AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING},
+            {66, AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING},
+            {99, AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED},
+    };
+
+    private static final int[][] FOCUS_NEVER_LOCKS = repeat(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 100);
+
+    private static final int[][] PRECAPTURE_NEVER_STARTS = concat(new int[][]{
+            {33, AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING},
+    }, shift(repeat(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 100), 33));
+
+    private static final int[][] PRECAPTURE_NEVER_ENDS = concat(new int[][]{
+            {33, AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_FLASH_REQUIRED},
+            {66, AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_PRECAPTURE},
+    }, shift(repeat(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 100), 66));
+
+    private static final int[][] NO_STATES = {
+            {33, NONE, NONE},
+    };
+
+    @Test
+    public void capturesAtOnceWhenPreviewIsStable() {
+        CaptureStateMachine machine = new CaptureStateMachine();
+        machine.onResult(AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, 1000 * MS);
+        assertEquals(Action.CAPTURE, machine.start(1010 * MS));
+        assertEquals(State.TAKEN, machine.getState());
+        assertEquals(1, machine.getFastPaths());
+        assertEquals(0, machine.getMaxLatencyMillis(), 0);
+    }
+
+    @Test
+    public void locksWhenPreviewIsUnstableOrStale() {
+        CaptureStateMachine machine = new CaptureStateMachine();
+        machine.onResult(AF_STATE_PASSIVE_SCAN, AE_STATE_CONVERGED, 1000 * MS);
+        assertEquals(Action.LOCK_FOCUS, machine.start(1010 * MS));
+        machine.reset();
+
+        machine.onResult(AF_STATE_PASSIVE_FOCUSED, AE_STATE_FLASH_REQUIRED, 2000 * MS);
+        assertEquals(Action.LOCK_FOCUS, machine.start(2010 * MS));
+        machine.reset();
+
+        machine.onResult(AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, 3000 * MS);
+        assertEquals(Action.LOCK_FOCUS, machine.start(4000 * MS));
+        assertEquals(0, machine.getFastPaths());
+    }
+
+    @Test
+    public void runsTheFullSequence() {
+        CaptureStateMachine machine = new CaptureStateMachine();
+        machine.start(0);
+        assertEquals(Action.RUN_PRECAPTURE,
+                machine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 33 * MS));
+        assertEquals(Action.NONE, machine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 66 * MS));
+        assertEquals(State.WAITING_NON_PRECAPTURE, machine.getState());
+        assertEquals(Action.CAPTURE, machine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED, 99 * MS));
+        machine.reset();
+
+        machine.start(0);
+        assertEquals(99 * MS, replay(machine, LOCK_THEN_CONVERGED));
+        machine.reset();
+
+        // A device reporting no AF state captures at the first result.
+        machine.start(0);
+        assertEquals(33 * MS, replay(machine, NO_STATES));
+        assertEquals(0, machine.getTimeouts());
+    }
+
+    @Test
+    public void timesOutEachWaitingState() {
+        CaptureStateMachine machine = new CaptureStateMachine();
+        machine.setTimeout(State.WAITING_LOCK, 300);
+        machine.setTimeout(State.WAITING_PRECAPTURE, 200);
+        machine.setTimeout(State.WAITING_NON_PRECAPTURE, 400);
+
+        machine.start(0);
+        long latency = replay(machine, FOCUS_NEVER_LOCKS);
+        assertTrue(latency >= 300 * MS && latency < 300 * MS + FRAME);
+        machine.reset();
+
+        machine.start(0);
+        latency = replay(machine, PRECAPTURE_NEVER_STARTS);
+        assertTrue(latency >= (33 + 200) * MS && latency < (33 + 200) * MS + FRAME);
+        machine.reset();
+
+        machine.start(0);
+        latency = replay(machine, PRECAPTURE_NEVER_ENDS);
+        assertTrue(latency >= (66 + 400) * MS && latency < (66 + 400) * MS + FRAME);
+        assertEquals(3, machine.getTimeouts());
+    }
+
+    @Test
+    public void boundsWorstCaseShutterLatency() {
+        int[][][] traces = {LOCK_THEN_CONVERGED, FOCUS_NEVER_LOCKS, PRECAPTURE_NEVER_STARTS,
+                PRECAPTURE_NEVER_ENDS, NO_STATES};
+        CaptureStateMachine machine = new CaptureStateMachine();
+        long bound = (machine.getTimeoutMillis(State.WAITING_LOCK)
+                + machine.getTimeoutMillis(State.WAITING_PRECAPTURE)
+                + machine.getTimeoutMillis(State.WAITING_NON_PRECAPTURE)) * MS + 3 * FRAME;
+        for (int[][] trace : traces) {
+            machine.start(0);
+            replay(machine, trace);
+            assertEquals(State.TAKEN, machine.getState());
+            machine.reset();
+        }
+        assertTrue(machine.toString(), machine.getMaxLatencyMillis() * MS <= bound);
+    }
+
+    /**
+     * @return Nanoseconds from the press to the capture, -1 if the trace never led to one.
+     */
+    private static long replay(CaptureStateMachine machine, int[][] trace) {
+        for (int[] row : trace) {
+            long now = row[0] * MS;
+            Action action = machine.onResult(row[1] == NONE ? null : row[1],
+                    row[2] == NONE ? null : row[2], now);
+            if (action == Action.CAPTURE) {
+                return now;
+            }
+        }
+        return -1;
+    }
+
+    private static int[][] repeat(int afState, int aeState, int frames) {
+        int[][] trace = new int[frames][];
+        for (int i = 0; i < frames; i++) {
+            trace[i] = new int[]{(i + 1) * 33, afState, aeState};
+        }
+        return trace;
+    }
+
+    private static int[][] shift(int[][] trace, int millis) {
+        for (int[] row : trace) {
+            row[0] += millis;
+        }
+        return trace;
+    }
+
+    private static int[][] concat(int[][] first, int[][] second) {
+        int[][] trace = new int[first.length + second.length][];
+        System.arraycopy(first, 0, trace, 0, first.length);
+        System.arraycopy(second, 0, trace, first.length, second.length);
+        return trace;
+    }
+}
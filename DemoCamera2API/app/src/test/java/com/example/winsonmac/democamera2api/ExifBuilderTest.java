@@ -0,0 +1,378 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ExifBuilder}.
+ */
+public class ExifBuilderTest {
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    private static final int TAG_WHITE_BALANCE = 0xA403;
+
+    private static final byte[] THUMBNAIL = {
+            (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, (byte) 0xFF, (byte) 0xD9
+    };
+
+    /**
+     * SOI, APP0, SOS with a few bytes of image data and EOI.
+     */
+    private static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0, 6, 'J', 'F', 'I', 'F',
+            (byte) 0xFF, (byte) 0xDA, 0, 2, 1, 2, 3, 4,
+            (byte) 0xFF, (byte) 0xD9
+    };
+
+    /**
+     * Where the JFIF APP0 of {@link #JPEG} ends.
+     */
+    private static final int APP0_END = 10;
+
+    @Test
+    public void writesTheTagsThatWereSet() {
+        byte[] segment = new ExifBuilder()
+                .setOrientation(ExifBuilder.ORIENTATION_ROTATE_90)
+                .setDateTime(0)
+                .setExposureTime(16666666L)
+                .setIso(400)
+                .setFocalLength(4.38f)
+                .build();
+        assertEquals((byte) 0xFF, segment[0]);
+        assertEquals((byte) 0xE1, segment[1]);
+        assertEquals(segment.length - 2, ((segment[2] & 0xFF) << 8) | (segment[3] & 0xFF));
+
+        ByteBuffer tiff = tiffOf(segment);
+        assertEquals(6, readShortTag(tiff, 8, TAG_ORIENTATION));
+        assertEquals(20, readCount(tiff, 8, TAG_DATE_TIME));
+        int exif = (int) readLongTag(tiff, 8, TAG_EXIF_IFD);
+        assertEquals(400, readShortTag(tiff, exif, TAG_ISO));
+        assertEquals(16666 / 1e6, readRational(tiff, exif, TAG_EXPOSURE_TIME), 1e-9);
+        assertEquals(4.38, readRational(tiff, exif, TAG_FOCAL_LENGTH), 1e-6);
+    }
+
+    @Test
+    public void leavesOutTheTagsNotSet() {
+        ByteBuffer tiff = tiffOf(new ExifBuilder().build());
+        assertEquals(-1, findEntry(tiff, 8, TAG_ORIENTATION));
+        int exif = (int) readLongTag(tiff, 8, TAG_EXIF_IFD);
+        assertEquals(-1, findEntry(tiff, exif, TAG_ISO));
+    }
+
+    @Test
+    public void insertsTheSegmentAfterApp0() throws IOException {
+        ExifBuilder builder = new ExifBuilder().setOrientation(ExifBuilder.ORIENTATION_ROTATE_180);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = builder.write(JPEG, out);
+        byte[] result = out.toByteArray();
+        byte[] segment = builder.build();
+        assertEquals(JPEG.length + segment.length, written);
+        assertEquals(written, result.length);
+        // SOI and the JFIF APP0 stay first.
+        assertArrayEquals(Arrays.copyOfRange(JPEG, 0, APP0_END),
+                Arrays.copyOfRange(result, 0, APP0_END));
+        assertArrayEquals(segment, Arrays.copyOfRange(result, APP0_END, APP0_END + segment.length));
+        assertArrayEquals(Arrays.copyOfRange(JPEG, APP0_END, JPEG.length),
+                Arrays.copyOfRange(result, APP0_END + segment.length, result.length));
+        assertEquals(3, ExifBuilder.readOrientation(ByteBuffer.wrap(result)));
+    }
+
+    @Test
+    public void insertsTheSegmentAfterSoiWithoutApp0() throws IOException {
+        byte[] jpeg = new byte[JPEG.length - (APP0_END - 2)];
+        jpeg[0] = JPEG[0];
+        jpeg[1] = JPEG[1];
+        System.arraycopy(JPEG, APP0_END, jpeg, 2, JPEG.length - APP0_END);
+        ExifBuilder builder = new ExifBuilder().setOrientation(ExifBuilder.ORIENTATION_ROTATE_180);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.write(ByteBuffer.wrap(jpeg), Channels.newChannel(out));
+        byte[] result = out.toByteArray();
+        byte[] segment = builder.build();
+        assertArrayEquals(segment, Arrays.copyOfRange(result, 2, 2 + segment.length));
+        assertArrayEquals(Arrays.copyOfRange(jpeg, 2, jpeg.length),
+                Arrays.copyOfRange(result, 2 + segment.length, result.length));
+    }
+
+    @Test
+    public void mergesIntoTheExistingSegment() throws IOException {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        new ExifBuilder().setOrientation(ExifBuilder.ORIENTATION_ROTATE_90).setIso(100)
+                .write(JPEG, first);
+        byte[] tagged = first.toByteArray();
+        assertEquals(6, ExifBuilder.readOrientation(ByteBuffer.wrap(tagged)));
+
+        // The channel way, from a buffer not starting at 0 as an Image plane may.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(tagged.length + 3);
+        buffer.put(new byte[3]).put(tagged);
+        buffer.position(3);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        ExifBuilder builder = new ExifBuilder().setOrientation(ExifBuilder.ORIENTATION_NORMAL)
+                .setIso(800);
+        long written = builder.write(buffer, Channels.newChannel(second));
+        byte[] result = second.toByteArray();
+        assertEquals(3, buffer.position());
+        assertEquals(written, result.length);
+        assertEquals(1, ExifBuilder.readOrientation(ByteBuffer.wrap(result)));
+        // One segment, after the APP0 and followed by the JPEG's other segments.
+        int[] exif = ExifBuilder.findExifSegment(ByteBuffer.wrap(result));
+        assertEquals(APP0_END, exif[0]);
+        assertArrayEquals(Arrays.copyOfRange(JPEG, APP0_END, JPEG.length),
+                Arrays.copyOfRange(result, exif[1], result.length));
+        // The ISO that was there is kept.
+        ByteBuffer tiff = tiffOf(Arrays.copyOfRange(result, exif[0], exif[1]));
+        int ifd0 = tiff.getInt(4);
+        assertEquals(100, readShortTag(tiff, (int) readLongTag(tiff, ifd0, TAG_EXIF_IFD), TAG_ISO));
+    }
+
+    @Test
+    public void keepsTheCameraTags() throws IOException {
+        byte[] jpeg = jpegWithCameraExif();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExifBuilder builder = new ExifBuilder()
+                .setOrientation(ExifBuilder.ORIENTATION_ROTATE_90)
+                .setMake("Ours")
+                .setDateTime(0)
+                .setIso(400);
+        long written = builder.write(jpeg, out);
+        byte[] result = out.toByteArray();
+        assertEquals(written, result.length);
+        assertEquals(6, ExifBuilder.readOrientation(ByteBuffer.wrap(result)));
+
+        int[] exif = ExifBuilder.findExifSegment(ByteBuffer.wrap(result));
+        ByteBuffer tiff = tiffOf(Arrays.copyOfRange(result, exif[0], exif[1]));
+        tiff.order(ByteOrder.LITTLE_ENDIAN);
+        int ifd0 = tiff.getInt(4);
+        // The camera's make stays, it was there.
+        assertEquals('H', tiff.get(findEntry(tiff, ifd0, TAG_MAKE) + 8));
+        assertEquals(20, readCount(tiff, ifd0, 0x0132));
+        int exifIfd = (int) readLongTag(tiff, ifd0, TAG_EXIF_IFD);
+        assertEquals(1.8, readRational(tiff, exifIfd, TAG_F_NUMBER), 1e-9);
+        assertEquals(1, readShortTag(tiff, exifIfd, TAG_WHITE_BALANCE));
+        assertEquals(400, readShortTag(tiff, exifIfd, TAG_ISO));
+        assertEquals(20, readCount(tiff, exifIfd, TAG_DATE_TIME_ORIGINAL));
+        // The entries are still sorted.
+        int count = tiff.getShort(exifIfd) & 0xFFFF;
+        for (int i = 1; i < count; i++) {
+            assertTrue((tiff.getShort(exifIfd + 2 + 12 * i) & 0xFFFF)
+                    > (tiff.getShort(exifIfd + 2 + 12 * (i - 1)) & 0xFFFF));
+        }
+        // The thumbnail is still linked from IFD0.
+        ByteBuffer thumbnail = JpegThumbnails.findExifThumbnail(ByteBuffer.wrap(result));
+        assertNotNull(thumbnail);
+        assertEquals(ByteBuffer.wrap(THUMBNAIL), thumbnail);
+        assertArrayEquals(Arrays.copyOfRange(jpeg, jpeg.length - 8, jpeg.length),
+                Arrays.copyOfRange(result, result.length - 8, result.length));
+    }
+
+    @Test
+    public void writesOtherDataAsItIs() throws IOException {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', 1, 2};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(png.length, new ExifBuilder().setIso(100).write(png, out));
+        assertArrayEquals(png, out.toByteArray());
+        assertEquals(0, ExifBuilder.readOrientation(ByteBuffer.wrap(png)));
+    }
+
+    @Test
+    public void orientationOfRotations() {
+        assertEquals(ExifBuilder.ORIENTATION_NORMAL, ExifBuilder.orientationForDegrees(0));
+        assertEquals(ExifBuilder.ORIENTATION_ROTATE_90, ExifBuilder.orientationForDegrees(90));
+        assertEquals(ExifBuilder.ORIENTATION_ROTATE_180, ExifBuilder.orientationForDegrees(180));
+        assertEquals(ExifBuilder.ORIENTATION_ROTATE_270, ExifBuilder.orientationForDegrees(-90));
+        assertEquals(270, ExifBuilder.degreesForOrientation(ExifBuilder.ORIENTATION_ROTATE_270));
+        assertEquals(0, ExifBuilder.degreesForOrientation(0));
+    }
+
+    /**
+     * Compares writing the tags with the picture against writing the picture then rewriting the
+     * file with its tags, as ExifInterface.saveAttributes() does.
+     */
+    @Test
+    public void singlePassMovesFewerBytes() throws IOException {
+        File file = File.createTempFile("exif", ".jpg");
+        try {
+            long[] single = singlePass(TIMED_BUILDER, bigPicture(), file);
+            long[] twoPass = twoPass(TIMED_BUILDER, bigPicture(), file);
+            assertTrue(single[0] * 2 < twoPass[0]);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkSinglePassAgainstTwoPasses() throws IOException {
+        byte[] picture = bigPicture();
+        File file = File.createTempFile("exif", ".jpg");
+        try {
+            long[] single = new long[2];
+            long[] twoPass = new long[2];
+            // A few rounds, the first ones warm the JIT and the page cache.
+            for (int i = 0; i < 5; i++) {
+                single = singlePass(TIMED_BUILDER, picture, file);
+                twoPass = twoPass(TIMED_BUILDER, picture, file);
+            }
+            System.out.println(String.format(Locale.US,
+                    "EXIF single pass: %d bytes in %.2f ms, two passes: %d bytes in %.2f ms",
+                    single[0], single[1] / 1e6, twoPass[0], twoPass[1] / 1e6));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static final ExifBuilder TIMED_BUILDER = new ExifBuilder()
+            .setOrientation(ExifBuilder.ORIENTATION_ROTATE_90).setDateTime(0)
+            .setExposureTime(10000000L).setIso(200);
+
+    private static byte[] bigPicture() {
+        byte[] picture = new byte[4 * 1024 * 1024];
+        System.arraycopy(JPEG, 0, picture, 0, 14);
+        picture[picture.length - 2] = (byte) 0xFF;
+        picture[picture.length - 1] = (byte) 0xD9;
+        return picture;
+    }
+
+    /**
+     * A JPEG with EXIF as a camera writes it, little endian: IFD0 with Make, Orientation and the
+     * Exif IFD, the Exif IFD with FNumber and WhiteBalance, IFD1 with a thumbnail.
+     */
+    private static byte[] jpegWithCameraExif() {
+        ByteBuffer tiff = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        // IFD0 at 8, up to 50.
+        tiff.putShort((short) 3);
+        tiff.putShort((short) TAG_MAKE).putShort((short) 2).putInt(4)
+                .put((byte) 'H').put((byte) 'A').put((byte) 'L').put((byte) 0);
+        tiff.putShort((short) TAG_ORIENTATION).putShort((short) 3).putInt(1).putInt(1);
+        tiff.putShort((short) TAG_EXIF_IFD).putShort((short) 4).putInt(1).putInt(50);
+        tiff.putInt(88);
+        // Exif IFD at 50, its FNumber at 80.
+        tiff.putShort((short) 2);
+        tiff.putShort((short) TAG_F_NUMBER).putShort((short) 5).putInt(1).putInt(80);
+        tiff.putShort((short) TAG_WHITE_BALANCE).putShort((short) 3).putInt(1).putInt(1);
+        tiff.putInt(0);
+        tiff.putInt(180).putInt(100);
+        // IFD1 at 88, the thumbnail at 118.
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(118);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(THUMBNAIL.length);
+        tiff.putInt(0);
+        tiff.put(THUMBNAIL);
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(JPEG, 0, 2);
+        int length = 2 + 6 + tiff.capacity();
+        jpeg.write(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length,
+                'E', 'x', 'i', 'f', 0, 0}, 0, 10);
+        jpeg.write(tiff.array(), 0, tiff.capacity());
+        jpeg.write(JPEG, 2, JPEG.length - 2);
+        return jpeg.toByteArray();
+    }
+
+    /**
+     * @return Bytes read and written, and the time it took.
+     */
+    private static long[] singlePass(ExifBuilder builder, byte[] picture, File file)
+            throws IOException {
+        long start = System.nanoTime();
+        OutputStream out = new FileOutputStream(file);
+        long bytes;
+        try {
+            bytes = builder.write(picture, out);
+        } finally {
+            out.close();
+        }
+        return new long[]{bytes, System.nanoTime() - start};
+    }
+
+    private static long[] twoPass(ExifBuilder builder, byte[] picture, File file)
+            throws IOException {
+        long start = System.nanoTime();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(picture);
+        } finally {
+            out.close();
+        }
+        long bytes = picture.length;
+        // Read back...
+        byte[] saved = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < saved.length) {
+                read += in.read(saved, read, saved.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        bytes += saved.length;
+        // ...and written again with the tags.
+        out = new FileOutputStream(file);
+        try {
+            bytes += builder.write(saved, out);
+        } finally {
+            out.close();
+        }
+        return new long[]{bytes, System.nanoTime() - start};
+    }
+
+    private static ByteBuffer tiffOf(byte[] segment) {
+        return ByteBuffer.wrap(segment, 10, segment.length - 10).slice();
+    }
+
+    /**
+     * @return The offset of the entry with the tag in the IFD, or -1.
+     */
+    private static int findEntry(ByteBuffer tiff, int ifd, int tag) {
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + 12 * i;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private static int readShortTag(ByteBuffer tiff, int ifd, int tag) {
+        return tiff.getShort(findEntry(tiff, ifd, tag) + 8) & 0xFFFF;
+    }
+
+    private static long readLongTag(ByteBuffer tiff, int ifd, int tag) {
+        return tiff.getInt(findEntry(tiff, ifd, tag) + 8) & 0xFFFFFFFFL;
+    }
+
+    private static int readCount(ByteBuffer tiff, int ifd, int tag) {
+        return tiff.getInt(findEntry(tiff, ifd, tag) + 4);
+    }
+
+    private static double readRational(ByteBuffer tiff, int ifd, int tag) {
+        int offset = (int) readLongTag(tiff, ifd, tag);
+        return (double) tiff.getInt(offset) / tiff.getInt(offset + 4);
+    }
+}
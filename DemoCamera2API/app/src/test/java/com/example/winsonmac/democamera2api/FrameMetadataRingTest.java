@@ -0,0 +1,72 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameMetadataRing}.
+ */
+public class FrameMetadataRingTest {
+
+    private static final long FRAME = 33333333L;
+
+    @Test
+    public void steadyPreviewHasNoDrops() {
+        FrameMetadataRing ring = new FrameMetadataRing(100);
+        for (int i = 0; i < 60; i++) {
+            // +-1 ms of jitter around 30 fps.
+            long jitter = i % 2 == 0 ? 1000000L : -1000000L;
+            ring.record(i, i * FRAME + jitter, FRAME, 10000000L, 100, 2, 2);
+        }
+        assertEquals(0, ring.getDroppedFrames());
+        assertEquals(30, ring.getFps(), 0.5);
+        assertEquals(2, ring.getMaxJitterMillis(), 0.01);
+    }
+
+    @Test
+    public void countsTheFramesOfAGap() {
+        FrameMetadataRing ring = new FrameMetadataRing(100);
+        long timestamp = 0;
+        for (int i = 0; i < 10; i++) {
+            ring.record(i, timestamp, FRAME, 10000000L, 100, 2, 2);
+            // Two frames missing after the fifth one.
+            timestamp += i == 4 ? 3 * FRAME : FRAME;
+        }
+        assertEquals(2, ring.getDroppedFrames());
+        assertEquals(1, ring.getDropEvents());
+        assertEquals(0, ring.getMaxJitterMillis(), 0);
+    }
+
+    @Test
+    public void fallsBackToTheLastIntervalWithoutFrameDuration() {
+        FrameMetadataRing ring = new FrameMetadataRing(10);
+        ring.record(0, 0, FrameMetadataRing.UNKNOWN, 0, 0, 0, 0);
+        ring.record(1, FRAME, FrameMetadataRing.UNKNOWN, 0, 0, 0, 0);
+        ring.record(2, 4 * FRAME, FrameMetadataRing.UNKNOWN, 0, 0, 0, 0);
+        assertEquals(2, ring.getDroppedFrames());
+    }
+
+    @Test
+    public void writesTheNewestFramesOldestFirst() throws IOException {
+        FrameMetadataRing ring = new FrameMetadataRing(3);
+        for (int i = 0; i < 5; i++) {
+            ring.record(i, i * FRAME, FRAME, 8000000L, 200 + i, 1, 2);
+        }
+        assertEquals(3, ring.size());
+        StringWriter writer = new StringWriter();
+        ring.writeCsv(writer);
+        String[] lines = writer.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("frame,timestamp_ns,"));
+        assertEquals("2," + 2 * FRAME + ",0," + FRAME + ",8000000,202,1,2,0", lines[1]);
+        assertEquals("4," + 4 * FRAME + "," + FRAME + "," + FRAME + ",8000000,204,1,2,0", lines[3]);
+
+        ring.reset();
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.getFps(), 0);
+    }
+}
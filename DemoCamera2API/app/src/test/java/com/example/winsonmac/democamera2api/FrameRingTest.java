@@ -0,0 +1,86 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameRing}.
+ */
+public class FrameRingTest {
+
+    private static final long FRAME = 33000000L;
+
+    private final List<String> mReleased = new ArrayList<>();
+
+    private final FrameRing.Releaser<String> mReleaser = new FrameRing.Releaser<String>() {
+        @Override
+        public void release(String frame) {
+            mReleased.add(frame);
+        }
+    };
+
+    @Test
+    public void capacityStaysWithinBudget() {
+        long frameBytes = YuvConverter.getNv21Size(4000, 3000);
+        assertEquals(3, FrameRing.capacityFor(96L * 1024 * 1024, frameBytes, 2));
+        assertEquals(0, FrameRing.capacityFor(2 * frameBytes, frameBytes, 2));
+        assertEquals(1, FrameRing.capacityFor(3 * frameBytes + 1, frameBytes, 2));
+    }
+
+    @Test
+    public void evictsTheOldestFrame() {
+        FrameRing<String> ring = new FrameRing<>(3, mReleaser);
+        for (int i = 0; i < 5; i++) {
+            ring.add("frame" + i, i * FRAME);
+        }
+        assertEquals(3, ring.size());
+        assertEquals(Arrays.asList("frame0", "frame1"), mReleased);
+        assertTrue(ring.releaseOldest());
+        assertEquals("frame2", mReleased.get(2));
+        ring.clear();
+        assertEquals(Arrays.asList("frame0", "frame1", "frame2", "frame3", "frame4"), mReleased);
+        assertFalse(ring.releaseOldest());
+    }
+
+    @Test
+    public void takesTheFrameClosestToThePress() {
+        FrameRing<String> ring = new FrameRing<>(4, mReleaser);
+        for (int i = 0; i < 6; i++) {
+            ring.add("frame" + i, i * FRAME);
+        }
+        // frame2 to frame5 are kept, the press falls just after frame3 started.
+        assertEquals("frame3", ring.take(3 * FRAME + 5000000L));
+        assertEquals(-5000000L, ring.getLastDeltaNanos());
+        assertEquals(3, ring.size());
+        // A press older than anything kept gets the oldest frame.
+        assertEquals("frame2", ring.take(0));
+        assertEquals(2 * FRAME, ring.getLastDeltaNanos());
+        // The remaining frames are still in order, frame4 is the next one evicted once full.
+        ring.add("frame6", 6 * FRAME);
+        ring.add("frame7", 7 * FRAME);
+        assertEquals(Arrays.asList("frame0", "frame1"), mReleased);
+        ring.add("frame8", 8 * FRAME);
+        assertEquals("frame4", mReleased.get(2));
+        assertEquals("frame8", ring.take(100 * FRAME));
+        assertEquals(3, ring.size());
+    }
+
+    @Test
+    public void reportsPressToFrameDeltas() {
+        FrameRing<String> ring = new FrameRing<>(2, mReleaser);
+        assertNull(ring.take(0));
+        assertEquals(1, ring.getMissed());
+        ring.add("a", 10 * FRAME);
+        ring.add("b", 11 * FRAME);
+        ring.take(10 * FRAME + 2000000L);
+        ring.take(11 * FRAME - 4000000L);
+        assertEquals(2, ring.getTaken());
+        assertEquals(3, ring.getMeanDeltaMillis(), 1e-9);
+        assertEquals(4, ring.getMaxDeltaMillis(), 1e-9);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GalleryRegistrar}.
+ */
+public class GalleryRegistrarTest {
+
+    /**
+     * Records the batch sizes, and counts down once per batch.
+     */
+    private static class RecordingInserter implements GalleryRegistrar.Inserter {
+        final List<Integer> mBatches = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch mLatch;
+
+        RecordingInserter(int batches) {
+            mLatch = new CountDownLatch(batches);
+        }
+
+        @Override
+        public int insert(List<GalleryRegistrar.Entry> batch) throws Exception {
+            mBatches.add(batch.size());
+            mLatch.countDown();
+            return batch.size();
+        }
+    }
+
+    private static GalleryRegistrar.Entry entry(int i) {
+        return new GalleryRegistrar.Entry(new File("IMG_" + i + ".jpg"), "image/jpeg", 1000, 4032,
+                3024, 90, 1500000000000L);
+    }
+
+    @Test
+    public void fullBatchesGoAtOnce() throws InterruptedException {
+        RecordingInserter inserter = new RecordingInserter(2);
+        // The interval is long enough never to be the reason for a flush here.
+        GalleryRegistrar registrar = new GalleryRegistrar(inserter, 4, 60000);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(registrar.add(entry(i)));
+        }
+        assertTrue(inserter.mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(registrar.close(5, TimeUnit.SECONDS));
+        assertEquals(8, registrar.getInserted());
+        assertEquals(2, registrar.getBatches());
+        assertEquals(4, registrar.getInsertsPerBatch(), 0);
+    }
+
+    @Test
+    public void partialBatchWaitsForTheInterval() throws InterruptedException {
+        RecordingInserter inserter = new RecordingInserter(1);
+        GalleryRegistrar registrar = new GalleryRegistrar(inserter, 10, 100);
+        long start = System.nanoTime();
+        registrar.add(entry(0));
+        registrar.add(entry(1));
+        assertTrue(inserter.mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+        assertEquals(Collections.singletonList(2), inserter.mBatches);
+        assertTrue(registrar.close(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closeInsertsWhatIsLeft() throws InterruptedException {
+        RecordingInserter inserter = new RecordingInserter(0);
+        GalleryRegistrar registrar = new GalleryRegistrar(inserter, 2, 60000);
+        for (int i = 0; i < 5; i++) {
+            registrar.add(entry(i));
+        }
+        assertTrue(registrar.close(5, TimeUnit.SECONDS));
+        assertFalse(registrar.add(entry(5)));
+        assertEquals(5, registrar.getInserted());
+        int total = 0;
+        for (int size : inserter.mBatches) {
+            assertTrue(size <= 2);
+            total += size;
+        }
+        assertEquals(5, total);
+    }
+
+    @Test
+    public void countsFailedBatches() throws InterruptedException {
+        GalleryRegistrar registrar = new GalleryRegistrar(new GalleryRegistrar.Inserter() {
+            @Override
+            public int insert(List<GalleryRegistrar.Entry> batch) throws Exception {
+                throw new IOException("provider gone");
+            }
+        }, 3, 60000);
+        for (int i = 0; i < 3; i++) {
+            registrar.add(entry(i));
+        }
+        assertTrue(registrar.close(5, TimeUnit.SECONDS));
+        assertEquals(0, registrar.getInserted());
+        assertEquals(3, registrar.getFailed());
+        assertEquals("provider gone", registrar.getLastFailure().getMessage());
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link JpegPassthroughEncoder}. The encoders decoding the pixels need the
+ * device, they are measured by the instrumented benchmark.
+ */
+public class JpegPassthroughEncoderTest {
+
+    private static final int FRAME_BYTES = 256 * 1024;
+
+    private static List<ByteBuffer> frames() {
+        Random random = new Random(25);
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = new byte[FRAME_BYTES + i];
+            random.nextBytes(bytes);
+            frames.add(ByteBuffer.wrap(bytes));
+        }
+        // As the camera2 JPEG plane comes.
+        ByteBuffer direct = ByteBuffer.allocateDirect(FRAME_BYTES + 10);
+        direct.put(frames.get(0).duplicate()).flip();
+        frames.add(direct);
+        return frames;
+    }
+
+    @Test
+    public void passthroughWritesTheJpegAsItIs() throws IOException {
+        JpegPassthroughEncoder encoder = new JpegPassthroughEncoder();
+        for (ByteBuffer frame : frames()) {
+            int position = frame.position();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(frame.remaining(), encoder.encode(frame, 90, out));
+            byte[] expected = new byte[frame.remaining()];
+            frame.duplicate().get(expected);
+            assertArrayEquals(expected, out.toByteArray());
+            assertEquals(position, frame.position());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the parts of {@link JpegThumbnails} that don't need Android.
+ */
+public class JpegThumbnailsTest {
+
+    private static final byte[] THUMBNAIL = {
+            (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, (byte) 0xFF, (byte) 0xD9
+    };
+
+    @Test
+    public void findsThumbnailOfIfd1() {
+        ByteBuffer jpeg = ByteBuffer.wrap(jpegWithThumbnail(THUMBNAIL));
+        ByteBuffer thumbnail = JpegThumbnails.findExifThumbnail(jpeg);
+        assertNotNull(thumbnail);
+        byte[] bytes = new byte[thumbnail.remaining()];
+        thumbnail.get(bytes);
+        assertArrayEquals(THUMBNAIL, bytes);
+        // The JPEG itself is left as it was.
+        assertEquals(0, jpeg.position());
+    }
+
+    @Test
+    public void ignoresThumbnailThatIsNotJpeg() {
+        byte[] garbage = {1, 2, 3, 4, 5, 6};
+        assertNull(JpegThumbnails.findExifThumbnail(ByteBuffer.wrap(jpegWithThumbnail(garbage))));
+    }
+
+    @Test
+    public void noExifNoThumbnail() {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2, (byte) 0xFF, (byte) 0xD9};
+        assertNull(JpegThumbnails.findExifThumbnail(ByteBuffer.wrap(jpeg)));
+    }
+
+    @Test
+    public void sampleSizeKeepsTargetSize() {
+        assertEquals(8, JpegThumbnails.getSampleSize(4032, 3024, 200));
+        assertEquals(4, JpegThumbnails.getSampleSize(1920, 1080, 200));
+        assertEquals(2, JpegThumbnails.getSampleSize(640, 480, 200));
+        assertEquals(1, JpegThumbnails.getSampleSize(320, 240, 200));
+    }
+
+    @Test
+    public void rotationAddsTheExifOrientation() {
+        ByteBuffer jpeg = ByteBuffer.wrap(jpegWithOrientation(ExifBuilder.ORIENTATION_ROTATE_90));
+        assertEquals(90, JpegThumbnails.getRotation(jpeg, 0));
+        // The saver turns the picture again on top of what the camera asks for.
+        assertEquals(180, JpegThumbnails.getRotation(jpeg, 90));
+        assertEquals(0, JpegThumbnails.getRotation(jpeg, 270));
+        assertEquals(0, jpeg.position());
+    }
+
+    @Test
+    public void rotationWithoutExifIsTheGivenOne() {
+        ByteBuffer jpeg = ByteBuffer.wrap(jpegWithThumbnail(THUMBNAIL));
+        assertEquals(0, JpegThumbnails.getRotation(jpeg, 0));
+        assertEquals(270, JpegThumbnails.getRotation(jpeg, 270));
+    }
+
+    /**
+     * SOI, an EXIF APP1 with only an Orientation entry in IFD0, then SOS.
+     */
+    private static byte[] jpegWithOrientation(int orientation) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        write(tiff, 'M', 'M', 0, 42, 0, 0, 0, 8);
+        write(tiff, 0, 1);
+        write(tiff, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, orientation, 0, 0);
+        write(tiff, 0, 0, 0, 0);
+        return jpegWithTiff(tiff.toByteArray());
+    }
+
+    /**
+     * SOI, an EXIF APP1 with an empty IFD0 and an IFD1 pointing to the thumbnail, then SOS.
+     */
+    private static byte[] jpegWithThumbnail(byte[] thumbnail) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        write(tiff, 'M', 'M', 0, 42, 0, 0, 0, 8);
+        // IFD0: no entries, IFD1 at 14
+        write(tiff, 0, 0, 0, 0, 0, 14);
+        // IFD1: two entries, thumbnail at 14 + 2 + 24 + 4 = 44
+        write(tiff, 0, 2);
+        write(tiff, 0x02, 0x01, 0, 4, 0, 0, 0, 1, 0, 0, 0, 44);
+        write(tiff, 0x02, 0x02, 0, 4, 0, 0, 0, 1, 0, 0, 0, thumbnail.length);
+        write(tiff, 0, 0, 0, 0);
+        tiff.write(thumbnail, 0, thumbnail.length);
+        return jpegWithTiff(tiff.toByteArray());
+    }
+
+    private static byte[] jpegWithTiff(byte[] body) {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        write(jpeg, 0xFF, 0xD8);
+        int length = 2 + 6 + body.length;
+        write(jpeg, 0xFF, 0xE1, length >> 8, length & 0xFF, 'E', 'x', 'i', 'f', 0, 0);
+        jpeg.write(body, 0, body.length);
+        write(jpeg, 0xFF, 0xDA, 0, 2, 0xFF, 0xD9);
+        return jpeg.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+}
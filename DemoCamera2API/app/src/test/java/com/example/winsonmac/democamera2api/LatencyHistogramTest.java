@@ -0,0 +1,54 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsHoldTheirValues() {
+        long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 33333333, LatencyHistogram.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertTrue(value + " above " + highest, value <= highest);
+            if (index > 0) {
+                assertTrue(value + " not above " + index, value > LatencyHistogram.highestValueOf(index - 1));
+            }
+            // Within about 3% whatever the magnitude.
+            assertTrue(highest - value <= Math.max(1, value / 32));
+        }
+    }
+
+    @Test
+    public void percentilesOfAUniformRun() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000000L, histogram.getMaxNanos());
+        assertEquals(50e6, histogram.getValueAtPercentile(50), 50e6 / 32);
+        assertEquals(95e6, histogram.getValueAtPercentile(95), 95e6 / 32);
+        assertEquals(99e6, histogram.getValueAtPercentile(99), 99e6 / 32);
+        // Never beyond what was actually recorded.
+        assertEquals(100000000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void clampsAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMaxNanos());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PictureFile}.
+ */
+public class PictureFileTest {
+
+    private static final int BENCHMARK_RUNS = 15;
+
+    private static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xDA, 0, 2, 1, 2, 3, 4,
+            (byte) 0xFF, (byte) 0xD9
+    };
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void writesTheBytesAsTheyAre() throws IOException {
+        File file = File.createTempFile("picture", ".webp");
+        try {
+            ByteBuffer data = ByteBuffer.allocateDirect(JPEG.length);
+            data.put(JPEG).flip();
+            PictureFile output = new PictureFile(file);
+            try {
+                assertEquals(JPEG.length, output.write(data, null));
+                assertTrue(output.sync() > 0);
+                assertEquals(JPEG.length, output.getBytes());
+            } finally {
+                output.close();
+            }
+            // Left as it was for the caller.
+            assertEquals(0, data.position());
+            assertArrayEquals(JPEG, read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writesTheJpegWithItsTags() throws IOException {
+        File file = File.createTempFile("picture", ".jpg");
+        try {
+            ExifBuilder exif = new ExifBuilder().setOrientation(ExifBuilder.ORIENTATION_ROTATE_90);
+            PictureFile output = new PictureFile(file);
+            long written;
+            try {
+                written = output.write(ByteBuffer.wrap(JPEG), exif);
+                output.sync();
+            } finally {
+                output.close();
+            }
+            byte[] bytes = read(file);
+            assertEquals(JPEG.length + exif.build().length, written);
+            assertEquals(written, bytes.length);
+            assertEquals(ExifBuilder.ORIENTATION_ROTATE_90,
+                    ExifBuilder.readOrientation(ByteBuffer.wrap(bytes)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes a full sensor JPEG held in a direct buffer, as the JPEG plane is, the way the saver
+     * does and the way it did before: copied into a byte array and written with a
+     * FileOutputStream. Prints the median throughput and the bytes allocated per shot.
+     */
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkChannelAgainstCopy() throws IOException {
+        ByteBuffer plane = ByteBuffer.allocateDirect(6 * 1024 * 1024);
+        byte[] random = new byte[plane.capacity()];
+        new Random(1).nextBytes(random);
+        plane.put(random).flip();
+        File file = File.createTempFile("picture", ".jpg");
+        try {
+            for (int mode = 0; mode < 2; mode++) {
+                long[] nanos = new long[BENCHMARK_RUNS];
+                long[] allocated = new long[BENCHMARK_RUNS];
+                // The first rounds warm the JIT and the page cache.
+                for (int run = -3; run < BENCHMARK_RUNS; run++) {
+                    long bytesBefore = getAllocatedBytes();
+                    long start = System.nanoTime();
+                    if (mode == 0) {
+                        PictureFile output = new PictureFile(file);
+                        try {
+                            output.write(plane, null);
+                        } finally {
+                            output.close();
+                        }
+                    } else {
+                        byte[] bytes = new byte[plane.remaining()];
+                        plane.duplicate().get(bytes);
+                        FileOutputStream output = new FileOutputStream(file);
+                        try {
+                            output.write(bytes);
+                        } finally {
+                            output.close();
+                        }
+                    }
+                    if (run >= 0) {
+                        nanos[run] = System.nanoTime() - start;
+                        allocated[run] = getAllocatedBytes() - bytesBefore;
+                    }
+                }
+                System.out.println(String.format(Locale.US,
+                        "%-7s %7.1f MB/s %10d bytes allocated per shot",
+                        mode == 0 ? "channel" : "copy",
+                        plane.remaining() / 1e6 / (median(nanos) / 1e9), median(allocated)));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, -1 if the JVM doesn't tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
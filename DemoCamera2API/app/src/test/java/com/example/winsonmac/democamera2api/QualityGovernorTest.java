@@ -0,0 +1,192 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link QualityGovernor}, replaying shots at a steady rate on simulated
+ * storage.
+ */
+public class QualityGovernorTest {
+
+    private static final double TARGET = 2;
+    /**
+     * Pixels of the output sizes: 12, 8, 5 and 3 MP.
+     */
+    private static final long[] PIXELS = {12000000, 8000000, 5000000, 3000000};
+    /**
+     * Bytes which may wait to be written, beyond that the shutter waits as with the
+     * {@code SaveService} of the legacy app.
+     */
+    private static final long MAX_QUEUED_BYTES = 24L * 1024 * 1024;
+
+    /**
+     * @return Roughly what a JPEG of the quality weighs: about 5 bits per pixel at 100, 3.4 at 90
+     * and 1.7 at 75.
+     */
+    private static long jpegBytes(int quality, int sizeLevel) {
+        double x = (Math.max(50, quality) - 50) / 50.0;
+        double bitsPerPixel = 0.6 + 4.4 * x * x;
+        return (long) (PIXELS[sizeLevel] * bitsPerPixel / 8);
+    }
+
+    /**
+     * What happened over a simulation.
+     */
+    private static class Result {
+        long mWritten;
+        double mSeconds;
+        long mQueuedBytes;      // Left at the end.
+        int mMinQuality = 100;
+
+        double getShotsPerSecond() {
+            return mWritten / mSeconds;
+        }
+    }
+
+    /**
+     * A picture taken, waiting for or being written.
+     */
+    private static class Shot {
+        final double mArrival;
+        final double mStart;
+        final double mDone;
+        final int mQuality;
+        final int mSizeLevel;
+        final long mBytes;
+
+        Shot(double arrival, double start, double done, int quality, int sizeLevel, long bytes) {
+            mArrival = arrival;
+            mStart = start;
+            mDone = done;
+            mQuality = quality;
+            mSizeLevel = sizeLevel;
+            mBytes = bytes;
+        }
+    }
+
+    /**
+     * Takes shots at the target rate, or as soon as there is room for them in the queue, written
+     * one at a time at the storage speeds given for consecutive periods.
+     *
+     * @param speeds  Bytes per second of each period.
+     * @param seconds Length of each period.
+     */
+    private static Result simulate(QualityGovernor governor, double[] speeds, double seconds) {
+        Result result = new Result();
+        ArrayDeque<Shot> writing = new ArrayDeque<>();
+        double writerFree = 0;
+        double now = 0;
+        double end = speeds.length * seconds;
+        while (now < end) {
+            finishWrites(governor, writing, now, result);
+            int quality = governor.getQuality();
+            int sizeLevel = governor.getSizeLevel();
+            long bytes = jpegBytes(quality, sizeLevel);
+            while (!writing.isEmpty() && queuedBytes(writing) + bytes > MAX_QUEUED_BYTES) {
+                now = Math.max(now, writing.peekFirst().mDone);
+                finishWrites(governor, writing, now, result);
+            }
+            double speed = speeds[Math.min(speeds.length - 1, (int) (now / seconds))];
+            double start = Math.max(now, writerFree);
+            writerFree = start + bytes / speed;
+            writing.addLast(new Shot(now, start, writerFree, quality, sizeLevel, bytes));
+            result.mMinQuality = Math.min(result.mMinQuality, quality);
+            now += 1 / TARGET;
+        }
+        finishWrites(governor, writing, end, result);
+        result.mSeconds = end;
+        result.mQueuedBytes = queuedBytes(writing);
+        return result;
+    }
+
+    private static long queuedBytes(ArrayDeque<Shot> writing) {
+        long bytes = 0;
+        for (Shot shot : writing) {
+            bytes += shot.mBytes;
+        }
+        return bytes;
+    }
+
+    private static void finishWrites(QualityGovernor governor, ArrayDeque<Shot> writing,
+                                     double now, Result result) {
+        while (!writing.isEmpty() && writing.peekFirst().mDone <= now) {
+            Shot shot = writing.removeFirst();
+            long queued = 0;
+            for (Shot waiting : writing) {
+                if (waiting.mArrival <= shot.mDone) {
+                    queued += waiting.mBytes;
+                }
+            }
+            governor.onSaved(shot.mQuality, shot.mSizeLevel, shot.mBytes,
+                    (long) ((shot.mDone - shot.mStart) * 1e9), queued);
+            result.mWritten++;
+        }
+    }
+
+    private static void print(String name, QualityGovernor governor, Result result) {
+        System.out.println(String.format(Locale.US, "%s: %.2f shots/s, %d KB left, %s",
+                name, result.getShotsPerSecond(), result.mQueuedBytes / 1024, governor));
+        for (QualityGovernor.Decision decision : governor.getDecisions()) {
+            System.out.println("  " + decision);
+        }
+    }
+
+    @Test
+    public void fastStorageKeepsTheBestQuality() {
+        QualityGovernor governor = new QualityGovernor(TARGET, 60, 100, 5, PIXELS.length);
+        Result result = simulate(governor, new double[]{80e6}, 60);
+        assertEquals(100, result.mMinQuality);
+        assertEquals(0, governor.getSizeLevel());
+        assertTrue(governor.getDecisions().isEmpty());
+    }
+
+    @Test
+    public void slowStorageLowersTheQualityOnly() {
+        QualityGovernor governor = new QualityGovernor(TARGET, 60, 100, 5, PIXELS.length);
+        Result result = simulate(governor, new double[]{10e6}, 120);
+        // 5 MB a shot at most, about quality 90.
+        assertTrue(governor.getQuality() >= 80 && governor.getQuality() <= 90);
+        assertEquals(0, governor.getSizeLevel());
+        assertTrue(result.getShotsPerSecond() > TARGET * 0.95);
+        assertTrue(result.mQueuedBytes < 10e6);
+    }
+
+    @Test
+    public void verySlowStorageLowersTheSize() {
+        QualityGovernor governor = new QualityGovernor(TARGET, 60, 100, 5, PIXELS.length);
+        Result result = simulate(governor, new double[]{2e6}, 300);
+        assertEquals(60, governor.getQuality());
+        assertTrue(governor.getSizeLevel() > 0);
+        assertTrue(result.mQueuedBytes < 2e6);
+    }
+
+    @Test
+    public void recoversWhenTheStorageSpeedsUp() {
+        QualityGovernor governor = new QualityGovernor(TARGET, 60, 100, 5, PIXELS.length);
+        Result result = simulate(governor, new double[]{80e6, 4e6, 80e6}, 120);
+        assertTrue(result.mMinQuality < 80);
+        assertEquals(100, governor.getQuality());
+        assertEquals(0, governor.getSizeLevel());
+    }
+
+    /**
+     * Prints what the governor decided at each storage speed.
+     */
+    @Ignore("Report, run by hand")
+    @Test
+    public void reportDecisions() {
+        double[][] speeds = {{80e6}, {10e6}, {2e6}, {80e6, 4e6, 80e6}};
+        String[] names = {"80 MB/s", "10 MB/s", "2 MB/s", "80, 4 then 80 MB/s"};
+        int[] seconds = {60, 120, 300, 120};
+        for (int i = 0; i < speeds.length; i++) {
+            QualityGovernor governor = new QualityGovernor(TARGET, 60, 100, 5, PIXELS.length);
+            print(names[i], governor, simulate(governor, speeds[i], seconds[i]));
+        }
+    }
+}
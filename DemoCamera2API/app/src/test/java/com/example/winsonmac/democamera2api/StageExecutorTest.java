@@ -0,0 +1,138 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link StageExecutor}.
+ */
+public class StageExecutorTest {
+
+    @Test
+    public void measuresQueueDepthAndWait() throws InterruptedException {
+        StageExecutor executor = new StageExecutor("Test", 1, 4, Thread.NORM_PRIORITY);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(3, executor.getQueueDepth());
+        Thread.sleep(20);
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(3, done.get());
+        assertEquals(4, executor.getCompleted());
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(3, executor.getMaxQueueDepth());
+        assertEquals(0, executor.getCallerRuns());
+        assertTrue(executor.toString(), executor.getMaxWaitMillis() >= 20);
+        assertTrue(executor.getMaxRunMillis() >= 20);
+    }
+
+    @Test
+    public void countsTheBytesUntilTheTasksAreDone() throws InterruptedException {
+        final StageExecutor executor = new StageExecutor("Test", 1, 4, Thread.NORM_PRIORITY);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final long[] seen = new long[2];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                seen[0] = executor.getQueuedBytes();
+            }
+        }, 1000);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                seen[1] = executor.getQueuedBytes();
+            }
+        }, 300);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        // The running task still counts.
+        assertEquals(1300, executor.getQueuedBytes());
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(1300, seen[0]);
+        assertEquals(300, seen[1]);
+        assertEquals(0, executor.getQueuedBytes());
+    }
+
+    @Test
+    public void runsOnTheCallerWhenFull() throws InterruptedException {
+        StageExecutor executor = new StageExecutor("Test", 1, 1, Thread.NORM_PRIORITY);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        executor.execute(blocking);
+        executor.execute(blocking);
+        final Thread caller = Thread.currentThread();
+        final boolean[] ranOnCaller = new boolean[1];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOnCaller[0] = Thread.currentThread() == caller;
+            }
+        });
+        assertTrue(ranOnCaller[0]);
+        assertEquals(1, executor.getCallerRuns());
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(3, executor.getCompleted());
+
+        try {
+            executor.execute(blocking);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertEquals(0, executor.getQueueDepth());
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ThumbnailCache}.
+ */
+public class ThumbnailCacheTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 24;
+    private static final int BYTES = WIDTH * HEIGHT * 4;
+    /**
+     * A record with its header.
+     */
+    private static final int RECORD = BYTES + 24;
+
+    private File mPack;
+
+    @Before
+    public void setUp() throws IOException {
+        mPack = File.createTempFile("thumbnails", ".pack");
+    }
+
+    @After
+    public void tearDown() {
+        mPack.delete();
+    }
+
+    private static ThumbnailCache.Thumbnail thumbnail(long id) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (int) (0xFF000000 | id * 31 + i);
+        }
+        return new ThumbnailCache.Thumbnail(WIDTH, HEIGHT, pixels);
+    }
+
+    private static void assertThumbnail(long id, ThumbnailCache.Thumbnail thumbnail) {
+        assertNotNull(thumbnail);
+        assertEquals(WIDTH, thumbnail.getWidth());
+        assertEquals(HEIGHT, thumbnail.getHeight());
+        assertArrayEquals(thumbnail(id).getPixels(), thumbnail.getPixels());
+    }
+
+    @Test
+    public void memoryEvictsTheLeastRecentlyUsed() throws IOException {
+        ThumbnailCache cache = ThumbnailCache.open(mPack, 1024 * 1024, 3 * BYTES);
+        for (long id = 0; id < 3; id++) {
+            cache.put(id, thumbnail(id));
+        }
+        assertNotNull(cache.get(0, ThumbnailCache.NO_OFFSET));
+        cache.put(3, thumbnail(3));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3 * BYTES, cache.getMemoryBytes());
+        // 1 was the least recently used, it comes back from the pack.
+        assertThumbnail(1, cache.get(1, ThumbnailCache.NO_OFFSET));
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(1, cache.getPackHits());
+        assertNull(cache.get(42, ThumbnailCache.NO_OFFSET));
+        assertEquals(1, cache.getMisses());
+        cache.close();
+    }
+
+    @Test
+    public void packSurvivesReopening() throws IOException {
+        ThumbnailCache cache = ThumbnailCache.open(mPack, 1024 * 1024, 0);
+        long[] offsets = new long[5];
+        for (int id = 0; id < offsets.length; id++) {
+            offsets[id] = cache.put(id, thumbnail(id));
+        }
+        cache.close();
+
+        cache = ThumbnailCache.open(mPack, 1024 * 1024, 0);
+        // Another picture's offset.
+        assertNull(cache.get(0, offsets[1]));
+        assertNull(cache.get(0, 3));
+        for (int id = 0; id < offsets.length; id++) {
+            assertThumbnail(id, cache.get(id, offsets[id]));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void wrappingOverwritesTheOldest() throws IOException {
+        // Room for 4 records.
+        ThumbnailCache cache = ThumbnailCache.open(mPack, 16 + 4 * RECORD + RECORD / 2, 0);
+        long[] offsets = new long[6];
+        for (int id = 0; id < offsets.length; id++) {
+            offsets[id] = cache.put(id, thumbnail(id));
+        }
+        assertEquals(offsets[0], offsets[4]);
+        assertEquals(offsets[1], offsets[5]);
+        cache.close();
+
+        cache = ThumbnailCache.open(mPack, 16 + 4 * RECORD + RECORD / 2, 0);
+        assertNull(cache.get(0, offsets[0]));
+        assertNull(cache.get(1, offsets[1]));
+        for (int id = 2; id < offsets.length; id++) {
+            assertThumbnail(id, cache.get(id, offsets[id]));
+        }
+        // A different size starts over.
+        cache.close();
+        cache = ThumbnailCache.open(mPack, 1024 * 1024, 0);
+        assertNull(cache.get(5, offsets[5]));
+        cache.close();
+    }
+
+    @Test
+    public void prefetchesTheNeighbours() throws IOException {
+        ThumbnailCache cache = ThumbnailCache.open(mPack, 1024 * 1024, 0);
+        List<CaptureCatalog.Entry> entries = new ArrayList<>();
+        for (int id = 0; id < 10; id++) {
+            long offset = cache.put(id, thumbnail(id));
+            entries.add(new CaptureCatalog.Entry(id, new File("IMG_" + id + ".jpg"), 1000,
+                    4032, 3024, 0, 0, 0, offset));
+        }
+        cache.close();
+
+        cache = ThumbnailCache.open(mPack, 1024 * 1024, 5 * BYTES);
+        assertEquals(5, cache.prefetch(entries, 0, 4));
+        assertEquals(2, cache.prefetch(entries, 5, 1));
+        // 0 and 1, the least recently used, made room for 5 and 6.
+        assertThumbnail(4, cache.get(4, ThumbnailCache.NO_OFFSET));
+        assertThumbnail(6, cache.get(6, ThumbnailCache.NO_OFFSET));
+        assertEquals(2, cache.getMemoryHits());
+        assertEquals(0, cache.getPackHits());
+        assertEquals(2, cache.getEvictions());
+        cache.close();
+    }
+
+    @Test
+    public void readsFromThePack() throws IOException {
+        int count = 500;
+        ThumbnailCache cache = ThumbnailCache.open(mPack, 16 + count * RECORD, 0);
+        long[] offsets = new long[count];
+        for (int id = 0; id < count; id++) {
+            offsets[id] = cache.put(id, thumbnail(id));
+        }
+        cache.close();
+
+        cache = ThumbnailCache.open(mPack, 16 + count * RECORD, (long) count * BYTES);
+        for (int id = 0; id < count; id++) {
+            assertThumbnail(id, cache.get(id, offsets[id]));
+        }
+        for (int id = 0; id < count; id++) {
+            assertThumbnail(id, cache.get(id, offsets[id]));
+        }
+        assertEquals(count, cache.getPackHits());
+        assertEquals(count, cache.getMemoryHits());
+        cache.close();
+    }
+
+    /**
+     * Times reading thumbnails back from the pack against keeping them in memory.
+     */
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkPackAgainstMemory() throws IOException {
+        int count = 500;
+        ThumbnailCache cache = ThumbnailCache.open(mPack, 16 + count * RECORD, 0);
+        long[] offsets = new long[count];
+        long start = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            offsets[id] = cache.put(id, thumbnail(id));
+        }
+        long putNanos = System.nanoTime() - start;
+        cache.close();
+
+        cache = ThumbnailCache.open(mPack, 16 + count * RECORD, (long) count * BYTES);
+        start = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            assertNotNull(cache.get(id, offsets[id]));
+        }
+        long packNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            assertNotNull(cache.get(id, offsets[id]));
+        }
+        long memoryNanos = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US,
+                "%d thumbnails of %dx%d: put %.1f us, pack hit %.1f us, memory hit %.2f us",
+                count, WIDTH, HEIGHT, putNanos / 1e3 / count, packNanos / 1e3 / count,
+                memoryNanos / 1e3 / count));
+        assertEquals(count, cache.getPackHits());
+        assertEquals(count, cache.getMemoryHits());
+        cache.close();
+    }
+}
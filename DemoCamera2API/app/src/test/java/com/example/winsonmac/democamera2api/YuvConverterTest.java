@@ -0,0 +1,296 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link YuvConverter}. Frames are built as the camera lays them out: padded
+ * rows, and chroma either as two planes or as one interleaved VU plane seen twice.
+ */
+public class YuvConverterTest {
+
+    private static final int BENCHMARK_RUNS = 15;
+
+    @Test
+    public void copiesSeparatePlanesToNv21() {
+        Frame frame = new Frame(37, 21, 48, false);
+        byte[] out = new byte[YuvConverter.getNv21Size(37, 21)];
+        YuvConverter converter = new YuvConverter(1);
+        converter.toNv21(frame.y, frame.u, frame.v, frame.rowStride, frame.uvRowStride,
+                frame.uvPixelStride, 37, 21, out);
+        assertArrayEquals(frame.nv21, out);
+    }
+
+    @Test
+    public void copiesInterleavedPlanesToNv21() {
+        for (int rowStride : new int[]{64, 80}) {
+            Frame frame = new Frame(64, 32, rowStride, true);
+            assertTrue(YuvConverter.isInterleavedVu(frame.u, frame.v, 2));
+            byte[] out = new byte[YuvConverter.getNv21Size(64, 32)];
+            new YuvConverter(1).toNv21(frame.y, frame.u, frame.v, frame.rowStride,
+                    frame.uvRowStride, frame.uvPixelStride, 64, 32, out);
+            assertArrayEquals(frame.nv21, out);
+            // The probe has put the byte back.
+            assertArrayEquals(frame.nv21, frame.toNv21Again());
+        }
+    }
+
+    @Test
+    public void tellsSeparatePlanesFromInterleavedOnes() {
+        Frame frame = new Frame(16, 16, 16, false);
+        assertFalse(YuvConverter.isInterleavedVu(frame.u, frame.v, 1));
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{5, 0, 6});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{7, 5, 8});
+        // Same value where the U plane would start, but not the same memory.
+        assertFalse(YuvConverter.isInterleavedVu(u, v, 2));
+        assertFalse(YuvConverter.isInterleavedVu(u, v.asReadOnlyBuffer(), 2));
+    }
+
+    @Test
+    public void planesAndNv21GiveTheSamePixels() {
+        Frame frame = new Frame(50, 30, 64, false);
+        YuvConverter converter = new YuvConverter(1);
+        int[] fromPlanes = new int[50 * 30];
+        int[] fromNv21 = new int[50 * 30];
+        converter.toArgb(frame.y, frame.u, frame.v, frame.rowStride, frame.uvRowStride,
+                frame.uvPixelStride, 50, 30, fromPlanes);
+        converter.nv21ToArgb(frame.nv21, 50, 30, fromNv21);
+        assertArrayEquals(fromPlanes, fromNv21);
+    }
+
+    @Test
+    public void stripesGiveTheSameResult() {
+        Frame frame = new Frame(1280, 720, 1280 + 64, true);
+        YuvConverter serial = new YuvConverter(1);
+        YuvConverter parallel = new YuvConverter(4);
+        int[] expected = new int[1280 * 720];
+        int[] actual = new int[1280 * 720];
+        serial.toArgb(frame.y, frame.u, frame.v, frame.rowStride, frame.uvRowStride,
+                frame.uvPixelStride, 1280, 720, expected);
+        parallel.toArgb(frame.y, frame.u, frame.v, frame.rowStride, frame.uvRowStride,
+                frame.uvPixelStride, 1280, 720, actual);
+        assertArrayEquals(expected, actual);
+
+        parallel.nv21ToArgb(frame.nv21, 1280, 720, actual);
+        assertArrayEquals(expected, actual);
+
+        byte[] nv21 = new byte[YuvConverter.getNv21Size(1280, 720)];
+        parallel.toNv21(frame.y, frame.u, frame.v, frame.rowStride, frame.uvRowStride,
+                frame.uvPixelStride, 1280, 720, nv21);
+        assertArrayEquals(frame.nv21, nv21);
+        parallel.close();
+    }
+
+    @Test
+    public void convertsKnownColors() {
+        assertEquals(0xFF808080, YuvConverter.toArgb(128, 0, 0));
+        assertEquals(0xFFFFFFFF, YuvConverter.toArgb(255, 0, 0));
+        assertEquals(0xFF000000, YuvConverter.toArgb(0, 0, 0));
+        // Pure red in JFIF: Y 76, Cb 85, Cr 255.
+        int red = YuvConverter.toArgb(76, 85 - 128, 255 - 128);
+        assertTrue(((red >> 16) & 0xFF) >= 253);
+        assertTrue(((red >> 8) & 0xFF) <= 2);
+        assertTrue((red & 0xFF) <= 2);
+    }
+
+    @Test
+    public void argbGoesToNv21AndBack() {
+        // Odd sizes, the last block is a single column and row. One color per 2x2 block, which
+        // the chroma subsampling keeps.
+        int width = 7;
+        int height = 5;
+        Random random = new Random(7);
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                int color = 0xFF000000 | random.nextInt(0x1000000);
+                for (int i = 0; i < 4; i++) {
+                    if (x + i % 2 < width && y + i / 2 < height) {
+                        argb[(y + i / 2) * width + x + i % 2] = color;
+                    }
+                }
+            }
+        }
+        byte[] nv21 = new byte[YuvConverter.getNv21Size(width, height)];
+        byte[] luma = new byte[width * height];
+        YuvConverter.argbToLuma(argb, argb.length, luma);
+        System.arraycopy(luma, 0, nv21, 0, luma.length);
+        int vuWidth = 2 * ((width + 1) / 2);
+        byte[] vu = new byte[vuWidth];
+        int[] rows = new int[2 * width];
+        for (int y = 0; y < height; y += 2) {
+            int count = Math.min(2, height - y);
+            System.arraycopy(argb, y * width, rows, 0, count * width);
+            YuvConverter.argbToVu(rows, width, count, vu);
+            System.arraycopy(vu, 0, nv21, width * height + y / 2 * vuWidth, vuWidth);
+        }
+
+        int[] back = new int[width * height];
+        YuvConverter converter = new YuvConverter(1);
+        converter.nv21ToArgb(nv21, width, height, back);
+        converter.close();
+        for (int i = 0; i < argb.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int expected = (argb[i] >> shift) & 0xFF;
+                int actual = (back[i] >> shift) & 0xFF;
+                assertTrue("Pixel " + i, Math.abs(expected - actual) <= 3);
+            }
+        }
+    }
+
+    /**
+     * Prints the median time of each conversion, on one thread and striped over every core, with
+     * the interleaved VU plane the cameras give and with the same bytes as two planes, which
+     * takes the per-pixel path.
+     */
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkSerialAgainstStriped() {
+        int[][] sizes = {{1280, 720}, {1920, 1080}, {3840, 2160}};
+        YuvConverter serial = new YuvConverter(1);
+        YuvConverter striped = YuvConverter.forAllCores();
+        System.out.println(String.format(Locale.US, "%-10s %-12s %8s %8s %8s",
+                "size", "chroma", "threads", "nv21", "argb"));
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            Frame frame = new Frame(width, height, width + 64, true);
+            ByteBuffer[] interleaved = {frame.u, frame.v};
+            // The same bytes, but not the same memory.
+            ByteBuffer[] separate = {copy(frame.u), copy(frame.v)};
+            byte[] nv21 = new byte[YuvConverter.getNv21Size(width, height)];
+            int[] argb = new int[width * height];
+            for (ByteBuffer[] chroma : new ByteBuffer[][]{interleaved, separate}) {
+                for (YuvConverter converter : new YuvConverter[]{serial, striped}) {
+                    long[] nv21Nanos = new long[BENCHMARK_RUNS];
+                    long[] argbNanos = new long[BENCHMARK_RUNS];
+                    for (int run = 0; run < BENCHMARK_RUNS; run++) {
+                        long start = System.nanoTime();
+                        converter.toNv21(frame.y, chroma[0], chroma[1], frame.rowStride,
+                                frame.uvRowStride, frame.uvPixelStride, width, height, nv21);
+                        nv21Nanos[run] = System.nanoTime() - start;
+                        start = System.nanoTime();
+                        converter.toArgb(frame.y, chroma[0], chroma[1], frame.rowStride,
+                                frame.uvRowStride, frame.uvPixelStride, width, height, argb);
+                        argbNanos[run] = System.nanoTime() - start;
+                    }
+                    assertArrayEquals(frame.nv21, nv21);
+                    System.out.println(String.format(Locale.US, "%-10s %-12s %8d %6.2fms %6.2fms",
+                            width + "x" + height, chroma == interleaved ? "interleaved" : "planes",
+                            converter == serial ? 1 : Runtime.getRuntime().availableProcessors(),
+                            median(nv21Nanos) / 1e6, median(argbNanos) / 1e6));
+                }
+            }
+        }
+        serial.close();
+        striped.close();
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortOutput() {
+        new YuvConverter(1).nv21ToArgb(new byte[6], 2, 2, new int[3]);
+    }
+
+    /**
+     * A random frame with its expected NV21 bytes.
+     */
+    private static class Frame {
+
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+        final int rowStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final byte[] nv21;
+        private final int mWidth;
+        private final int mHeight;
+
+        Frame(int width, int height, int rowStride, boolean interleaved) {
+            mWidth = width;
+            mHeight = height;
+            this.rowStride = rowStride;
+            Random random = new Random(width * 31 + height);
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            nv21 = new byte[YuvConverter.getNv21Size(width, height)];
+            random.nextBytes(nv21);
+
+            byte[] luma = new byte[rowStride * height];
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(nv21, row * width, luma, row * rowStride, width);
+            }
+            y = ByteBuffer.wrap(luma);
+
+            int chroma = width * height;
+            if (interleaved) {
+                uvRowStride = rowStride;
+                uvPixelStride = 2;
+                // The last row has no padding, and the V view stops before the last U.
+                byte[] vu = new byte[uvRowStride * (chromaHeight - 1) + 2 * chromaWidth];
+                for (int row = 0; row < chromaHeight; row++) {
+                    System.arraycopy(nv21, chroma + row * 2 * chromaWidth, vu, row * uvRowStride,
+                            2 * chromaWidth);
+                }
+                ByteBuffer whole = ByteBuffer.wrap(vu);
+                whole.limit(vu.length - 1);
+                v = whole.slice();
+                whole.limit(vu.length).position(1);
+                u = whole.slice();
+            } else {
+                uvRowStride = chromaWidth + 3;
+                uvPixelStride = 1;
+                byte[] cb = new byte[uvRowStride * chromaHeight];
+                byte[] cr = new byte[uvRowStride * chromaHeight];
+                for (int row = 0; row < chromaHeight; row++) {
+                    for (int x = 0; x < chromaWidth; x++) {
+                        int index = chroma + (row * chromaWidth + x) * 2;
+                        cr[row * uvRowStride + x] = nv21[index];
+                        cb[row * uvRowStride + x] = nv21[index + 1];
+                    }
+                }
+                u = ByteBuffer.wrap(cb);
+                v = ByteBuffer.wrap(cr);
+            }
+        }
+
+        /**
+         * @return The NV21 bytes read back from the planes, the slow way.
+         */
+        byte[] toNv21Again() {
+            byte[] out = new byte[nv21.length];
+            for (int row = 0; row < mHeight; row++) {
+                for (int x = 0; x < mWidth; x++) {
+                    out[row * mWidth + x] = y.get(row * rowStride + x);
+                }
+            }
+            int index = mWidth * mHeight;
+            for (int row = 0; row < (mHeight + 1) / 2; row++) {
+                for (int x = 0; x < (mWidth + 1) / 2; x++) {
+                    out[index++] = v.get(row * uvRowStride + x * uvPixelStride);
+                    out[index++] = u.get(row * uvRowStride + x * uvPixelStride);
+                }
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.winsonmac.democamera2api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ZoomController}.
+ */
+public class ZoomControllerTest {
+
+    private static final long FRAME = 33000000L;
+
+    @Test
+    public void precomputesCrops() {
+        ZoomController controller = new ZoomController(4000, 3000, 4f);
+        assertEquals(301, controller.getCropCount());
+        assertArrayEquals(new int[]{0, 0, 4000, 3000}, controller.getCrop(0));
+        assertArrayEquals(new int[]{1500, 1125, 2500, 1875}, controller.getCrop(300));
+        assertArrayEquals(new int[]{1000, 750, 3000, 2250}, controller.getCrop(100));
+    }
+
+    @Test
+    public void coalescesTouchEventsToOneRequestPerFrame() {
+        ZoomController controller = new ZoomController(4000, 3000, 4f);
+        long now = 0;
+        int requests = 0;
+        int frames = 0;
+        // Four touch events per frame for a second.
+        for (int i = 0; i < 120; i++) {
+            controller.setTarget(1f + i * 0.02f, now);
+            if (i % 4 == 3) {
+                now += FRAME;
+                frames++;
+                if (controller.onFrame(now)) {
+                    requests++;
+                }
+            }
+        }
+        assertEquals(120, controller.getTargetUpdates());
+        assertEquals(requests, controller.getRequests());
+        assertTrue(requests <= frames);
+    }
+
+    @Test
+    public void reachesTargetSmoothly() {
+        ZoomController controller = new ZoomController(4000, 3000, 4f);
+        controller.setTarget(3f, 0);
+        int previous = 0;
+        int frames = 0;
+        long now = 0;
+        while (controller.onFrame(now += FRAME)) {
+            int index = controller.getCropIndex();
+            assertTrue(index > previous);
+            // Never jumps more than the smoothing allows.
+            assertTrue(index - previous <= 71);
+            previous = index;
+            frames++;
+        }
+        assertEquals(200, controller.getCropIndex());
+        assertTrue(frames > 3);
+        assertFalse(controller.onFrame(now + FRAME));
+    }
+
+    @Test
+    public void clampsTarget() {
+        ZoomController controller = new ZoomController(4000, 3000, 2f);
+        controller.setTarget(10f, 0);
+        assertEquals(2f, controller.getTarget(), 0f);
+        controller.setTarget(0.5f, 0);
+        assertEquals(1f, controller.getTarget(), 0f);
+    }
+
+    @Test
+    public void measuresZoomToFrameLatency() {
+        ZoomController controller = new ZoomController(4000, 3000, 4f);
+        controller.setTarget(1.05f, 1000000L);
+        long now = 1000000L;
+        while (controller.onFrame(now += FRAME)) {
+            // The frame of the previous request comes back.
+            controller.onCropShown(controller.getCropIndex() - 1, now);
+        }
+        assertEquals(0, controller.getMeanLatencyMillis(), 0);
+        controller.onCropShown(controller.getCropIndex(), now + FRAME);
+        assertEquals((now + FRAME - 1000000L) / 1e6, controller.getMeanLatencyMillis(), 0.001);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.winsonmac.democameraapi;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented tests for {@link EncoderBenchmark}, on an encoder whose time, size and memory are
+ * known.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EncoderBenchmarkTest {
+
+    private static final int FRAME_BYTES = 256 * 1024;
+    private static final long WORKING_BYTES = 8 * 1024 * 1024;
+
+    private static List<ByteBuffer> frames() {
+        Random random = new Random(25);
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = new byte[FRAME_BYTES + i];
+            random.nextBytes(bytes);
+            frames.add(ByteBuffer.wrap(bytes));
+        }
+        // A direct buffer, as a mapped file would give.
+        ByteBuffer direct = ByteBuffer.allocateDirect(FRAME_BYTES + 10);
+        direct.put(frames.get(0).duplicate()).flip();
+        frames.add(direct);
+        return frames;
+    }
+
+    /**
+     * Takes a fixed amount of memory on the gauge while it runs, and writes half the input.
+     */
+    private static class HalvingEncoder implements ImageEncoder {
+
+        private final AtomicLong mUsed;
+
+        HalvingEncoder(AtomicLong used) {
+            mUsed = used;
+        }
+
+        @Override
+        public String getName() {
+            return "half";
+        }
+
+        @Override
+        public String getMimeType() {
+            return null;
+        }
+
+        @Override
+        public String getExtension() {
+            return ".half";
+        }
+
+        @Override
+        public boolean isPassthrough() {
+            return false;
+        }
+
+        @Override
+        public long encode(ByteBuffer jpeg, int degrees, OutputStream out) throws IOException {
+            mUsed.addAndGet(WORKING_BYTES);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                mUsed.addAndGet(-WORKING_BYTES);
+            }
+            out.write(new byte[jpeg.remaining() / 2]);
+            return jpeg.remaining() / 2;
+        }
+    }
+
+    @Test
+    public void reportsSizeTimeAndMemory() throws IOException {
+        final AtomicLong used = new AtomicLong(1000);
+        EncoderBenchmark benchmark = new EncoderBenchmark(1, 3,
+                new EncoderBenchmark.MemoryGauge() {
+                    @Override
+                    public long getUsedBytes() {
+                        return used.get();
+                    }
+                });
+        List<ByteBuffer> frames = frames();
+        List<EncoderBenchmark.Result> results = benchmark.run(Arrays.<ImageEncoder>asList(
+                new JpegPassthroughEncoder(), new HalvingEncoder(used)), frames);
+
+        EncoderBenchmark.Result passthrough = results.get(0);
+        assertEquals("jpeg", passthrough.getName());
+        assertEquals(12, passthrough.getEncodes());
+        assertEquals(1.0, passthrough.getSizeRatio(), 1e-9);
+        assertEquals(0, passthrough.getPeakMemoryBytes());
+
+        EncoderBenchmark.Result half = results.get(1);
+        assertEquals(0.5, half.getSizeRatio(), 0.01);
+        assertEquals(WORKING_BYTES, half.getPeakMemoryBytes());
+        assertTrue(half.getMedianNanos() >= 5000000);
+        assertTrue(half.getP95Nanos() >= half.getMedianNanos());
+        // The frames are left as they were.
+        assertEquals(FRAME_BYTES, frames.get(0).remaining());
+    }
+}
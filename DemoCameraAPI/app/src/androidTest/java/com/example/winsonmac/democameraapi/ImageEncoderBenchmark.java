@@ -0,0 +1,96 @@
+package com.example.winsonmac.democameraapi;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the encoder of every capture profile on the same reference frames and reports the encode
+ * time, the output size and the peak memory of each.
+ * <p>
+ * The frames are made up rather than shot, so that every device encodes the same pixels: smooth
+ * gradients as of a sky, sharp edges and sensor-like noise, saved as the camera would at quality
+ * 95.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageEncoderBenchmark {
+
+    private static final String TAG = "ImageEncoderBenchmark";
+    private static final int[][] FRAME_SIZES = {{1920, 1080}, {3264, 2448}};
+    private static final int CAMERA_QUALITY = 95;
+    private static final int ENCODER_QUALITY = 85;
+
+    /**
+     * The Java heap plus the native one, which holds the pixels of a Bitmap from Android 8.0.
+     */
+    private static final EncoderBenchmark.MemoryGauge HEAP_AND_NATIVE =
+            new EncoderBenchmark.MemoryGauge() {
+                @Override
+                public long getUsedBytes() {
+                    return EncoderBenchmark.JAVA_HEAP.getUsedBytes()
+                            + Debug.getNativeHeapAllocatedSize();
+                }
+            };
+
+    @Test
+    public void everyProfileOnTheReferenceFrames() throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>();
+        long nv21Bytes = 0;
+        for (int[] size : FRAME_SIZES) {
+            frames.add(referenceFrame(size[0], size[1]));
+            nv21Bytes += YuvConverter.getNv21Size(size[0], size[1]);
+        }
+        EncoderBenchmark benchmark = new EncoderBenchmark(1, 3, HEAP_AND_NATIVE);
+        List<EncoderBenchmark.Result> results = benchmark.run(
+                ImageEncoders.all(ENCODER_QUALITY), frames);
+        Log.i(TAG, "Encoders on " + frames.size() + " frames\n"
+                + EncoderBenchmark.format(results));
+
+        for (EncoderBenchmark.Result result : results) {
+            assertTrue(result.getName(), result.getOutputBytes() > 0);
+            if ("jpeg".equals(result.getName())) {
+                assertEquals(1.0, result.getSizeRatio(), 1e-9);
+            } else if ("nv21".equals(result.getName())) {
+                assertEquals(nv21Bytes / frames.size(), result.getOutputBytes());
+            }
+        }
+    }
+
+    private static ByteBuffer referenceFrame(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Random random = new Random(width);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * y / height;
+                int g = 128 + 127 * x / width * ((x / 256 + y / 256) % 2 == 0 ? 1 : -1);
+                int b = 255 - 255 * (x + y) / (width + height);
+                int noise = random.nextInt(9) - 4;
+                row[x] = 0xFF000000 | clamp(r + noise) << 16 | clamp(g + noise) << 8
+                        | clamp(b + noise);
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, CAMERA_QUALITY, jpeg));
+        bitmap.recycle();
+        return ByteBuffer.wrap(jpeg.toByteArray());
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.winsonmac.democameraapi;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saves the same portrait picture the three ways onPictureTaken can, and reports the save time
+ * and the peak memory of each: the EXIF Orientation tag alone, the lossless rotation of the
+ * coefficients, and the decode, rotate and re-encode of the pixels.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RotationBenchmark {
+
+    private static final String TAG = "RotationBenchmark";
+    private static final int WIDTH = 3264;
+    private static final int HEIGHT = 2448;
+    private static final int QUALITY = 95;
+    private static final int RUNS = 5;
+
+    private interface Mode {
+        void save(byte[] jpeg, OutputStream out) throws IOException;
+    }
+
+    @Test
+    public void exifTagAgainstRotatedPixels() throws Exception {
+        byte[] jpeg = referenceFrame();
+        File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "rotation.jpg");
+        String[] names = {"exif-tag", "lossless", "re-encode"};
+        Mode[] modes = {
+                new Mode() {
+                    @Override
+                    public void save(byte[] jpeg, OutputStream out) throws IOException {
+                        new ExifBuilder().setOrientation(ExifBuilder.ORIENTATION_ROTATE_90)
+                                .write(jpeg, out);
+                    }
+                },
+                new Mode() {
+                    @Override
+                    public void save(byte[] jpeg, OutputStream out) throws IOException {
+                        JpegRotator.rotate(jpeg, 90, out);
+                    }
+                },
+                new Mode() {
+                    @Override
+                    public void save(byte[] jpeg, OutputStream out) throws IOException {
+                        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+                        Matrix matrix = new Matrix();
+                        matrix.postRotate(90);
+                        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                                bitmap.getHeight(), matrix, true);
+                        bitmap.recycle();
+                        assertTrue(rotated.compress(Bitmap.CompressFormat.JPEG, QUALITY, out));
+                        rotated.recycle();
+                    }
+                }
+        };
+
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%dx%d JPEG of %d KB, median of %d saves\n", WIDTH, HEIGHT, jpeg.length / 1024,
+                RUNS));
+        for (int m = 0; m < modes.length; m++) {
+            long[] millis = new long[RUNS];
+            long peak = 0;
+            long size = 0;
+            for (int run = 0; run < RUNS; run++) {
+                Runtime.getRuntime().gc();
+                long base = getUsedBytes();
+                MemoryPoller poller = new MemoryPoller();
+                poller.start();
+                long start = System.nanoTime();
+                FileOutputStream output = new FileOutputStream(file);
+                try {
+                    OutputStream buffered = new BufferedOutputStream(output);
+                    modes[m].save(jpeg, buffered);
+                    buffered.flush();
+                    output.getFD().sync();
+                    size = output.getChannel().position();
+                } finally {
+                    output.close();
+                }
+                millis[run] = (System.nanoTime() - start) / 1000000;
+                peak = Math.max(peak, poller.finish() - base);
+            }
+            Arrays.sort(millis);
+            report.append(String.format(Locale.US, "%-10s %6d ms %8.1f MB peak %7d KB\n",
+                    names[m], millis[RUNS / 2], peak / 1e6, size / 1024));
+            assertTrue(names[m], size > 0);
+        }
+        Log.i(TAG, report.toString());
+        file.delete();
+    }
+
+    /**
+     * The Java heap plus the native one, which holds the pixels of a Bitmap from Android 8.0.
+     */
+    private static long getUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    /**
+     * Samples the used memory every millisecond, the peak of a decode lasts no longer than it.
+     */
+    private static class MemoryPoller extends Thread {
+        private volatile boolean mStopped;
+        private long mPeak;
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                mPeak = Math.max(mPeak, getUsedBytes());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            mStopped = true;
+            join();
+            return Math.max(mPeak, getUsedBytes());
+        }
+    }
+
+    /**
+     * Gradients, sharp edges and sensor-like noise, as the camera would save them.
+     */
+    private static byte[] referenceFrame() {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(WIDTH);
+        int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = 255 * y / HEIGHT;
+                int g = (x / 256 + y / 256) % 2 == 0 ? 200 : 60;
+                int b = 255 - 255 * (x + y) / (WIDTH + HEIGHT);
+                int noise = random.nextInt(9) - 4;
+                row[x] = 0xFF000000 | clamp(r + noise) << 16 | clamp(g + noise) << 8
+                        | clamp(b + noise);
+            }
+            bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, jpeg));
+        bitmap.recycle();
+        return jpeg.toByteArray();
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
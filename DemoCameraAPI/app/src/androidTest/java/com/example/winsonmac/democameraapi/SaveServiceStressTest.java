@@ -0,0 +1,132 @@
+package com.example.winsonmac.democameraapi;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hands pictures over from the main thread back to back, each as soon as the last one is taken,
+ * as a burst of takePicture calls would, and reports the save throughput, the peak heap and the
+ * longest the main thread was held up.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaveServiceStressTest {
+
+    private static final String TAG = "SaveServiceStress";
+    private static final int PICTURES = 40;
+    private static final int PICTURE_BYTES = 3 * 1024 * 1024;
+    private static final long QUEUE_BYTES = 4L * PICTURE_BYTES;
+
+    @Test
+    public void rapidPicturesStayWithinTheByteLimit() throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        final File dir = new File(context.getCacheDir(), "stress");
+        dir.mkdirs();
+        final SaveService service = new SaveService(2, QUEUE_BYTES, SaveService.Policy.BLOCK);
+        final CountDownLatch done = new CountDownLatch(PICTURES);
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong peakHeap = new AtomicLong();
+        final AtomicLong longestHandOff = new AtomicLong();
+        final Runtime runtime = Runtime.getRuntime();
+        final long baseHeap = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = System.nanoTime();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                submit(0);
+            }
+
+            private void submit(final int i) {
+                // What onPictureTaken hands over: a fresh JPEG sized array for every shot.
+                final byte[] data = new byte[PICTURE_BYTES];
+                data[0] = (byte) i;
+                final File file = new File(dir, "picture" + i + ".jpg");
+                updatePeak(peakHeap, runtime);
+                long handOff = System.nanoTime();
+                service.submitLater(data.length, new SaveService.Job() {
+                    private byte[] mData = data;
+
+                    @Override
+                    public String save() throws Exception {
+                        byte[] bytes = mData;
+                        mData = null;
+                        FileOutputStream output = new FileOutputStream(file);
+                        try {
+                            output.write(bytes);
+                            output.getFD().sync();
+                        } finally {
+                            output.close();
+                        }
+                        updatePeak(peakHeap, runtime);
+                        return file.getPath();
+                    }
+
+                    @Override
+                    public void onSaved(String path, Exception error) {
+                        if (null == path) {
+                            failed.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }, new SaveService.SubmitCallback() {
+                    @Override
+                    public void onSubmitted(boolean accepted) {
+                        if (!accepted) {
+                            failed.incrementAndGet();
+                            done.countDown();
+                        }
+                        // The shutter is free again.
+                        if (i + 1 < PICTURES) {
+                            submit(i + 1);
+                        }
+                    }
+                });
+                handOff = System.nanoTime() - handOff;
+                if (handOff > longestHandOff.get()) {
+                    longestHandOff.set(handOff);
+                }
+            }
+        });
+        // The last results are delivered on the main thread once it is free again.
+        assertTrue(done.await(120, TimeUnit.SECONDS));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        service.shutdown();
+
+        Log.i(TAG, String.format(Locale.US,
+                "%d pictures of %d KB in %.2f s: %.1f pictures/s, peak heap +%.1f MB, "
+                        + "main thread held up %.1f ms at most, %s",
+                PICTURES, PICTURE_BYTES / 1024, seconds, PICTURES / seconds,
+                (peakHeap.get() - baseHeap) / 1e6, longestHandOff.get() / 1e6, service));
+        assertEquals(0, failed.get());
+        assertEquals(PICTURES, service.getSaved());
+        assertTrue(service.getPeakQueuedBytes() <= QUEUE_BYTES);
+        // The waits for room were on the hand-off thread, never a frame long on the main one.
+        assertTrue(longestHandOff.get() < 16000000L);
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+    }
+
+    private static void updatePeak(AtomicLong peak, Runtime runtime) {
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long previous;
+        do {
+            previous = peak.get();
+        } while (used > previous && !peak.compareAndSet(previous, used));
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.winsonmac.democameraapi;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The part of a camera's parameters the preview needs, small enough to be stored and read back
+ * at the next start instead of parsing the parameters again.
+ * <p>
+ * Sizes are kept as width and height pairs: {w0, h0, w1, h1, ...}.
+ */
+public class CameraCapabilities {
+
+    /**
+     * Changed whenever the stored format changes, older entries are then ignored.
+     */
+    static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_ID = "id";
+    private static final String KEY_PREVIEW_SIZES = "previewSizes";
+    private static final String KEY_FOCUS_MODES = "focusModes";
+    private static final String KEY_MAX_METERING_AREAS = "maxMeteringAreas";
+    private static final String KEY_MAX_ZOOM = "maxZoom";
+    private static final String KEY_SMOOTH_ZOOM = "smoothZoom";
+    private static final String PREFIX_CHOICE = "choice.";
+
+    private final int mCameraId;
+    private final int[] mPreviewSizes;
+    private final String[] mFocusModes;
+    private final int mMaxMeteringAreas;
+    private final int mMaxZoom;
+    private final boolean mSmoothZoomSupported;
+
+    /**
+     * Sizes already picked for a given request, see {@link #getChoice}.
+     */
+    private final Map<String, int[]> mChoices = new HashMap<>();
+
+    public CameraCapabilities(int cameraId, int[] previewSizes, String[] focusModes,
+                              int maxMeteringAreas, int maxZoom, boolean smoothZoomSupported) {
+        mCameraId = cameraId;
+        mPreviewSizes = previewSizes;
+        mFocusModes = focusModes;
+        mMaxMeteringAreas = maxMeteringAreas;
+        mMaxZoom = maxZoom;
+        mSmoothZoomSupported = smoothZoomSupported;
+    }
+
+    public int getCameraId() {
+        return mCameraId;
+    }
+
+    public int[] getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    public boolean isFocusModeSupported(String mode) {
+        for (String supported : mFocusModes) {
+            if (supported.equals(mode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMaxMeteringAreas() {
+        return mMaxMeteringAreas;
+    }
+
+    /**
+     * @return The highest zoom index, 0 when zoom is not supported.
+     */
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    public boolean isSmoothZoomSupported() {
+        return mSmoothZoomSupported;
+    }
+
+    /**
+     * A size picked earlier for the same request, so that the selection doesn't run again.
+     *
+     * @param key Everything the selection depends on, e.g. the view size.
+     * @return {width, height}, or null if none has been stored yet.
+     */
+    public synchronized int[] getChoice(String key) {
+        return mChoices.get(key);
+    }
+
+    public synchronized void putChoice(String key, int width, int height) {
+        mChoices.put(key, new int[]{width, height});
+    }
+
+    /**
+     * @return A text form of the capabilities, read back by {@link #decode}.
+     */
+    public synchronized String encode() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_VERSION, String.valueOf(VERSION));
+        properties.setProperty(KEY_ID, String.valueOf(mCameraId));
+        properties.setProperty(KEY_PREVIEW_SIZES, join(mPreviewSizes));
+        StringBuilder focusModes = new StringBuilder();
+        for (int i = 0; i < mFocusModes.length; i++) {
+            if (i > 0) {
+                focusModes.append(',');
+            }
+            focusModes.append(mFocusModes[i]);
+        }
+        properties.setProperty(KEY_FOCUS_MODES, focusModes.toString());
+        properties.setProperty(KEY_MAX_METERING_AREAS, String.valueOf(mMaxMeteringAreas));
+        properties.setProperty(KEY_MAX_ZOOM, String.valueOf(mMaxZoom));
+        properties.setProperty(KEY_SMOOTH_ZOOM, String.valueOf(mSmoothZoomSupported));
+        for (Map.Entry<String, int[]> choice : mChoices.entrySet()) {
+            properties.setProperty(PREFIX_CHOICE + choice.getKey(), join(choice.getValue()));
+        }
+        StringWriter writer = new StringWriter();
+        try {
+            properties.store(writer, null);
+        } catch (IOException e) {
+            // Not with a StringWriter.
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return The capabilities, or null if the text is not understood or comes from another
+     * version.
+     */
+    public static CameraCapabilities decode(String text) {
+        if (null == text) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(text));
+            if (!String.valueOf(VERSION).equals(properties.getProperty(KEY_VERSION))) {
+                return null;
+            }
+            int[] previewSizes = split(properties.getProperty(KEY_PREVIEW_SIZES));
+            String focusModes = properties.getProperty(KEY_FOCUS_MODES);
+            if (previewSizes.length % 2 != 0 || null == focusModes) {
+                return null;
+            }
+            CameraCapabilities capabilities = new CameraCapabilities(
+                    Integer.parseInt(properties.getProperty(KEY_ID)), previewSizes,
+                    focusModes.isEmpty() ? new String[0] : focusModes.split(","),
+                    Integer.parseInt(properties.getProperty(KEY_MAX_METERING_AREAS)),
+                    Integer.parseInt(properties.getProperty(KEY_MAX_ZOOM)),
+                    Boolean.parseBoolean(properties.getProperty(KEY_SMOOTH_ZOOM)));
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(PREFIX_CHOICE)) {
+                    int[] size = split(properties.getProperty(key));
+                    if (size.length == 2) {
+                        capabilities.putChoice(key.substring(PREFIX_CHOICE.length()), size[0], size[1]);
+                    }
+                }
+            }
+            return capabilities;
+        } catch (IOException | RuntimeException e) {
+            // NumberFormatException, NullPointerException: a damaged entry is a missing one.
+            return null;
+        }
+    }
+
+    private static String join(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static int[] split(String text) {
+        if (null == text) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        if (text.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = text.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
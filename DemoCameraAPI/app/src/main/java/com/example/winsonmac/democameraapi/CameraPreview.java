@@ -26,6 +26,11 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     private Camera mCamera;
     private Context mContext;
     private int mCameraType;
+    private CapabilityCache mCapabilityCache;
+    private CameraSettings<Parameters> mSettings;
+    private StartupTimer mStartupTimer;
+    private PreviewFramePool mFramePool;
+    private boolean mWaitingFirstFrame;     // The startup timer has the preview callback.
 
     private float maximumZoomLevel;
     private float zoomLevel;
@@ -35,11 +40,58 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         super(context);
         this.mContext = context;
         this.mCameraType = cameraType;
+        this.mCapabilityCache = new CapabilityCache(context);
         setUpPreview(camera);
     }
 
+    /**
+     * @return The parameters of the camera, changes made through it are batched.
+     */
+    public CameraSettings<Parameters> getSettings() {
+        return mSettings;
+    }
+
+    /**
+     * @param timer Started when the camera was requested, finished at the first preview frame.
+     */
+    public void setStartupTimer(StartupTimer timer) {
+        mStartupTimer = timer;
+    }
+
+    /**
+     * @param pool Receives the preview frames once the preview runs, the caller detaches it
+     *             before releasing the camera.
+     */
+    public void setFramePool(PreviewFramePool pool) {
+        mFramePool = pool;
+    }
+
+    /**
+     * Gives the buffers back to the camera after the preview was restarted, e.g. by a picture.
+     */
+    public void onPreviewRestarted() {
+        startFrameCallbacks();
+    }
+
+    /**
+     * Hands the buffers of the frame pool to the camera, sized for the preview size the camera
+     * actually uses. The camera has a single preview callback, so this waits for the one-shot
+     * callback of the startup timer.
+     */
+    private void startFrameCallbacks() {
+        if (mFramePool == null || mWaitingFirstFrame) {
+            return;
+        }
+        Parameters params = mSettings.get();
+        Size size = params.getPreviewSize();
+        // Clears the buffers the camera still has, they are all given again.
+        mFramePool.detach();
+        mFramePool.attach(mCamera, size.width, size.height, params.getPreviewFormat());
+    }
+
     private void setUpPreview(Camera camera) {
         mCamera = camera;
+        mSettings = CameraSettings.forCamera(camera);
 
         // Setup holder for handling callback event
         mHolder = getHolder();
@@ -50,25 +102,42 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     }
 
     private void setUpCameraFeatures() {
-        // Get the camera device supported preview size
-        List<Size> supportSizeList = mCamera.getParameters().getSupportedPreviewSizes();
-        if (supportSizeList != null) {
-            Size supportedPreviewSize = getOptimalPreviewSize(mCamera.getParameters().getSupportedPreviewSizes(), getWidth(), getHeight());
-            mHolder.setFixedSize(supportedPreviewSize.width, supportedPreviewSize.height);
+        // The local copy of the parameters, fetched once. What the camera supports comes from an
+        // earlier start when it has been stored, it is only parsed out of the parameters the
+        // first time.
+        Parameters params = mSettings.edit();
+        CameraCapabilities capabilities = mCapabilityCache.load(mCameraType);
+        if (mStartupTimer != null) {
+            mStartupTimer.setMode(capabilities == null ? "capabilities queried" : "capabilities cached");
+        }
+        if (capabilities == null) {
+            capabilities = readCapabilities(mCameraType, params);
+            mCapabilityCache.save(capabilities);
         }
 
-        // Set auto focus
-        Parameters params = mCamera.getParameters();
+        // Get the camera device supported preview size
+        String choiceKey = getWidth() + "x" + getHeight();
+        int[] previewSize = capabilities.getChoice(choiceKey);
+        if (previewSize == null) {
+            previewSize = getOptimalPreviewSize(capabilities.getPreviewSizes(), getWidth(), getHeight());
+            if (previewSize != null) {
+                capabilities.putChoice(choiceKey, previewSize[0], previewSize[1]);
+                mCapabilityCache.save(capabilities);
+            }
+        }
+        if (previewSize != null) {
+            mHolder.setFixedSize(previewSize[0], previewSize[1]);
+        }
 
         // Check either device support or not
-        if (params.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+        if (capabilities.isFocusModeSupported(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
             params.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
         } else {
             params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
         }
 
         // Set focus area when touching on the preview
-        if (params.getMaxNumMeteringAreas() > 0) { // check that metering areas are supported
+        if (capabilities.getMaxMeteringAreas() > 0) { // check that metering areas are supported
             List<Camera.Area> meteringAreas = new ArrayList<Area>();
 
             Rect areaRect1 = new Rect(-100, -100, 100, 100);    // specify an area in center of image
@@ -78,15 +147,29 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
             params.setMeteringAreas(meteringAreas);
         }
 
-        // Set captured image format
-        params.setPictureSize(1920, 1080);
+        // Set captured image format, its size and quality are the QualityGovernor's
         params.setPictureFormat(PixelFormat.JPEG);
-        params.setJpegQuality(100);
 
-        maximumZoomLevel = params.getMaxZoom();
+        maximumZoomLevel = capabilities.getMaxZoom();
 
         // Setup camera features
-        mCamera.setParameters(params);
+        mSettings.flush();
+        startFrameCallbacks();
+    }
+
+    private static CameraCapabilities readCapabilities(int cameraId, Parameters params) {
+        List<Size> sizes = params.getSupportedPreviewSizes();
+        int[] previewSizes = new int[sizes == null ? 0 : sizes.size() * 2];
+        for (int i = 0; i < previewSizes.length / 2; i++) {
+            previewSizes[2 * i] = sizes.get(i).width;
+            previewSizes[2 * i + 1] = sizes.get(i).height;
+        }
+        List<String> focusModes = params.getSupportedFocusModes();
+        return new CameraCapabilities(cameraId, previewSizes,
+                focusModes == null ? new String[0] : focusModes.toArray(new String[focusModes.size()]),
+                params.getMaxNumMeteringAreas(),
+                params.isZoomSupported() ? params.getMaxZoom() : 0,
+                params.isSmoothZoomSupported());
     }
 
     @Override
@@ -94,6 +177,21 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         try {
             mCamera.setPreviewDisplay(holder);
             updateCameraOrientation();
+            if (mStartupTimer != null && mStartupTimer.isRunning()) {
+                mWaitingFirstFrame = true;
+                mCamera.setOneShotPreviewCallback(new PreviewCallback() {
+                    @Override
+                    public void onPreviewFrame(byte[] data, Camera camera) {
+                        String startup = mStartupTimer.finish("first frame");
+                        if (startup != null) {
+                            Log.i(TAG, startup);
+                        }
+                        // The frames are processed from the next one on.
+                        mWaitingFirstFrame = false;
+                        startFrameCallbacks();
+                    }
+                });
+            }
             mCamera.startPreview();
             setUpCameraFeatures();
         } catch (IOException exception) {
@@ -118,14 +216,14 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
 
         try {
-            // make any resize, rotate or reformatting changes here
-            Camera.Parameters parameters = mCamera.getParameters();
-            mCamera.setParameters(parameters);
+            // make any resize, rotate or reformatting changes here, only what has changed is sent
+            mSettings.flush();
             updateCameraOrientation();
 
             // start preview with new settings
             mCamera.setPreviewDisplay(mHolder);
             mCamera.startPreview();
+            startFrameCallbacks();
         } catch (Exception e) {
             Log.d("DG_DEBUG", "Error starting camera preview: " + e.getMessage());
         }
@@ -139,7 +237,6 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         try {
-            Parameters params = mCamera.getParameters();
             float currentFingerSpacing;
 
             if (event.getPointerCount() == 2) { //Multi touch.
@@ -157,8 +254,8 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
                         }
                         zoomLevel = zoomLevel - delta;
                     }
-                    params.setZoom((int) zoomLevel);
-                    mCamera.setParameters(params);
+                    // Batched with the other changes of this frame, or smooth zoomed
+                    mSettings.setZoom((int) zoomLevel);
                 }
                 fingerSpacing = currentFingerSpacing;
             } else { //Single touch point, needs to return true in order to detect one more touch point
@@ -171,37 +268,41 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
     }
 
-    private Size getOptimalPreviewSize(List<Size> sizes, int w, int h) {
+    /**
+     * @param sizes Width and height pairs.
+     * @return {width, height}, or null if there is no size.
+     */
+    private int[] getOptimalPreviewSize(int[] sizes, int w, int h) {
         final double ASPECT_TOLERANCE = 0.1;
         double targetRatio = (double) w / h;
-        if (sizes == null) return null;
+        if (sizes.length == 0) return null;
 
-        Camera.Size optimalSize = null;
+        int optimalSize = -1;
         double minDiff = Double.MAX_VALUE;
 
         int targetHeight = h;
 
         // Try to find an size match aspect ratio and size
-        for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
+        for (int i = 0; i < sizes.length; i += 2) {
+            double ratio = (double) sizes[i] / sizes[i + 1];
             if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
+            if (Math.abs(sizes[i + 1] - targetHeight) < minDiff) {
+                optimalSize = i;
+                minDiff = Math.abs(sizes[i + 1] - targetHeight);
             }
         }
 
         // Cannot find the one match the aspect ratio, ignore the requirement
-        if (optimalSize == null) {
+        if (optimalSize < 0) {
             minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
+            for (int i = 0; i < sizes.length; i += 2) {
+                if (Math.abs(sizes[i + 1] - targetHeight) < minDiff) {
+                    optimalSize = i;
+                    minDiff = Math.abs(sizes[i + 1] - targetHeight);
                 }
             }
         }
-        return optimalSize;
+        return new int[]{sizes[optimalSize], sizes[optimalSize + 1]};
     }
 
     public void updateCameraOrientation() {
@@ -0,0 +1,399 @@
+package com.example.winsonmac.democameraapi;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Keeps a local copy of the camera's parameters, so that reading them costs no round trip to the
+ * camera service, and sends the changes in one batch at the next display frame.
+ * <p>
+ * {@link Camera#getParameters()} and {@link Camera#setParameters} both serialize every parameter
+ * through the camera service. Here the parameters are fetched once, changes made to the copy are
+ * compared with what the camera already has, and only a real difference leads to a single
+ * setParameters call, however many changes were made during the frame. Zoom goes through
+ * {@link Camera#startSmoothZoom} when the device supports it.
+ * <p>
+ * Must be used on the thread which opened the camera, which has to be a looper thread.
+ *
+ * @param <P> The parameters, {@link Parameters} of a real camera, see {@link #forCamera}.
+ */
+public class CameraSettings<P> implements Choreographer.FrameCallback,
+        Camera.OnZoomChangeListener {
+
+    private static final String TAG = "CameraSettings";
+
+    /**
+     * Every call the settings make to the camera, and the few parameters they read themselves,
+     * so that the batching can be checked without a device.
+     */
+    interface Device<P> {
+
+        P getParameters();
+
+        /**
+         * @throws RuntimeException If the camera refuses one of the values.
+         */
+        void setParameters(P parameters);
+
+        String flatten(P parameters);
+
+        /**
+         * @return The highest zoom index, or -1 if the camera can't zoom.
+         */
+        int getMaxZoom(P parameters);
+
+        int getZoom(P parameters);
+
+        void setZoom(P parameters, int zoom);
+
+        boolean isSmoothZoomSupported(P parameters);
+
+        void setZoomChangeListener(Camera.OnZoomChangeListener listener);
+
+        void startSmoothZoom(int zoom);
+
+        void stopSmoothZoom();
+
+        /**
+         * Call back at the next display frame.
+         */
+        void postFrameCallback(Choreographer.FrameCallback callback);
+
+        void removeFrameCallback(Choreographer.FrameCallback callback);
+    }
+
+    private final Device<P> mDevice;
+    private P mParameters;              // Local copy, changes not flushed yet included.
+    private String mApplied;            // What the camera has, flattened.
+    private boolean mFlushScheduled;
+    private boolean mClosed;
+
+    // Smooth zoom
+    private boolean mSmoothZoom;
+    private boolean mZooming;
+    private int mZoomTarget = -1;
+
+    // Metrics
+    private final long mStartNanos = System.nanoTime();
+    private long mEdits;
+    private long mGets;
+    private long mSets;
+    private long mChangedKeys;
+    private long mRefused;
+    private long mSmoothZooms;
+
+    CameraSettings(Device<P> device) {
+        mDevice = device;
+    }
+
+    /**
+     * @return The settings of the given camera.
+     */
+    public static CameraSettings<Parameters> forCamera(final Camera camera) {
+        return new CameraSettings<>(new Device<Parameters>() {
+            @Override
+            public Parameters getParameters() {
+                return camera.getParameters();
+            }
+
+            @Override
+            public void setParameters(Parameters parameters) {
+                try {
+                    camera.setParameters(parameters);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Parameters refused", e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public String flatten(Parameters parameters) {
+                return parameters.flatten();
+            }
+
+            @Override
+            public int getMaxZoom(Parameters parameters) {
+                return parameters.isZoomSupported() ? parameters.getMaxZoom() : -1;
+            }
+
+            @Override
+            public int getZoom(Parameters parameters) {
+                return parameters.getZoom();
+            }
+
+            @Override
+            public void setZoom(Parameters parameters, int zoom) {
+                parameters.setZoom(zoom);
+            }
+
+            @Override
+            public boolean isSmoothZoomSupported(Parameters parameters) {
+                return parameters.isSmoothZoomSupported();
+            }
+
+            @Override
+            public void setZoomChangeListener(Camera.OnZoomChangeListener listener) {
+                camera.setZoomChangeListener(listener);
+            }
+
+            @Override
+            public void startSmoothZoom(int zoom) {
+                camera.startSmoothZoom(zoom);
+            }
+
+            @Override
+            public void stopSmoothZoom() {
+                camera.stopSmoothZoom();
+            }
+
+            @Override
+            public void postFrameCallback(Choreographer.FrameCallback callback) {
+                Choreographer.getInstance().postFrameCallback(callback);
+            }
+
+            @Override
+            public void removeFrameCallback(Choreographer.FrameCallback callback) {
+                Choreographer.getInstance().removeFrameCallback(callback);
+            }
+        });
+    }
+
+    /**
+     * @return The local copy, without any round trip once it has been fetched. Don't modify it,
+     * use {@link #edit()} for that.
+     */
+    public P get() {
+        if (null == mParameters) {
+            fetch();
+        }
+        return mParameters;
+    }
+
+    /**
+     * @return The local copy, to be modified. The changes are sent at the next frame, or by
+     * {@link #flush()}.
+     */
+    public P edit() {
+        P parameters = get();
+        mEdits++;
+        scheduleFlush();
+        return parameters;
+    }
+
+    /**
+     * Zooms to the given index, smoothly when the device can. Calls made while a smooth zoom is
+     * running only move its end, the next one starts from there.
+     */
+    public void setZoom(int zoom) {
+        P parameters = get();
+        int maxZoom = mDevice.getMaxZoom(parameters);
+        if (maxZoom < 0) {
+            return;
+        }
+        zoom = Math.max(0, Math.min(maxZoom, zoom));
+        mEdits++;
+        if (!mSmoothZoom) {
+            if (mDevice.getZoom(parameters) != zoom) {
+                mDevice.setZoom(parameters, zoom);
+                scheduleFlush();
+            }
+            return;
+        }
+        mZoomTarget = zoom;
+        if (!mZooming) {
+            startSmoothZoom();
+        }
+    }
+
+    /**
+     * Sends the pending changes now, if there are any. Needed before the camera uses them, e.g.
+     * before taking a picture.
+     */
+    public void flush() {
+        if (mFlushScheduled) {
+            mDevice.removeFrameCallback(this);
+            mFlushScheduled = false;
+        }
+        if (mClosed || null == mParameters) {
+            return;
+        }
+        String flattened = mDevice.flatten(mParameters);
+        if (flattened.equals(mApplied)) {
+            return;
+        }
+        int changed = countChangedKeys(mApplied, flattened);
+        try {
+            mDevice.setParameters(mParameters);
+            mSets++;
+            mChangedKeys += changed;
+            mApplied = flattened;
+        } catch (RuntimeException e) {
+            // One of the values was refused, the copy no longer matches the camera.
+            mRefused++;
+            fetch();
+        }
+    }
+
+    /**
+     * Stops sending anything, before the camera is released.
+     */
+    public void close() {
+        if (mFlushScheduled) {
+            mDevice.removeFrameCallback(this);
+            mFlushScheduled = false;
+        }
+        if (mZooming) {
+            try {
+                mDevice.stopSmoothZoom();
+            } catch (RuntimeException e) {
+                // Already stopped or released.
+            }
+        }
+        mClosed = true;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFlushScheduled = false;
+        flush();
+    }
+
+    @Override
+    public void onZoomChange(int zoomValue, boolean stopped, Camera camera) {
+        if (mClosed || null == mParameters) {
+            return;
+        }
+        // The camera has the new value already, keep the copy in sync without sending it back.
+        mDevice.setZoom(mParameters, zoomValue);
+        mApplied = withValue(mApplied, "zoom", String.valueOf(zoomValue));
+        if (stopped) {
+            mZooming = false;
+            if (mZoomTarget >= 0 && mZoomTarget != zoomValue) {
+                startSmoothZoom();
+            }
+        }
+    }
+
+    private void startSmoothZoom() {
+        if (mClosed || mZoomTarget < 0 || mZoomTarget == mDevice.getZoom(mParameters)) {
+            return;
+        }
+        // The smooth zoom reads the other parameters from the camera, send them first.
+        flush();
+        try {
+            mDevice.startSmoothZoom(mZoomTarget);
+            mZooming = true;
+            mSmoothZooms++;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Smooth zoom failed, zooming at once", e);
+            mSmoothZoom = false;
+            mDevice.setZoom(mParameters, mZoomTarget);
+            scheduleFlush();
+        }
+    }
+
+    private void fetch() {
+        mParameters = mDevice.getParameters();
+        mGets++;
+        mApplied = mDevice.flatten(mParameters);
+        mSmoothZoom = mDevice.isSmoothZoomSupported(mParameters);
+        if (mSmoothZoom) {
+            mDevice.setZoomChangeListener(this);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled && !mClosed) {
+            mFlushScheduled = true;
+            mDevice.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * @return The number of keys whose value differs between two flattened parameter strings.
+     */
+    static int countChangedKeys(String before, String after) {
+        Set<String> entries = new HashSet<>();
+        if (null != before) {
+            for (String entry : before.split(";")) {
+                entries.add(entry);
+            }
+        }
+        Set<String> changedKeys = new HashSet<>();
+        for (String entry : after.split(";")) {
+            if (!entries.remove(entry)) {
+                changedKeys.add(getKey(entry));
+            }
+        }
+        // Keys which were removed.
+        for (String entry : entries) {
+            changedKeys.add(getKey(entry));
+        }
+        return changedKeys.size();
+    }
+
+    /**
+     * @return The flattened parameters with the value of one key replaced, or added.
+     */
+    static String withValue(String flattened, String key, String value) {
+        StringBuilder builder = new StringBuilder();
+        boolean found = false;
+        for (String entry : flattened.split(";")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            if (getKey(entry).equals(key)) {
+                builder.append(key).append('=').append(value);
+                found = true;
+            } else {
+                builder.append(entry);
+            }
+        }
+        if (!found) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(key).append('=').append(value);
+        }
+        return builder.toString();
+    }
+
+    private static String getKey(String entry) {
+        int equals = entry.indexOf('=');
+        return equals < 0 ? entry : entry.substring(0, equals);
+    }
+
+    /**
+     * @return Round trips to the camera service, getParameters and setParameters, per second.
+     */
+    public double getRoundTripsPerSecond() {
+        double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+        return seconds <= 0 ? 0 : (mGets + mSets + mSmoothZooms) / seconds;
+    }
+
+    /**
+     * @return Round trips the same changes would have cost with a get and a set for each.
+     */
+    public double getUnbatchedRoundTripsPerSecond() {
+        double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+        return seconds <= 0 ? 0 : 2 * mEdits / seconds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Parameters: %d edits, %d gets, %d sets (%d keys changed, %d refused), "
+                        + "%d smooth zooms, %.1f round trips/s instead of %.1f",
+                mEdits, mGets, mSets, mChangedKeys, mRefused, mSmoothZooms,
+                getRoundTripsPerSecond(), getUnbatchedRoundTripsPerSecond());
+    }
+}
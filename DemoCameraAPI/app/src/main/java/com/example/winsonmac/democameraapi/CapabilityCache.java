@@ -0,0 +1,44 @@
+package com.example.winsonmac.democameraapi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Keeps the {@link CameraCapabilities} of the cameras in the app's preferences. The entries
+ * belong to one build of the system: after an update they are dropped and read again.
+ */
+public class CapabilityCache {
+
+    private static final String PREFERENCES = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String PREFIX_CAMERA = "camera.";
+
+    private final SharedPreferences mPreferences;
+
+    public CapabilityCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_FINGERPRINT, null))) {
+            mPreferences.edit()
+                    .clear()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+    }
+
+    /**
+     * @return The stored capabilities, or null if there are none or they can't be read.
+     */
+    public CameraCapabilities load(int cameraId) {
+        return CameraCapabilities.decode(mPreferences.getString(PREFIX_CAMERA + cameraId, null));
+    }
+
+    /**
+     * Stores the capabilities, the write happens in the background.
+     */
+    public void save(CameraCapabilities camera) {
+        mPreferences.edit()
+                .putString(PREFIX_CAMERA + camera.getCameraId(), camera.encode())
+                .apply();
+    }
+}
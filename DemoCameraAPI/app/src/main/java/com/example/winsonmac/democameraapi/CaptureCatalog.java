@@ -0,0 +1,542 @@
+package com.example.winsonmac.democameraapi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The pictures taken by the app, kept in an append-only log next to them so they can be listed
+ * without scanning the directory or opening a single JPEG.
+ * <p>
+ * Every saved picture appends one record with what is known when it is written, a removal
+ * appends a small one. Opening the catalog reads the log once, sequentially, into an index in
+ * capture order. A record torn by a crash fails its checksum and is cut off with everything
+ * after it. The log is rewritten with the live entries only once the removed ones outweigh them.
+ * <p>
+ * The catalog also names the pictures: the names carry an id which only grows, across restarts
+ * too, so two pictures never get the same file even when taken in the same second.
+ */
+public class CaptureCatalog {
+
+    public static final long UNKNOWN = -1;
+
+    private static final String NAME_PREFIX = "IMG_";
+    private static final int MAGIC = 0x43415443;        // "CATC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_REMOVE = 2;
+    /**
+     * Largest record payload, an entry with the longest name.
+     */
+    private static final int MAX_PAYLOAD = 1 + 8 * 5 + 4 * 2 + 2 + 2 + 0xFFFF;
+    /**
+     * Removed entries tolerated before a compaction, however few the live ones.
+     */
+    private static final int COMPACT_MIN_DEAD = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A saved picture.
+     */
+    public static class Entry {
+        private final long mId;
+        private final File mFile;
+        private final long mSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mOrientation;
+        private final long mSensorTimestamp;
+        private final long mDateTaken;
+        private final long mThumbnailOffset;
+
+        Entry(long id, File file, long size, int width, int height, int orientation,
+              long sensorTimestamp, long dateTaken, long thumbnailOffset) {
+            mId = id;
+            mFile = file;
+            mSize = size;
+            mWidth = width;
+            mHeight = height;
+            mOrientation = orientation;
+            mSensorTimestamp = sensorTimestamp;
+            mDateTaken = dateTaken;
+            mThumbnailOffset = thumbnailOffset;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return Clockwise rotation a viewer has to apply, in degrees.
+         */
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        /**
+         * @return Start of exposure from the camera, in nanoseconds, or {@link #UNKNOWN}.
+         */
+        public long getSensorTimestamp() {
+            return mSensorTimestamp;
+        }
+
+        public long getDateTaken() {
+            return mDateTaken;
+        }
+
+        /**
+         * @return Where the thumbnail of the picture is stored, or {@link #UNKNOWN}.
+         */
+        public long getThumbnailOffset() {
+            return mThumbnailOffset;
+        }
+    }
+
+    private final File mLog;
+    private final File mDirectory;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mRecord = ByteBuffer.allocate(4 + MAX_PAYLOAD + 4);
+
+    // Guarded by this
+    private final List<Entry> mEntries = new ArrayList<>();   // In id order.
+    private final Map<String, Long> mReserved = new HashMap<>();
+    private long mNextId;
+    private int mDead;
+    private OutputStream mOutput;
+    private long mLogBytes;
+    private long mLoadNanos;
+    private int mTruncatedBytes;
+    private int mCompactions;
+
+    /**
+     * Reads the log, or creates it.
+     *
+     * @param log       The catalog file.
+     * @param directory Where the pictures are written, the log only keeps their names.
+     */
+    public static CaptureCatalog open(File log, File directory) throws IOException {
+        CaptureCatalog catalog = new CaptureCatalog(log, directory);
+        synchronized (catalog) {
+            catalog.load();
+        }
+        return catalog;
+    }
+
+    private CaptureCatalog(File log, File directory) {
+        mLog = log;
+        mDirectory = directory;
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        long valid = 0;
+        if (mLog.length() >= HEADER_SIZE) {
+            valid = read();
+        }
+        if (valid < HEADER_SIZE) {
+            // New, or not even the header made it.
+            writeLog(mLog);
+            valid = HEADER_SIZE;
+        } else if (valid < mLog.length()) {
+            mTruncatedBytes = (int) (mLog.length() - valid);
+            RandomAccessFile file = new RandomAccessFile(mLog, "rw");
+            try {
+                file.setLength(valid);
+            } finally {
+                file.close();
+            }
+        }
+        mLogBytes = valid;
+        mOutput = new FileOutputStream(mLog, true);
+        mLoadNanos = System.nanoTime() - start;
+        if (shouldCompact()) {
+            compact();
+        }
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return The length of the log up to the first bad record.
+     */
+    private long read() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mLog), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(mLog + " is not a capture catalog");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported catalog version " + version);
+            }
+            mNextId = in.readLong();
+            long valid = HEADER_SIZE;
+            byte[] payload = mRecord.array();
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 1 || length > MAX_PAYLOAD) {
+                        break;
+                    }
+                    in.readFully(payload, 0, length);
+                    mCrc.reset();
+                    mCrc.update(payload, 0, length);
+                    if (in.readInt() != (int) mCrc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                record.clear().limit(length);
+                if (!apply(record)) {
+                    break;
+                }
+                valid += 4 + length + 4;
+            }
+            return valid;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return false if the record makes no sense.
+     */
+    private boolean apply(ByteBuffer record) {
+        byte type = record.get();
+        if (TYPE_REMOVE == type && record.remaining() == 8) {
+            long id = record.getLong();
+            int index = indexOf(id);
+            if (index >= 0) {
+                mEntries.remove(index);
+            }
+            mNextId = Math.max(mNextId, id + 1);
+            // The removal record itself is dead weight as well.
+            mDead += index >= 0 ? 2 : 1;
+            return true;
+        }
+        if (TYPE_ENTRY != type || record.remaining() < 8 * 5 + 4 * 2 + 2 + 2) {
+            return false;
+        }
+        long id = record.getLong();
+        long size = record.getLong();
+        int width = record.getInt();
+        int height = record.getInt();
+        int orientation = record.getShort();
+        long sensorTimestamp = record.getLong();
+        long dateTaken = record.getLong();
+        long thumbnailOffset = record.getLong();
+        int nameLength = record.getShort() & 0xFFFF;
+        if (record.remaining() != nameLength) {
+            return false;
+        }
+        String name = new String(record.array(), record.position(), nameLength, UTF_8);
+        add(new Entry(id, new File(mDirectory, name), size, width, height, orientation,
+                sensorTimestamp, dateTaken, thumbnailOffset));
+        return true;
+    }
+
+    /**
+     * Must hold this. An entry with the id of an existing one replaces it.
+     */
+    private void add(Entry entry) {
+        long id = entry.getId();
+        if (mEntries.isEmpty() || mEntries.get(mEntries.size() - 1).getId() < id) {
+            mEntries.add(entry);
+        } else {
+            int index = indexOf(id);
+            if (index >= 0) {
+                mEntries.set(index, entry);
+                mDead++;
+            } else {
+                mEntries.add(-index - 1, entry);
+            }
+        }
+        mNextId = Math.max(mNextId, id + 1);
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return The index of the entry, or (-(insertion point) - 1).
+     */
+    private int indexOf(long id) {
+        int low = 0;
+        int high = mEntries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = mEntries.get(mid).getId();
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @param extension Including the dot, e.g. ".jpg".
+     * @return A file in the pictures directory that no other picture has or will be given.
+     */
+    public synchronized File newFile(String extension) {
+        String date = mDateFormat.format(new Date());
+        while (true) {
+            long id = mNextId++;
+            String name = NAME_PREFIX + date + "_" + id + extension;
+            File file = new File(mDirectory, name);
+            // Ids reserved but never written before a crash are given again after it.
+            if (!file.exists()) {
+                mReserved.put(name, id);
+                return file;
+            }
+        }
+    }
+
+    /**
+     * @return The id a file given by {@link #newFile} will have in the catalog, or
+     * {@link #UNKNOWN} if it was not given or is already recorded.
+     */
+    public synchronized long idOf(File file) {
+        Long reserved = mReserved.get(file.getName());
+        return null != reserved ? reserved : UNKNOWN;
+    }
+
+    /**
+     * Forgets a file given by {@link #newFile} which will not be written.
+     */
+    public synchronized void discard(File file) {
+        mReserved.remove(file.getName());
+    }
+
+    /**
+     * Records a saved picture. Files given by {@link #newFile} keep the id in their name.
+     *
+     * @param orientation     Clockwise rotation a viewer has to apply, in degrees.
+     * @param sensorTimestamp Start of exposure in nanoseconds, or {@link #UNKNOWN}.
+     * @param thumbnailOffset Where its thumbnail is stored, or {@link #UNKNOWN}.
+     * @return The new entry.
+     */
+    public synchronized Entry append(File file, long size, int width, int height, int orientation,
+                                     long sensorTimestamp, long dateTaken, long thumbnailOffset)
+            throws IOException {
+        Long reserved = mReserved.remove(file.getName());
+        long id = null != reserved ? reserved : mNextId++;
+        Entry entry = new Entry(id, new File(mDirectory, file.getName()), size, width, height,
+                orientation, sensorTimestamp, dateTaken, thumbnailOffset);
+        writeRecord(putEntry(entry));
+        add(entry);
+        return entry;
+    }
+
+    /**
+     * Takes a picture out of the catalog, the file is left alone.
+     *
+     * @return false if it was not in the catalog.
+     */
+    public synchronized boolean remove(long id) throws IOException {
+        int index = indexOf(id);
+        if (index < 0) {
+            return false;
+        }
+        mRecord.clear();
+        mRecord.position(4);
+        mRecord.put(TYPE_REMOVE).putLong(id);
+        writeRecord(mRecord);
+        mEntries.remove(index);
+        mDead += 2;
+        if (shouldCompact()) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return The record in {@link #mRecord}, without its checksum yet.
+     */
+    private ByteBuffer putEntry(Entry entry) {
+        byte[] name = entry.getFile().getName().getBytes(UTF_8);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("File name too long");
+        }
+        mRecord.clear();
+        mRecord.position(4);
+        mRecord.put(TYPE_ENTRY)
+                .putLong(entry.getId())
+                .putLong(entry.getSize())
+                .putInt(entry.getWidth())
+                .putInt(entry.getHeight())
+                .putShort((short) entry.getOrientation())
+                .putLong(entry.getSensorTimestamp())
+                .putLong(entry.getDateTaken())
+                .putLong(entry.getThumbnailOffset())
+                .putShort((short) name.length)
+                .put(name);
+        return mRecord;
+    }
+
+    /**
+     * Must hold this. Frames the payload put in {@link #mRecord} with its length and checksum.
+     *
+     * @return The length of the record.
+     */
+    private int seal(ByteBuffer record) {
+        int length = record.position() - 4;
+        mCrc.reset();
+        mCrc.update(record.array(), 4, length);
+        record.putInt(0, length).putInt((int) mCrc.getValue());
+        return record.position();
+    }
+
+    /**
+     * Must hold this. Appends the payload put in {@link #mRecord} in one write.
+     */
+    private void writeRecord(ByteBuffer record) throws IOException {
+        int length = seal(record);
+        mOutput.write(record.array(), 0, length);
+        mLogBytes += length;
+    }
+
+    /**
+     * @return The pictures in the order they were taken.
+     */
+    public synchronized List<Entry> list() {
+        return Collections.unmodifiableList(new ArrayList<>(mEntries));
+    }
+
+    /**
+     * @return The entry, or null if not in the catalog.
+     */
+    public synchronized Entry get(long id) {
+        int index = indexOf(id);
+        return index >= 0 ? mEntries.get(index) : null;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private boolean shouldCompact() {
+        return mDead >= COMPACT_MIN_DEAD && mDead > mEntries.size();
+    }
+
+    /**
+     * Rewrites the log with the live entries only. The old log is replaced once the new one is
+     * on disk, a crash in between leaves the old one.
+     */
+    public synchronized void compact() throws IOException {
+        File temp = new File(mLog.getPath() + ".tmp");
+        writeLog(temp);
+        mOutput.close();
+        if (!temp.renameTo(mLog)) {
+            mOutput = new FileOutputStream(mLog, true);
+            throw new IOException("Could not replace " + mLog);
+        }
+        mOutput = new FileOutputStream(mLog, true);
+        mLogBytes = mLog.length();
+        mDead = 0;
+        mCompactions++;
+    }
+
+    /**
+     * Must hold this. Writes the header and the live entries.
+     */
+    private void writeLog(File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            OutputStream out = new BufferedOutputStream(stream, 64 * 1024);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(mNextId);
+            out.write(header.array());
+            for (Entry entry : mEntries) {
+                ByteBuffer record = putEntry(entry);
+                out.write(record.array(), 0, seal(record));
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mOutput.close();
+    }
+
+    public synchronized long getLogBytes() {
+        return mLogBytes;
+    }
+
+    public synchronized long getLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mLoadNanos);
+    }
+
+    /**
+     * @return Bytes cut off the end of the log when it was opened, left by a torn write.
+     */
+    public synchronized int getTruncatedBytes() {
+        return mTruncatedBytes;
+    }
+
+    public synchronized int getCompactions() {
+        return mCompactions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "CaptureCatalog{entries=%d, dead=%d, log=%d bytes, loaded in %.1f ms, "
+                        + "truncated=%d bytes, compactions=%d, next id=%d}",
+                mEntries.size(), mDead, mLogBytes, mLoadNanos / 1e6, mTruncatedBytes,
+                mCompactions, mNextId);
+    }
+}
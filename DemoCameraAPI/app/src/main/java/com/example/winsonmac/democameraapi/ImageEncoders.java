@@ -0,0 +1,67 @@
+package com.example.winsonmac.democameraapi;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The encoders the pictures may be saved with, one per capture profile.
+ */
+public final class ImageEncoders {
+
+    /**
+     * What the pictures are saved for.
+     */
+    public enum Profile {
+        /**
+         * The camera's JPEG as it is, nothing decoded: the cheapest.
+         */
+        STANDARD,
+        /**
+         * Lossy WebP, smaller files for a decode and an encode of every picture.
+         */
+        COMPACT,
+        /**
+         * Lossless WebP of the decoded JPEG.
+         */
+        ARCHIVE,
+        /**
+         * Uncompressed NV21 of the decoded JPEG, for processing off the device. These are not the
+         * sensor's YUV: the camera's JPEG compression and its losses are already in them.
+         */
+        RAW_YUV
+    }
+
+    private static final ImageEncoder PASSTHROUGH = new JpegPassthroughEncoder();
+
+    private ImageEncoders() {
+    }
+
+    /**
+     * @param quality Quality of the lossy encoders, 1 to 100.
+     */
+    public static ImageEncoder forProfile(Profile profile, int quality) {
+        switch (profile) {
+            case COMPACT:
+                return new WebpEncoder(quality, false);
+            case ARCHIVE:
+                return new WebpEncoder(100, true);
+            case RAW_YUV:
+                return new Nv21Encoder();
+            case STANDARD:
+            default:
+                return PASSTHROUGH;
+        }
+    }
+
+    /**
+     * @return The encoder of every profile, for the benchmark.
+     */
+    public static List<ImageEncoder> all(int quality) {
+        Profile[] profiles = Profile.values();
+        ImageEncoder[] encoders = new ImageEncoder[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            encoders[i] = forProfile(profiles[i], quality);
+        }
+        return Arrays.asList(encoders);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.winsonmac.democameraapi;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves the camera's JPEG as it is: nothing is decoded or encoded again. The rotation is left to
+ * the EXIF orientation written by the save paths.
+ */
+public class JpegPassthroughEncoder implements ImageEncoder {
+
+    /**
+     * Bytes copied at once from a buffer without an array.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Override
+    public String getName() {
+        return "jpeg";
+    }
+
+    @Override
+    public String getMimeType() {
+        return "image/jpeg";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".jpg";
+    }
+
+    @Override
+    public boolean isPassthrough() {
+        return true;
+    }
+
+    /**
+     * Only used when the bytes are wanted somewhere else than in a save path, e.g. by the
+     * benchmark.
+     */
+    @Override
+    public long encode(ByteBuffer jpeg, int degrees, OutputStream out) throws IOException {
+        ByteBuffer data = jpeg.duplicate();
+        int length = data.remaining();
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), length);
+        } else if (out instanceof FileOutputStream) {
+            // Straight from the direct buffer to the kernel.
+            FileChannel channel = ((FileOutputStream) out).getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } else {
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, length)];
+            while (data.hasRemaining()) {
+                int count = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,867 @@
+package com.example.winsonmac.democameraapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Rotates baseline JPEGs by 90, 180 or 270 degrees without decoding them to pixels, the way
+ * jpegtran does: the quantized DCT blocks are moved, transposed and have the signs of their odd
+ * frequencies flipped, then entropy coded again. There is no quality loss and no bitmap.
+ * <p>
+ * Only the quantized coefficients of the source are held in memory (2 bytes per coefficient);
+ * the output is produced MCU by MCU straight into the stream. Edge MCUs which would end up on
+ * the top or left side of the result are trimmed, like {@code jpegtran -trim}.
+ * <p>
+ * Progressive, arithmetic coded and multi-scan JPEGs are not supported.
+ */
+public class JpegRotator {
+
+    /**
+     * Natural order index of the n-th coefficient in zig-zag order.
+     */
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /**
+     * The typical Huffman tables of the JPEG specification (Annex K.3), used to code the result
+     * since they can represent every symbol.
+     */
+    private static final byte[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final byte[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final byte[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final byte[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final byte[] AC_LUMINANCE_VALUES = toBytes(
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa);
+    private static final byte[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final byte[] AC_CHROMINANCE_VALUES = toBytes(
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa);
+
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_COM = 0xFE;
+
+    private JpegRotator() {
+    }
+
+    /**
+     * @see #rotate(ByteBuffer, int, OutputStream)
+     */
+    public static void rotate(byte[] jpeg, int degrees, OutputStream out) throws IOException {
+        rotate(ByteBuffer.wrap(jpeg), degrees, out);
+    }
+
+    /**
+     * Write the given JPEG rotated clockwise by the given angle. APPn and COM segments are copied
+     * as they are, so an EXIF Orientation tag should be reset by the caller if there is one.
+     *
+     * @param jpeg    The JPEG, read from its position to its limit. The buffer is not modified.
+     * @param degrees One of 0, 90, 180 and 270. Nothing is decoded for 0.
+     * @param out     Where the rotated JPEG is written.
+     * @throws IOException if the JPEG is malformed or not supported, or if the write fails. The
+     *                     whole JPEG is decoded before the first byte is written, so nothing has
+     *                     been written when it is rejected.
+     */
+    public static void rotate(ByteBuffer jpeg, int degrees, OutputStream out) throws IOException {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + degrees);
+        }
+        Decoder decoder = new Decoder(jpeg.slice());
+        decoder.decode(degrees == 0);
+        if (degrees == 0) {
+            ByteBuffer data = jpeg.duplicate();
+            byte[] chunk = new byte[Math.min(8192, data.remaining())];
+            while (data.hasRemaining()) {
+                int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+            return;
+        }
+        new Encoder(decoder, degrees, out).encode();
+    }
+
+    /**
+     * A frame component and its coefficients.
+     */
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int dcTable;
+        int acTable;
+        int blocksWide;
+        int blocksHigh;
+        short[] coefficients;   // Natural order, 64 per block, blocks in raster order.
+        int prediction;
+    }
+
+    /**
+     * Huffman table for decoding, in the form of the JPEG specification (F.2.2.3).
+     */
+    private static class HuffmanTable {
+        final int[] minCode = new int[17];
+        final int[] maxCode = new int[18];
+        final int[] valuePointer = new int[17];
+        final byte[] values;
+
+        HuffmanTable(byte[] bits, byte[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                int count = bits[length - 1] & 0xFF;
+                valuePointer[length] = k;
+                minCode[length] = code;
+                code += count;
+                k += count;
+                maxCode[length] = count == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Parses the JPEG and decodes its scan into quantized coefficients.
+     */
+    private static class Decoder {
+        final ByteBuffer data;
+        final int[][] quantTables = new int[4][];
+        final boolean[] quantWide = new boolean[4];
+        final HuffmanTable[] dcTables = new HuffmanTable[4];
+        final HuffmanTable[] acTables = new HuffmanTable[4];
+        /**
+         * Offsets and lengths of the APPn and COM segments to copy.
+         */
+        final int[] copiedOffsets = new int[64];
+        final int[] copiedLengths = new int[64];
+        int copiedCount;
+
+        int frameMarker;
+        int width;
+        int height;
+        Component[] components;
+        int maxH = 1;
+        int maxV = 1;
+        int mcusWide;
+        int mcusHigh;
+        int restartInterval;
+
+        // Entropy decoding state
+        int position;
+        int bitBuffer;
+        int bitCount;
+        boolean markerReached;
+
+        Decoder(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private int u8(int index) throws IOException {
+            if (index >= data.limit()) {
+                throw new IOException("Unexpected end of JPEG");
+            }
+            return data.get(index) & 0xFF;
+        }
+
+        private int u16(int index) throws IOException {
+            return (u8(index) << 8) | u8(index + 1);
+        }
+
+        /**
+         * @param headersOnly Only validate the headers, do not decode the scan.
+         */
+        void decode(boolean headersOnly) throws IOException {
+            if (u8(0) != 0xFF || u8(1) != MARKER_SOI) {
+                throw new IOException("Not a JPEG");
+            }
+            int pos = 2;
+            while (true) {
+                if (u8(pos) != 0xFF) {
+                    throw new IOException("Marker expected at " + pos);
+                }
+                int marker = u8(pos + 1);
+                if (marker == 0xFF) {
+                    pos++;
+                    continue;
+                }
+                if (marker == MARKER_EOI) {
+                    throw new IOException("No scan in JPEG");
+                }
+                int length = u16(pos + 2);
+                int start = pos + 4;
+                int end = pos + 2 + length;
+                if (length < 2 || end > data.limit()) {
+                    throw new IOException("Bad segment length at " + pos);
+                }
+                switch (marker) {
+                    case MARKER_DQT:
+                        readQuantTables(start, end);
+                        break;
+                    case MARKER_DHT:
+                        readHuffmanTables(start, end);
+                        break;
+                    case MARKER_SOF0:
+                    case MARKER_SOF1:
+                        readFrame(marker, start);
+                        break;
+                    case MARKER_DRI:
+                        restartInterval = u16(start);
+                        break;
+                    case MARKER_SOS:
+                        readScanHeader(start);
+                        if (!headersOnly) {
+                            position = end;
+                            decodeScan();
+                        }
+                        return;
+                    default:
+                        if ((marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                                && marker != 0xCC)) {
+                            throw new IOException("Only baseline huffman JPEGs are supported");
+                        }
+                        if ((marker >= 0xE0 && marker <= 0xEF) || marker == MARKER_COM) {
+                            if (copiedCount == copiedOffsets.length) {
+                                throw new IOException("Too many segments");
+                            }
+                            copiedOffsets[copiedCount] = pos;
+                            copiedLengths[copiedCount] = 2 + length;
+                            copiedCount++;
+                        }
+                        break;
+                }
+                pos = end;
+            }
+        }
+
+        private void readQuantTables(int pos, int end) throws IOException {
+            while (pos < end) {
+                int info = u8(pos++);
+                int id = info & 0x0F;
+                boolean wide = (info >> 4) != 0;
+                if (id > 3) {
+                    throw new IOException("Bad quantization table id " + id);
+                }
+                int[] table = new int[64];
+                for (int k = 0; k < 64; k++) {
+                    if (wide) {
+                        table[k] = u16(pos);
+                        pos += 2;
+                    } else {
+                        table[k] = u8(pos++);
+                    }
+                }
+                quantTables[id] = table;
+                quantWide[id] = wide;
+            }
+        }
+
+        private void readHuffmanTables(int pos, int end) throws IOException {
+            while (pos < end) {
+                int info = u8(pos++);
+                int id = info & 0x0F;
+                int tableClass = info >> 4;
+                if (id > 3 || tableClass > 1) {
+                    throw new IOException("Bad huffman table " + info);
+                }
+                byte[] bits = new byte[16];
+                int total = 0;
+                for (int i = 0; i < 16; i++) {
+                    bits[i] = (byte) u8(pos++);
+                    total += bits[i] & 0xFF;
+                }
+                if (total > 256) {
+                    throw new IOException("Bad huffman table size");
+                }
+                byte[] values = new byte[total];
+                for (int i = 0; i < total; i++) {
+                    values[i] = (byte) u8(pos++);
+                }
+                if (tableClass == 0) {
+                    dcTables[id] = new HuffmanTable(bits, values);
+                } else {
+                    acTables[id] = new HuffmanTable(bits, values);
+                }
+            }
+        }
+
+        private void readFrame(int marker, int pos) throws IOException {
+            frameMarker = marker;
+            if (u8(pos) != 8) {
+                throw new IOException("Only 8 bit samples are supported");
+            }
+            height = u16(pos + 1);
+            width = u16(pos + 3);
+            int count = u8(pos + 5);
+            if (width == 0 || height == 0 || count == 0 || count > 4) {
+                throw new IOException("Unsupported frame " + width + "x" + height + "x" + count);
+            }
+            components = new Component[count];
+            pos += 6;
+            for (int i = 0; i < count; i++) {
+                Component component = new Component();
+                component.id = u8(pos);
+                component.h = u8(pos + 1) >> 4;
+                component.v = u8(pos + 1) & 0x0F;
+                component.quantTable = u8(pos + 2);
+                if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4
+                        || component.quantTable > 3) {
+                    throw new IOException("Bad component " + component.id);
+                }
+                if (count == 1) {
+                    // A single component scan is not interleaved, its MCU is always one block.
+                    component.h = 1;
+                    component.v = 1;
+                }
+                maxH = Math.max(maxH, component.h);
+                maxV = Math.max(maxV, component.v);
+                components[i] = component;
+                pos += 3;
+            }
+            mcusWide = (width + maxH * 8 - 1) / (maxH * 8);
+            mcusHigh = (height + maxV * 8 - 1) / (maxV * 8);
+        }
+
+        private void readScanHeader(int pos) throws IOException {
+            if (components == null) {
+                throw new IOException("Scan before frame");
+            }
+            int count = u8(pos);
+            if (count != components.length) {
+                throw new IOException("Only single scan JPEGs are supported");
+            }
+            pos++;
+            for (int i = 0; i < count; i++) {
+                int id = u8(pos);
+                int tables = u8(pos + 1);
+                Component component = components[i];
+                if (component.id != id) {
+                    throw new IOException("Scan components out of frame order");
+                }
+                component.dcTable = tables >> 4;
+                component.acTable = tables & 0x0F;
+                if (component.dcTable > 3 || component.acTable > 3
+                        || dcTables[component.dcTable] == null || acTables[component.acTable] == null
+                        || quantTables[component.quantTable] == null) {
+                    throw new IOException("Missing tables for component " + id);
+                }
+                pos += 2;
+            }
+            if (u8(pos) != 0 || u8(pos + 1) != 63 || u8(pos + 2) != 0) {
+                throw new IOException("Only sequential scans are supported");
+            }
+        }
+
+        private void decodeScan() throws IOException {
+            for (Component component : components) {
+                component.blocksWide = mcusWide * component.h;
+                component.blocksHigh = mcusHigh * component.v;
+                component.coefficients = new short[component.blocksWide * component.blocksHigh * 64];
+                component.prediction = 0;
+            }
+            int mcus = mcusWide * mcusHigh;
+            int untilRestart = restartInterval;
+            for (int mcu = 0; mcu < mcus; mcu++) {
+                if (restartInterval > 0) {
+                    if (untilRestart == 0) {
+                        restart();
+                        untilRestart = restartInterval;
+                    }
+                    untilRestart--;
+                }
+                int mcuX = mcu % mcusWide;
+                int mcuY = mcu / mcusWide;
+                for (Component component : components) {
+                    for (int v = 0; v < component.v; v++) {
+                        for (int h = 0; h < component.h; h++) {
+                            int blockX = mcuX * component.h + h;
+                            int blockY = mcuY * component.v + v;
+                            decodeBlock(component, (blockY * component.blocksWide + blockX) * 64);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void decodeBlock(Component component, int offset) throws IOException {
+            short[] block = component.coefficients;
+            int size = decodeSymbol(dcTables[component.dcTable]);
+            if (size > 11) {
+                throw new IOException("Bad DC coefficient");
+            }
+            component.prediction += size == 0 ? 0 : extend(receive(size), size);
+            block[offset] = (short) component.prediction;
+            HuffmanTable ac = acTables[component.acTable];
+            for (int k = 1; k < 64; ) {
+                int symbol = decodeSymbol(ac);
+                int run = symbol >> 4;
+                size = symbol & 0x0F;
+                if (size == 0) {
+                    if (run != 15) {
+                        break;
+                    }
+                    k += 16;
+                    continue;
+                }
+                k += run;
+                if (k > 63) {
+                    throw new IOException("Bad AC coefficient run");
+                }
+                block[offset + ZIGZAG[k]] = (short) extend(receive(size), size);
+                k++;
+            }
+        }
+
+        private int decodeSymbol(HuffmanTable table) throws IOException {
+            int code = readBit();
+            int length = 1;
+            while (code > table.maxCode[length]) {
+                code = (code << 1) | readBit();
+                length++;
+                if (length > 16) {
+                    throw new IOException("Bad huffman code");
+                }
+            }
+            return table.values[table.valuePointer[length] + code - table.minCode[length]] & 0xFF;
+        }
+
+        private int receive(int bits) throws IOException {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+        private static int extend(int value, int bits) {
+            return value < (1 << (bits - 1)) ? value - (1 << bits) + 1 : value;
+        }
+
+        private int readBit() throws IOException {
+            if (bitCount == 0) {
+                int b = 0;
+                if (!markerReached) {
+                    b = u8(position);
+                    if (b == 0xFF) {
+                        int next = u8(position + 1);
+                        if (next == 0) {
+                            position += 2;
+                        } else {
+                            // A marker ends the entropy coded data, feed zeros until it is handled.
+                            markerReached = true;
+                            b = 0;
+                        }
+                    } else {
+                        position++;
+                    }
+                }
+                bitBuffer = b;
+                bitCount = 8;
+            }
+            bitCount--;
+            return (bitBuffer >> bitCount) & 1;
+        }
+
+        private void restart() throws IOException {
+            bitCount = 0;
+            markerReached = false;
+            while (u8(position) == 0xFF && u8(position + 1) == 0xFF) {
+                position++;
+            }
+            int marker = u8(position + 1);
+            if (u8(position) != 0xFF || marker < 0xD0 || marker > 0xD7) {
+                throw new IOException("Restart marker expected at " + position);
+            }
+            position += 2;
+            for (Component component : components) {
+                component.prediction = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the rotated JPEG, MCU by MCU.
+     */
+    private static class Encoder {
+        final Decoder source;
+        final int degrees;
+        final OutputStream out;
+        final boolean transposed;
+
+        final int width;
+        final int height;
+        final int mcusWide;
+        final int mcusHigh;
+        /**
+         * Sampling factors of the components in the result.
+         */
+        final int[] h;
+        final int[] v;
+        /**
+         * Number of source blocks of each component in the kept (trimmed) area.
+         */
+        final int[] keptBlocksWide;
+        final int[] keptBlocksHigh;
+
+        final int[][] dcCodes = new int[2][];
+        final byte[][] dcLengths = new byte[2][];
+        final int[][] acCodes = new int[2][];
+        final byte[][] acLengths = new byte[2][];
+
+        final short[] block = new short[64];
+        final byte[] buffer = new byte[8192];
+        int bufferLength;
+        int bitBuffer;
+        int bitCount;
+
+        Encoder(Decoder source, int degrees, OutputStream out) throws IOException {
+            this.source = source;
+            this.degrees = degrees;
+            this.out = out;
+            transposed = degrees != 180;
+
+            // Partial MCUs on an edge which becomes the top or left side cannot stay, drop them.
+            int mcuWidth = source.maxH * 8;
+            int mcuHeight = source.maxV * 8;
+            int keptWidth = source.width;
+            int keptHeight = source.height;
+            if (degrees == 90 || degrees == 180) {
+                keptHeight = keptHeight / mcuHeight * mcuHeight;
+            }
+            if (degrees == 270 || degrees == 180) {
+                keptWidth = keptWidth / mcuWidth * mcuWidth;
+            }
+            if (keptWidth == 0 || keptHeight == 0) {
+                throw new IOException("JPEG is too small to be rotated");
+            }
+            width = transposed ? keptHeight : keptWidth;
+            height = transposed ? keptWidth : keptHeight;
+
+            int count = source.components.length;
+            h = new int[count];
+            v = new int[count];
+            keptBlocksWide = new int[count];
+            keptBlocksHigh = new int[count];
+            int maxH = 1;
+            int maxV = 1;
+            for (int i = 0; i < count; i++) {
+                Component component = source.components[i];
+                h[i] = transposed ? component.v : component.h;
+                v[i] = transposed ? component.h : component.v;
+                maxH = Math.max(maxH, h[i]);
+                maxV = Math.max(maxV, v[i]);
+                keptBlocksWide[i] = keptWidth == source.width
+                        ? component.blocksWide : keptWidth / mcuWidth * component.h;
+                keptBlocksHigh[i] = keptHeight == source.height
+                        ? component.blocksHigh : keptHeight / mcuHeight * component.v;
+            }
+            mcusWide = (width + maxH * 8 - 1) / (maxH * 8);
+            mcusHigh = (height + maxV * 8 - 1) / (maxV * 8);
+
+            buildCodes(DC_LUMINANCE_BITS, DC_VALUES, dcCodes, dcLengths, 0);
+            buildCodes(DC_CHROMINANCE_BITS, DC_VALUES, dcCodes, dcLengths, 1);
+            buildCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES, acCodes, acLengths, 0);
+            buildCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES, acCodes, acLengths, 1);
+        }
+
+        private static void buildCodes(byte[] bits, byte[] values, int[][] codes, byte[][] lengths,
+                                       int table) {
+            codes[table] = new int[256];
+            lengths[table] = new byte[256];
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    int symbol = values[k++] & 0xFF;
+                    codes[table][symbol] = code++;
+                    lengths[table][symbol] = (byte) length;
+                }
+                code <<= 1;
+            }
+        }
+
+        void encode() throws IOException {
+            writeHeaders();
+            Component[] components = source.components;
+            for (Component component : components) {
+                component.prediction = 0;
+            }
+            for (int mcuY = 0; mcuY < mcusHigh; mcuY++) {
+                for (int mcuX = 0; mcuX < mcusWide; mcuX++) {
+                    for (int i = 0; i < components.length; i++) {
+                        for (int y = 0; y < v[i]; y++) {
+                            for (int x = 0; x < h[i]; x++) {
+                                transformBlock(i, mcuX * h[i] + x, mcuY * v[i] + y);
+                                encodeBlock(components[i], i == 0 ? 0 : 1);
+                            }
+                        }
+                    }
+                }
+            }
+            // Pad the last byte with ones.
+            if (bitCount > 0) {
+                writeBits(0x7F, 7);
+            }
+            bitCount = 0;
+            flushBuffer();
+            out.write(0xFF);
+            out.write(MARKER_EOI);
+        }
+
+        /**
+         * Fill {@link #block} with the rotated source block landing at the given output block.
+         */
+        private void transformBlock(int index, int x, int y) {
+            Component component = source.components[index];
+            int sourceX;
+            int sourceY;
+            switch (degrees) {
+                case 90:
+                    sourceX = y;
+                    sourceY = keptBlocksHigh[index] - 1 - x;
+                    break;
+                case 270:
+                    sourceX = keptBlocksWide[index] - 1 - y;
+                    sourceY = x;
+                    break;
+                default:
+                    sourceX = keptBlocksWide[index] - 1 - x;
+                    sourceY = keptBlocksHigh[index] - 1 - y;
+                    break;
+            }
+            short[] coefficients = component.coefficients;
+            int offset = (sourceY * component.blocksWide + sourceX) * 64;
+            for (int row = 0; row < 8; row++) {
+                for (int column = 0; column < 8; column++) {
+                    int value;
+                    switch (degrees) {
+                        case 90:
+                            // Transpose, then mirror horizontally
+                            value = coefficients[offset + column * 8 + row];
+                            if ((column & 1) != 0) {
+                                value = -value;
+                            }
+                            break;
+                        case 270:
+                            // Transpose, then mirror vertically
+                            value = coefficients[offset + column * 8 + row];
+                            if ((row & 1) != 0) {
+                                value = -value;
+                            }
+                            break;
+                        default:
+                            value = coefficients[offset + row * 8 + column];
+                            if (((row + column) & 1) != 0) {
+                                value = -value;
+                            }
+                            break;
+                    }
+                    block[row * 8 + column] = (short) value;
+                }
+            }
+        }
+
+        private void encodeBlock(Component component, int table) throws IOException {
+            int dc = block[0];
+            int diff = dc - component.prediction;
+            component.prediction = dc;
+            int size = bitSize(diff);
+            writeBits(dcCodes[table][size], dcLengths[table][size]);
+            if (size > 0) {
+                writeBits(diff < 0 ? diff - 1 : diff, size);
+            }
+
+            int[] codes = acCodes[table];
+            byte[] lengths = acLengths[table];
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int value = block[ZIGZAG[k]];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    writeBits(codes[0xF0], lengths[0xF0]);
+                    run -= 16;
+                }
+                size = bitSize(value);
+                int symbol = (run << 4) | size;
+                writeBits(codes[symbol], lengths[symbol]);
+                writeBits(value < 0 ? value - 1 : value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                writeBits(codes[0x00], lengths[0x00]);
+            }
+        }
+
+        private static int bitSize(int value) {
+            if (value < 0) {
+                value = -value;
+            }
+            return 32 - Integer.numberOfLeadingZeros(value);
+        }
+
+        private void writeBits(int value, int length) throws IOException {
+            bitBuffer = (bitBuffer << length) | (value & ((1 << length) - 1));
+            bitCount += length;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                int b = (bitBuffer >> bitCount) & 0xFF;
+                writeByte(b);
+                if (b == 0xFF) {
+                    // Byte stuffing
+                    writeByte(0);
+                }
+            }
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (bufferLength == buffer.length) {
+                flushBuffer();
+            }
+            buffer[bufferLength++] = (byte) b;
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+
+        private void writeShort(int value) throws IOException {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        private void writeHeaders() throws IOException {
+            writeByte(0xFF);
+            writeByte(MARKER_SOI);
+
+            // APPn and COM segments as they were
+            ByteBuffer data = source.data;
+            for (int i = 0; i < source.copiedCount; i++) {
+                int offset = source.copiedOffsets[i];
+                for (int j = 0; j < source.copiedLengths[i]; j++) {
+                    writeByte(data.get(offset + j));
+                }
+            }
+
+            // Quantization tables follow their coefficients when they are transposed.
+            for (int id = 0; id < 4; id++) {
+                int[] table = source.quantTables[id];
+                if (table == null) {
+                    continue;
+                }
+                boolean wide = source.quantWide[id];
+                writeByte(0xFF);
+                writeByte(MARKER_DQT);
+                writeShort(2 + 1 + 64 * (wide ? 2 : 1));
+                writeByte((wide ? 0x10 : 0) | id);
+                int[] natural = new int[64];
+                for (int k = 0; k < 64; k++) {
+                    natural[ZIGZAG[k]] = table[k];
+                }
+                for (int k = 0; k < 64; k++) {
+                    int position = ZIGZAG[k];
+                    if (transposed) {
+                        position = (position % 8) * 8 + position / 8;
+                    }
+                    if (wide) {
+                        writeShort(natural[position]);
+                    } else {
+                        writeByte(natural[position]);
+                    }
+                }
+            }
+
+            Component[] components = source.components;
+            writeByte(0xFF);
+            writeByte(source.frameMarker);
+            writeShort(8 + 3 * components.length);
+            writeByte(8);
+            writeShort(height);
+            writeShort(width);
+            writeByte(components.length);
+            for (int i = 0; i < components.length; i++) {
+                writeByte(components[i].id);
+                writeByte((h[i] << 4) | v[i]);
+                writeByte(components[i].quantTable);
+            }
+
+            writeByte(0xFF);
+            writeByte(MARKER_DHT);
+            writeShort(2 + 4 * 17 + DC_VALUES.length * 2
+                    + AC_LUMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+            writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_VALUES);
+            writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+            writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_VALUES);
+            writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+            writeByte(0xFF);
+            writeByte(MARKER_SOS);
+            writeShort(6 + 2 * components.length);
+            writeByte(components.length);
+            for (int i = 0; i < components.length; i++) {
+                writeByte(components[i].id);
+                writeByte(i == 0 ? 0x00 : 0x11);
+            }
+            writeByte(0);
+            writeByte(63);
+            writeByte(0);
+        }
+
+        private void writeHuffmanTable(int info, byte[] bits, byte[] values) throws IOException {
+            writeByte(info);
+            for (byte b : bits) {
+                writeByte(b);
+            }
+            for (byte b : values) {
+                writeByte(b);
+            }
+        }
+    }
+
+    private static byte[] toBytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
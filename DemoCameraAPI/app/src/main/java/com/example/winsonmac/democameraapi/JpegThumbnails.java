@@ -0,0 +1,257 @@
+package com.example.winsonmac.democameraapi;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Makes a small preview of a JPEG that is still in memory, without decoding it at full size.
+ * <p>
+ * The thumbnail embedded in the EXIF data is used when there is one. Otherwise the JPEG is decoded
+ * with a power of two {@link BitmapFactory.Options#inSampleSize}, which libjpeg turns into a 1/2,
+ * 1/4 or 1/8 scaled IDCT instead of decoding every pixel.
+ * <p>
+ * Neither the decoded pixels nor the embedded thumbnail are turned by the EXIF orientation, the
+ * thumbnail is rotated here so that it is shown and cached upright, as the saved picture is seen.
+ */
+public class JpegThumbnails {
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    /**
+     * Largest reduction the scaled IDCT can do.
+     */
+    private static final int MAX_SAMPLE_SIZE = 8;
+
+    private JpegThumbnails() {
+    }
+
+    /**
+     * @param jpeg       The JPEG, read from its position to its limit. The buffer is not modified.
+     * @param targetSize Wanted size of the shorter side, the result may be bigger.
+     * @param rotation   Clockwise rotation the saved picture gets on top of the JPEG's own EXIF
+     *                   orientation, by its pixels or by its tag.
+     * @return The upright thumbnail, or null if the JPEG can't be decoded.
+     */
+    public static Bitmap decode(ByteBuffer jpeg, int targetSize, int rotation) {
+        ByteBuffer data = jpeg.slice();
+        return rotate(decode(data, targetSize), getRotation(data, rotation));
+    }
+
+    /**
+     * @return Clockwise rotation, 0 to 270, making the pixels of the JPEG upright once the given
+     * one is applied.
+     */
+    static int getRotation(ByteBuffer jpeg, int rotation) {
+        int degrees = ExifBuilder.degreesForOrientation(ExifBuilder.readOrientation(jpeg));
+        return ((degrees + rotation) % 360 + 360) % 360;
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int degrees) {
+        if (null == bitmap || degrees == 0) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                matrix, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+
+    private static Bitmap decode(ByteBuffer data, int targetSize) {
+        ByteBuffer thumbnail = findExifThumbnail(data);
+        if (null != thumbnail) {
+            Bitmap bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(thumbnail));
+            if (null != bitmap) {
+                return bitmap;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(data.duplicate()), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, targetSize);
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(data.duplicate()), null, options);
+    }
+
+    /**
+     * @return The biggest power of two, up to {@link #MAX_SAMPLE_SIZE}, keeping the shorter side
+     * at least as big as the target.
+     */
+    static int getSampleSize(int width, int height, int targetSize) {
+        int shorter = Math.min(width, height);
+        int sampleSize = 1;
+        while (sampleSize < MAX_SAMPLE_SIZE && shorter / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return The JPEG thumbnail of the EXIF IFD1, sharing the content of the given buffer, or
+     * null if there is none.
+     */
+    static ByteBuffer findExifThumbnail(ByteBuffer jpeg) {
+        int limit = jpeg.limit();
+        if (limit < 4 || u8(jpeg, 0) != 0xFF || u8(jpeg, 1) != MARKER_SOI) {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= limit) {
+            if (u8(jpeg, pos) != 0xFF) {
+                return null;
+            }
+            int marker = u8(jpeg, pos + 1);
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS) {
+                return null;
+            }
+            int length = ((u8(jpeg, pos + 2) << 8) | u8(jpeg, pos + 3));
+            if (length < 2 || pos + 2 + length > limit) {
+                return null;
+            }
+            if (marker == MARKER_APP1 && length > 16 && u8(jpeg, pos + 4) == 'E'
+                    && u8(jpeg, pos + 5) == 'x' && u8(jpeg, pos + 6) == 'i' && u8(jpeg, pos + 7) == 'f') {
+                ByteBuffer tiff = jpeg.duplicate();
+                tiff.position(pos + 10);
+                tiff.limit(pos + 2 + length);
+                return findIfd1Thumbnail(tiff.slice());
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    private static ByteBuffer findIfd1Thumbnail(ByteBuffer tiff) {
+        int limit = tiff.limit();
+        if (limit < 8) {
+            return null;
+        }
+        if (u8(tiff, 0) == 'I' && u8(tiff, 1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (u8(tiff, 0) == 'M' && u8(tiff, 1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        int ifd0 = tiff.getInt(4);
+        if (ifd0 < 8 || ifd0 > limit - 2) {
+            return null;
+        }
+        int next = ifd0 + 2 + 12 * (tiff.getShort(ifd0) & 0xFFFF);
+        if (next + 4 > limit) {
+            return null;
+        }
+        int ifd1 = tiff.getInt(next);
+        if (ifd1 < 8 || ifd1 > limit - 2) {
+            return null;
+        }
+        int count = tiff.getShort(ifd1) & 0xFFFF;
+        int offset = -1;
+        int length = -1;
+        for (int i = 0, entry = ifd1 + 2; i < count && entry + 12 <= limit; i++, entry += 12) {
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            int type = tiff.getShort(entry + 2) & 0xFFFF;
+            int value;
+            if (type == TYPE_LONG) {
+                value = tiff.getInt(entry + 8);
+            } else if (type == TYPE_SHORT) {
+                value = tiff.getShort(entry + 8) & 0xFFFF;
+            } else {
+                continue;
+            }
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                offset = value;
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                length = value;
+            }
+        }
+        if (offset < 8 || length < 4 || (long) offset + length > limit
+                || u8(tiff, offset) != 0xFF || u8(tiff, offset + 1) != MARKER_SOI) {
+            return null;
+        }
+        ByteBuffer thumbnail = tiff.duplicate();
+        thumbnail.position(offset);
+        thumbnail.limit(offset + length);
+        return thumbnail.slice();
+    }
+
+    private static int u8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    /**
+     * Lets {@link BitmapFactory} read a (direct) buffer without copying it into an array first.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.reset();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.winsonmac.democameraapi;
+
+import android.os.Trace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Stamps the stages of a capture with {@link System#nanoTime()} and keeps a
+ * {@link LatencyHistogram} per stage. Stages running on a single thread also appear as
+ * {@link Trace} sections in systrace.
+ * <p>
+ * Recording allocates nothing and takes no lock, so it stays on in release builds. The
+ * percentiles are only computed by {@link #dump}.
+ */
+public class LatencyTracer {
+
+    private final String[] mNames;
+    private final LatencyHistogram[] mHistograms;
+
+    /**
+     * @param stageNames One per stage, the stages are then referred to by their index.
+     */
+    public LatencyTracer(String... stageNames) {
+        mNames = stageNames;
+        mHistograms = new LatencyHistogram[stageNames.length];
+        for (int i = 0; i < stageNames.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Starts a stage which ends on the same thread, see {@link #end}.
+     *
+     * @return The start time to give to {@link #end}.
+     */
+    public long begin(int stage) {
+        Trace.beginSection(mNames[stage]);
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the stage started by {@link #begin} on this thread.
+     */
+    public void end(int stage, long startNanos) {
+        mHistograms[stage].record(System.nanoTime() - startNanos);
+        Trace.endSection();
+    }
+
+    /**
+     * Records a stage which started earlier, possibly on another thread, and ends now.
+     */
+    public void record(int stage, long startNanos) {
+        if (startNanos != 0) {
+            mHistograms[stage].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * @return One line per stage: count, p50, p95, p99 and max in milliseconds.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "%-24s %8s %9s %9s %9s %9s%n",
+                "stage", "count", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (int i = 0; i < mNames.length; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            builder.append(String.format(Locale.US, "%-24s %8d %9.2f %9.2f %9.2f %9.2f%n",
+                    mNames[i], histogram.getCount(),
+                    histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(95) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getMaxNanos() / 1e6));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes {@link #dump()} to a file, replacing it.
+     */
+    public void dump(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(dump());
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.example.winsonmac.democameraapi;
 
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -13,8 +12,7 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.media.ExifInterface;
-import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Environment;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -31,23 +29,116 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.Toast;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity implements SensorEventListener {
     private final static String TAG = "main_activity";
+
+    /**
+     * Rotate the pixels of every picture instead of writing the camera's JPEG untouched with the
+     * rotation in its EXIF Orientation tag, only for viewers ignoring EXIF. The rotation is done
+     * losslessly on the DCT blocks, or by decoding, rotating and re-encoding when the JPEG can't
+     * be handled that way.
+     */
+    private final static boolean ROTATE_PIXELS = false;
+
+    /**
+     * Size in pixels of the shorter side of the preview shown after a shot.
+     */
+    private final static int THUMBNAIL_SIZE = 200;
+
+    /**
+     * Size in pixels of the shorter side of the thumbnails kept for browsing the pictures, and
+     * the room they take in memory and in their pack file.
+     */
+    private final static int CACHED_THUMBNAIL_SIZE = 96;
+    private final static long THUMBNAIL_MEMORY_BYTES = 4 * 1024 * 1024;
+    private final static int THUMBNAIL_PACK_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Pictures saved at once. Decoding, rotating and writing one picture doesn't wait for the
+     * previous one.
+     */
+    private final static int SAVE_WORKERS = 2;
+
+    /**
+     * JPEG bytes that may wait to be saved. Beyond that the next picture waits for room, which
+     * keeps quick shots from piling up on the heap.
+     */
+    private final static long SAVE_QUEUE_BYTES = 24L * 1024 * 1024;
+
+    /**
+     * How long the activity waits on destroy for the pictures still being saved.
+     */
+    private final static long SAVE_DRAIN_SECONDS = 2;
+
+    /**
+     * Preview callback buffers: one filled by the camera, one processed, one waiting.
+     */
+    private final static int PREVIEW_BUFFERS = 3;
+
+    /**
+     * Saved pictures registered in the media store together, and the longest a picture waits
+     * for its batch.
+     */
+    private final static int GALLERY_BATCH_SIZE = 16;
+    private final static long GALLERY_FLUSH_MILLIS = 2000;
+
+    /**
+     * Shots per second the storage has to keep up with, the JPEG qualities the pictures may use
+     * for that, and the picture sizes to fall back to, largest first, once the quality is at its
+     * lowest. A size the camera doesn't support is skipped.
+     */
+    private final static double TARGET_SHOTS_PER_SECOND = 2;
+    private final static int MIN_JPEG_QUALITY = 70;
+    private final static int MAX_JPEG_QUALITY = 100;
+    private final static int JPEG_QUALITY_STEP = 5;
+    private final static int[][] PICTURE_SIZES = {{1920, 1080}, {1280, 720}, {960, 540}};
+
+    /**
+     * What the pictures are saved as.
+     */
+    private final static ImageEncoders.Profile CAPTURE_PROFILE = ImageEncoders.Profile.STANDARD;
+
+    /**
+     * Capture stages measured by the latency tracer.
+     */
+    private final static int TRACE_PRESS_TO_PICTURE = 0;   // Shutter press to the JPEG callback.
+    private final static int TRACE_SAVE_WAIT = 1;          // JPEG callback to a worker taking it.
+    private final static int TRACE_SAVE = 2;               // Thumbnail, rotation and write.
+    private final static int TRACE_PRESS_TO_SAVED = 3;     // Shutter press to file written.
     private Camera camera;
     private CameraPreview cameraPreview;
     private FrameLayout previewLayout;
     private Button btnCapture;
     private ImageView rotateImage;
+    private ImageView thumbnailImage;
+    private final StartupTimer startupTimer = new StartupTimer();
+    private SaveService saveService;
+    private GalleryRegistrar galleryRegistrar;
+    private CaptureCatalog captureCatalog;     // null if its log could not be opened.
+    private ThumbnailCache thumbnailCache;     // null if its pack could not be opened.
+    private PreviewFramePool framePool;
+    private final QualityGovernor qualityGovernor = new QualityGovernor(TARGET_SHOTS_PER_SECOND,
+            MIN_JPEG_QUALITY, MAX_JPEG_QUALITY, JPEG_QUALITY_STEP, PICTURE_SIZES.length);
+    // What the picture being taken is taken with.
+    private int pictureQuality = MAX_JPEG_QUALITY;
+    private int pictureSizeLevel;
+    private volatile int previewBrightness;
+    private final LatencyTracer latencyTracer = new LatencyTracer("press to picture", "save wait",
+            "save", "press to saved");
+    private long pressNanos;
 
     private SensorManager sensorManager;
-    private ExifInterface exif;
     private int orientation;
     private int degrees = -1;
 
@@ -57,15 +148,37 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     private PictureCallback mPicterCallback = new PictureCallback() {
 
         public void onPictureTaken(byte[] data, Camera camera) {
-            new SaveImageTask().execute(data);
+            latencyTracer.record(TRACE_PRESS_TO_PICTURE, pressNanos);
+            Parameters params = cameraPreview.getSettings().get();
+            // What is known of the picture now, written with it.
+            ExifBuilder exif = new ExifBuilder()
+                    .setDateTime(System.currentTimeMillis())
+                    .setMake(Build.MANUFACTURER)
+                    .setModel(Build.MODEL)
+                    .setFocalLength(params.getFocalLength());
+            Size pictureSize = params.getPictureSize();
+            // The orientation of the device when the picture was taken, not when it is saved.
+            SaveImageJob job = new SaveImageJob(data, orientation, exif, pictureSize.width,
+                    pictureSize.height, pressNanos, pictureQuality, pictureSizeLevel);
+            // Waiting for room here would freeze the UI, the service waits on its own thread.
+            saveService.submitLater(data.length, job, new SaveService.SubmitCallback() {
+                @Override
+                public void onSubmitted(boolean accepted) {
+                    if (!accepted) {
+                        Toast.makeText(MainActivity.this, "Picture dropped, saving is too slow", Toast.LENGTH_SHORT).show();
+                    }
+                    // The next picture waits until this one has room, the storage sets the pace.
+                    didClickOnce = false;
+                }
+            });
             Log.d(TAG, "onPictureTaken - jpeg");
 
             if (camera != null) {
                 camera.startPreview();
+                cameraPreview.onPreviewRestarted();
             } else {
                 setUpCameraPreivew(CameraInfo.CAMERA_FACING_BACK);
             }
-            didClickOnce = false;
         }
     };
 
@@ -76,17 +189,59 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
         setContentView(R.layout.activity_main);
 
+        saveService = new SaveService(SAVE_WORKERS, SAVE_QUEUE_BYTES, SaveService.Policy.BLOCK);
+        galleryRegistrar = new GalleryRegistrar(GalleryRegistrar.mediaStore(getContentResolver()),
+                GALLERY_BATCH_SIZE, GALLERY_FLUSH_MILLIS);
+        try {
+            captureCatalog = CaptureCatalog.open(new File(getExternalFilesDir(null), "captures.log"),
+                    getPicturesDir());
+            Log.d(TAG, captureCatalog.toString());
+        } catch (IOException e) {
+            Log.w(TAG, "Capture catalog not available", e);
+        }
+        try {
+            thumbnailCache = ThumbnailCache.open(new File(getCacheDir(), "thumbnails.pack"),
+                    THUMBNAIL_PACK_BYTES, THUMBNAIL_MEMORY_BYTES);
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail cache not available", e);
+        }
+        qualityGovernor.setListener(new QualityGovernor.Listener() {
+            @Override
+            public void onAdjusted(QualityGovernor.Decision decision) {
+                Log.i(TAG, "JPEG " + decision);
+            }
+        });
+        framePool = new PreviewFramePool(PREVIEW_BUFFERS, new PreviewFramePool.FrameProcessor() {
+            @Override
+            public void process(byte[] frame, int width, int height) {
+                // Mean luma of one pixel in 64, the Y plane comes first in NV21.
+                long sum = 0;
+                int count = 0;
+                for (int i = 0; i < width * height; i += 64) {
+                    sum += frame[i] & 0xff;
+                    count++;
+                }
+                previewBrightness = count == 0 ? 0 : (int) (sum / count);
+            }
+        });
+
         // Getting the sensor service.
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
 
         previewLayout = findViewById(R.id.preview);
         rotateImage = findViewById(R.id.rotateImage);
+        thumbnailImage = findViewById(R.id.thumbnail);
+        showLastThumbnail();
         btnCapture = findViewById(R.id.capture);
         btnCapture.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 if (!didClickOnce) {
                     didClickOnce = true;
+                    // The picture must be taken with the changes still waiting for a frame.
+                    pressNanos = System.nanoTime();
+                    applyPictureQuality();
+                    cameraPreview.getSettings().flush();
                     camera.takePicture(null, null, mPicterCallback);
                 }
             }
@@ -96,6 +251,7 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     @Override
     protected void onResume() {
         super.onResume();
+        startupTimer.start("capabilities queried");
         setUpCameraPreivew(CameraInfo.CAMERA_FACING_BACK);
         // Register this class as a listener for the accelerometer sensor
         sensorManager.registerListener(this, sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER), SensorManager.SENSOR_DELAY_NORMAL);
@@ -105,15 +261,156 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     protected void onPause() {
         super.onPause();
         // release the camera immediately on pause event
+        if (cameraPreview != null) {
+            cameraPreview.getSettings().close();
+            Log.d(TAG, cameraPreview.getSettings().toString());
+        }
+        framePool.detach();
+        Log.d(TAG, framePool + ", brightness=" + previewBrightness);
         releaseCamera();
+        dumpLatency(new File(getExternalFilesDir(null), "latency.txt"));
+        // The pictures saved so far don't wait for a full batch.
+        galleryRegistrar.flush();
+        Log.d(TAG, galleryRegistrar.toString());
+        if (captureCatalog != null) {
+            Log.d(TAG, captureCatalog.toString());
+        }
+        if (thumbnailCache != null) {
+            thumbnailCache.flush();
+            Log.d(TAG, thumbnailCache.toString());
+        }
+        Log.d(TAG, qualityGovernor.toString());
         // removing the inserted view - so when we come back to the app we
         // won't have the views on top of each other.
         previewLayout.removeViewAt(0);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The pictures already taken are still saved.
+        saveService.shutdown();
+        Log.d(TAG, saveService.toString());
+        framePool.close();
+        try {
+            // Waits for the pictures still being saved, they are registered last.
+            saveService.awaitTermination(SAVE_DRAIN_SECONDS, TimeUnit.SECONDS);
+            galleryRegistrar.close(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (captureCatalog != null) {
+            try {
+                captureCatalog.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the capture catalog", e);
+            }
+        }
+        if (thumbnailCache != null) {
+            try {
+                thumbnailCache.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the thumbnail cache", e);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (thumbnailCache != null) {
+            // The pack still has them.
+            thumbnailCache.trimMemory();
+        }
+    }
+
+    /**
+     * Sets the JPEG quality and picture size the storage keeps up with, sent with the other
+     * pending changes before the picture is taken.
+     */
+    private void applyPictureQuality() {
+        Parameters params = cameraPreview.getSettings().edit();
+        pictureQuality = qualityGovernor.getQuality();
+        pictureSizeLevel = qualityGovernor.getSizeLevel();
+        params.setJpegQuality(pictureQuality);
+        int[] size = PICTURE_SIZES[pictureSizeLevel];
+        List<Size> supported = params.getSupportedPictureSizes();
+        if (supported != null) {
+            for (Size candidate : supported) {
+                if (candidate.width == size[0] && candidate.height == size[1]) {
+                    params.setPictureSize(size[0], size[1]);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Shows the thumbnail of the last picture taken, from the cache.
+     */
+    private void showLastThumbnail() {
+        if (captureCatalog == null || thumbnailCache == null) {
+            return;
+        }
+        List<CaptureCatalog.Entry> entries = captureCatalog.list();
+        if (entries.isEmpty()) {
+            return;
+        }
+        CaptureCatalog.Entry last = entries.get(entries.size() - 1);
+        ThumbnailCache.Thumbnail thumbnail = thumbnailCache.get(last.getId(),
+                last.getThumbnailOffset());
+        if (thumbnail != null) {
+            thumbnailImage.setImageBitmap(Bitmap.createBitmap(thumbnail.getPixels(),
+                    thumbnail.getWidth(), thumbnail.getHeight(), Bitmap.Config.ARGB_8888));
+        }
+    }
+
+    /**
+     * @return The pixels of the bitmap, scaled down to the size of the cached thumbnails.
+     */
+    private static ThumbnailCache.Thumbnail toCachedThumbnail(Bitmap bitmap) {
+        float scale = Math.min(1f, (float) CACHED_THUMBNAIL_SIZE
+                / Math.min(bitmap.getWidth(), bitmap.getHeight()));
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+        return new ThumbnailCache.Thumbnail(width, height, pixels);
+    }
+
+    /**
+     * @return Where the pictures are written.
+     */
+    private File getPicturesDir() {
+        return new File(Environment.getExternalStorageDirectory(), "demo");
+    }
+
+    /**
+     * Writes the p50/p95/p99 of every capture stage, since the activity was created.
+     */
+    public void dumpLatency(File file) {
+        Log.d(TAG, "Capture latency\n" + latencyTracer.dump());
+        try {
+            latencyTracer.dump(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Latency not written to " + file, e);
+        }
+    }
+
     private void setUpCameraPreivew(int cameraType) {
         camera = getCurrentCameraWithType(cameraType);
+        startupTimer.mark("opened");
         cameraPreview = new CameraPreview(this, camera, cameraType);
+        if (camera != null) {
+            // The governor picks the picture size and quality from the first shot on.
+            applyPictureQuality();
+        }
+        cameraPreview.setStartupTimer(startupTimer);
+        cameraPreview.setFramePool(framePool);
         previewLayout.addView(cameraPreview, 0);
     }
 
@@ -137,84 +434,214 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
         }
     }
 
-    private void refreshGallery(File file) {
-        Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-        mediaScanIntent.setData(Uri.fromFile(file));
-        sendBroadcast(mediaScanIntent);
-    }
-
-    private class SaveImageTask extends AsyncTask<byte[], Void, String> {
+    /**
+     * Saves one picture on a {@link SaveService} worker.
+     */
+    private class SaveImageJob implements SaveService.Job {
+
+        private byte[] data;
+        private final int orientation;
+        private final ExifBuilder exif;
+        private final int width;
+        private final int height;
+        private final long pressNanos;
+        private final int quality;
+        private final int sizeLevel;
+        private final long submitNanos = System.nanoTime();
+        private final long dateTaken = System.currentTimeMillis();
+
+        SaveImageJob(byte[] data, int orientation, ExifBuilder exif, int width, int height,
+                     long pressNanos, int quality, int sizeLevel) {
+            this.data = data;
+            this.orientation = orientation;
+            this.exif = exif;
+            this.width = width;
+            this.height = height;
+            this.pressNanos = pressNanos;
+            this.quality = quality;
+            this.sizeLevel = sizeLevel;
+        }
 
         @Override
-        protected String doInBackground(byte[]... data) {
-            FileOutputStream outStream = null;
-
-            // Write to SD Card
+        public String save() throws IOException {
+            latencyTracer.record(TRACE_SAVE_WAIT, submitNanos);
+            long start = latencyTracer.begin(TRACE_SAVE);
+            String path;
             try {
-                File sdCard = Environment.getExternalStorageDirectory();
-                File dir = new File(sdCard.getAbsolutePath() + "/demo");
-                dir.mkdirs();
-
-                String fileName = "IMG_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()).toString() + ".jpg";
-                File outFile = new File(dir, fileName);
+                path = write();
+            } finally {
+                latencyTracer.end(TRACE_SAVE, start);
+            }
+            latencyTracer.record(TRACE_PRESS_TO_SAVED, pressNanos);
+            return path;
+        }
 
-                outStream = new FileOutputStream(outFile);
-                Bitmap rotatedBmp = adjustImageForRightOrientation(data[0], orientation);
-                rotatedBmp.compress(Bitmap.CompressFormat.JPEG, 100, outStream);
-                outStream.flush();
-                outStream.close();
+        private String write() throws IOException {
+            byte[] data = this.data;
+            // Only this method needs the bytes, let them go as soon as it returns.
+            this.data = null;
+
+            // Made from the bytes in memory, so it can be shown before the write is done.
+            final Bitmap thumbnail = JpegThumbnails.decode(ByteBuffer.wrap(data), THUMBNAIL_SIZE,
+                    getRotationDegrees(orientation));
+            if (thumbnail != null) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        thumbnailImage.setImageBitmap(thumbnail);
+                    }
+                });
+            }
 
-                Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length + " to " + outFile.getAbsolutePath());
+            // Write to SD Card
+            ImageEncoder encoder = ImageEncoders.forProfile(CAPTURE_PROFILE, quality);
+            File dir = getPicturesDir();
+            dir.mkdirs();
+
+            File outFile;
+            if (captureCatalog != null) {
+                // Never the name of an earlier picture, even one taken in the same second.
+                outFile = captureCatalog.newFile(encoder.getExtension());
+            } else {
+                String fileName = "IMG_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()).toString() + encoder.getExtension();
+                outFile = new File(dir, fileName);
+            }
+            long thumbnailOffset = cacheThumbnail(thumbnail, outFile);
+
+            // The file is written once, the metadata with it. The picture is made in memory
+            // first, so the write timed for the governor has no encoding in it.
+            ByteArrayOutputStream picture = new ByteArrayOutputStream(data.length + 64 * 1024);
+            boolean written = false;
+            boolean transcoded = !encoder.isPassthrough();
+            if (transcoded) {
+                // Turned upright, the output has no EXIF orientation.
+                encoder.encode(ByteBuffer.wrap(data), getRotationDegrees(orientation), picture);
+            } else if (!ROTATE_PIXELS) {
+                // Our tags are merged into the camera's EXIF, with the rotation in Orientation.
+                exif.setOrientation(orientation).write(data, picture);
+                written = true;
+            }
+            // Rotating the pixels keeps the camera's EXIF, with an upright orientation.
+            if (!transcoded && !written && !rotateLossless(data, orientation, exif, picture)) {
+                Bitmap rotatedBmp = adjustImageForRightOrientation(data, orientation);
+                // The re-encoded JPEG has no EXIF at all.
+                ByteArrayOutputStream jpeg = new ByteArrayOutputStream(data.length);
+                rotatedBmp.compress(Bitmap.CompressFormat.JPEG, quality, jpeg);
+                exif.setOrientation(ExifBuilder.ORIENTATION_NORMAL)
+                        .write(jpeg.toByteArray(), picture);
+            }
 
-                // Adding Exif data for the orientation. For some strange reason the
-                // ExifInterface class takes a string instead of a file.
+            long size = picture.size();
+            long writeStart = System.nanoTime();
+            FileOutputStream outStream = new FileOutputStream(outFile);
+            try {
+                picture.writeTo(outStream);
+                // Until the sync the bytes may only be in the page cache, which takes them far
+                // faster than the card the governor has to keep up with.
+                outStream.getFD().sync();
+            } finally {
+                outStream.close();
+            }
+            long writeNanos = System.nanoTime() - writeStart;
+
+            Log.d(TAG, "onPictureTaken - wrote bytes: " + size + " to " + outFile.getAbsolutePath());
+            // The bytes of this picture are still counted by the service.
+            qualityGovernor.onSaved(quality, sizeLevel, size, writeNanos,
+                    Math.max(0, saveService.getQueuedBytes() - data.length));
+
+            // Everything the media store wants is known, it needs no scan.
+            int degrees = written ? getRotationDegrees(orientation) : 0;
+            boolean swapped = !written && getRotationDegrees(orientation) % 180 != 0;
+            if (encoder.getMimeType() != null) {
+                galleryRegistrar.add(new GalleryRegistrar.Entry(outFile, encoder.getMimeType(),
+                        size, swapped ? height : width, swapped ? width : height, degrees,
+                        dateTaken));
+            }
+            if (captureCatalog != null) {
                 try {
-                    exif = new ExifInterface("/sdcard/" + dir.getAbsolutePath() + fileName);
-                    exif.setAttribute(ExifInterface.TAG_ORIENTATION, "" + orientation);
-                    exif.saveAttributes();
+                    // The legacy API has no sensor timestamp.
+                    captureCatalog.append(outFile, size, swapped ? height : width,
+                            swapped ? width : height, degrees, CaptureCatalog.UNKNOWN, dateTaken,
+                            thumbnailOffset);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.w(TAG, "Could not record " + outFile, e);
                 }
-
-                refreshGallery(outFile);
-                return outFile.getAbsolutePath();
-
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            return outFile.getAbsolutePath();
+        }
 
-            return null;
+        /**
+         * Keeps the thumbnail made while the bytes are in memory, so browsing the pictures never
+         * decodes their JPEG again.
+         *
+         * @return Where the thumbnail is in the pack, recorded with the picture.
+         */
+        private long cacheThumbnail(Bitmap thumbnail, File outFile) {
+            if (thumbnail == null || thumbnailCache == null || captureCatalog == null) {
+                return ThumbnailCache.NO_OFFSET;
+            }
+            long id = captureCatalog.idOf(outFile);
+            if (id == CaptureCatalog.UNKNOWN) {
+                return ThumbnailCache.NO_OFFSET;
+            }
+            return thumbnailCache.put(id, toCachedThumbnail(thumbnail));
         }
 
         @Override
-        protected void onPostExecute(String message) {
-            if (message != null) {
-                Toast.makeText(MainActivity.this, "Saved file into " + message, Toast.LENGTH_SHORT).show();
+        public void onSaved(String path, Exception error) {
+            if (path != null) {
+                Toast.makeText(MainActivity.this, "Saved file into " + path, Toast.LENGTH_SHORT).show();
             } else {
+                Log.e(TAG, "Saving failed", error);
                 Toast.makeText(MainActivity.this, "Saved file failed, please try again!", Toast.LENGTH_SHORT).show();
             }
         }
 
+        /**
+         * Rotate the JPEG without decoding it, with our tags merged into the camera's EXIF it
+         * keeps.
+         *
+         * @return false if the JPEG is not supported, nothing has been written in that case.
+         */
+        private boolean rotateLossless(byte[] data, int orientation, ExifBuilder exif,
+                                       OutputStream outStream) throws IOException {
+            ByteArrayOutputStream rotated = new ByteArrayOutputStream(data.length);
+            try {
+                JpegRotator.rotate(data, getRotationDegrees(orientation), rotated);
+            } catch (IOException e) {
+                Log.w(TAG, "Lossless rotation failed, re-encoding instead", e);
+                return false;
+            }
+            // The pixels are upright, the tag must not rotate them a second time.
+            exif.setOrientation(ExifBuilder.ORIENTATION_NORMAL).write(rotated.toByteArray(),
+                    outStream);
+            return true;
+        }
+
         private Bitmap adjustImageForRightOrientation(byte[] data, int orientation) {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inMutable = true;
             Bitmap bmp = BitmapFactory.decodeByteArray(data, 0, data.length, options);
 
             Matrix matrix = new Matrix();
+            matrix.postRotate(getRotationDegrees(orientation));
+            return Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+        }
+
+        /**
+         * @return The clockwise rotation described by the EXIF orientation.
+         */
+        private int getRotationDegrees(int orientation) {
             switch (orientation) {
                 case ExifInterface.ORIENTATION_ROTATE_90:
-                    matrix.postRotate(90);
-                    break;
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
                 case ExifInterface.ORIENTATION_ROTATE_270:
-                    matrix.postRotate(-270);
-                    break;
+                    return 270;
                 default:
-                    matrix.postRotate(0);
-                    break;
+                    return 0;
             }
-            return Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
         }
     }
 
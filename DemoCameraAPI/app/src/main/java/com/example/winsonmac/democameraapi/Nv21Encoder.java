@@ -0,0 +1,66 @@
+package com.example.winsonmac.democameraapi;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The uncompressed NV21 pixels, for processing off the device: the luma plane, then the
+ * interleaved VU plane, full range BT.601 as in the JPEG. Nothing else is written, the width and
+ * height are recorded with the picture in the catalog.
+ * <p>
+ * Like every encoder it is given the camera's JPEG, so the pixels are those of the decoded JPEG,
+ * with its compression artifacts and chroma rounding, not the YUV the sensor pipeline produced.
+ * Pictures to be processed without those losses have to come from the NV21 preview frames.
+ * <p>
+ * The pixels are read from the bitmap a few rows at a time, so nothing frame sized is allocated
+ * besides the decoded picture.
+ */
+public class Nv21Encoder extends BitmapEncoder {
+
+    /**
+     * Rows of luma converted at once.
+     */
+    private static final int STRIPE_ROWS = 16;
+
+    @Override
+    public String getName() {
+        return "nv21";
+    }
+
+    /**
+     * @return null, no viewer opens NV21.
+     */
+    @Override
+    public String getMimeType() {
+        return null;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".nv21";
+    }
+
+    @Override
+    protected void encode(Bitmap bitmap, OutputStream out) throws IOException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[STRIPE_ROWS * width];
+        byte[] bytes = new byte[STRIPE_ROWS * width];
+        for (int y = 0; y < height; y += STRIPE_ROWS) {
+            int rows = Math.min(STRIPE_ROWS, height - y);
+            bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+            YuvConverter.argbToLuma(pixels, rows * width, bytes);
+            out.write(bytes, 0, rows * width);
+        }
+        // A second pass over the pixels for the chroma, rather than holding a plane of it.
+        int vuWidth = 2 * ((width + 1) / 2);
+        for (int y = 0; y < height; y += 2) {
+            int rows = Math.min(2, height - y);
+            bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+            YuvConverter.argbToVu(pixels, width, rows, bytes);
+            out.write(bytes, 0, vuWidth);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.winsonmac.democameraapi;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the preview frames to a {@link FrameProcessor} on a worker thread, through a fixed set of
+ * callback buffers given to {@link Camera#addCallbackBuffer}.
+ * <p>
+ * Unlike {@link Camera#setPreviewCallback}, which allocates an array for every frame, the buffers
+ * are allocated once for the preview size and go back to the camera as soon as the processor is
+ * done with them. Frames arriving while the processor is busy replace the one waiting for it, the
+ * replaced one is dropped. When every buffer is held by the processor the camera has nowhere to
+ * write and skips frames on its own, which is counted as an exhaustion of the pool.
+ * <p>
+ * Frames are delivered on the thread which opened the camera, the buffers can be returned from
+ * any thread.
+ */
+public class PreviewFramePool implements Camera.PreviewCallback {
+
+    private static final String TAG = "PreviewFramePool";
+
+    /**
+     * Runs on the worker thread, one frame at a time.
+     */
+    public interface FrameProcessor {
+        /**
+         * @param frame The frame in the preview format, NV21 by default. Only valid during the
+         *              call, the buffer is then written by the camera again.
+         */
+        void process(byte[] frame, int width, int height);
+    }
+
+    private final FrameProcessor mProcessor;
+    private final ExecutorService mExecutor;
+    private final byte[][] mBuffers;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private Camera mCamera;         // null while detached.
+    private int mWidth;
+    private int mHeight;
+    private int mBufferSize;
+    private int mWithCamera;        // Buffers the camera can write to.
+    private byte[] mProcessing;     // Frame on the worker thread.
+    private byte[] mPending;        // Frame processed next.
+    private long mExhaustedSince;
+
+    // Metrics, guarded by mLock
+    private long mFrames;
+    private long mProcessed;
+    private long mDropped;
+    private long mExhaustions;
+    private long mExhaustedNanos;
+    private long mProcessNanos;
+    private long mAllocations;
+
+    /**
+     * @param buffers   Callback buffers, at least 2: one being filled by the camera and one being
+     *                  processed. A third one lets a frame wait for the processor.
+     * @param processor What to do with the frames.
+     */
+    public PreviewFramePool(int buffers, FrameProcessor processor) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least 2 buffers are needed");
+        }
+        mBuffers = new byte[buffers][];
+        mProcessor = processor;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PreviewFrames");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gives the buffers to the camera and starts the callbacks. The buffers are only allocated
+     * again when the frame size changed since the last time.
+     *
+     * @param format The preview format, see {@link Camera.Parameters#getPreviewFormat()}.
+     */
+    public void attach(Camera camera, int width, int height, int format) {
+        int size = width * height * ImageFormat.getBitsPerPixel(format) / 8;
+        synchronized (mLock) {
+            mCamera = camera;
+            mWidth = width;
+            mHeight = height;
+            mBufferSize = size;
+            mPending = null;
+            mWithCamera = 0;
+            mExhaustedSince = 0;
+            for (int i = 0; i < mBuffers.length; i++) {
+                if (null == mBuffers[i] || mBuffers[i].length != size) {
+                    mBuffers[i] = new byte[size];
+                    mAllocations++;
+                }
+                // The worker gives its frame back once done.
+                if (mBuffers[i] != mProcessing) {
+                    camera.addCallbackBuffer(mBuffers[i]);
+                    mWithCamera++;
+                }
+            }
+            camera.setPreviewCallbackWithBuffer(this);
+        }
+    }
+
+    /**
+     * Stops the callbacks, the camera forgets the buffers. Must be called before the camera is
+     * released.
+     */
+    public void detach() {
+        synchronized (mLock) {
+            if (null != mCamera) {
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mCamera = null;
+            }
+            mPending = null;
+            mWithCamera = 0;
+            endExhaustion();
+        }
+    }
+
+    /**
+     * Detaches and stops the worker, the frame being processed is finished first.
+     */
+    public void close() {
+        detach();
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Frame processor did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        synchronized (mLock) {
+            if (null == data || camera != mCamera) {
+                return;
+            }
+            mFrames++;
+            mWithCamera--;
+            boolean busy = null != mProcessing;
+            if (busy) {
+                if (null != mPending) {
+                    giveBack(mPending);
+                    mDropped++;
+                }
+                mPending = data;
+            } else {
+                mProcessing = data;
+            }
+            if (mWithCamera <= 0 && 0 == mExhaustedSince) {
+                mExhaustions++;
+                mExhaustedSince = System.nanoTime();
+            }
+            if (busy) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processFrames();
+            }
+        });
+    }
+
+    /**
+     * Runs on the worker thread until no frame is waiting.
+     */
+    private void processFrames() {
+        byte[] frame;
+        int width;
+        int height;
+        synchronized (mLock) {
+            frame = mProcessing;
+            width = mWidth;
+            height = mHeight;
+        }
+        while (null != frame) {
+            long start = System.nanoTime();
+            try {
+                mProcessor.process(frame, width, height);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Frame processor failed", e);
+            }
+            synchronized (mLock) {
+                mProcessNanos += System.nanoTime() - start;
+                mProcessed++;
+                giveBack(frame);
+                frame = mPending;
+                mPending = null;
+                mProcessing = frame;
+                width = mWidth;
+                height = mHeight;
+            }
+        }
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private void giveBack(byte[] buffer) {
+        // A buffer of an earlier preview size, or the camera is gone.
+        if (null == mCamera || buffer.length != mBufferSize) {
+            return;
+        }
+        mCamera.addCallbackBuffer(buffer);
+        mWithCamera++;
+        endExhaustion();
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private void endExhaustion() {
+        if (0 != mExhaustedSince) {
+            mExhaustedNanos += System.nanoTime() - mExhaustedSince;
+            mExhaustedSince = 0;
+        }
+    }
+
+    public long getFramesProcessed() {
+        synchronized (mLock) {
+            return mProcessed;
+        }
+    }
+
+    /**
+     * @return Frames replaced by a newer one before the processor got to them.
+     */
+    public long getFramesDropped() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * @return How many times the camera was left without a buffer, it skips frames until one is
+     * given back.
+     */
+    public long getExhaustions() {
+        synchronized (mLock) {
+            return mExhaustions;
+        }
+    }
+
+    public long getExhaustedMillis() {
+        synchronized (mLock) {
+            return TimeUnit.NANOSECONDS.toMillis(mExhaustedNanos);
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return String.format(Locale.US,
+                    "PreviewFramePool{%dx%d, buffers=%d, allocations=%d, frames=%d, processed=%d, "
+                            + "dropped=%d, exhausted %d times for %d ms, process mean=%.2f ms}",
+                    mWidth, mHeight, mBuffers.length, mAllocations, mFrames, mProcessed, mDropped,
+                    mExhaustions, TimeUnit.NANOSECONDS.toMillis(mExhaustedNanos),
+                    mProcessed == 0 ? 0 : mProcessNanos / 1e6 / mProcessed);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.winsonmac.democameraapi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the JPEG quality, and the output size when the device allows several, from how fast the
+ * pictures are actually written, so that the storage keeps up with a target number of shots per
+ * second.
+ * <p>
+ * Each saved picture reports its size, how long its write took and how many bytes were still
+ * waiting to be written. From these the governor estimates the write throughput and the bytes of
+ * a picture at the current setting, hence the sustainable shot rate. Below the target, or when
+ * the backlog grows beyond what a second of writing clears, the quality is lowered one step, then
+ * the output size once the quality is at its minimum. With enough headroom they are given back in
+ * the reverse order. After every change the governor waits for a few pictures taken with the new
+ * setting before deciding again. A backlog left by the earlier setting which is draining is not
+ * a reason to lower the setting further.
+ */
+public class QualityGovernor {
+
+    /**
+     * Weight of the newest sample in the moving averages.
+     */
+    private static final double ALPHA = 0.3;
+    /**
+     * Pictures of the current setting needed before deciding.
+     */
+    private static final int SETTLE_SAVES = 3;
+    /**
+     * Sustainable rate above the target needed to raise the setting, so that the cost of the
+     * next step up still fits.
+     */
+    private static final double HEADROOM = 1.4;
+    /**
+     * Backlog, in seconds of writing, which lowers the setting whatever the estimates say.
+     */
+    private static final double MAX_BACKLOG_SECONDS = 1;
+    private static final int MAX_DECISIONS = 64;
+
+    /**
+     * An adjustment and why it was made.
+     */
+    public static class Decision {
+        private final long mAtNanos;
+        private final int mQuality;
+        private final int mSizeLevel;
+        private final double mThroughput;
+        private final double mBytesPerShot;
+        private final long mQueuedBytes;
+        private final String mReason;
+
+        Decision(long atNanos, int quality, int sizeLevel, double throughput, double bytesPerShot,
+                 long queuedBytes, String reason) {
+            mAtNanos = atNanos;
+            mQuality = quality;
+            mSizeLevel = sizeLevel;
+            mThroughput = throughput;
+            mBytesPerShot = bytesPerShot;
+            mQueuedBytes = queuedBytes;
+            mReason = reason;
+        }
+
+        public long getAtNanos() {
+            return mAtNanos;
+        }
+
+        /**
+         * @return The quality from now on.
+         */
+        public int getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * @return The output size from now on, 0 being the largest.
+         */
+        public int getSizeLevel() {
+            return mSizeLevel;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "quality %d, size level %d: %s (%.1f MB/s, %.0f KB per shot, %d KB queued)",
+                    mQuality, mSizeLevel, mReason, mThroughput / 1e6, mBytesPerShot / 1024,
+                    mQueuedBytes / 1024);
+        }
+    }
+
+    /**
+     * Told about every adjustment, on the thread of the picture which caused it.
+     */
+    public interface Listener {
+        void onAdjusted(Decision decision);
+    }
+
+    private final double mTargetShotsPerSecond;
+    private final int mMinQuality;
+    private final int mMaxQuality;
+    private final int mStep;
+    private final int mSizeLevels;
+
+    // Guarded by this
+    private int mQuality;
+    private int mSizeLevel;
+    private double mThroughput;         // Bytes per second, 0 until the first picture.
+    private double mBytesPerShot;       // At the current setting, 0 until its first picture.
+    private int mSettleSaves;           // Pictures of the current setting seen.
+    private long mSettleQueuedBytes;    // At the first picture of the current setting.
+    private long mLastQueuedBytes;
+    private Listener mListener;
+    private final ArrayDeque<Decision> mDecisions = new ArrayDeque<>();
+    private long mSaves;
+    private long mLowered;
+    private long mRaised;
+
+    /**
+     * @param targetShotsPerSecond Shots per second the storage has to keep up with.
+     * @param minQuality           Lowest JPEG quality, 1 to 100.
+     * @param maxQuality           Highest JPEG quality, used at first.
+     * @param step                 Quality change of a single adjustment.
+     * @param sizeLevels           Output sizes to choose from, 1 to only change the quality.
+     */
+    public QualityGovernor(double targetShotsPerSecond, int minQuality, int maxQuality, int step,
+                           int sizeLevels) {
+        if (targetShotsPerSecond <= 0 || minQuality < 1 || maxQuality > 100
+                || minQuality > maxQuality || step < 1 || sizeLevels < 1) {
+            throw new IllegalArgumentException("Invalid quality bounds");
+        }
+        mTargetShotsPerSecond = targetShotsPerSecond;
+        mMinQuality = minQuality;
+        mMaxQuality = maxQuality;
+        mStep = step;
+        mSizeLevels = sizeLevels;
+        mQuality = maxQuality;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The JPEG quality to take the next picture with.
+     */
+    public synchronized int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return The output size to take the next picture with, 0 being the largest.
+     */
+    public synchronized int getSizeLevel() {
+        return mSizeLevel;
+    }
+
+    /**
+     * Called once a picture is written.
+     *
+     * @param quality     The quality it was taken with.
+     * @param sizeLevel   The output size it was taken with.
+     * @param bytes       Bytes written.
+     * @param writeNanos  How long writing them took.
+     * @param queuedBytes Bytes of the pictures still waiting to be written.
+     */
+    public void onSaved(int quality, int sizeLevel, long bytes, long writeNanos,
+                        long queuedBytes) {
+        Decision decision;
+        Listener listener;
+        synchronized (this) {
+            mSaves++;
+            mLastQueuedBytes = queuedBytes;
+            if (bytes <= 0 || writeNanos <= 0) {
+                return;
+            }
+            mThroughput = average(mThroughput, bytes * 1e9 / writeNanos);
+            if (quality != mQuality || sizeLevel != mSizeLevel) {
+                // Taken before the last change, tells nothing about the current setting.
+                return;
+            }
+            mBytesPerShot = average(mBytesPerShot, bytes);
+            if (0 == mSettleSaves++) {
+                mSettleQueuedBytes = queuedBytes;
+            }
+            if (mSettleSaves < SETTLE_SAVES) {
+                return;
+            }
+            decision = decide(queuedBytes, queuedBytes < mSettleQueuedBytes);
+            listener = mListener;
+        }
+        if (null != decision && null != listener) {
+            listener.onAdjusted(decision);
+        }
+    }
+
+    private static double average(double average, double sample) {
+        return average == 0 ? sample : average + ALPHA * (sample - average);
+    }
+
+    /**
+     * Must hold this.
+     *
+     * @return The adjustment made, or null.
+     */
+    private Decision decide(long queuedBytes, boolean draining) {
+        double sustainable = mThroughput / mBytesPerShot;
+        double backlogSeconds = queuedBytes / mThroughput;
+        String reason;
+        if ((backlogSeconds > MAX_BACKLOG_SECONDS && !draining)
+                || sustainable < mTargetShotsPerSecond) {
+            reason = String.format(Locale.US, "lowered, %.2f shots/s sustainable, %.1f s backlog",
+                    sustainable, backlogSeconds);
+            if (mQuality > mMinQuality) {
+                mQuality = Math.max(mMinQuality, mQuality - mStep);
+            } else if (mSizeLevel < mSizeLevels - 1) {
+                mSizeLevel++;
+            } else {
+                return null;
+            }
+            mLowered++;
+        } else if (sustainable > mTargetShotsPerSecond * HEADROOM && queuedBytes == 0) {
+            reason = String.format(Locale.US, "raised, %.2f shots/s sustainable", sustainable);
+            // The size was given up last, it comes back first.
+            if (mSizeLevel > 0) {
+                mSizeLevel--;
+            } else if (mQuality < mMaxQuality) {
+                mQuality = Math.min(mMaxQuality, mQuality + mStep);
+            } else {
+                return null;
+            }
+            mRaised++;
+        } else {
+            return null;
+        }
+        Decision decision = new Decision(System.nanoTime(), mQuality, mSizeLevel, mThroughput,
+                mBytesPerShot, queuedBytes, reason);
+        if (mDecisions.size() == MAX_DECISIONS) {
+            mDecisions.removeFirst();
+        }
+        mDecisions.addLast(decision);
+        mBytesPerShot = 0;
+        mSettleSaves = 0;
+        return decision;
+    }
+
+    /**
+     * @return The last adjustments, oldest first.
+     */
+    public synchronized List<Decision> getDecisions() {
+        return new ArrayList<>(mDecisions);
+    }
+
+    /**
+     * @return Write throughput in bytes per second, 0 until a picture is written.
+     */
+    public synchronized double getThroughput() {
+        return mThroughput;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "QualityGovernor{quality=%d, size level=%d, target=%.1f shots/s, "
+                        + "throughput=%.1f MB/s, per shot=%.0f KB, queued=%d KB, saves=%d, "
+                        + "lowered=%d, raised=%d}",
+                mQuality, mSizeLevel, mTargetShotsPerSecond, mThroughput / 1e6,
+                mBytesPerShot / 1024, mLastQueuedBytes / 1024, mSaves, mLowered, mRaised);
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.winsonmac.democameraapi;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the pictures on a few worker threads, with a limit on the bytes waiting to be saved
+ * rather than on the number of pictures, since a picture can weigh anywhere from a few hundred
+ * kilobytes to several megabytes.
+ * <p>
+ * When the limit is reached, {@link #submit} either waits for the workers to make room or refuses
+ * the picture, see {@link Policy}. The main thread never waits: it hands its pictures over with
+ * {@link #submitLater}. The results are delivered on the main thread.
+ */
+public class SaveService {
+
+    /**
+     * What {@link #submit} does when the pictures waiting would exceed the limit.
+     */
+    public enum Policy {
+        /**
+         * Wait until enough bytes are saved, and the heap never holds more than the limit. The
+         * caller is held up at the pace of the storage, so it must not be the main thread: there
+         * {@link #submitLater} waits on a hand-off thread instead, and the caller holds back the
+         * next picture until it is told the last one was taken.
+         */
+        BLOCK,
+        /**
+         * Refuse the picture at once.
+         */
+        SHED
+    }
+
+    /**
+     * One picture to save.
+     */
+    public interface Job {
+        /**
+         * Runs on a worker thread.
+         *
+         * @return The path of the saved file.
+         */
+        String save() throws Exception;
+
+        /**
+         * Runs on the main thread.
+         *
+         * @param path  The path returned by {@link #save()}, null if it failed.
+         * @param error Why it failed, null if it didn't.
+         */
+        void onSaved(String path, Exception error);
+    }
+
+    /**
+     * Told whether a picture handed over with {@link #submitLater} was taken.
+     */
+    public interface SubmitCallback {
+        /**
+         * Runs on the main thread.
+         *
+         * @param accepted What {@link #submit} returned.
+         */
+        void onSubmitted(boolean accepted);
+    }
+
+    private final ExecutorService mWorkers;
+    private final ExecutorService mHandOff;
+    private final Executor mCallbackExecutor;
+    private final long mMaxQueuedBytes;
+    private final Policy mPolicy;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private long mQueuedBytes;          // Submitted and not saved yet, including the running jobs.
+    private long mPeakQueuedBytes;
+    private boolean mShutdown;
+    private long mSubmitted;
+    private long mSaved;
+    private long mFailed;
+    private long mShed;
+    private long mBlocked;
+    private long mBlockedNanos;
+    private long mSavedBytes;
+    private long mFirstSubmitNanos;
+    private long mLastSaveNanos;
+
+    /**
+     * Delivers the results on the main thread.
+     */
+    public SaveService(int workers, long maxQueuedBytes, Policy policy) {
+        this(workers, maxQueuedBytes, policy, new Executor() {
+            private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                mHandler.post(runnable);
+            }
+        });
+    }
+
+    /**
+     * @param workers          Number of threads saving the pictures.
+     * @param maxQueuedBytes   Bytes allowed to wait or be saved at once. A single picture bigger
+     *                         than that is still accepted when nothing else is waiting.
+     * @param policy           What to do when the limit is reached.
+     * @param callbackExecutor Where {@link Job#onSaved} runs.
+     */
+    public SaveService(int workers, long maxQueuedBytes, Policy policy, Executor callbackExecutor) {
+        mMaxQueuedBytes = maxQueuedBytes;
+        mPolicy = policy;
+        mCallbackExecutor = callbackExecutor;
+        mWorkers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SaveService-" + mCount++);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        mHandOff = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "SaveService-handoff");
+            }
+        });
+    }
+
+    /**
+     * @param bytes Memory held by the job until it is saved, usually the length of the JPEG.
+     * @return false if the job was refused: the limit is reached with {@link Policy#SHED}, the
+     * wait was interrupted or the service is shut down. {@link Job#onSaved} is not called then.
+     */
+    public boolean submit(final long bytes, final Job job) {
+        synchronized (mLock) {
+            if (!reserve(bytes)) {
+                return false;
+            }
+            if (mSubmitted == 0) {
+                mFirstSubmitNanos = System.nanoTime();
+            }
+            mSubmitted++;
+        }
+        try {
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String path = null;
+                    Exception error = null;
+                    try {
+                        path = job.save();
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                    release(bytes, error == null);
+                    final String result = path;
+                    final Exception failure = error;
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            job.onSaved(result, failure);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime.
+            release(bytes, false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * {@link #submit} without holding up the caller: with {@link Policy#BLOCK}, the wait for room
+     * happens on a hand-off thread. The caller should not hand over another picture before the
+     * callback, or the pictures waiting there are not counted in the limit.
+     *
+     * @param callback Runs where the results are delivered, once the job is accepted or refused.
+     */
+    public void submitLater(final long bytes, final Job job, final SubmitCallback callback) {
+        try {
+            mHandOff.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(callback, submit(bytes, job));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down.
+            deliver(callback, false);
+        }
+    }
+
+    private void deliver(final SubmitCallback callback, final boolean accepted) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSubmitted(accepted);
+            }
+        });
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private boolean reserve(long bytes) {
+        if (mShutdown) {
+            return false;
+        }
+        if (!fits(bytes)) {
+            if (mPolicy == Policy.SHED) {
+                mShed++;
+                return false;
+            }
+            mBlocked++;
+            long start = System.nanoTime();
+            try {
+                while (!fits(bytes)) {
+                    mLock.wait();
+                    if (mShutdown) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mBlockedNanos += System.nanoTime() - start;
+            }
+        }
+        mQueuedBytes += bytes;
+        mPeakQueuedBytes = Math.max(mPeakQueuedBytes, mQueuedBytes);
+        return true;
+    }
+
+    /**
+     * Must hold mLock.
+     */
+    private boolean fits(long bytes) {
+        return mQueuedBytes == 0 || mQueuedBytes + bytes <= mMaxQueuedBytes;
+    }
+
+    private void release(long bytes, boolean saved) {
+        synchronized (mLock) {
+            mQueuedBytes -= bytes;
+            if (saved) {
+                mSaved++;
+                mSavedBytes += bytes;
+            } else {
+                mFailed++;
+            }
+            mLastSaveNanos = System.nanoTime();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes no new job and wakes up the submitters waiting for room, they are refused. The jobs
+     * already accepted are still saved.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        mHandOff.shutdown();
+        mWorkers.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // The hand-off returns as soon as submit does, once shut down.
+        return mHandOff.awaitTermination(timeout, unit)
+                && mWorkers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    public long getPeakQueuedBytes() {
+        synchronized (mLock) {
+            return mPeakQueuedBytes;
+        }
+    }
+
+    public long getSaved() {
+        synchronized (mLock) {
+            return mSaved;
+        }
+    }
+
+    public long getShed() {
+        synchronized (mLock) {
+            return mShed;
+        }
+    }
+
+    /**
+     * @return Total time the submitters waited for room, in milliseconds.
+     */
+    public double getBlockedMillis() {
+        synchronized (mLock) {
+            return mBlockedNanos / 1e6;
+        }
+    }
+
+    /**
+     * @return Pictures saved per second, from the first submission to the last save.
+     */
+    public double getPicturesPerSecond() {
+        synchronized (mLock) {
+            long elapsed = mLastSaveNanos - mFirstSubmitNanos;
+            return mSaved == 0 || elapsed <= 0 ? 0 : mSaved * 1e9 / elapsed;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return String.format(Locale.US,
+                    "Saves %s: %d submitted, %d saved (%.1f/s, %.1f MB), %d failed, %d shed, "
+                            + "%d blocked for %.0f ms, queued %d bytes (peak %d of %d)",
+                    mPolicy, mSubmitted, mSaved, getPicturesPerSecond(), mSavedBytes / 1e6, mFailed,
+                    mShed, mBlocked, getBlockedMillis(), mQueuedBytes, mPeakQueuedBytes,
+                    mMaxQueuedBytes);
+        }
+    }
+}
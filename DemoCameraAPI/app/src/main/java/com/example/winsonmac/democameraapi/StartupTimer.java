@@ -0,0 +1,85 @@
+package com.example.winsonmac.democameraapi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Times the steps from the start of the camera to the first preview frame.
+ */
+public class StartupTimer {
+
+    private String mMode;
+    private long mStartNanos;
+    private boolean mRunning;
+    private final List<String> mSteps = new ArrayList<>();
+    private final List<Long> mStepNanos = new ArrayList<>();
+
+    /**
+     * Starts again from now, forgetting the previous steps.
+     *
+     * @param mode How the camera is being started, shown in the summary.
+     */
+    public synchronized void start(String mode) {
+        mMode = mode;
+        mStartNanos = System.nanoTime();
+        mSteps.clear();
+        mStepNanos.clear();
+        mRunning = true;
+    }
+
+    /**
+     * Changes the mode shown in the summary, when it is only known after the start.
+     */
+    public synchronized void setMode(String mode) {
+        mMode = mode;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Records a step, if the timer is running.
+     */
+    public synchronized void mark(String step) {
+        if (mRunning) {
+            mSteps.add(step);
+            mStepNanos.add(System.nanoTime());
+        }
+    }
+
+    /**
+     * Records the last step and stops the timer.
+     *
+     * @return The summary, or null if the timer was not running.
+     */
+    public synchronized String finish(String step) {
+        if (!mRunning) {
+            return null;
+        }
+        mark(step);
+        mRunning = false;
+        return toString();
+    }
+
+    /**
+     * @return Milliseconds from the start to the last recorded step.
+     */
+    public synchronized long getElapsedMillis() {
+        if (mStepNanos.isEmpty()) {
+            return 0;
+        }
+        return (mStepNanos.get(mStepNanos.size() - 1) - mStartNanos) / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("Startup (").append(mMode).append("):");
+        for (int i = 0; i < mSteps.size(); i++) {
+            builder.append(String.format(Locale.US, " %s %d ms", mSteps.get(i),
+                    (mStepNanos.get(i) - mStartNanos) / 1000000));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.winsonmac.democameraapi;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * WebP, lossy or lossless, with the platform encoder.
+ * <p>
+ * Lossless is quality 100 of {@code Bitmap.CompressFormat.WEBP}, which Android 10 and later encode
+ * losslessly; {@code WEBP_LOSSLESS} only comes with API 30. Before Android 10 it is lossy at its
+ * highest quality.
+ */
+public class WebpEncoder extends BitmapEncoder {
+
+    private final int mQuality;
+    private final boolean mLossless;
+
+    /**
+     * @param quality 1 to 100, ignored when lossless.
+     */
+    public WebpEncoder(int quality, boolean lossless) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Invalid quality " + quality);
+        }
+        mQuality = quality;
+        mLossless = lossless;
+    }
+
+    @Override
+    public String getName() {
+        return mLossless ? "webp-lossless" : "webp-" + mQuality;
+    }
+
+    @Override
+    public String getMimeType() {
+        return "image/webp";
+    }
+
+    @Override
+    public String getExtension() {
+        return ".webp";
+    }
+
+    @Override
+    protected void encode(Bitmap bitmap, OutputStream out) throws IOException {
+        if (!bitmap.compress(Bitmap.CompressFormat.WEBP, mLossless ? 100 : mQuality, out)) {
+            throw new IOException("WebP encoding failed");
+        }
+    }
+}
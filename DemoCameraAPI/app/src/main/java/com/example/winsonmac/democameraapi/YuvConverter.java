@@ -0,0 +1,467 @@
+package com.example.winsonmac.democameraapi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts YUV 4:2:0 frames, as planes with any row and pixel stride (YUV_420_888) or as NV21
+ * arrays, to NV21 or ARGB_8888.
+ * <p>
+ * The results go into arrays owned by the caller, so nothing frame sized is allocated per frame.
+ * Big frames are split in stripes of rows converted on a small pool of threads. A converter
+ * handles one frame at a time.
+ */
+public class YuvConverter {
+
+    /**
+     * Frames smaller than this are converted on the calling thread, handing them over would cost
+     * more than it saves.
+     */
+    private static final int PARALLEL_MIN_PIXELS = 640 * 480;
+
+    private static final int KIND_NV21 = 0;
+    private static final int KIND_ARGB = 1;
+    private static final int KIND_NV21_TO_ARGB = 2;
+
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+    private final Stripe[] mStripes;
+    private final Object mLock = new Object();
+    private int mRunning;           // Guarded by mLock
+    private RuntimeException mFailure;  // Guarded by mLock
+
+    // The frame being converted, written before the stripes are started.
+    private int mKind;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mYRowStride;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+    private byte[] mNv21In;
+    private byte[] mNv21Out;
+    private int[] mArgbOut;
+
+    /**
+     * @param threads Number of threads sharing a frame, including the calling one. 1 converts
+     *                everything on the calling thread.
+     */
+    public YuvConverter(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        mThreads = threads;
+        mStripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            mStripes[i] = new Stripe();
+        }
+        mExecutor = threads == 1 ? null : Executors.newFixedThreadPool(threads - 1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "YuvConverter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @return A converter using every core.
+     */
+    public static YuvConverter forAllCores() {
+        return new YuvConverter(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return The length of an NV21 array holding a frame of the given size.
+     */
+    public static int getNv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies the planes of a YUV_420_888 frame to an NV21 array. When the chroma planes are the
+     * two views of one interleaved VU plane, as on most devices, whole rows are copied at once.
+     * <p>
+     * The planes are read from their position, which is left unchanged.
+     *
+     * @param out At least {@link #getNv21Size} long.
+     */
+    public void toNv21(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride, int uvRowStride,
+                       int uvPixelStride, int width, int height, byte[] out) {
+        checkLength(out.length, getNv21Size(width, height));
+        setPlanes(y, u, v, yRowStride, uvRowStride, uvPixelStride, width, height);
+        mNv21Out = out;
+        if (yRowStride == width) {
+            // The whole luma plane is one block.
+            ByteBuffer luma = y.duplicate();
+            luma.get(out, 0, width * height);
+        }
+        if (isInterleavedVu(u, v, uvPixelStride)) {
+            copyInterleavedChroma();
+            if (yRowStride == width) {
+                clear();
+                return;
+            }
+            // Only the luma rows left.
+            mU = null;
+        }
+        run(KIND_NV21);
+    }
+
+    /**
+     * Converts the planes of a YUV_420_888 frame to ARGB_8888 pixels.
+     * <p>
+     * The planes are read from their position, which is left unchanged.
+     *
+     * @param out At least width * height long, one row after the other.
+     */
+    public void toArgb(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride, int uvRowStride,
+                       int uvPixelStride, int width, int height, int[] out) {
+        checkLength(out.length, width * height);
+        setPlanes(y, u, v, yRowStride, uvRowStride, uvPixelStride, width, height);
+        mArgbOut = out;
+        run(KIND_ARGB);
+    }
+
+    /**
+     * Converts an NV21 frame, as given by the legacy preview callbacks, to ARGB_8888 pixels.
+     *
+     * @param out At least width * height long, one row after the other.
+     */
+    public void nv21ToArgb(byte[] nv21, int width, int height, int[] out) {
+        checkLength(nv21.length, getNv21Size(width, height));
+        checkLength(out.length, width * height);
+        mWidth = width;
+        mHeight = height;
+        mNv21In = nv21;
+        mArgbOut = out;
+        run(KIND_NV21_TO_ARGB);
+    }
+
+    /**
+     * Stops the threads, the converter can't be used any more.
+     */
+    public void close() {
+        if (null != mExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Whether the V plane is the interleaved VU plane of NV21, with the U plane starting one byte
+     * later in the same memory. Nothing in the buffers tells it, so a byte of the V plane is
+     * changed and put back while looking at the U plane.
+     */
+    static boolean isInterleavedVu(ByteBuffer u, ByteBuffer v, int uvPixelStride) {
+        if (uvPixelStride != 2 || v.isReadOnly() || u.remaining() < 1 || v.remaining() < 2) {
+            return false;
+        }
+        int uIndex = u.position();
+        int vIndex = v.position() + 1;
+        byte original = u.get(uIndex);
+        if (v.get(vIndex) != original) {
+            return false;
+        }
+        byte probe = (byte) ~original;
+        v.put(vIndex, probe);
+        boolean shared = u.get(uIndex) == probe;
+        v.put(vIndex, original);
+        return shared;
+    }
+
+    private static void checkLength(int length, int needed) {
+        if (length < needed) {
+            throw new IllegalArgumentException("Array of " + length + " for " + needed + " values");
+        }
+    }
+
+    private void setPlanes(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+                           int uvRowStride, int uvPixelStride, int width, int height) {
+        mY = y;
+        mU = u;
+        mV = v;
+        mYRowStride = yRowStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * The V plane already holds V and U alternately, copy it row by row and take the last U of
+     * each row from the U plane.
+     */
+    private void copyInterleavedChroma() {
+        int chromaWidth = (mWidth + 1) / 2;
+        int chromaHeight = (mHeight + 1) / 2;
+        int rowLength = 2 * chromaWidth;
+        ByteBuffer v = mV.duplicate();
+        int base = v.position();
+        int out = mWidth * mHeight;
+        if (mUvRowStride == rowLength) {
+            v.get(mNv21Out, out, rowLength * chromaHeight - 1);
+            mNv21Out[out + rowLength * chromaHeight - 1] =
+                    mU.get(mU.position() + rowLength * chromaHeight - 2);
+            return;
+        }
+        for (int row = 0; row < chromaHeight; row++, out += rowLength) {
+            int offset = row * mUvRowStride;
+            v.position(base + offset);
+            v.get(mNv21Out, out, rowLength - 1);
+            mNv21Out[out + rowLength - 1] = mU.get(mU.position() + offset + rowLength - 2);
+        }
+    }
+
+    /**
+     * Converts the frame set in the fields, in stripes when it is big enough.
+     */
+    private void run(int kind) {
+        mKind = kind;
+        if (mHeight <= 0 || mWidth <= 0) {
+            clear();
+            return;
+        }
+        int stripes = mWidth * mHeight < PARALLEL_MIN_PIXELS ? 1 : mThreads;
+        // Stripes start on an even row, so that they don't share a chroma row.
+        int rows = ((mHeight + stripes - 1) / stripes + 1) & ~1;
+        int count = 0;
+        for (int from = 0; from < mHeight; from += rows) {
+            mStripes[count++].set(from, Math.min(mHeight, from + rows));
+        }
+        synchronized (mLock) {
+            mRunning = count - 1;
+        }
+        for (int i = 1; i < count; i++) {
+            mExecutor.execute(mStripes[i]);
+        }
+        RuntimeException failure = null;
+        try {
+            convert(0, mStripes[0].mTo);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        synchronized (mLock) {
+            boolean interrupted = false;
+            while (mRunning > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (null == failure) {
+                failure = mFailure;
+            }
+            mFailure = null;
+        }
+        clear();
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Drops the references to the caller's buffers and arrays.
+     */
+    private void clear() {
+        mY = null;
+        mU = null;
+        mV = null;
+        mNv21In = null;
+        mNv21Out = null;
+        mArgbOut = null;
+    }
+
+    private void convert(int from, int to) {
+        switch (mKind) {
+            case KIND_NV21:
+                planesToNv21(from, to);
+                break;
+            case KIND_ARGB:
+                planesToArgb(from, to);
+                break;
+            case KIND_NV21_TO_ARGB:
+                nv21ToArgb(from, to);
+                break;
+        }
+    }
+
+    /**
+     * Copies the rows, the luma when it has padding and the chroma unless it has been copied
+     * already (mU is null then).
+     */
+    private void planesToNv21(int from, int to) {
+        byte[] out = mNv21Out;
+        int width = mWidth;
+        if (mYRowStride != width) {
+            ByteBuffer y = mY.duplicate();
+            int base = y.position();
+            for (int row = from; row < to; row++) {
+                y.position(base + row * mYRowStride);
+                y.get(out, row * width, width);
+            }
+        }
+        if (null == mU) {
+            return;
+        }
+        ByteBuffer u = mU;
+        ByteBuffer v = mV;
+        int uBase = u.position();
+        int vBase = v.position();
+        int chromaWidth = (width + 1) / 2;
+        int pixelStride = mUvPixelStride;
+        for (int row = from / 2, end = (to + 1) / 2; row < end; row++) {
+            int offset = row * mUvRowStride;
+            int index = width * mHeight + row * 2 * chromaWidth;
+            for (int x = 0; x < chromaWidth; x++, offset += pixelStride) {
+                out[index++] = v.get(vBase + offset);
+                out[index++] = u.get(uBase + offset);
+            }
+        }
+    }
+
+    private void planesToArgb(int from, int to) {
+        ByteBuffer y = mY;
+        ByteBuffer u = mU;
+        ByteBuffer v = mV;
+        int yBase = y.position();
+        int uBase = u.position();
+        int vBase = v.position();
+        int width = mWidth;
+        int[] out = mArgbOut;
+        for (int row = from; row < to; row++) {
+            int yOffset = yBase + row * mYRowStride;
+            int uvRow = (row >> 1) * mUvRowStride;
+            int index = row * width;
+            for (int x = 0; x < width; x += 2) {
+                int uvOffset = uvRow + (x >> 1) * mUvPixelStride;
+                int cb = (u.get(uBase + uvOffset) & 0xFF) - 128;
+                int cr = (v.get(vBase + uvOffset) & 0xFF) - 128;
+                out[index++] = toArgb(y.get(yOffset + x) & 0xFF, cb, cr);
+                if (x + 1 < width) {
+                    out[index++] = toArgb(y.get(yOffset + x + 1) & 0xFF, cb, cr);
+                }
+            }
+        }
+    }
+
+    private void nv21ToArgb(int from, int to) {
+        byte[] nv21 = mNv21In;
+        int width = mWidth;
+        int chroma = width * mHeight;
+        int chromaRowLength = 2 * ((width + 1) / 2);
+        int[] out = mArgbOut;
+        for (int row = from; row < to; row++) {
+            int yOffset = row * width;
+            int uvOffset = chroma + (row >> 1) * chromaRowLength;
+            for (int x = 0; x < width; x += 2, uvOffset += 2) {
+                int cr = (nv21[uvOffset] & 0xFF) - 128;
+                int cb = (nv21[uvOffset + 1] & 0xFF) - 128;
+                out[yOffset + x] = toArgb(nv21[yOffset + x] & 0xFF, cb, cr);
+                if (x + 1 < width) {
+                    out[yOffset + x + 1] = toArgb(nv21[yOffset + x + 1] & 0xFF, cb, cr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Full range BT.601 (JFIF), with 16 bits fixed point coefficients.
+     */
+    static int toArgb(int luma, int cb, int cr) {
+        int r = luma + ((91881 * cr + 32768) >> 16);
+        int g = luma - ((22554 * cb + 46802 * cr + 32768) >> 16);
+        int b = luma + ((116130 * cb + 32768) >> 16);
+        r = r < 0 ? 0 : r > 255 ? 255 : r;
+        g = g < 0 ? 0 : g > 255 ? 255 : g;
+        b = b < 0 ? 0 : b > 255 ? 255 : b;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * The luma of ARGB_8888 pixels, what {@link #toArgb(int, int, int)} takes back.
+     *
+     * @param out At least count long.
+     */
+    static void argbToLuma(int[] argb, int count, byte[] out) {
+        for (int i = 0; i < count; i++) {
+            int pixel = argb[i];
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            out[i] = (byte) ((19595 * r + 38470 * g + 7471 * b + 32768) >> 16);
+        }
+    }
+
+    /**
+     * One row of the interleaved VU plane of NV21, from the two rows of pixels it covers, or the
+     * last one of an odd height. Each V and U is the one of the mean color of a 2x2 block.
+     *
+     * @param rows 1 or 2, one row after the other in argb.
+     * @param out  At least 2 * ((width + 1) / 2) long.
+     */
+    static void argbToVu(int[] argb, int width, int rows, byte[] out) {
+        for (int x = 0, o = 0; x < width; x += 2, o += 2) {
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            int count = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int dx = 0; dx < 2 && x + dx < width; dx++) {
+                    int pixel = argb[row * width + x + dx];
+                    r += (pixel >> 16) & 0xFF;
+                    g += (pixel >> 8) & 0xFF;
+                    b += pixel & 0xFF;
+                    count++;
+                }
+            }
+            r /= count;
+            g /= count;
+            b /= count;
+            int cr = ((32768 * r - 27439 * g - 5329 * b + 32768) >> 16) + 128;
+            int cb = ((-11059 * r - 21709 * g + 32768 * b + 32768) >> 16) + 128;
+            out[o] = (byte) (cr < 0 ? 0 : cr > 255 ? 255 : cr);
+            out[o + 1] = (byte) (cb < 0 ? 0 : cb > 255 ? 255 : cb);
+        }
+    }
+
+    /**
+     * A part of the frame converted on a pool thread, reused for every frame.
+     */
+    private class Stripe implements Runnable {
+
+        private int mFrom;
+        private int mTo;
+
+        void set(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public void run() {
+            RuntimeException failure = null;
+            try {
+                convert(mFrom, mTo);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            synchronized (mLock) {
+                if (null == mFailure) {
+                    mFailure = failure;
+                }
+                mRunning--;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
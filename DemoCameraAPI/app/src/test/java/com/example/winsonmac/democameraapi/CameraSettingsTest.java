@@ -0,0 +1,227 @@
+package com.example.winsonmac.democameraapi;
+
+import android.hardware.Camera;
+import android.view.Choreographer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CameraSettings}, on a camera that counts the calls made to it.
+ */
+public class CameraSettingsTest {
+
+    private static final String PARAMETERS = "zoom=0;focus-mode=auto;jpeg-quality=100";
+
+    @Test
+    public void countsChangedKeys() {
+        assertEquals(0, CameraSettings.countChangedKeys(PARAMETERS, PARAMETERS));
+        assertEquals(1, CameraSettings.countChangedKeys(PARAMETERS,
+                "zoom=4;focus-mode=auto;jpeg-quality=100"));
+        assertEquals(2, CameraSettings.countChangedKeys(PARAMETERS,
+                "zoom=4;focus-mode=continuous-picture;jpeg-quality=100"));
+        // Added and removed keys count too.
+        assertEquals(2, CameraSettings.countChangedKeys(PARAMETERS, "zoom=0;focus-mode=auto;flash-mode=on"));
+    }
+
+    @Test
+    public void replacesOneValue() {
+        assertEquals("zoom=7;focus-mode=auto;jpeg-quality=100",
+                CameraSettings.withValue(PARAMETERS, "zoom", "7"));
+        assertEquals(PARAMETERS + ";flash-mode=on",
+                CameraSettings.withValue(PARAMETERS, "flash-mode", "on"));
+        assertEquals("zoom=1", CameraSettings.withValue("", "zoom", "1"));
+    }
+
+    @Test
+    public void sendsTheChangesOfAFrameAtOnce() {
+        FakeDevice device = new FakeDevice(false);
+        CameraSettings<FakeParameters> settings = new CameraSettings<>(device);
+        settings.edit().focusMode = "macro";
+        settings.setZoom(3);
+        settings.edit().quality = 90;
+        assertEquals(1, device.frameCallbacks.size());
+        assertEquals(0, device.sets);
+
+        device.runFrame();
+        assertEquals(1, device.gets);
+        assertEquals(1, device.sets);
+        assertEquals("zoom=3;focus-mode=macro;jpeg-quality=90", device.applied.flatten());
+        // Nothing more to send at the next frame.
+        device.runFrame();
+        assertEquals(1, device.sets);
+    }
+
+    @Test
+    public void sendsNothingWhenNothingChanged() {
+        FakeDevice device = new FakeDevice(false);
+        CameraSettings<FakeParameters> settings = new CameraSettings<>(device);
+        settings.edit();
+        device.runFrame();
+        assertEquals(0, device.sets);
+
+        // Changed and changed back within the frame.
+        settings.edit().focusMode = "macro";
+        settings.edit().focusMode = "auto";
+        settings.setZoom(0);
+        device.runFrame();
+        settings.flush();
+        assertEquals(0, device.sets);
+        assertEquals(1, device.gets);
+    }
+
+    @Test
+    public void fetchesAgainAfterARefusedSet() {
+        FakeDevice device = new FakeDevice(false);
+        CameraSettings<FakeParameters> settings = new CameraSettings<>(device);
+        device.refuse = true;
+        settings.edit().focusMode = "unknown";
+        settings.flush();
+        assertEquals(1, device.sets);
+        assertEquals(2, device.gets);
+        // The copy is the camera's again, not the refused values.
+        assertEquals("auto", settings.get().focusMode);
+        assertTrue(settings.toString(), settings.toString().contains("1 refused"));
+
+        device.refuse = false;
+        settings.flush();
+        assertEquals(1, device.sets);
+    }
+
+    @Test
+    public void queuedZoomStartsWhenTheRunningOneStops() {
+        FakeDevice device = new FakeDevice(true);
+        CameraSettings<FakeParameters> settings = new CameraSettings<>(device);
+        settings.edit().focusMode = "macro";
+        settings.setZoom(5);
+        // The pending change went out first, the smooth zoom reads it from the camera.
+        assertEquals(1, device.sets);
+        assertEquals(1, device.smoothZooms.size());
+        assertEquals(5, (int) device.smoothZooms.get(0));
+
+        settings.setZoom(8);
+        settings.setZoom(9);
+        settings.onZoomChange(3, false, null);
+        assertEquals(1, device.smoothZooms.size());
+        assertEquals(3, settings.get().zoom);
+
+        settings.onZoomChange(5, true, null);
+        assertEquals(2, device.smoothZooms.size());
+        assertEquals(9, (int) device.smoothZooms.get(1));
+        settings.onZoomChange(9, true, null);
+        assertEquals(2, device.smoothZooms.size());
+        // The camera moved the zoom itself, there is nothing to send back.
+        device.runFrame();
+        assertEquals(1, device.sets);
+    }
+
+    private static class FakeParameters {
+        int zoom;
+        String focusMode = "auto";
+        int quality = 100;
+
+        FakeParameters copy() {
+            FakeParameters copy = new FakeParameters();
+            copy.zoom = zoom;
+            copy.focusMode = focusMode;
+            copy.quality = quality;
+            return copy;
+        }
+
+        String flatten() {
+            return "zoom=" + zoom + ";focus-mode=" + focusMode + ";jpeg-quality=" + quality;
+        }
+    }
+
+    /**
+     * Holds what the camera has, and gives copies of it as the camera service does.
+     */
+    private static class FakeDevice implements CameraSettings.Device<FakeParameters> {
+        final boolean smoothZoom;
+        final List<Choreographer.FrameCallback> frameCallbacks = new ArrayList<>();
+        final List<Integer> smoothZooms = new ArrayList<>();
+        FakeParameters applied = new FakeParameters();
+        boolean refuse;
+        int gets;
+        int sets;
+
+        FakeDevice(boolean smoothZoom) {
+            this.smoothZoom = smoothZoom;
+        }
+
+        void runFrame() {
+            List<Choreographer.FrameCallback> callbacks = new ArrayList<>(frameCallbacks);
+            frameCallbacks.clear();
+            for (Choreographer.FrameCallback callback : callbacks) {
+                callback.doFrame(0);
+            }
+        }
+
+        @Override
+        public FakeParameters getParameters() {
+            gets++;
+            return applied.copy();
+        }
+
+        @Override
+        public void setParameters(FakeParameters parameters) {
+            sets++;
+            if (refuse) {
+                throw new RuntimeException("setParameters failed");
+            }
+            applied = parameters.copy();
+        }
+
+        @Override
+        public String flatten(FakeParameters parameters) {
+            return parameters.flatten();
+        }
+
+        @Override
+        public int getMaxZoom(FakeParameters parameters) {
+            return 10;
+        }
+
+        @Override
+        public int getZoom(FakeParameters parameters) {
+            return parameters.zoom;
+        }
+
+        @Override
+        public void setZoom(FakeParameters parameters, int zoom) {
+            parameters.zoom = zoom;
+        }
+
+        @Override
+        public boolean isSmoothZoomSupported(FakeParameters parameters) {
+            return smoothZoom;
+        }
+
+        @Override
+        public void setZoomChangeListener(Camera.OnZoomChangeListener listener) {
+        }
+
+        @Override
+        public void startSmoothZoom(int zoom) {
+            smoothZooms.add(zoom);
+        }
+
+        @Override
+        public void stopSmoothZoom() {
+        }
+
+        @Override
+        public void postFrameCallback(Choreographer.FrameCallback callback) {
+            frameCallbacks.add(callback);
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            frameCallbacks.remove(callback);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.winsonmac.democameraapi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CaptureCatalog}.
+ */
+public class CaptureCatalogTest {
+
+    private File mDirectory;
+    private File mLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("catalog", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mLog = new File(mDirectory, "captures.log");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static CaptureCatalog.Entry append(CaptureCatalog catalog, int i) throws IOException {
+        return catalog.append(catalog.newFile(".jpg"), 1000 + i, 4032, 3024, 90, 5000000L * i,
+                1500000000000L + i, CaptureCatalog.UNKNOWN);
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        CaptureCatalog catalog = CaptureCatalog.open(mLog, mDirectory);
+        for (int i = 0; i < 3; i++) {
+            append(catalog, i);
+        }
+        catalog.close();
+
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        List<CaptureCatalog.Entry> entries = catalog.list();
+        assertEquals(3, entries.size());
+        CaptureCatalog.Entry entry = entries.get(2);
+        assertEquals(1002, entry.getSize());
+        assertEquals(4032, entry.getWidth());
+        assertEquals(3024, entry.getHeight());
+        assertEquals(90, entry.getOrientation());
+        assertEquals(10000000L, entry.getSensorTimestamp());
+        assertEquals(1500000000002L, entry.getDateTaken());
+        assertEquals(CaptureCatalog.UNKNOWN, entry.getThumbnailOffset());
+        assertEquals(mDirectory, entry.getFile().getParentFile());
+        assertTrue(entries.get(0).getId() < entries.get(1).getId());
+        assertSame(entry, catalog.get(entry.getId()));
+        catalog.close();
+    }
+
+    @Test
+    public void namesAreNeverGivenTwice() throws IOException {
+        Set<String> names = new HashSet<>();
+        CaptureCatalog catalog = CaptureCatalog.open(mLog, mDirectory);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(names.add(catalog.newFile(".jpg").getName()));
+        }
+        // Written, but the catalog never heard of it: as after a crash.
+        File orphan = catalog.newFile(".jpg");
+        assertTrue(orphan.createNewFile());
+        names.add(orphan.getName());
+        append(catalog, 0);
+        catalog.close();
+
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        for (int i = 0; i < 10; i++) {
+            File file = catalog.newFile(".jpg");
+            assertFalse(file.exists());
+            assertTrue(names.add(file.getName()));
+        }
+        catalog.close();
+    }
+
+    @Test
+    public void removalsAreCompactedAway() throws IOException {
+        CaptureCatalog catalog = CaptureCatalog.open(mLog, mDirectory);
+        long[] ids = new long[600];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = append(catalog, i).getId();
+        }
+        long full = catalog.getLogBytes();
+        for (int i = 0; i < 500; i++) {
+            assertTrue(catalog.remove(ids[i]));
+        }
+        assertFalse(catalog.remove(ids[0]));
+        assertTrue(catalog.getCompactions() > 0);
+        assertTrue(catalog.getLogBytes() < full);
+        assertEquals(mLog.length(), catalog.getLogBytes());
+        long next = append(catalog, 600).getId();
+        assertTrue(next > ids[ids.length - 1]);
+        catalog.close();
+
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        assertEquals(101, catalog.size());
+        assertNull(catalog.get(ids[0]));
+        assertEquals(ids[500], catalog.list().get(0).getId());
+        assertEquals(next, catalog.list().get(100).getId());
+        catalog.close();
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        CaptureCatalog catalog = CaptureCatalog.open(mLog, mDirectory);
+        for (int i = 0; i < 5; i++) {
+            append(catalog, i);
+        }
+        catalog.close();
+        // The last record only half written.
+        RandomAccessFile file = new RandomAccessFile(mLog, "rw");
+        try {
+            file.setLength(file.length() - 10);
+        } finally {
+            file.close();
+        }
+        long valid;
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        assertEquals(4, catalog.size());
+        assertTrue(catalog.getTruncatedBytes() > 0);
+        valid = catalog.getLogBytes();
+        assertEquals(valid, mLog.length());
+        catalog.close();
+
+        // Garbage after the good records.
+        FileOutputStream out = new FileOutputStream(mLog, true);
+        try {
+            out.write(new byte[]{0, 0, 0, 20, 1, 2, 3});
+        } finally {
+            out.close();
+        }
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        assertEquals(4, catalog.size());
+        append(catalog, 5);
+        catalog.close();
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        assertEquals(5, catalog.size());
+        assertEquals(0, catalog.getTruncatedBytes());
+        catalog.close();
+    }
+
+    @Test
+    public void listsLargeCatalogs() throws IOException {
+        CaptureCatalog catalog = CaptureCatalog.open(mLog, mDirectory);
+        for (int i = 0; i < 10000; i++) {
+            append(catalog, i);
+        }
+        catalog.close();
+
+        catalog = CaptureCatalog.open(mLog, mDirectory);
+        List<CaptureCatalog.Entry> entries = catalog.list();
+        assertEquals(10000, entries.size());
+        for (CaptureCatalog.Entry entry : entries) {
+            assertTrue(entry.getSize() > 0);
+        }
+        catalog.close();
+    }
+
+    /**
+     * Times appending, opening and listing large catalogs.
+     */
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkLargeCatalogs() throws IOException {
+        for (int count : new int[]{10000, 100000}) {
+            mLog.delete();
+            CaptureCatalog catalog = CaptureCatalog.open(mLog, mDirectory);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                append(catalog, i);
+            }
+            long appendNanos = System.nanoTime() - start;
+            catalog.close();
+
+            start = System.nanoTime();
+            catalog = CaptureCatalog.open(mLog, mDirectory);
+            long openNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            List<CaptureCatalog.Entry> entries = catalog.list();
+            long listNanos = System.nanoTime() - start;
+            System.out.println(String.format(Locale.US,
+                    "Catalog of %d: log %d KB, append %.2f us each, open %.1f ms, list %.1f ms",
+                    count, catalog.getLogBytes() / 1024, appendNanos / 1e3 / count,
+                    openNanos / 1e6, listNanos / 1e6));
+            assertEquals(count, entries.size());
+            catalog.close();
+        }
+    }
+}
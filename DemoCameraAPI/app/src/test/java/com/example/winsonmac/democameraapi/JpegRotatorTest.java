@@ -0,0 +1,264 @@
+package com.example.winsonmac.democameraapi;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link JpegRotator}. Reference JPEGs are made and decoded with ImageIO,
+ * which is only available on the development machine.
+ */
+public class JpegRotatorTest {
+
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+    private static final int BENCHMARK_RUNS = 7;
+
+    @Test
+    public void rotatesPixels() throws IOException {
+        // Sizes are whole MCUs, so nothing is trimmed.
+        byte[] jpeg = encode(64, 48);
+        BufferedImage original = decode(jpeg);
+        for (int degrees = 90; degrees < 360; degrees += 90) {
+            BufferedImage rotated = decode(rotate(jpeg, degrees));
+            boolean transposed = degrees != 180;
+            assertEquals(transposed ? 48 : 64, rotated.getWidth());
+            assertEquals(transposed ? 64 : 48, rotated.getHeight());
+            for (int y = 0; y < rotated.getHeight(); y++) {
+                for (int x = 0; x < rotated.getWidth(); x++) {
+                    int expected;
+                    if (degrees == 90) {
+                        expected = original.getRGB(y, 48 - 1 - x);
+                    } else if (degrees == 180) {
+                        expected = original.getRGB(64 - 1 - x, 48 - 1 - y);
+                    } else {
+                        expected = original.getRGB(64 - 1 - y, x);
+                    }
+                    assertClose(expected, rotated.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void isLossless() throws IOException {
+        byte[] jpeg = encode(80, 32);
+        byte[] quarterTurns = jpeg;
+        for (int i = 0; i < 4; i++) {
+            quarterTurns = rotate(quarterTurns, 90);
+        }
+        byte[] halfTurns = rotate(rotate(jpeg, 180), 180);
+        // Same coefficients, coded with the same tables.
+        assertArrayEquals(halfTurns, quarterTurns);
+
+        BufferedImage original = decode(jpeg);
+        BufferedImage result = decode(quarterTurns);
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 80; x++) {
+                assertClose(original.getRGB(x, y), result.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void trimsPartialEdgeMcus() throws IOException {
+        byte[] jpeg = encode(70, 50);
+        BufferedImage rotated = decode(rotate(jpeg, 90));
+        // The bottom partial MCU row would become the left side.
+        assertEquals(48, rotated.getWidth());
+        assertEquals(70, rotated.getHeight());
+
+        rotated = decode(rotate(jpeg, 180));
+        assertEquals(64, rotated.getWidth());
+        assertEquals(48, rotated.getHeight());
+    }
+
+    @Test
+    public void handlesRestartIntervals() throws IOException {
+        BufferedImage image = pattern(100, 70);
+        byte[] plain = encode(image, 0);
+        byte[] restarts = encode(image, 3);
+        assertTrue(restarts.length > plain.length);
+        // Same coefficients once decoded, the result has no restart markers either way.
+        assertArrayEquals(rotate(plain, 270), rotate(restarts, 270));
+    }
+
+    @Test
+    public void zeroDegreesCopiesTheInput() throws IOException {
+        byte[] jpeg = encode(16, 16);
+        assertArrayEquals(jpeg, rotate(jpeg, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsGarbage() throws IOException {
+        rotate(new byte[]{1, 2, 3, 4, 5, 6}, 90);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddAngles() throws IOException {
+        rotate(encode(16, 16), 45);
+    }
+
+    /**
+     * Rotates an 8 MP JPEG losslessly and by decoding, turning and encoding the pixels again, as
+     * the Bitmap path does on the device. Prints the median time and the bytes allocated per
+     * picture.
+     */
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkLosslessAgainstReEncode() throws IOException {
+        byte[] jpeg = encode(3264, 2448);
+        for (int degrees = 90; degrees < 360; degrees += 90) {
+            for (int mode = 0; mode < 2; mode++) {
+                long[] nanos = new long[BENCHMARK_RUNS];
+                long[] allocated = new long[BENCHMARK_RUNS];
+                // The first rounds warm the JIT.
+                for (int run = -2; run < BENCHMARK_RUNS; run++) {
+                    long bytesBefore = getAllocatedBytes();
+                    long start = System.nanoTime();
+                    if (mode == 0) {
+                        rotate(jpeg, degrees);
+                    } else {
+                        encode(turn(decode(jpeg), degrees), 0);
+                    }
+                    if (run >= 0) {
+                        nanos[run] = System.nanoTime() - start;
+                        allocated[run] = getAllocatedBytes() - bytesBefore;
+                    }
+                }
+                System.out.println(String.format(Locale.US,
+                        "%3d degrees %-9s %7.1f ms %7.1f MB allocated",
+                        degrees, mode == 0 ? "lossless" : "re-encode", median(nanos) / 1e6,
+                        median(allocated) / 1e6));
+            }
+        }
+    }
+
+    private static BufferedImage turn(BufferedImage image, int degrees) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean transposed = degrees != 180;
+        BufferedImage turned = new BufferedImage(transposed ? height : width,
+                transposed ? width : height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (degrees == 90) {
+                    turned.setRGB(height - 1 - y, x, row[x]);
+                } else if (degrees == 180) {
+                    turned.setRGB(width - 1 - x, height - 1 - y, row[x]);
+                } else {
+                    turned.setRGB(y, width - 1 - x, row[x]);
+                }
+            }
+        }
+        return turned;
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, -1 if the JVM doesn't tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static byte[] rotate(byte[] jpeg, int degrees) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegRotator.rotate(jpeg, degrees, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(int width, int height) throws IOException {
+        return encode(pattern(width, height), 0);
+    }
+
+    /**
+     * A smooth gradient with a few sharp edges, so that AC coefficients are not all zero.
+     */
+    private static BufferedImage pattern(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = ((x / 8 + y / 8) & 1) == 0 ? 40 : 200;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @param restartInterval MCUs between restart markers, 0 for none.
+     */
+    private static byte[] encode(BufferedImage image, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(
+                new ImageTypeSpecifier(image), writer.getDefaultWriteParam());
+        if (restartInterval > 0) {
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA);
+            Node markers = root.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(JPEG_METADATA, root);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(new IIOImage(image, null, metadata));
+        stream.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image);
+        return image;
+    }
+
+    /**
+     * The pixels come from the same coefficients, only rounding in the decoder's IDCT and chroma
+     * upsampling can make them differ a little.
+     */
+    private static void assertClose(int expected, int actual) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int a = (expected >> shift) & 0xFF;
+            int b = (actual >> shift) & 0xFF;
+            assertTrue("Expected " + Integer.toHexString(expected) + " but was "
+                    + Integer.toHexString(actual), Math.abs(a - b) <= 4);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.winsonmac.democameraapi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SaveService}.
+ */
+public class SaveServiceTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Waits for a latch before "saving", and records the result.
+     */
+    private static class GatedJob implements SaveService.Job {
+        final CountDownLatch mGate;
+        final List<String> mResults;
+        final String mName;
+
+        GatedJob(CountDownLatch gate, List<String> results, String name) {
+            mGate = gate;
+            mResults = results;
+            mName = name;
+        }
+
+        @Override
+        public String save() throws Exception {
+            mGate.await();
+            if (mName.startsWith("bad")) {
+                throw new IOException(mName);
+            }
+            return mName;
+        }
+
+        @Override
+        public void onSaved(String path, Exception error) {
+            mResults.add(path != null ? path : "failed " + error.getMessage());
+        }
+    }
+
+    @Test
+    public void shedsBeyondTheByteLimit() throws InterruptedException {
+        SaveService service = new SaveService(2, 10, SaveService.Policy.SHED, DIRECT);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(service.submit(6, new GatedJob(gate, results, "a")));
+        assertTrue(service.submit(4, new GatedJob(gate, results, "b")));
+        assertFalse(service.submit(1, new GatedJob(gate, results, "c")));
+        assertEquals(10, service.getQueuedBytes());
+        assertEquals(1, service.getShed());
+        gate.countDown();
+        service.shutdown();
+        assertTrue(service.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, service.getQueuedBytes());
+        assertEquals(10, service.getPeakQueuedBytes());
+        assertEquals(2, results.size());
+        assertTrue(results.contains("a") && results.contains("b"));
+    }
+
+    @Test
+    public void acceptsAnOversizedJobWhenIdle() throws InterruptedException {
+        SaveService service = new SaveService(1, 10, SaveService.Policy.SHED, DIRECT);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(service.submit(50, new GatedJob(gate, results, "big")));
+        assertFalse(service.submit(1, new GatedJob(gate, results, "small")));
+        gate.countDown();
+        service.shutdown();
+        assertTrue(service.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("big"), results);
+    }
+
+    @Test
+    public void blocksUntilThereIsRoom() throws InterruptedException {
+        final SaveService service = new SaveService(1, 10, SaveService.Policy.BLOCK, DIRECT);
+        CountDownLatch gate = new CountDownLatch(1);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(service.submit(8, new GatedJob(gate, results, "bad first")));
+
+        final boolean[] accepted = new boolean[1];
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accepted[0] = service.submit(8, new GatedJob(new CountDownLatch(0), results, "second"));
+            }
+        });
+        submitter.start();
+        Thread.sleep(50);
+        // Still waiting for the first picture to leave.
+        assertTrue(submitter.isAlive());
+        gate.countDown();
+        submitter.join(5000);
+        assertTrue(accepted[0]);
+
+        service.shutdown();
+        assertTrue(service.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, results.size());
+        assertEquals("failed bad first", results.get(0));
+        assertEquals("second", results.get(1));
+        assertEquals(1, service.getSaved());
+        assertTrue(service.toString(), service.getBlockedMillis() >= 40);
+        assertEquals(8, service.getPeakQueuedBytes());
+    }
+
+    @Test
+    public void submitLaterWaitsForRoomOnItsOwnThread() throws InterruptedException {
+        SaveService service = new SaveService(1, 10, SaveService.Policy.BLOCK, DIRECT);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(service.submit(8, new GatedJob(gate, results, "first")));
+
+        final List<Boolean> accepted = Collections.synchronizedList(new ArrayList<Boolean>());
+        final CountDownLatch submitted = new CountDownLatch(1);
+        SaveService.SubmitCallback callback = new SaveService.SubmitCallback() {
+            @Override
+            public void onSubmitted(boolean wasAccepted) {
+                accepted.add(wasAccepted);
+                submitted.countDown();
+            }
+        };
+        // Returns at once although there is no room.
+        service.submitLater(8, new GatedJob(new CountDownLatch(0), results, "second"), callback);
+        assertFalse(submitted.await(50, TimeUnit.MILLISECONDS));
+        gate.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(true), accepted);
+
+        service.shutdown();
+        service.submitLater(1, new GatedJob(gate, results, "late"), callback);
+        assertTrue(service.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, accepted.size());
+        assertFalse(accepted.get(1));
+        assertEquals(2, results.size());
+        assertEquals(2, service.getSaved());
+    }
+
+    @Test
+    public void shutdownReleasesBlockedSubmitters() throws InterruptedException {
+        final SaveService service = new SaveService(1, 10, SaveService.Policy.BLOCK, DIRECT);
+        CountDownLatch gate = new CountDownLatch(1);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        service.submit(10, new GatedJob(gate, results, "a"));
+        final boolean[] accepted = {true};
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accepted[0] = service.submit(5, new GatedJob(new CountDownLatch(0), results, "b"));
+            }
+        });
+        submitter.start();
+        Thread.sleep(20);
+        service.shutdown();
+        submitter.join(5000);
+        assertFalse(accepted[0]);
+        gate.countDown();
+        assertTrue(service.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("a"), results);
+    }
+}